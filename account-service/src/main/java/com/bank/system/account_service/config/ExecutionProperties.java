@@ -0,0 +1,47 @@
+package com.bank.system.account_service.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+@ConfigurationProperties(prefix = "execution")
+public class ExecutionProperties {
+
+    private final DbLimit dbLimit = new DbLimit();
+
+    public DbLimit getDbLimit() {
+        return dbLimit;
+    }
+
+    public static class DbLimit {
+        private boolean enabled = false;
+        // 0 = the JDBC pool's maximum-pool-size
+        private int permits = 0;
+        // null = the JDBC pool's connection-timeout
+        private Duration acquireTimeout;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getPermits() {
+            return permits;
+        }
+
+        public void setPermits(int permits) {
+            this.permits = permits;
+        }
+
+        public Duration getAcquireTimeout() {
+            return acquireTimeout;
+        }
+
+        public void setAcquireTimeout(Duration acquireTimeout) {
+            this.acquireTimeout = acquireTimeout;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.bank.system.account_service.config;
+
+import com.bank.system.account_service.ledger.AccountLedger;
+import com.bank.system.account_service.ledger.JdbcAccountLedger;
+import com.bank.system.account_service.ledger.LedgerEngine;
+import com.bank.system.account_service.repository.AccountRepository;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.io.IOException;
+
+@Configuration
+@EnableConfigurationProperties(LedgerProperties.class)
+public class LedgerConfig {
+
+    /**
+     * The in-memory engine when ledger.enabled is set, otherwise conditional updates of the account table.
+     * The engine is closed with the context, which drains its queues and projects the final balances.
+     * <p>
+     * The engine's balances and write-ahead log are private to the instance, which accepts debits against
+     * balances no other instance sees, so it requires account-service to run as a single instance. Outbox
+     * leasing is only needed when several instances share the database, so the two refuse to start together.
+     */
+    @Bean
+    public AccountLedger accountLedger(LedgerProperties ledgerProperties, OutboxProperties outboxProperties,
+                                       AccountRepository accountRepository) throws IOException {
+        if (!ledgerProperties.isEnabled()) {
+            return new JdbcAccountLedger(accountRepository);
+        }
+        if (outboxProperties.getLease().isEnabled()) {
+            throw new IllegalStateException("ledger.enabled requires a single account-service instance, "
+                    + "but outbox.lease.enabled is set for several instances sharing the database");
+        }
+        LedgerEngine engine = new LedgerEngine(ledgerProperties, accountRepository);
+        engine.start();
+        return engine;
+    }
+}
@@ -0,0 +1,138 @@
+package com.bank.system.account_service.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+
+@ConfigurationProperties(prefix = "ledger")
+public class LedgerProperties {
+
+    private boolean enabled = false;
+    private int partitions = 4;
+    private int queueDepth = 65_536;
+    private int maxBatch = 4_096;
+    private String directory = "ledger-wal";
+    private boolean fsync = true;
+    private Duration projectionInterval = Duration.ofMillis(200);
+    private int dedupWindow = 100_000;
+    // A partition's journal is rewritten to its current state once it grows past this
+    private DataSize compactAt = DataSize.ofMegabytes(64);
+    private final Snapshot snapshot = new Snapshot();
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public int getPartitions() {
+        return partitions;
+    }
+
+    public void setPartitions(int partitions) {
+        this.partitions = partitions;
+    }
+
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    public void setQueueDepth(int queueDepth) {
+        this.queueDepth = queueDepth;
+    }
+
+    public int getMaxBatch() {
+        return maxBatch;
+    }
+
+    public void setMaxBatch(int maxBatch) {
+        this.maxBatch = maxBatch;
+    }
+
+    public String getDirectory() {
+        return directory;
+    }
+
+    public void setDirectory(String directory) {
+        this.directory = directory;
+    }
+
+    public boolean isFsync() {
+        return fsync;
+    }
+
+    public void setFsync(boolean fsync) {
+        this.fsync = fsync;
+    }
+
+    public Duration getProjectionInterval() {
+        return projectionInterval;
+    }
+
+    public void setProjectionInterval(Duration projectionInterval) {
+        this.projectionInterval = projectionInterval;
+    }
+
+    public int getDedupWindow() {
+        return dedupWindow;
+    }
+
+    public void setDedupWindow(int dedupWindow) {
+        this.dedupWindow = dedupWindow;
+    }
+
+    public DataSize getCompactAt() {
+        return compactAt;
+    }
+
+    public void setCompactAt(DataSize compactAt) {
+        this.compactAt = compactAt;
+    }
+
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    public static class Snapshot {
+        private boolean enabled = true;
+        private int every = 100;
+        private Duration interval = Duration.ofSeconds(30);
+        private Duration settleTime = Duration.ofSeconds(10);
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getEvery() {
+            return every;
+        }
+
+        public void setEvery(int every) {
+            this.every = every;
+        }
+
+        public Duration getInterval() {
+            return interval;
+        }
+
+        public void setInterval(Duration interval) {
+            this.interval = interval;
+        }
+
+        public Duration getSettleTime() {
+            return settleTime;
+        }
+
+        public void setSettleTime(Duration settleTime) {
+            this.settleTime = settleTime;
+        }
+    }
+}
@@ -4,11 +4,13 @@ import com.bank.system.account_service.domain.Account;
 import com.bank.system.account_service.service.AccountService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.format.annotation.DateTimeFormat;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
 import java.math.BigDecimal;
+import java.time.Instant;
 import java.util.Optional;
 
 @RestController
@@ -79,6 +81,25 @@ public class AccountController {
         }
     }
 
+    @GetMapping("/{accountNumber}/ledger-balance")
+    public ResponseEntity<LedgerBalanceResponse> getLedgerBalance(
+            @PathVariable String accountNumber,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant at) {
+        log.info("Received request to get ledger balance of account {} as of {}", accountNumber, at);
+        Instant asOf = at != null ? at : Instant.now();
+        try {
+            return accountService.getLedgerBalance(accountNumber, asOf)
+                    .map(balance -> new ResponseEntity<>(new LedgerBalanceResponse(accountNumber, balance, asOf), HttpStatus.OK))
+                    .orElseGet(() -> {
+                        log.warn("No ledger entries for account {} as of {}", accountNumber, asOf);
+                        return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+                    });
+        } catch (Exception ex) {
+            log.error("Error retrieving ledger balance of account {}: {}", accountNumber, ex.getMessage());
+            return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
+        }
+    }
+
     @PostMapping("/{accountNumber}/deposit")
     public ResponseEntity<Account> deposit(
             @PathVariable String accountNumber,
@@ -137,6 +158,30 @@ public class AccountController {
         }
     }
 
+    @PutMapping("/{accountNumber}/stripes")
+    public ResponseEntity<Account> stripeAccount(
+            @PathVariable String accountNumber,
+            @RequestBody StripesRequest request) {
+        log.info("Received request to spread account {} over {} stripe(s)", accountNumber, request.getStripes());
+        try {
+            return accountService.stripeAccount(accountNumber, request.getStripes())
+                    .map(account -> new ResponseEntity<>(account, HttpStatus.OK))
+                    .orElseGet(() -> {
+                        log.warn("Striping failed: Account {} not found.", accountNumber);
+                        return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+                    });
+        } catch (IllegalArgumentException ex) {
+            log.warn("Invalid stripe count for account {}: {}", accountNumber, ex.getMessage());
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        } catch (IllegalStateException ex) {
+            log.warn("Striping of account {} refused: {}", accountNumber, ex.getMessage());
+            return new ResponseEntity<>(HttpStatus.CONFLICT);
+        } catch (Exception ex) {
+            log.error("Error striping account {}: {}", accountNumber, ex.getMessage());
+            return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
+        }
+    }
+
     @DeleteMapping("/{accountNumber}")
     public ResponseEntity<Object> deleteAccount(@PathVariable String accountNumber) {
         log.info("Received request to delete account: {}", accountNumber);
@@ -181,6 +226,42 @@ public class AccountController {
         }
     }
 
+    public static class StripesRequest {
+        private int stripes;
+
+        public int getStripes() {
+            return stripes;
+        }
+
+        public void setStripes(int stripes) {
+            this.stripes = stripes;
+        }
+    }
+
+    public static class LedgerBalanceResponse {
+        private final String accountNumber;
+        private final BigDecimal balance;
+        private final Instant at;
+
+        public LedgerBalanceResponse(String accountNumber, BigDecimal balance, Instant at) {
+            this.accountNumber = accountNumber;
+            this.balance = balance;
+            this.at = at;
+        }
+
+        public String getAccountNumber() {
+            return accountNumber;
+        }
+
+        public BigDecimal getBalance() {
+            return balance;
+        }
+
+        public Instant getAt() {
+            return at;
+        }
+    }
+
     public static class TransferRequest {
         private String toAccountNumber;
         private String idempotencyKey;
@@ -39,6 +39,9 @@ public class Account {
     @Column(name = "balance", nullable = false, precision = 19, scale = 2) // Precision for monetary values
     private BigDecimal balance;
 
+    @Column(name = "stripes", nullable = false) // Sub-rows the balance is spread over, 1 for ordinary accounts
+    private int stripes = 1;
+
     @CreatedDate // Spring Data JPA annotation for automatic creation timestamp
     @Column(name = "created_at", nullable = false, updatable = false)
     private Instant createdAt; // Changed to Instant
@@ -86,6 +89,10 @@ public class Account {
         return balance;
     }
 
+    public int getStripes() {
+        return stripes;
+    }
+
     public Instant getCreatedAt() { // Changed to Instant
         return createdAt;
     }
@@ -111,6 +118,10 @@ public class Account {
         this.balance = balance;
     }
 
+    public void setStripes(int stripes) {
+        this.stripes = stripes;
+    }
+
     public void setCreatedAt(Instant createdAt) { // Changed to Instant
         this.createdAt = createdAt;
     }
@@ -142,6 +153,7 @@ public class Account {
                 ", accountNumber='" + accountNumber + '\'' +
                 ", userId=" + userId +
                 ", balance=" + balance +
+                ", stripes=" + stripes +
                 ", createdAt=" + createdAt +
                 ", updatedAt=" + updatedAt +
                 '}';
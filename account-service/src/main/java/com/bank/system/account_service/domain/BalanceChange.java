@@ -0,0 +1,55 @@
+package com.bank.system.account_service.domain;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+
+/**
+ * One debit or credit of a batch handed to {@link com.bank.system.account_service.ledger.AccountLedger#applyAll}.
+ * The amount is always positive; the direction is carried separately.
+ */
+public class BalanceChange {
+
+    private final UUID commandId;
+    private final String accountNumber;
+    private final BigDecimal amount;
+    private final boolean debit;
+
+    private BalanceChange(UUID commandId, String accountNumber, BigDecimal amount, boolean debit) {
+        this.commandId = commandId;
+        this.accountNumber = accountNumber;
+        this.amount = amount;
+        this.debit = debit;
+    }
+
+    public static BalanceChange debit(UUID commandId, String accountNumber, BigDecimal amount) {
+        return new BalanceChange(commandId, accountNumber, amount, true);
+    }
+
+    public static BalanceChange credit(UUID commandId, String accountNumber, BigDecimal amount) {
+        return new BalanceChange(commandId, accountNumber, amount, false);
+    }
+
+    public UUID getCommandId() {
+        return commandId;
+    }
+
+    public String getAccountNumber() {
+        return accountNumber;
+    }
+
+    public BigDecimal getAmount() {
+        return amount;
+    }
+
+    public boolean isDebit() {
+        return debit;
+    }
+
+    @Override
+    public String toString() {
+        return "BalanceChange{" +
+                (debit ? "debit " : "credit ") + amount +
+                ", accountNumber='" + accountNumber + '\'' +
+                '}';
+    }
+}
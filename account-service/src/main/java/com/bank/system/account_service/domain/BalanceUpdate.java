@@ -0,0 +1,57 @@
+package com.bank.system.account_service.domain;
+
+/**
+ * Outcome of an atomic debit or credit: whether the balance changed and, if the account exists, the
+ * account as it stands afterwards (or as it stood when a debit was refused for lack of funds).
+ */
+public class BalanceUpdate {
+
+    public enum Status {
+        APPLIED,
+        INSUFFICIENT_FUNDS,
+        NOT_FOUND
+    }
+
+    private final Status status;
+    private final Account account;
+
+    private BalanceUpdate(Status status, Account account) {
+        this.status = status;
+        this.account = account;
+    }
+
+    public static BalanceUpdate applied(Account account) {
+        return new BalanceUpdate(Status.APPLIED, account);
+    }
+
+    public static BalanceUpdate insufficientFunds(Account account) {
+        return new BalanceUpdate(Status.INSUFFICIENT_FUNDS, account);
+    }
+
+    public static BalanceUpdate notFound() {
+        return new BalanceUpdate(Status.NOT_FOUND, null);
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public boolean isApplied() {
+        return status == Status.APPLIED;
+    }
+
+    /**
+     * @return the account after the update, its unchanged state if funds were insufficient, or null if not found
+     */
+    public Account getAccount() {
+        return account;
+    }
+
+    @Override
+    public String toString() {
+        return "BalanceUpdate{" +
+                "status=" + status +
+                ", balance=" + (account == null ? null : account.getBalance()) +
+                '}';
+    }
+}
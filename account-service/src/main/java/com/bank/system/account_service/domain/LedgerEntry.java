@@ -0,0 +1,32 @@
+package com.bank.system.account_service.domain;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+
+/**
+ * A row to append to ledger_entry; the amount is signed, negative for a debit.
+ */
+public class LedgerEntry {
+
+    private final String accountNumber;
+    private final UUID paymentId;
+    private final BigDecimal amount;
+
+    public LedgerEntry(String accountNumber, UUID paymentId, BigDecimal amount) {
+        this.accountNumber = accountNumber;
+        this.paymentId = paymentId;
+        this.amount = amount;
+    }
+
+    public String getAccountNumber() {
+        return accountNumber;
+    }
+
+    public UUID getPaymentId() {
+        return paymentId;
+    }
+
+    public BigDecimal getAmount() {
+        return amount;
+    }
+}
@@ -13,6 +13,7 @@ public class OutboxEvent {
     private Instant createdAt;
     private boolean sent;
     private int version;
+    private int attempts; // failed publishes so far
 
     public OutboxEvent(UUID id, String aggregateType, UUID aggregateId, String type,
                        String payload, Instant createdAt, boolean sent) {
@@ -88,4 +89,12 @@ public class OutboxEvent {
     public void setVersion(int version) {
         this.version = version;
     }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
 }
@@ -0,0 +1,98 @@
+package com.bank.system.account_service.jobs;
+
+import com.bank.system.account_service.config.LedgerProperties;
+import com.bank.system.account_service.repository.LedgerEntryRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Folds ledger entries into account_balance_snapshot once an account has gathered enough of them, so a
+ * balance lookup reads a snapshot and a short tail instead of the account's whole history.
+ * <p>
+ * Identity ids are handed out when an entry is inserted, not when its transaction commits, so a committed
+ * entry may sit above one that is still in flight. Every run notes the highest committed id and folds only
+ * up to the id it noted at least settle-time ago: by then every entry below that id has committed or rolled
+ * back, as long as no transaction stays open for longer than settle-time.
+ */
+@Component
+public class LedgerSnapshotJob {
+
+    private static final Logger log = LoggerFactory.getLogger(LedgerSnapshotJob.class);
+
+    private final LedgerEntryRepository ledgerEntryRepository;
+    private final LedgerProperties.Snapshot properties;
+    // Highest committed id seen by earlier runs, oldest first; the head is the newest that has settled
+    private final Deque<Watermark> watermarks = new ArrayDeque<>();
+
+    public LedgerSnapshotJob(LedgerEntryRepository ledgerEntryRepository, LedgerProperties ledgerProperties) {
+        this.ledgerEntryRepository = ledgerEntryRepository;
+        this.properties = ledgerProperties.getSnapshot();
+    }
+
+    @Scheduled(fixedDelayString = "${ledger.snapshot.interval:30s}", initialDelayString = "${ledger.snapshot.interval:30s}")
+    public void scheduledSnapshot() {
+        if (properties.isEnabled()) {
+            snapshot();
+        }
+    }
+
+    /**
+     * Snapshots every account with at least {@code every} settled entries past its latest snapshot.
+     *
+     * @return the number of snapshots written
+     */
+    public synchronized int snapshot() {
+        Watermark settled = settledWatermark();
+        if (settled == null) {
+            return 0;
+        }
+        Instant settledBefore = settled.seenAt.minus(properties.getSettleTime());
+        List<String> accounts = ledgerEntryRepository.findSnapshotCandidates(properties.getEvery(), settled.entryId);
+        int written = 0;
+        for (String accountNumber : accounts) {
+            try {
+                if (ledgerEntryRepository.snapshot(accountNumber, settled.entryId, settledBefore)) {
+                    written++;
+                }
+            } catch (RuntimeException e) {
+                log.warn("Skipped the ledger snapshot of account {}: {}", accountNumber, e.getMessage());
+            }
+        }
+        if (written > 0) {
+            log.info("Ledger snapshot job wrote {} snapshots of entries up to id {}", written, settled.entryId);
+        }
+        return written;
+    }
+
+    private Watermark settledWatermark() {
+        long now = System.nanoTime();
+        watermarks.addLast(new Watermark(ledgerEntryRepository.findMaxEntryId(), now, Instant.now()));
+        Watermark settled = null;
+        while (!watermarks.isEmpty() && now - watermarks.peekFirst().seenAtNanos >= properties.getSettleTime().toNanos()) {
+            settled = watermarks.pollFirst();
+        }
+        if (settled != null) {
+            watermarks.addFirst(settled);
+        }
+        return settled;
+    }
+
+    private static final class Watermark {
+        private final long entryId;
+        private final long seenAtNanos;
+        private final Instant seenAt;
+
+        private Watermark(long entryId, long seenAtNanos, Instant seenAt) {
+            this.entryId = entryId;
+            this.seenAtNanos = seenAtNanos;
+            this.seenAt = seenAt;
+        }
+    }
+}
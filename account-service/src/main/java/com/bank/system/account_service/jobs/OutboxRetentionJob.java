@@ -0,0 +1,93 @@
+package com.bank.system.account_service.jobs;
+
+import com.bank.system.account_service.config.OutboxProperties;
+import com.bank.system.account_service.config.OutboxProperties.RetentionMode;
+import com.bank.system.account_service.domain.OutboxEventKey;
+import com.bank.system.account_service.repository.OutboxEventRepository;
+import com.bank.system.account_service.service.OutboxRetentionService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Moves sent outbox events past their retention age out of outbox_event, so the table the dispatcher
+ * polls only holds recent rows. The table is walked in (created_at, id) order with a keyset cursor and
+ * every chunk is archived or deleted in its own transaction.
+ */
+@Component
+public class OutboxRetentionJob {
+
+    private static final Logger log = LoggerFactory.getLogger(OutboxRetentionJob.class);
+    private static final OutboxEventKey START = new OutboxEventKey(new UUID(0L, 0L), Instant.EPOCH);
+
+    private final OutboxEventRepository outboxEventRepository;
+    private final OutboxRetentionService retentionService;
+    private final OutboxProperties.Retention properties;
+
+    private volatile double lastRowsPerSecond;
+
+    public OutboxRetentionJob(OutboxEventRepository outboxEventRepository,
+                              OutboxRetentionService retentionService,
+                              OutboxProperties outboxProperties) {
+        this.outboxEventRepository = outboxEventRepository;
+        this.retentionService = retentionService;
+        this.properties = outboxProperties.getRetention();
+    }
+
+    @Scheduled(fixedDelayString = "${outbox.retention.interval:1m}", initialDelayString = "${outbox.retention.interval:1m}")
+    public void scheduledCompaction() {
+        if (properties.isEnabled()) {
+            compact();
+        }
+    }
+
+    /**
+     * Runs one compaction pass, stopping early once max-run-time has elapsed; the next run picks up the rest.
+     *
+     * @return the number of rows removed from outbox_event
+     */
+    public int compact() {
+        Instant cutoff = Instant.now().minus(properties.getRetainFor());
+        int chunkSize = properties.getChunkSize();
+        long start = System.nanoTime();
+        long deadline = start + properties.getMaxRunTime().toNanos();
+
+        OutboxEventKey cursor = START;
+        int moved = 0;
+        List<OutboxEventKey> chunk;
+        do {
+            chunk = outboxEventRepository.findSentBefore(cutoff, cursor, chunkSize);
+            if (chunk.isEmpty()) {
+                break;
+            }
+            List<UUID> ids = chunk.stream().map(OutboxEventKey::getId).toList();
+            try {
+                moved += properties.getMode() == RetentionMode.ARCHIVE
+                        ? retentionService.archive(ids)
+                        : retentionService.purge(ids);
+            } catch (RuntimeException e) {
+                // Most likely another instance compacted the same rows; carry on past this chunk
+                log.warn("Skipped an outbox retention chunk of {} events: {}", ids.size(), e.getMessage());
+            }
+            cursor = chunk.get(chunk.size() - 1);
+        } while (chunk.size() == chunkSize && System.nanoTime() < deadline);
+
+        double seconds = (System.nanoTime() - start) / 1_000_000_000.0;
+        lastRowsPerSecond = seconds > 0 ? moved / seconds : 0;
+        if (moved > 0) {
+            log.info("Outbox retention {} {} events sent before {} ({} rows/sec)",
+                    properties.getMode() == RetentionMode.ARCHIVE ? "archived" : "deleted",
+                    moved, cutoff, String.format("%.1f", lastRowsPerSecond));
+        }
+        return moved;
+    }
+
+    public double getLastRowsPerSecond() {
+        return lastRowsPerSecond;
+    }
+}
@@ -0,0 +1,88 @@
+package com.bank.system.account_service.jobs;
+
+import com.bank.system.account_service.config.DedupProperties;
+import com.bank.system.account_service.repository.ProcessedEventRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+
+/**
+ * Forgets processed events older than dedup.retention.retain-for, so processed_event only spans the window
+ * in which Kafka can still redeliver an event. Where the table is partitioned by day, partitions are created
+ * ahead of time and whole days past the window are dropped; whatever is left, and every row on databases
+ * without partitioning, is deleted in chunks.
+ */
+@Component
+public class ProcessedEventRetentionJob {
+
+    private static final Logger log = LoggerFactory.getLogger(ProcessedEventRetentionJob.class);
+
+    private final ProcessedEventRepository processedEventRepository;
+    private final DedupProperties.Retention properties;
+
+    public ProcessedEventRetentionJob(ProcessedEventRepository processedEventRepository, DedupProperties dedupProperties) {
+        this.processedEventRepository = processedEventRepository;
+        this.properties = dedupProperties.getRetention();
+    }
+
+    @Scheduled(fixedDelayString = "${dedup.retention.interval:1h}", initialDelayString = "${dedup.retention.interval:1h}")
+    public void scheduledPurge() {
+        if (properties.isEnabled()) {
+            purge();
+        }
+    }
+
+    /**
+     * Runs one retention pass, stopping early once max-run-time has elapsed; the next run picks up the rest.
+     *
+     * @return the number of processed_event rows deleted, not counting dropped partitions
+     */
+    public int purge() {
+        Instant cutoff = Instant.now().minus(properties.getRetainFor());
+        long deadline = System.nanoTime() + properties.getMaxRunTime().toNanos();
+        int droppedDays = 0;
+        if (processedEventRepository.isPartitioned()) {
+            droppedDays = rollPartitions(LocalDate.ofInstant(cutoff, ZoneOffset.UTC));
+        }
+
+        int chunkSize = properties.getChunkSize();
+        int deleted = 0;
+        int chunk;
+        do {
+            chunk = processedEventRepository.deleteProcessedBefore(cutoff, chunkSize);
+            deleted += chunk;
+        } while (chunk == chunkSize && System.nanoTime() < deadline);
+
+        if (deleted > 0 || droppedDays > 0) {
+            log.info("Processed-event retention dropped {} day partitions and deleted {} rows processed before {}",
+                    droppedDays, deleted, cutoff);
+        }
+        return deleted;
+    }
+
+    // Creates the partitions of the coming days and drops those that end before the cutoff day
+    private int rollPartitions(LocalDate cutoffDay) {
+        LocalDate today = LocalDate.now(ZoneOffset.UTC);
+        for (int i = 0; i <= properties.getPartitionsAhead(); i++) {
+            try {
+                processedEventRepository.createDayPartition(today.plusDays(i));
+            } catch (RuntimeException e) {
+                // Today's rows may already sit in the default partition; they are deleted row by row instead
+                log.warn("Skipped creating the processed_event partition of {}: {}", today.plusDays(i), e.getMessage());
+            }
+        }
+        int dropped = 0;
+        for (LocalDate day : processedEventRepository.findDayPartitions()) {
+            if (day.isBefore(cutoffDay)) {
+                processedEventRepository.dropDayPartition(day);
+                dropped++;
+            }
+        }
+        return dropped;
+    }
+}
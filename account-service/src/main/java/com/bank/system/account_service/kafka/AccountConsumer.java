@@ -11,6 +11,8 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.kafka.annotation.KafkaListener;
 import org.springframework.stereotype.Component;
 
+import java.util.List;
+
 @Component
 public class AccountConsumer {
 
@@ -29,22 +31,42 @@ public class AccountConsumer {
     }
 
 
-    @KafkaListener(topics = PAYMENT_INITIATED_TOPIC, groupId = "${" + AccountConsumer.SPRING_KAFKA_CONSUMER_GROUP_ID + "}")
-    public void listenPaymentInitiatedEvent(PaymentInitiatedEvent event) {
-        log.info("Consumed PaymentInitiatedEvent for paymentId: {}", event.getPaymentId());
-        paymentAccountService.handlePaymentInitiatedEvent(event);
+    /**
+     * Receives everything one poll returned for the topic and hands it to the service as a single batch.
+     * If the batch fails it has been rolled back as a whole, and its events are replayed one by one so a
+     * single bad event only fails on its own.
+     */
+    @KafkaListener(topics = PAYMENT_INITIATED_TOPIC, groupId = "${" + AccountConsumer.SPRING_KAFKA_CONSUMER_GROUP_ID + "}", batch = "true")
+    public void listenPaymentInitiatedEvents(List<PaymentInitiatedEvent> events) {
+        log.info("Consumed {} PaymentInitiatedEvents", events.size());
+        try {
+            paymentAccountService.handlePaymentInitiatedEvents(events);
+        } catch (RuntimeException ex) {
+            log.warn("Batch of {} PaymentInitiatedEvents failed, replaying it event by event: {}", events.size(), ex.getMessage());
+            events.forEach(paymentAccountService::handlePaymentInitiatedEvent);
+        }
     }
 
-    @KafkaListener(topics = RECEIVER_CREDITED_REQUESTED_TOPIC, groupId = "${" + AccountConsumer.SPRING_KAFKA_CONSUMER_GROUP_ID + "}")
-    public void listenReceiverCreditedRequestedEvent(ReceiverCreditRequestEvent event) {
-        log.info("Consumed ReceiverCreditRequestEvent for paymentId: {}", event.getPaymentId());
-        paymentAccountService.handleReceiverCreditRequestEvent(event);
+    @KafkaListener(topics = RECEIVER_CREDITED_REQUESTED_TOPIC, groupId = "${" + AccountConsumer.SPRING_KAFKA_CONSUMER_GROUP_ID + "}", batch = "true")
+    public void listenReceiverCreditedRequestedEvents(List<ReceiverCreditRequestEvent> events) {
+        log.info("Consumed {} ReceiverCreditRequestEvents", events.size());
+        try {
+            paymentAccountService.handleReceiverCreditRequestEvents(events);
+        } catch (RuntimeException ex) {
+            log.warn("Batch of {} ReceiverCreditRequestEvents failed, replaying it event by event: {}", events.size(), ex.getMessage());
+            events.forEach(paymentAccountService::handleReceiverCreditRequestEvent);
+        }
     }
 
-    @KafkaListener(topics = COMPENSATE_PAYMENT_REQEUST_TOPIC, groupId = "${" + AccountConsumer.SPRING_KAFKA_CONSUMER_GROUP_ID + "}")
-    public void listenCompensatePaymentRequestEvent(CompensatePaymentRequestEvent event) {
-        log.info("Consumed CompensatePaymentEvent for paymentId: {}", event.getPaymentId());
-        paymentAccountService.handleCompensatePaymentRequestEvent(event);
+    @KafkaListener(topics = COMPENSATE_PAYMENT_REQEUST_TOPIC, groupId = "${" + AccountConsumer.SPRING_KAFKA_CONSUMER_GROUP_ID + "}", batch = "true")
+    public void listenCompensatePaymentRequestEvents(List<CompensatePaymentRequestEvent> events) {
+        log.info("Consumed {} CompensatePaymentRequestEvents", events.size());
+        try {
+            paymentAccountService.handleCompensatePaymentRequestEvents(events);
+        } catch (RuntimeException ex) {
+            log.warn("Batch of {} CompensatePaymentRequestEvents failed, replaying it event by event: {}", events.size(), ex.getMessage());
+            events.forEach(paymentAccountService::handleCompensatePaymentRequestEvent);
+        }
     }
 
 }
@@ -0,0 +1,68 @@
+package com.bank.system.account_service.ledger;
+
+import com.bank.system.account_service.domain.BalanceChange;
+import com.bank.system.account_service.domain.BalanceUpdate;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Where debits and credits of account balances are applied: straight against the account table, or by the
+ * in-memory {@link LedgerEngine} when {@code ledger.enabled} is set. The command id, when there is one, is
+ * the id of the event that caused the change and lets the ledger recognise a redelivered command.
+ */
+public interface AccountLedger {
+
+    // account.balance is DECIMAL(19, 2)
+    int SCALE = 2;
+
+    /**
+     * Whether {@code amount} can be debited or credited at all: positive, with no more decimals than a balance
+     * keeps, and within the range of one.
+     */
+    static boolean isApplicable(BigDecimal amount) {
+        if (amount == null || amount.signum() <= 0) {
+            return false;
+        }
+        try {
+            amount.movePointRight(SCALE).longValueExact();
+            return true;
+        } catch (ArithmeticException e) {
+            return false;
+        }
+    }
+
+    BalanceUpdate debit(UUID commandId, String accountNumber, BigDecimal amount);
+
+    BalanceUpdate credit(UUID commandId, String accountNumber, BigDecimal amount);
+
+    /**
+     * Applies a batch of changes in list order and returns their outcomes in the same order. Changes of one
+     * account see the balances left by the ones before them, exactly as if they had been applied one by one.
+     */
+    default List<BalanceUpdate> applyAll(List<BalanceChange> changes) {
+        List<BalanceUpdate> updates = new ArrayList<>(changes.size());
+        for (BalanceChange change : changes) {
+            updates.add(change.isDebit()
+                    ? debit(change.getCommandId(), change.getAccountNumber(), change.getAmount())
+                    : credit(change.getCommandId(), change.getAccountNumber(), change.getAmount()));
+        }
+        return updates;
+    }
+
+    /**
+     * Whether an account's balance may be spread over account_stripe rows. The engine keeps whole balances
+     * and projects them onto the account row, where stripes would count part of the balance twice.
+     */
+    default boolean supportsStriping() {
+        return true;
+    }
+
+    /**
+     * Drops whatever the ledger holds for an account that has been deleted.
+     */
+    default void forget(String accountNumber) {
+    }
+}
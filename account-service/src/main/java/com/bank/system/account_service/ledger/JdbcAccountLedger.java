@@ -0,0 +1,37 @@
+package com.bank.system.account_service.ledger;
+
+import com.bank.system.account_service.domain.BalanceChange;
+import com.bank.system.account_service.domain.BalanceUpdate;
+import com.bank.system.account_service.repository.AccountRepository;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Applies every change as a conditional UPDATE of the account table. Redelivered commands are filtered out
+ * by the callers through processed_event, so the command id is not needed here.
+ */
+public class JdbcAccountLedger implements AccountLedger {
+
+    private final AccountRepository accountRepository;
+
+    public JdbcAccountLedger(AccountRepository accountRepository) {
+        this.accountRepository = accountRepository;
+    }
+
+    @Override
+    public BalanceUpdate debit(UUID commandId, String accountNumber, BigDecimal amount) {
+        return accountRepository.debit(accountNumber, amount);
+    }
+
+    @Override
+    public BalanceUpdate credit(UUID commandId, String accountNumber, BigDecimal amount) {
+        return accountRepository.credit(accountNumber, amount);
+    }
+
+    @Override
+    public List<BalanceUpdate> applyAll(List<BalanceChange> changes) {
+        return accountRepository.applyAll(changes);
+    }
+}
@@ -0,0 +1,629 @@
+package com.bank.system.account_service.ledger;
+
+import com.bank.system.account_service.config.LedgerProperties;
+import com.bank.system.account_service.domain.Account;
+import com.bank.system.account_service.domain.BalanceChange;
+import com.bank.system.account_service.domain.BalanceUpdate;
+import com.bank.system.account_service.repository.AccountRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the authoritative balances in memory and applies debits and credits on a fixed number of sequencer
+ * threads, one per partition of the account space. Each partition owns its accounts outright: balances are
+ * plain {@code long} minor units in an array, no command ever waits for a lock, and a command touches a
+ * single account, so partitions never coordinate.
+ * <p>
+ * A sequencer drains its queue in batches, applies the batch, appends the resulting balances to the
+ * partition's {@link LedgerJournal} and commits the journal once before completing any of the batch's
+ * futures, so an acknowledged change is always durable. On startup the journals are replayed. The account
+ * table becomes a projection that is brought up to date in the background every projection-interval; reads
+ * that go to the table may lag the engine by that much.
+ * <p>
+ * Accounts are loaded from the table the first time a command touches them, by the calling thread and on its
+ * own connection before the command is queued: a sequencer never touches the database, so callers holding
+ * every pooled connection cannot starve it. If a journal cannot be written the engine stops taking commands,
+ * since its memory would then be ahead of its log. Once a journal grows past compact-at it is rewritten to
+ * the partition's current state, so a restart replays the live accounts and the dedup window rather than the
+ * whole history.
+ * <p>
+ * A change is applied as soon as it is sequenced, not when the caller's transaction commits. When
+ * {@link #debit}, {@link #credit} or {@link #applyAll} run inside a transaction, the changes they applied are
+ * reverted if it rolls back, and their command ids are forgotten so the redelivered commands apply again.
+ * Until then a credit is held: it is part of the balance but no debit may spend it, so reverting it can never
+ * overdraw the account. Holds live in memory only, since no transaction outlives a restart.
+ * <p>
+ * The engine owns whole balances, so accounts cannot be striped while it runs; stripes left from before it
+ * was enabled are folded back into the account rows on startup.
+ */
+public class LedgerEngine implements AccountLedger, AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(LedgerEngine.class);
+    private static final byte[] NO_KEY = new byte[0];
+
+    private final LedgerProperties properties;
+    private final AccountRepository accountRepository;
+    private final Partition[] partitions;
+    // Latest balance of every account changed since the last projection; absolute values, so coalescing is safe
+    private final Map<String, Long> unprojected = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService projector;
+    private volatile boolean running;
+    private volatile Throwable failure;
+
+    public LedgerEngine(LedgerProperties properties, AccountRepository accountRepository) {
+        this.properties = properties;
+        this.accountRepository = accountRepository;
+        this.partitions = new Partition[properties.getPartitions()];
+        Path directory = Path.of(properties.getDirectory());
+        for (int i = 0; i < partitions.length; i++) {
+            partitions[i] = new Partition(i, new LedgerJournal(directory.resolve("ledger-" + i + ".wal"), properties.isFsync()));
+        }
+        this.projector = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("ledger-projector-"));
+    }
+
+    /**
+     * Replays the journals, projects whatever they hold onto the account table and starts the sequencers.
+     */
+    public void start() throws IOException {
+        Files.createDirectories(Path.of(properties.getDirectory()));
+        // The projection writes whole balances to the account row, where stripes would count part of them twice
+        for (String accountNumber : accountRepository.findStripedAccountNumbers()) {
+            accountRepository.stripe(accountNumber, 1);
+        }
+        long replayed = 0;
+        for (Partition partition : partitions) {
+            replayed += partition.replay();
+        }
+        project();
+        running = true;
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("ledger-sequencer-");
+        for (Partition partition : partitions) {
+            partition.thread = threadFactory.newThread(partition);
+            partition.thread.start();
+        }
+        long interval = properties.getProjectionInterval().toMillis();
+        projector.scheduleWithFixedDelay(this::project, interval, interval, TimeUnit.MILLISECONDS);
+        log.info("Ledger engine started with {} partitions after replaying {} journal records", partitions.length, replayed);
+    }
+
+    @Override
+    public BalanceUpdate debit(UUID commandId, String accountNumber, BigDecimal amount) {
+        return awaitInTransaction(enqueue(change(commandId, accountNumber, -toMinorUnits(amount))));
+    }
+
+    @Override
+    public BalanceUpdate credit(UUID commandId, String accountNumber, BigDecimal amount) {
+        return awaitInTransaction(enqueue(change(commandId, accountNumber, toMinorUnits(amount))));
+    }
+
+    /**
+     * Queues the whole batch before waiting for any of it, so its commands share journal commits. Every
+     * command is waited for even once one has failed, so that all the changes that were applied are reverted
+     * with the transaction.
+     */
+    @Override
+    public List<BalanceUpdate> applyAll(List<BalanceChange> changes) {
+        List<Command> commands = new ArrayList<>(changes.size());
+        for (BalanceChange change : changes) {
+            long delta = toMinorUnits(change.getAmount());
+            commands.add(enqueue(change(change.getCommandId(), change.getAccountNumber(), change.isDebit() ? -delta : delta)));
+        }
+        List<BalanceUpdate> updates = new ArrayList<>(changes.size());
+        RuntimeException failed = null;
+        for (Command command : commands) {
+            try {
+                updates.add(awaitInTransaction(command));
+            } catch (RuntimeException e) {
+                if (failed == null) {
+                    failed = e;
+                }
+            }
+        }
+        if (failed != null) {
+            throw failed;
+        }
+        return updates;
+    }
+
+    // A credit made inside a transaction is held until the transaction commits
+    private static Command change(UUID commandId, String accountNumber, long delta) {
+        Command command = new Command(commandId, accountNumber, delta, Command.CHANGE);
+        command.held = delta > 0 && TransactionSynchronizationManager.isSynchronizationActive();
+        return command;
+    }
+
+    @Override
+    public boolean supportsStriping() {
+        return false;
+    }
+
+    @Override
+    public void forget(String accountNumber) {
+        await(enqueue(new Command(null, accountNumber, 0L, Command.FORGET)).result);
+    }
+
+    /**
+     * Queues a change of {@code delta} minor units, negative for a debit, and returns at once. The future
+     * completes once the change is journaled; a debit the balance does not cover completes as
+     * insufficient funds and changes nothing. Blocks while the partition's queue is full. The change is not
+     * tied to the caller's transaction.
+     */
+    public CompletableFuture<BalanceUpdate> submit(UUID commandId, String accountNumber, long delta) {
+        return enqueue(new Command(commandId, accountNumber, delta, Command.CHANGE)).result;
+    }
+
+    private Command enqueue(Command command) {
+        if (!running) {
+            command.result.completeExceptionally(new IllegalStateException("Ledger engine is not running", failure));
+            return command;
+        }
+        Partition partition = partitions[Math.floorMod(command.accountNumber.hashCode(), partitions.length)];
+        try {
+            if (command.kind == Command.CHANGE && !partition.loaded.contains(command.accountNumber)) {
+                // Inside the caller's transaction, on the connection it already holds
+                command.row = accountRepository.findByAccountNumber(command.accountNumber);
+            }
+            partition.queue.put(command);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            command.result.completeExceptionally(e);
+        } catch (RuntimeException e) {
+            command.result.completeExceptionally(e);
+        }
+        return command;
+    }
+
+    // Waits for the command and, inside a transaction, has it reverted should the transaction roll back
+    private BalanceUpdate awaitInTransaction(Command command) {
+        BalanceUpdate update = await(command.result);
+        if (command.changed && TransactionSynchronizationManager.isSynchronizationActive()) {
+            RevertOnRollback revert = null;
+            for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+                if (synchronization instanceof RevertOnRollback registered && registered.engine() == this) {
+                    revert = registered;
+                }
+            }
+            if (revert == null) {
+                revert = new RevertOnRollback();
+                TransactionSynchronizationManager.registerSynchronization(revert);
+            }
+            revert.applied.add(command);
+        }
+        return update;
+    }
+
+    private static BalanceUpdate await(CompletableFuture<BalanceUpdate> result) {
+        try {
+            return result.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw e;
+        }
+    }
+
+    static long toMinorUnits(BigDecimal amount) {
+        try {
+            return amount.movePointRight(SCALE).longValueExact();
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("Amount " + amount + " has more than " + SCALE + " decimals or is out of range", e);
+        }
+    }
+
+    /**
+     * Writes the latest balances changed since the previous run to the account table. Runs on the projector
+     * thread; only ever sees balances whose journal records have been committed.
+     */
+    void project() {
+        if (unprojected.isEmpty()) {
+            return;
+        }
+        Map<String, BigDecimal> balances = new HashMap<>();
+        for (String accountNumber : unprojected.keySet()) {
+            Long balance = unprojected.remove(accountNumber);
+            if (balance != null) {
+                balances.put(accountNumber, BigDecimal.valueOf(balance, SCALE));
+            }
+        }
+        try {
+            accountRepository.projectBalances(balances);
+        } catch (RuntimeException e) {
+            log.warn("Failed to project {} ledger balances, will retry: {}", balances.size(), e.getMessage());
+            // Put them back unless a newer balance has arrived in the meantime
+            balances.forEach((accountNumber, balance) ->
+                    unprojected.putIfAbsent(accountNumber, balance.movePointRight(SCALE).longValueExact()));
+        }
+    }
+
+    /**
+     * @return the number of accounts whose latest balance has not reached the account table yet
+     */
+    public int getUnprojectedCount() {
+        return unprojected.size();
+    }
+
+    /**
+     * Stops taking commands, lets the sequencers finish what is queued, and projects the final balances.
+     */
+    @Override
+    public void close() throws InterruptedException {
+        running = false;
+        for (Partition partition : partitions) {
+            if (partition.thread != null) {
+                partition.thread.join();
+            }
+            // Anything that slipped in after the sequencer stopped
+            partition.fail(new IllegalStateException("Ledger engine is shut down"), List.of());
+        }
+        projector.shutdown();
+        projector.awaitTermination(10, TimeUnit.SECONDS);
+        project();
+        for (Partition partition : partitions) {
+            try {
+                partition.journal.close();
+            } catch (IOException e) {
+                log.error("Failed to close ledger journal of partition {}: {}", partition.index, e.getMessage());
+            }
+        }
+        log.info("Ledger engine stopped");
+    }
+
+    /**
+     * Undoes, newest first, the changes a transaction applied through the engine once it has rolled back, or
+     * releases the credits it held once it has committed. Either is only queued: it runs ahead of anything
+     * submitted afterwards, a redelivery included.
+     */
+    private final class RevertOnRollback implements TransactionSynchronization {
+        private final List<Command> applied = new ArrayList<>();
+
+        LedgerEngine engine() {
+            return LedgerEngine.this;
+        }
+
+        @Override
+        public void afterCompletion(int status) {
+            if (status == STATUS_COMMITTED) {
+                for (Command change : applied) {
+                    if (change.held) {
+                        Command release = new Command(change.commandId, change.accountNumber, change.delta, Command.RELEASE);
+                        enqueue(release).result.whenComplete((update, ex) -> {
+                            if (ex != null) {
+                                log.error("Failed to release a held credit of {} to account {} after a commit",
+                                        change.delta, change.accountNumber, ex);
+                            }
+                        });
+                    }
+                }
+                return;
+            }
+            for (int i = applied.size() - 1; i >= 0; i--) {
+                Command change = applied.get(i);
+                Command revert = new Command(change.commandId, change.accountNumber, -change.delta, Command.REVERT);
+                revert.held = change.held;
+                enqueue(revert).result.whenComplete((update, ex) -> {
+                    if (ex != null) {
+                        log.error("Failed to revert a change of {} to account {} after a rollback",
+                                change.delta, change.accountNumber, ex);
+                    }
+                });
+            }
+        }
+    }
+
+    private static final class Command {
+        static final int CHANGE = 0;
+        static final int FORGET = 1;
+        static final int REVERT = 2;
+        static final int RELEASE = 3;
+
+        final UUID commandId;
+        final String accountNumber;
+        final long delta;
+        final int kind;
+        final CompletableFuture<BalanceUpdate> result = new CompletableFuture<>();
+        // The account row as the caller read it, when the partition had not loaded the account yet
+        Optional<Account> row;
+        BalanceUpdate outcome;
+        RuntimeException error;
+        // Whether the balance moved, as opposed to an acknowledged redelivery or a refused debit
+        boolean changed;
+        // A credit not to be spent until its transaction commits, or the revert of one
+        boolean held;
+
+        Command(UUID commandId, String accountNumber, long delta, int kind) {
+            this.commandId = commandId;
+            this.accountNumber = accountNumber;
+            this.delta = delta;
+            this.kind = kind;
+        }
+    }
+
+    private final class Partition implements Runnable {
+        private final int index;
+        private final LedgerJournal journal;
+        private final BlockingQueue<Command> queue = new ArrayBlockingQueue<>(properties.getQueueDepth());
+        // Account numbers are interned to slots once; the balances themselves stay primitive
+        private final Map<String, Integer> slots = new HashMap<>();
+        private long[] balances = new long[1024];
+        // Part of each balance credited by transactions that have not committed yet, never spent by a debit
+        private long[] holds = new long[1024];
+        // Row as last loaded from the account table, or null for an account only known from the journal so far
+        private Account[] accounts = new Account[1024];
+        // Account numbers as the journal writes them, encoded once per account rather than once per command
+        private byte[][] keys = new byte[1024][];
+        // Accounts whose row has been loaded; read by callers to decide whether a command must carry the row
+        private final Set<String> loaded = ConcurrentHashMap.newKeySet();
+        private int nextSlot;
+        private final Map<UUID, Boolean> recentCommands = new LinkedHashMap<>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<UUID, Boolean> eldest) {
+                return size() > properties.getDedupWindow();
+            }
+        };
+        private final Map<String, Long> changed = new HashMap<>();
+        private long compactAt = properties.getCompactAt().toBytes();
+        private Thread thread;
+
+        Partition(int index, LedgerJournal journal) {
+            this.index = index;
+            this.journal = journal;
+        }
+
+        long replay() throws IOException {
+            return journal.open((type, commandId, accountNumber, balance) -> {
+                if (type == LedgerJournal.SEEN) {
+                    recentCommands.put(commandId, Boolean.TRUE);
+                    return;
+                }
+                if (type == LedgerJournal.FORGOTTEN) {
+                    slots.remove(accountNumber);
+                    unprojected.remove(accountNumber);
+                    return;
+                }
+                if (type == LedgerJournal.REVERTED) {
+                    balances[slotOf(accountNumber)] = balance;
+                    recentCommands.remove(commandId);
+                    unprojected.put(accountNumber, balance);
+                    return;
+                }
+                balances[slotOf(accountNumber)] = balance;
+                if (commandId != null) {
+                    recentCommands.put(commandId, Boolean.TRUE);
+                }
+                unprojected.put(accountNumber, balance);
+            });
+        }
+
+        @Override
+        public void run() {
+            List<Command> batch = new ArrayList<>(properties.getMaxBatch());
+            while (running || !queue.isEmpty()) {
+                try {
+                    Command first = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    batch.add(first);
+                    queue.drainTo(batch, properties.getMaxBatch() - 1);
+                    for (Command command : batch) {
+                        apply(command);
+                    }
+                    journal.commit();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    fail(new IllegalStateException("Ledger sequencer interrupted", e), batch);
+                    return;
+                } catch (IOException | RuntimeException e) {
+                    log.error("Ledger partition {} could not journal a batch of {} commands, stopping the engine: {}",
+                            index, batch.size(), e.getMessage(), e);
+                    fail(e instanceof IOException io ? new UncheckedIOException(io) : (RuntimeException) e, batch);
+                    return;
+                }
+                unprojected.putAll(changed);
+                changed.clear();
+                for (Command command : batch) {
+                    if (command.error != null) {
+                        command.result.completeExceptionally(command.error);
+                    } else {
+                        command.result.complete(command.outcome);
+                    }
+                }
+                batch.clear();
+                compactIfDue();
+            }
+        }
+
+        // Rewrites the journal to the partition's current state once it has grown past compact-at
+        private void compactIfDue() {
+            try {
+                long size = journal.size();
+                if (size < compactAt) {
+                    return;
+                }
+                journal.compact(this::writeState);
+                // Live state alone may be close to the limit; do not rewrite it again on every batch
+                compactAt = Math.max(properties.getCompactAt().toBytes(), journal.size() * 2);
+                log.info("Compacted ledger journal of partition {} from {} to {} bytes ({} accounts)",
+                        index, size, journal.size(), slots.size());
+            } catch (IOException | RuntimeException e) {
+                // The old journal is still intact and in use; try again once it has doubled
+                compactAt *= 2;
+                log.warn("Failed to compact the ledger journal of partition {}, next attempt at {} bytes: {}",
+                        index, compactAt, e.getMessage());
+            }
+        }
+
+        private void writeState(LedgerJournal target) throws IOException {
+            for (UUID commandId : recentCommands.keySet()) {
+                target.append(LedgerJournal.SEEN, commandId, NO_KEY, 0L);
+            }
+            for (int slot : slots.values()) {
+                target.append(LedgerJournal.APPLIED, null, keys[slot], balances[slot]);
+            }
+        }
+
+        private void apply(Command command) throws IOException {
+            if (command.kind == Command.FORGET) {
+                if (slots.remove(command.accountNumber) != null) {
+                    changed.remove(command.accountNumber);
+                    unprojected.remove(command.accountNumber);
+                }
+                loaded.remove(command.accountNumber);
+                journal.append(LedgerJournal.FORGOTTEN, null, command.accountNumber.getBytes(StandardCharsets.UTF_8), 0L);
+                command.outcome = BalanceUpdate.notFound();
+                return;
+            }
+            int slot = load(command);
+            if (slot < 0) {
+                command.outcome = BalanceUpdate.notFound();
+                return;
+            }
+            if (command.kind == Command.REVERT) {
+                revert(command, slot);
+                return;
+            }
+            if (command.kind == Command.RELEASE) {
+                holds[slot] = Math.max(0L, holds[slot] - command.delta);
+                command.outcome = BalanceUpdate.applied(snapshot(slot));
+                return;
+            }
+            if (command.commandId != null && recentCommands.containsKey(command.commandId)) {
+                // Redelivered: acknowledge it again without applying it twice
+                command.outcome = BalanceUpdate.applied(snapshot(slot));
+                return;
+            }
+            long balance = balances[slot];
+            if (command.delta < 0 && balance - holds[slot] < -command.delta) {
+                command.outcome = BalanceUpdate.insufficientFunds(snapshot(slot));
+                return;
+            }
+            try {
+                balance = Math.addExact(balance, command.delta);
+            } catch (ArithmeticException e) {
+                command.error = new IllegalArgumentException("Balance of account " + command.accountNumber + " would overflow", e);
+                return;
+            }
+            balances[slot] = balance;
+            journal.append(LedgerJournal.APPLIED, command.commandId, keys[slot], balance);
+            if (command.commandId != null) {
+                recentCommands.put(command.commandId, Boolean.TRUE);
+            }
+            changed.put(command.accountNumber, balance);
+            command.changed = true;
+            if (command.held) {
+                holds[slot] += command.delta;
+            }
+            command.outcome = BalanceUpdate.applied(snapshot(slot));
+        }
+
+        // Undoes a change: the change never happened as far as the database knows. A reverted credit was held,
+        // so no debit has spent it and the balance still covers it.
+        private void revert(Command command, int slot) throws IOException {
+            long balance;
+            try {
+                balance = Math.addExact(balances[slot], command.delta);
+            } catch (ArithmeticException e) {
+                command.error = new IllegalArgumentException("Balance of account " + command.accountNumber + " would overflow", e);
+                return;
+            }
+            balances[slot] = balance;
+            if (command.held) {
+                holds[slot] = Math.max(0L, holds[slot] + command.delta);
+            }
+            journal.append(LedgerJournal.REVERTED, command.commandId, keys[slot], balance);
+            if (command.commandId != null) {
+                recentCommands.remove(command.commandId);
+            }
+            changed.put(command.accountNumber, balance);
+            command.outcome = BalanceUpdate.applied(snapshot(slot));
+        }
+
+        // Finds the account's slot from the row the caller read if it is not loaded yet; -1 if it does not exist
+        private int load(Command command) {
+            String accountNumber = command.accountNumber;
+            Integer slot = slots.get(accountNumber);
+            if (slot != null && accounts[slot] != null) {
+                return slot;
+            }
+            // No row means the caller found the account loaded, and it has been forgotten since
+            if (command.row == null || command.row.isEmpty()) {
+                if (slot != null) {
+                    slots.remove(accountNumber);
+                }
+                loaded.remove(accountNumber);
+                return -1;
+            }
+            Account account = command.row.get();
+            if (slot == null) {
+                slot = slotOf(accountNumber);
+                balances[slot] = toMinorUnits(account.getBalance());
+            }
+            // A slot known from the journal keeps the journaled balance, the table may not have caught up yet
+            accounts[slot] = account;
+            loaded.add(accountNumber);
+            return slot;
+        }
+
+        private int slotOf(String accountNumber) {
+            Integer slot = slots.get(accountNumber);
+            if (slot != null) {
+                return slot;
+            }
+            if (nextSlot == balances.length) {
+                balances = Arrays.copyOf(balances, nextSlot * 2);
+                holds = Arrays.copyOf(holds, nextSlot * 2);
+                accounts = Arrays.copyOf(accounts, nextSlot * 2);
+                keys = Arrays.copyOf(keys, nextSlot * 2);
+            }
+            keys[nextSlot] = accountNumber.getBytes(StandardCharsets.UTF_8);
+            slots.put(accountNumber, nextSlot);
+            return nextSlot++;
+        }
+
+        private Account snapshot(int slot) {
+            Account row = accounts[slot];
+            return new Account(row.getId(), row.getAccountNumber(), row.getUserId(),
+                    BigDecimal.valueOf(balances[slot], SCALE), row.getCreatedAt(), row.getUpdatedAt());
+        }
+
+        private void fail(RuntimeException e, List<Command> batch) {
+            if (failure == null && running) {
+                failure = e;
+            }
+            running = false;
+            batch.forEach(command -> command.result.completeExceptionally(e));
+            Command queued;
+            while ((queued = queue.poll()) != null) {
+                queued.result.completeExceptionally(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.bank.system.account_service.ledger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only write-ahead log of one ledger partition. A record carries the balance the account was left
+ * with rather than the amount, so replaying the log over any older state of the account table converges on
+ * the state the engine had. Every record is length-prefixed and checksummed; replay stops at the first torn
+ * or corrupt record and cuts the file off there. Since only the latest record of an account matters, the
+ * log can be compacted to one record per account plus the command ids still inside the dedup window.
+ */
+class LedgerJournal implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(LedgerJournal.class);
+
+    static final byte APPLIED = 1;
+    static final byte FORGOTTEN = 2;
+    // A command id recognised as a redelivery, without a balance; only written by compaction
+    static final byte SEEN = 3;
+    // The balance after undoing a command whose transaction rolled back; its command id is no longer a redelivery
+    static final byte REVERTED = 4;
+
+    // length + checksum ahead of the payload
+    private static final int HEADER_BYTES = Integer.BYTES * 2;
+    // sequence, type, command id, balance and the account number's length, before its bytes
+    private static final int FIXED_PAYLOAD_BYTES = Long.BYTES + 1 + Long.BYTES * 2 + Long.BYTES + Short.BYTES;
+
+    @FunctionalInterface
+    interface Visitor {
+        void record(byte type, UUID commandId, String accountNumber, long balance);
+    }
+
+    @FunctionalInterface
+    interface Snapshot {
+        /** Appends the records the compacted log starts with. */
+        void writeTo(LedgerJournal journal) throws IOException;
+    }
+
+    private final Path file;
+    private final boolean fsync;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+    private final CRC32C checksum = new CRC32C();
+    private FileChannel channel;
+    private long sequence;
+
+    LedgerJournal(Path file, boolean fsync) {
+        this.file = file;
+        this.fsync = fsync;
+    }
+
+    /**
+     * Opens the log, hands every intact record to {@code visitor} in the order it was written and leaves the
+     * log positioned for appending after the last of them.
+     *
+     * @return the number of records replayed
+     */
+    long open(Visitor visitor) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long records = 0;
+        long validUpTo = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        while (true) {
+            header.clear();
+            if (channel.read(header, validUpTo) < HEADER_BYTES) {
+                break;
+            }
+            header.flip();
+            int length = header.getInt();
+            int expected = header.getInt();
+            if (length < FIXED_PAYLOAD_BYTES || validUpTo + HEADER_BYTES + length > channel.size()) {
+                break;
+            }
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            channel.read(payload, validUpTo + HEADER_BYTES);
+            checksum.reset();
+            checksum.update(payload.array(), 0, length);
+            if ((int) checksum.getValue() != expected) {
+                break;
+            }
+            payload.flip();
+            try {
+                sequence = payload.getLong();
+                byte type = payload.get();
+                long mostSignificantBits = payload.getLong();
+                long leastSignificantBits = payload.getLong();
+                UUID commandId = mostSignificantBits == 0L && leastSignificantBits == 0L
+                        ? null : new UUID(mostSignificantBits, leastSignificantBits);
+                long balance = payload.getLong();
+                byte[] accountNumber = new byte[payload.getShort()];
+                payload.get(accountNumber);
+                visitor.record(type, commandId, new String(accountNumber, StandardCharsets.UTF_8), balance);
+            } catch (BufferUnderflowException e) {
+                break;
+            }
+            validUpTo += HEADER_BYTES + length;
+            records++;
+        }
+        if (validUpTo < channel.size()) {
+            log.warn("Ledger journal {} has a torn or corrupt tail after {} records; truncating {} bytes",
+                    file, records, channel.size() - validUpTo);
+            channel.truncate(validUpTo);
+        }
+        channel.position(validUpTo);
+        return records;
+    }
+
+    /**
+     * Buffers one record; it only reaches the file with the next {@link #commit()}.
+     *
+     * @param key the account number encoded as UTF-8
+     */
+    void append(byte type, UUID commandId, byte[] key, long balance) throws IOException {
+        int length = FIXED_PAYLOAD_BYTES + key.length;
+        if (buffer.remaining() < HEADER_BYTES + length) {
+            writeBuffer();
+        }
+        int start = buffer.position();
+        buffer.position(start + HEADER_BYTES);
+        buffer.putLong(++sequence)
+                .put(type)
+                .putLong(commandId == null ? 0L : commandId.getMostSignificantBits())
+                .putLong(commandId == null ? 0L : commandId.getLeastSignificantBits())
+                .putLong(balance)
+                .putShort((short) key.length)
+                .put(key);
+        checksum.reset();
+        checksum.update(buffer.slice(start + HEADER_BYTES, length));
+        buffer.putInt(start, length).putInt(start + Integer.BYTES, (int) checksum.getValue());
+    }
+
+    /**
+     * Writes everything appended since the last commit and, unless fsync is off, forces it to disk. One
+     * commit covers a whole batch of commands, so the cost of the flush is shared between them.
+     */
+    void commit() throws IOException {
+        writeBuffer();
+        if (fsync) {
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Bytes in the log, counting records appended since the last commit.
+     */
+    long size() throws IOException {
+        return channel.size() + buffer.position();
+    }
+
+    /**
+     * Replaces the log with the records {@code snapshot} appends. They are written to a sibling file, forced to
+     * disk and moved over the log in one rename, so a crash leaves either the old log or the new one whole.
+     * On failure the old log stays in place and appends carry on there.
+     */
+    void compact(Snapshot snapshot) throws IOException {
+        writeBuffer();
+        Path compacted = file.resolveSibling(file.getFileName() + ".compact");
+        FileChannel previous = channel;
+        channel = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            snapshot.writeTo(this);
+            writeBuffer();
+            channel.force(false);
+            Files.move(compacted, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | RuntimeException e) {
+            buffer.clear();
+            channel.close();
+            channel = previous;
+            Files.deleteIfExists(compacted);
+            throw e;
+        }
+        // The open channel follows the renamed file
+        previous.close();
+    }
+
+    private void writeBuffer() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            commit();
+            channel.close();
+            channel = null;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.bank.system.account_service.metrics;
+
+import com.bank.system.account_service.domain.OutboxEvent;
+import com.bank.system.account_service.jobs.OutboxLanePublisher;
+import com.bank.system.account_service.jobs.OutboxRetentionJob;
+import com.bank.system.account_service.repository.OutboxEventRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Micrometer instrumentation of the outbox. Backlog gauges query outbox_event when they are read, the rest
+ * is recorded by the dispatcher as events are published. Everything is exposed under /actuator/metrics;
+ * a growing outbox.backlog or outbox.oldest.unsent.age is the signal that the saga has stalled.
+ */
+@Component
+public class OutboxMetrics {
+
+    private final MeterRegistry meterRegistry;
+    private final Map<String, Counter> published = new ConcurrentHashMap<>();
+    private final Map<String, Counter> publishFailures = new ConcurrentHashMap<>();
+    private final Map<String, Counter> deserializeFailures = new ConcurrentHashMap<>();
+    private final Map<String, Counter> retries = new ConcurrentHashMap<>();
+    private final Map<String, Counter> deadLetters = new ConcurrentHashMap<>();
+    private final Map<String, Timer> ackLatency = new ConcurrentHashMap<>();
+    private final Map<String, Timer> createToSendLatency = new ConcurrentHashMap<>();
+
+    public OutboxMetrics(MeterRegistry meterRegistry,
+                         OutboxEventRepository outboxEventRepository,
+                         OutboxLanePublisher lanePublisher,
+                         OutboxRetentionJob retentionJob) {
+        this.meterRegistry = meterRegistry;
+        Gauge.builder("outbox.backlog", outboxEventRepository, OutboxEventRepository::countUnsent)
+                .description("Outbox events not yet acknowledged by Kafka")
+                .register(meterRegistry);
+        Gauge.builder("outbox.oldest.unsent.age", outboxEventRepository, OutboxMetrics::oldestUnsentAgeSeconds)
+                .description("Age of the oldest outbox event not yet acknowledged by Kafka")
+                .baseUnit("seconds")
+                .register(meterRegistry);
+        for (int lane = 0; lane < lanePublisher.getLaneCount(); lane++) {
+            int laneIndex = lane;
+            Gauge.builder("outbox.publisher.lane.backlog", lanePublisher, publisher -> publisher.getBacklog(laneIndex))
+                    .description("Outbox events queued on a publisher lane")
+                    .tag("lane", String.valueOf(lane))
+                    .register(meterRegistry);
+        }
+        Gauge.builder("outbox.retention.rows.per.second", retentionJob, OutboxRetentionJob::getLastRowsPerSecond)
+                .description("Rows moved out of outbox_event per second by the last retention run")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Records the outcome of one send, started at {@code sendStartNanos} ({@link System#nanoTime()}).
+     */
+    public void recordSend(OutboxEvent event, long sendStartNanos, Throwable failure) {
+        String type = event.getType();
+        if (failure != null) {
+            publishFailures.computeIfAbsent(type, t -> Counter.builder("outbox.publish.failures")
+                    .description("Outbox events the broker did not acknowledge")
+                    .tag("type", t)
+                    .register(meterRegistry)).increment();
+            return;
+        }
+        published.computeIfAbsent(type, t -> Counter.builder("outbox.events.published")
+                .description("Outbox events acknowledged by Kafka")
+                .tag("type", t)
+                .register(meterRegistry)).increment();
+        ackLatency.computeIfAbsent(type, t -> Timer.builder("outbox.publish.ack.latency")
+                .description("Time from handing an event to the producer until the broker acknowledged it")
+                .tag("type", t)
+                .publishPercentileHistogram()
+                .register(meterRegistry)).record(System.nanoTime() - sendStartNanos, TimeUnit.NANOSECONDS);
+        if (event.getCreatedAt() != null) {
+            createToSendLatency.computeIfAbsent(type, t -> Timer.builder("outbox.create.to.send.latency")
+                    .description("Time from writing an event to the outbox until the broker acknowledged it")
+                    .tag("type", t)
+                    .publishPercentileHistogram()
+                    .register(meterRegistry)).record(Duration.between(event.getCreatedAt(), Instant.now()));
+        }
+    }
+
+    public void recordDeserializeFailure(String type) {
+        deserializeFailures.computeIfAbsent(String.valueOf(type), t -> Counter.builder("outbox.deserialize.failures")
+                .description("Outbox payloads that could not be decoded into their event type")
+                .tag("type", t)
+                .register(meterRegistry)).increment();
+    }
+
+    public void recordRetry(String type) {
+        retries.computeIfAbsent(type, t -> Counter.builder("outbox.publish.retries")
+                .description("Failed outbox events scheduled for another attempt")
+                .tag("type", t)
+                .register(meterRegistry)).increment();
+    }
+
+    public void recordDeadLetter(String type) {
+        deadLetters.computeIfAbsent(type, t -> Counter.builder("outbox.dead.lettered")
+                .description("Outbox events flagged failed and copied to outbox_event_dead_letter")
+                .tag("type", t)
+                .register(meterRegistry)).increment();
+    }
+
+    private static double oldestUnsentAgeSeconds(OutboxEventRepository repository) {
+        return repository.findOldestUnsentCreatedAt()
+                .map(oldest -> Duration.between(oldest, Instant.now()).toMillis() / 1000.0)
+                .orElse(0.0);
+    }
+}
@@ -1,53 +1,81 @@
 package com.bank.system.account_service.repository;
 
 import com.bank.system.account_service.domain.Account;
-import com.zaxxer.hikari.HikariDataSource;
+import com.bank.system.account_service.domain.BalanceChange;
+import com.bank.system.account_service.domain.BalanceUpdate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.datasource.DataSourceUtils;
 import org.springframework.stereotype.Repository;
 
+import javax.sql.DataSource;
 import java.math.BigDecimal;
+import java.math.RoundingMode;
 import java.sql.*;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 
 @Repository
 public class AccountRepository {
 
     private static final Logger log = LoggerFactory.getLogger(AccountRepository.class);
-    private final HikariDataSource dataSource;
+    private static final String[] ACCOUNT_COLUMNS = {"id", "account_number", "user_id", "balance", "stripes", "created_at", "updated_at"};
+    // A striped account's balance is whatever is left on its own row plus the sum of its stripes
+    private static final String SELECT_ACCOUNT = "SELECT a.id, a.account_number, a.user_id, "
+            + "CASE WHEN a.stripes > 1 THEN a.balance + COALESCE((SELECT SUM(s.balance) FROM account_stripe s "
+            + "WHERE s.account_number = a.account_number), 0) ELSE a.balance END AS balance, "
+            + "a.stripes, a.created_at, a.updated_at FROM account a ";
+    private final DataSource dataSource;
+    // Stripe counts of the striped accounts seen so far; ordinary accounts are never cached, so this stays
+    // as small as the set of hot accounts. A stale entry only costs a fallback to the account row.
+    private final Map<String, Integer> stripedAccounts = new ConcurrentHashMap<>();
 
-    public AccountRepository(HikariDataSource dataSource) {
+    public AccountRepository(DataSource dataSource) {
         this.dataSource = dataSource;
     }
 
     public Account save(Account account) {
         String sql = "INSERT INTO account (account_number, user_id, balance, created_at, updated_at) VALUES (?, ?, ?, ?, ?)";
-        try (Connection conn = dataSource.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+        try {
+            withConnection(conn -> {
+                try (PreparedStatement stmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
 
-            account.setCreatedAt(Instant.now());
-            account.setUpdatedAt(Instant.now());
+                    account.setCreatedAt(Instant.now());
+                    account.setUpdatedAt(Instant.now());
 
-            stmt.setString(1, account.getAccountNumber());
-            stmt.setLong(2, account.getUserId());
-            stmt.setBigDecimal(3, account.getBalance());
-            stmt.setTimestamp(4, Timestamp.from(account.getCreatedAt()));
-            stmt.setTimestamp(5, Timestamp.from(account.getUpdatedAt()));
+                    stmt.setString(1, account.getAccountNumber());
+                    stmt.setLong(2, account.getUserId());
+                    stmt.setBigDecimal(3, account.getBalance());
+                    stmt.setTimestamp(4, Timestamp.from(account.getCreatedAt()));
+                    stmt.setTimestamp(5, Timestamp.from(account.getUpdatedAt()));
 
-            int affectedRows = stmt.executeUpdate();
-            if (affectedRows == 0) {
-                throw new SQLException("Creating account failed, no rows affected.");
-            }
+                    int affectedRows = stmt.executeUpdate();
+                    if (affectedRows == 0) {
+                        throw new SQLException("Creating account failed, no rows affected.");
+                    }
 
-            try (ResultSet generatedKeys = stmt.getGeneratedKeys()) {
-                if (generatedKeys.next()) {
-                    account.setId(generatedKeys.getLong(1));
-                } else {
-                    throw new SQLException("Creating account failed, no ID obtained.");
+                    try (ResultSet generatedKeys = stmt.getGeneratedKeys()) {
+                        if (generatedKeys.next()) {
+                            account.setId(generatedKeys.getLong(1));
+                        } else {
+                            throw new SQLException("Creating account failed, no ID obtained.");
+                        }
+                    }
+                    return account;
                 }
-            }
-
+            });
             log.info("Account saved: {}", account.getAccountNumber());
             return account;
 
@@ -58,16 +86,19 @@ public class AccountRepository {
     }
 
     public Optional<Account> findById(Long id) {
-        String sql = "SELECT id, account_number, user_id, balance, created_at, updated_at FROM account WHERE id = ?";
-        try (Connection conn = dataSource.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setLong(1, id);
-            try (ResultSet rs = stmt.executeQuery()) {
-                if (rs.next()) {
-                    return Optional.of(mapResultSetToAccount(rs));
+        String sql = SELECT_ACCOUNT + "WHERE a.id = ?";
+        try {
+            return withConnection(conn -> {
+                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                    stmt.setLong(1, id);
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        if (rs.next()) {
+                            return Optional.of(mapResultSetToAccount(rs));
+                        }
+                        return Optional.empty();
+                    }
                 }
-                return Optional.empty();
-            }
+            });
         } catch (SQLException e) {
             log.error("Error finding account by ID {}: {}", id, e.getMessage());
             throw new RuntimeException("Failed to find account by ID", e);
@@ -75,9 +106,16 @@ public class AccountRepository {
     }
 
     public Optional<Account> findByAccountNumber(String accountNumber) {
-        String sql = "SELECT id, account_number, user_id, balance, created_at, updated_at FROM account WHERE account_number = ?";
-        try (Connection conn = dataSource.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
+        try {
+            return withConnection(conn -> findByAccountNumber(accountNumber, conn));
+        } catch (SQLException e) {
+            log.error("Error finding account by account number {}: {}", accountNumber, e.getMessage());
+            throw new RuntimeException("Failed to find account by account number", e);
+        }
+    }
+
+    private Optional<Account> findByAccountNumber(String accountNumber, Connection conn) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(SELECT_ACCOUNT + "WHERE a.account_number = ?")) {
             stmt.setString(1, accountNumber);
             try (ResultSet rs = stmt.executeQuery()) {
                 if (rs.next()) {
@@ -85,39 +123,519 @@ public class AccountRepository {
                 }
                 return Optional.empty();
             }
+        }
+    }
+
+    /**
+     * Subtracts {@code amount} in a single conditional UPDATE that only matches while the balance covers it,
+     * and reads the new row back from the same statement. Concurrent debits of one account queue on its
+     * row lock instead of overwriting each other, and the balance can never go negative.
+     * Striped accounts are debited from their stripes instead, see {@link #stripe(String, int)}.
+     */
+    public BalanceUpdate debit(String accountNumber, BigDecimal amount) {
+        Integer stripes = stripedAccounts.get(accountNumber);
+        if (stripes != null) {
+            return debitStripes(accountNumber, stripes, amount);
+        }
+        String sql = "UPDATE account SET balance = balance - ?, updated_at = ? WHERE account_number = ? AND balance >= ?";
+        Optional<Account> debited;
+        try {
+            debited = withConnection(conn -> {
+                try (PreparedStatement stmt = conn.prepareStatement(sql, ACCOUNT_COLUMNS)) {
+                    stmt.setBigDecimal(1, amount);
+                    stmt.setTimestamp(2, Timestamp.from(Instant.now()));
+                    stmt.setString(3, accountNumber);
+                    stmt.setBigDecimal(4, amount);
+                    return executeBalanceUpdate(stmt, accountNumber);
+                }
+            });
         } catch (SQLException e) {
-            log.error("Error finding account by account number {}: {}", accountNumber, e.getMessage());
-            throw new RuntimeException("Failed to find account by account number", e);
+            log.error("Error debiting {} from account {}: {}", amount, accountNumber, e.getMessage());
+            throw new RuntimeException("Failed to debit account", e);
+        }
+        if (debited.isPresent()) {
+            if (trackStripes(debited.get())) {
+                // The account's own row covered the debit, but its balance includes the stripes
+                return reread(accountNumber);
+            }
+            log.debug("Account {} debited {}, new balance {}", accountNumber, amount, debited.get().getBalance());
+            return BalanceUpdate.applied(debited.get());
+        }
+        // Only a refused debit pays for a second round trip, to tell a missing account from a short balance
+        Optional<Account> account = findByAccountNumber(accountNumber);
+        if (account.isPresent() && trackStripes(account.get())) {
+            return debitStripes(accountNumber, account.get().getStripes(), amount);
         }
+        return account
+                .map(BalanceUpdate::insufficientFunds)
+                .orElseGet(BalanceUpdate::notFound);
     }
 
-    public Optional<Account> updateBalance(String accountNumber, BigDecimal newBalance) {
-        String sql = "UPDATE account SET balance = ?, updated_at = ? WHERE account_number = ?";
-        try (Connection conn = dataSource.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setBigDecimal(1, newBalance);
-            stmt.setTimestamp(2, Timestamp.from(Instant.now()));
-            stmt.setString(3, accountNumber);
+    /**
+     * Adds {@code amount} in a single UPDATE and reads the new row back from the same statement.
+     * Striped accounts are credited on a random stripe instead.
+     */
+    public BalanceUpdate credit(String accountNumber, BigDecimal amount) {
+        Integer stripes = stripedAccounts.get(accountNumber);
+        if (stripes != null && creditStripe(accountNumber, ThreadLocalRandom.current().nextInt(stripes), amount)) {
+            return reread(accountNumber);
+        }
+        String sql = "UPDATE account SET balance = balance + ?, updated_at = ? WHERE account_number = ?";
+        Optional<Account> credited;
+        try {
+            credited = withConnection(conn -> {
+                try (PreparedStatement stmt = conn.prepareStatement(sql, ACCOUNT_COLUMNS)) {
+                    stmt.setBigDecimal(1, amount);
+                    stmt.setTimestamp(2, Timestamp.from(Instant.now()));
+                    stmt.setString(3, accountNumber);
+                    return executeBalanceUpdate(stmt, accountNumber);
+                }
+            });
+        } catch (SQLException e) {
+            log.error("Error crediting {} to account {}: {}", amount, accountNumber, e.getMessage());
+            throw new RuntimeException("Failed to credit account", e);
+        }
+        if (credited.isEmpty()) {
+            log.warn("Account {} not found for credit.", accountNumber);
+            return BalanceUpdate.notFound();
+        }
+        if (trackStripes(credited.get())) {
+            return reread(accountNumber);
+        }
+        log.debug("Account {} credited {}, new balance {}", accountNumber, amount, credited.get().getBalance());
+        return BalanceUpdate.applied(credited.get());
+    }
 
-            int affectedRows = stmt.executeUpdate();
-            if (affectedRows > 0) {
-                log.info("Account {} balance updated to {}", accountNumber, newBalance);
-                return findByAccountNumber(accountNumber);
+    /**
+     * Applies a batch of debits and credits with one locking read of every account involved and one JDBC
+     * batch of UPDATEs, working out the balances in memory in list order. Inside a Spring transaction the
+     * work joins it, so it commits or rolls back together with whatever else the caller writes; otherwise
+     * it runs in a transaction of its own. The accounts are locked in account number order, so concurrent
+     * batches cannot deadlock. Striped accounts are neither locked nor part of the batch; their changes go
+     * through {@link #debit}/{@link #credit} one at a time once it is done.
+     *
+     * @return one outcome per change, in the order of {@code changes}
+     */
+    public List<BalanceUpdate> applyAll(List<BalanceChange> changes) {
+        if (changes.isEmpty()) {
+            return List.of();
+        }
+        BalanceUpdate[] updates = new BalanceUpdate[changes.size()];
+        Set<String> accountNumbers = new TreeSet<>();
+        changes.forEach(change -> accountNumbers.add(change.getAccountNumber()));
+        String select = "SELECT " + String.join(", ", ACCOUNT_COLUMNS) + " FROM account WHERE account_number IN ("
+                + String.join(", ", Collections.nCopies(accountNumbers.size(), "?")) + ") AND stripes = 1 ORDER BY account_number FOR UPDATE";
+        try {
+            inTransaction(conn -> {
+                Map<String, Account> accounts = new HashMap<>();
+                try (PreparedStatement stmt = conn.prepareStatement(select)) {
+                    int index = 1;
+                    for (String accountNumber : accountNumbers) {
+                        stmt.setString(index++, accountNumber);
+                    }
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        while (rs.next()) {
+                            Account account = mapResultSetToAccount(rs);
+                            stripedAccounts.remove(account.getAccountNumber());
+                            accounts.put(account.getAccountNumber(), account);
+                        }
+                    }
+                }
+                Instant now = Instant.now();
+                Set<String> changed = new LinkedHashSet<>();
+                for (int i = 0; i < updates.length; i++) {
+                    BalanceChange change = changes.get(i);
+                    Account account = accounts.get(change.getAccountNumber());
+                    if (account == null) {
+                        // Striped or missing; sorted out one change at a time below
+                        continue;
+                    }
+                    if (change.isDebit() && account.getBalance().compareTo(change.getAmount()) < 0) {
+                        updates[i] = BalanceUpdate.insufficientFunds(copyOf(account));
+                        continue;
+                    }
+                    account.setBalance(change.isDebit()
+                            ? account.getBalance().subtract(change.getAmount())
+                            : account.getBalance().add(change.getAmount()));
+                    account.setUpdatedAt(now);
+                    changed.add(account.getAccountNumber());
+                    updates[i] = BalanceUpdate.applied(copyOf(account));
+                }
+                try (PreparedStatement stmt = conn.prepareStatement(
+                        "UPDATE account SET balance = ?, updated_at = ? WHERE account_number = ?")) {
+                    for (String accountNumber : changed) {
+                        stmt.setBigDecimal(1, accounts.get(accountNumber).getBalance());
+                        stmt.setTimestamp(2, Timestamp.from(now));
+                        stmt.setString(3, accountNumber);
+                        stmt.addBatch();
+                    }
+                    stmt.executeBatch();
+                }
+                log.debug("Applied {} balance changes to {} accounts in one batch", changes.size(), changed.size());
+                return null;
+            });
+        } catch (SQLException e) {
+            log.error("Error applying a batch of {} balance changes: {}", changes.size(), e.getMessage());
+            throw new RuntimeException("Failed to apply balance changes", e);
+        }
+        for (int i = 0; i < updates.length; i++) {
+            if (updates[i] == null) {
+                BalanceChange change = changes.get(i);
+                updates[i] = change.isDebit()
+                        ? debit(change.getAccountNumber(), change.getAmount())
+                        : credit(change.getAccountNumber(), change.getAmount());
+            }
+        }
+        return Arrays.asList(updates);
+    }
+
+    public List<String> findStripedAccountNumbers() {
+        try {
+            return withConnection(conn -> {
+                try (PreparedStatement stmt = conn.prepareStatement("SELECT account_number FROM account WHERE stripes > 1");
+                     ResultSet rs = stmt.executeQuery()) {
+                    List<String> accountNumbers = new ArrayList<>();
+                    while (rs.next()) {
+                        accountNumbers.add(rs.getString(1));
+                    }
+                    return accountNumbers;
+                }
+            });
+        } catch (SQLException e) {
+            log.error("Error finding striped accounts: {}", e.getMessage());
+            throw new RuntimeException("Failed to find striped accounts", e);
+        }
+    }
+
+    /**
+     * Spreads the balance of a hot account over {@code stripes} rows of account_stripe, or folds it back
+     * into the account row when {@code stripes} is 1. Debits and credits of a striped account then lock a
+     * single stripe instead of queueing on the account row; a debit no single stripe covers borrows across
+     * all of them. The stripes and the account row are locked in a fixed order, so re-striping can run
+     * while the account is in use.
+     *
+     * @return the re-striped account, or empty if it does not exist
+     */
+    public Optional<Account> stripe(String accountNumber, int stripes) {
+        if (stripes < 1) {
+            throw new IllegalArgumentException("Stripe count must be at least 1.");
+        }
+        try {
+            boolean found = inTransaction(conn -> {
+                Optional<BigDecimal> row = lockAccountRow(conn, accountNumber);
+                if (row.isEmpty()) {
+                    return false;
+                }
+                BigDecimal total = lockStripes(conn, accountNumber).values().stream().reduce(row.get(), BigDecimal::add);
+                try (PreparedStatement stmt = conn.prepareStatement("DELETE FROM account_stripe WHERE account_number = ?")) {
+                    stmt.setString(1, accountNumber);
+                    stmt.executeUpdate();
+                }
+                BigDecimal rowBalance = total;
+                if (stripes > 1) {
+                    // Even shares, with the rounding remainder on stripe 0, and nothing left on the row itself
+                    BigDecimal share = total.divide(BigDecimal.valueOf(stripes), 2, RoundingMode.DOWN);
+                    BigDecimal remainder = total.subtract(share.multiply(BigDecimal.valueOf(stripes)));
+                    try (PreparedStatement stmt = conn.prepareStatement(
+                            "INSERT INTO account_stripe (account_number, stripe_no, balance) VALUES (?, ?, ?)")) {
+                        for (int stripeNo = 0; stripeNo < stripes; stripeNo++) {
+                            stmt.setString(1, accountNumber);
+                            stmt.setInt(2, stripeNo);
+                            stmt.setBigDecimal(3, stripeNo == 0 ? share.add(remainder) : share);
+                            stmt.addBatch();
+                        }
+                        stmt.executeBatch();
+                    }
+                    rowBalance = BigDecimal.ZERO;
+                }
+                try (PreparedStatement stmt = conn.prepareStatement(
+                        "UPDATE account SET balance = ?, stripes = ?, updated_at = ? WHERE account_number = ?")) {
+                    stmt.setBigDecimal(1, rowBalance);
+                    stmt.setInt(2, stripes);
+                    stmt.setTimestamp(3, Timestamp.from(Instant.now()));
+                    stmt.setString(4, accountNumber);
+                    stmt.executeUpdate();
+                }
+                return true;
+            });
+            if (!found) {
+                log.warn("Account {} not found for striping.", accountNumber);
+                return Optional.empty();
+            }
+        } catch (SQLException e) {
+            log.error("Error striping account {} into {} stripes: {}", accountNumber, stripes, e.getMessage());
+            throw new RuntimeException("Failed to stripe account", e);
+        }
+        if (stripes > 1) {
+            stripedAccounts.put(accountNumber, stripes);
+        } else {
+            stripedAccounts.remove(accountNumber);
+        }
+        log.info("Account {} now spread over {} stripe(s).", accountNumber, stripes);
+        return findByAccountNumber(accountNumber);
+    }
+
+    // Tries the stripes one conditional UPDATE at a time from a random starting point, so concurrent debits
+    // spread over the stripes; only when none of them covers the amount alone does it borrow across them
+    private BalanceUpdate debitStripes(String accountNumber, int stripes, BigDecimal amount) {
+        String sql = "UPDATE account_stripe SET balance = balance - ? WHERE account_number = ? AND stripe_no = ? AND balance >= ?";
+        int first = ThreadLocalRandom.current().nextInt(stripes);
+        boolean debited;
+        try {
+            debited = withConnection(conn -> {
+                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                    for (int i = 0; i < stripes; i++) {
+                        stmt.setBigDecimal(1, amount);
+                        stmt.setString(2, accountNumber);
+                        stmt.setInt(3, (first + i) % stripes);
+                        stmt.setBigDecimal(4, amount);
+                        if (stmt.executeUpdate() == 1) {
+                            return true;
+                        }
+                    }
+                    return false;
+                }
+            });
+        } catch (SQLException e) {
+            log.error("Error debiting {} from stripes of account {}: {}", amount, accountNumber, e.getMessage());
+            throw new RuntimeException("Failed to debit account", e);
+        }
+        return debited ? reread(accountNumber) : debitAcrossStripes(accountNumber, amount);
+    }
+
+    // Locks the account row and all of its stripes, and takes the amount from the row first and then from
+    // the stripes in order, as long as together they cover it
+    private BalanceUpdate debitAcrossStripes(String accountNumber, BigDecimal amount) {
+        try {
+            BalanceUpdate refused = inTransaction(conn -> {
+                Optional<BigDecimal> row = lockAccountRow(conn, accountNumber);
+                if (row.isEmpty()) {
+                    return BalanceUpdate.notFound();
+                }
+                Map<Integer, BigDecimal> stripes = lockStripes(conn, accountNumber);
+                BigDecimal total = stripes.values().stream().reduce(row.get(), BigDecimal::add);
+                if (total.compareTo(amount) < 0) {
+                    return BalanceUpdate.insufficientFunds(findByAccountNumber(accountNumber, conn).orElseThrow());
+                }
+                BigDecimal fromRow = amount.min(row.get());
+                try (PreparedStatement stmt = conn.prepareStatement(
+                        "UPDATE account SET balance = balance - ?, updated_at = ? WHERE account_number = ?")) {
+                    stmt.setBigDecimal(1, fromRow);
+                    stmt.setTimestamp(2, Timestamp.from(Instant.now()));
+                    stmt.setString(3, accountNumber);
+                    stmt.executeUpdate();
+                }
+                BigDecimal remaining = amount.subtract(fromRow);
+                try (PreparedStatement stmt = conn.prepareStatement(
+                        "UPDATE account_stripe SET balance = balance - ? WHERE account_number = ? AND stripe_no = ?")) {
+                    for (Map.Entry<Integer, BigDecimal> stripe : stripes.entrySet()) {
+                        BigDecimal taken = remaining.min(stripe.getValue());
+                        if (taken.signum() > 0) {
+                            stmt.setBigDecimal(1, taken);
+                            stmt.setString(2, accountNumber);
+                            stmt.setInt(3, stripe.getKey());
+                            stmt.addBatch();
+                            remaining = remaining.subtract(taken);
+                        }
+                    }
+                    stmt.executeBatch();
+                }
+                return null;
+            });
+            if (refused != null) {
+                return refused;
+            }
+        } catch (SQLException e) {
+            log.error("Error debiting {} across stripes of account {}: {}", amount, accountNumber, e.getMessage());
+            throw new RuntimeException("Failed to debit account", e);
+        }
+        log.debug("Account {} debited {} across its stripes", accountNumber, amount);
+        return reread(accountNumber);
+    }
+
+    // Row locks are always taken account row first, then its stripes by stripe number, so two transactions
+    // working on the same account cannot deadlock
+    private Optional<BigDecimal> lockAccountRow(Connection conn, String accountNumber) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT balance FROM account WHERE account_number = ? FOR UPDATE")) {
+            stmt.setString(1, accountNumber);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? Optional.of(rs.getBigDecimal("balance")) : Optional.empty();
+            }
+        }
+    }
+
+    private Map<Integer, BigDecimal> lockStripes(Connection conn, String accountNumber) throws SQLException {
+        Map<Integer, BigDecimal> stripes = new LinkedHashMap<>();
+        try (PreparedStatement stmt = conn.prepareStatement(
+                "SELECT stripe_no, balance FROM account_stripe WHERE account_number = ? ORDER BY stripe_no FOR UPDATE")) {
+            stmt.setString(1, accountNumber);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    stripes.put(rs.getInt("stripe_no"), rs.getBigDecimal("balance"));
+                }
+            }
+        }
+        return stripes;
+    }
+
+    private boolean creditStripe(String accountNumber, int stripeNo, BigDecimal amount) {
+        String sql = "UPDATE account_stripe SET balance = balance + ? WHERE account_number = ? AND stripe_no = ?";
+        try {
+            boolean credited = withConnection(conn -> {
+                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                    stmt.setBigDecimal(1, amount);
+                    stmt.setString(2, accountNumber);
+                    stmt.setInt(3, stripeNo);
+                    return stmt.executeUpdate() == 1;
+                }
+            });
+            if (credited) {
+                return true;
+            }
+        } catch (SQLException e) {
+            log.error("Error crediting {} to stripe {} of account {}: {}", amount, stripeNo, accountNumber, e.getMessage());
+            throw new RuntimeException("Failed to credit account", e);
+        }
+        // Re-striped by another instance in the meantime; the caller falls back to the account row
+        stripedAccounts.remove(accountNumber);
+        return false;
+    }
+
+    // Remembers whether the account turned out to be striped, so the next update goes straight to its stripes
+    private boolean trackStripes(Account account) {
+        if (account.getStripes() > 1) {
+            stripedAccounts.put(account.getAccountNumber(), account.getStripes());
+            return true;
+        }
+        stripedAccounts.remove(account.getAccountNumber());
+        return false;
+    }
+
+    // Striped updates only touch a stripe, so the balance to report is read back as the sum over all rows
+    private BalanceUpdate reread(String accountNumber) {
+        return findByAccountNumber(accountNumber)
+                .map(BalanceUpdate::applied)
+                .orElseGet(BalanceUpdate::notFound);
+    }
+
+    // Outcomes of a batch each carry the account as that change left it, not as the batch left it
+    private static Account copyOf(Account account) {
+        Account copy = new Account();
+        copy.setId(account.getId());
+        copy.setAccountNumber(account.getAccountNumber());
+        copy.setUserId(account.getUserId());
+        copy.setBalance(account.getBalance());
+        copy.setStripes(account.getStripes());
+        copy.setCreatedAt(account.getCreatedAt());
+        copy.setUpdatedAt(account.getUpdatedAt());
+        return copy;
+    }
+
+    @FunctionalInterface
+    private interface ConnectionWork<T> {
+        T run(Connection conn) throws SQLException;
+    }
+
+    // Runs on the connection of the caller's transaction when there is one, so a @Transactional caller never
+    // holds a second pooled connection (which deadlocks once every connection, or db-limit permit, is held by
+    // a caller waiting for another) and the statement commits or rolls back with the rest of its work
+    private <T> T withConnection(ConnectionWork<T> work) throws SQLException {
+        Connection conn = DataSourceUtils.getConnection(dataSource);
+        try {
+            return work.run(conn);
+        } finally {
+            DataSourceUtils.releaseConnection(conn, dataSource);
+        }
+    }
+
+    // As withConnection, for work of several statements: outside a transaction it gets one of its own
+    private <T> T inTransaction(ConnectionWork<T> work) throws SQLException {
+        Connection conn = DataSourceUtils.getConnection(dataSource);
+        boolean ownTransaction = !DataSourceUtils.isConnectionTransactional(conn, dataSource);
+        try {
+            if (ownTransaction) {
+                conn.setAutoCommit(false);
+            }
+            T result = work.run(conn);
+            if (ownTransaction) {
+                conn.commit();
+            }
+            return result;
+        } catch (SQLException | RuntimeException e) {
+            if (ownTransaction) {
+                rollbackQuietly(conn);
+            }
+            throw e;
+        } finally {
+            if (ownTransaction) {
+                try {
+                    conn.setAutoCommit(true);
+                } catch (SQLException e) {
+                    log.warn("Could not restore autocommit: {}", e.getMessage());
+                }
             }
-            log.warn("Account {} not found for balance update.", accountNumber);
+            DataSourceUtils.releaseConnection(conn, dataSource);
+        }
+    }
+
+    private static void rollbackQuietly(Connection conn) {
+        try {
+            conn.rollback();
+        } catch (SQLException e) {
+            log.warn("Rollback failed: {}", e.getMessage());
+        }
+    }
+
+    // The updated row comes back as generated keys, i.e. UPDATE ... RETURNING on PostgreSQL
+    private Optional<Account> executeBalanceUpdate(PreparedStatement stmt, String accountNumber) throws SQLException {
+        if (stmt.executeUpdate() == 0) {
             return Optional.empty();
+        }
+        try (ResultSet rs = stmt.getGeneratedKeys()) {
+            if (rs.next()) {
+                return Optional.of(mapResultSetToAccount(rs));
+            }
+        }
+        // Drivers that do not hand back updated rows cost one more query
+        return findByAccountNumber(accountNumber, stmt.getConnection());
+    }
+
+    /**
+     * Overwrites the balances of the given accounts in one JDBC batch. Used by the in-memory ledger engine,
+     * which owns the balances and keeps this table as a projection of them.
+     */
+    public void projectBalances(Map<String, BigDecimal> balances) {
+        String sql = "UPDATE account SET balance = ?, updated_at = ? WHERE account_number = ?";
+        try {
+            withConnection(conn -> {
+                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                    Timestamp now = Timestamp.from(Instant.now());
+                    for (Map.Entry<String, BigDecimal> balance : balances.entrySet()) {
+                        stmt.setBigDecimal(1, balance.getValue());
+                        stmt.setTimestamp(2, now);
+                        stmt.setString(3, balance.getKey());
+                        stmt.addBatch();
+                    }
+                    return stmt.executeBatch();
+                }
+            });
+            log.debug("Projected {} ledger balances", balances.size());
         } catch (SQLException e) {
-            log.error("Error updating account {} balance to {}: {}", accountNumber, newBalance, e.getMessage());
-            throw new RuntimeException("Failed to update account balance", e);
+            log.error("Error projecting {} ledger balances: {}", balances.size(), e.getMessage());
+            throw new RuntimeException("Failed to project ledger balances", e);
         }
     }
 
     public boolean deleteByAccountNumber(String accountNumber) {
         String sql = "DELETE FROM account WHERE account_number = ?";
-        try (Connection conn = dataSource.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setString(1, accountNumber);
-            int affectedRows = stmt.executeUpdate();
+        try {
+            int affectedRows = withConnection(conn -> {
+                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                    stmt.setString(1, accountNumber);
+                    return stmt.executeUpdate();
+                }
+            });
+            stripedAccounts.remove(accountNumber);
             if (affectedRows > 0) {
                 log.info("Account {} deleted successfully.", accountNumber);
                 return true;
@@ -137,6 +655,7 @@ public class AccountRepository {
         account.setAccountNumber(rs.getString("account_number"));
         account.setUserId(rs.getLong("user_id"));
         account.setBalance(rs.getBigDecimal("balance"));
+        account.setStripes(rs.getInt("stripes"));
 
         Timestamp createdAtTimestamp = rs.getTimestamp("created_at");
         if (createdAtTimestamp != null) {
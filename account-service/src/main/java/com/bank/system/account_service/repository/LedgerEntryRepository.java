@@ -0,0 +1,162 @@
+package com.bank.system.account_service.repository;
+
+import com.bank.system.account_service.domain.LedgerEntry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * Append-only history of balance changes and the snapshots folded from it. Entries are ordered by their
+ * identity id; a snapshot records the balance after every entry of an account up to {@code last_entry_id},
+ * so a balance at any point in time is the latest snapshot before it plus the entries in between. Snapshot
+ * cursors are ids only: created_at is the writer's clock and need not follow id order.
+ */
+@Repository
+public class LedgerEntryRepository {
+
+    private static final Logger log = LoggerFactory.getLogger(LedgerEntryRepository.class);
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public LedgerEntryRepository(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * @param paymentId the payment behind the change, or null for deposits, withdrawals and opening balances
+     * @param amount    signed: negative for a debit
+     */
+    public void append(String accountNumber, UUID paymentId, BigDecimal amount) {
+        String sql = "INSERT INTO ledger_entry (account_number, payment_id, amount, created_at) VALUES (?, ?, ?, ?)";
+        jdbcTemplate.update(sql, accountNumber, paymentId, amount, Timestamp.from(Instant.now()));
+    }
+
+    /**
+     * Appends all entries with one JDBC batch, in list order.
+     */
+    public void appendAll(List<LedgerEntry> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        Timestamp now = Timestamp.from(Instant.now());
+        jdbcTemplate.batchUpdate("INSERT INTO ledger_entry (account_number, payment_id, amount, created_at) VALUES (?, ?, ?, ?)",
+                entries, entries.size(), (ps, entry) -> {
+                    ps.setString(1, entry.getAccountNumber());
+                    ps.setObject(2, entry.getPaymentId());
+                    ps.setBigDecimal(3, entry.getAmount());
+                    ps.setTimestamp(4, now);
+                });
+    }
+
+    /**
+     * The entry that credited the receiver of a payment. A payment's only other entries are the sender's debit
+     * and, once compensated, the reversal of this credit and the sender's refund, so the first positive entry
+     * is the credit whenever there is one.
+     *
+     * @return empty if the receiver was never credited
+     */
+    public Optional<LedgerEntry> findCredit(UUID paymentId) {
+        return jdbcTemplate.query(
+                "SELECT account_number, amount FROM ledger_entry WHERE payment_id = ? AND amount > 0 ORDER BY id LIMIT 1",
+                rs -> rs.next()
+                        ? Optional.of(new LedgerEntry(rs.getString("account_number"), paymentId, rs.getBigDecimal("amount")))
+                        : Optional.<LedgerEntry>empty(),
+                paymentId);
+    }
+
+    /**
+     * Balance of the account after every entry created up to {@code at}. Reads one snapshot and at most the
+     * entries up to the first later snapshot settled after {@code at}, however long the account's history is.
+     *
+     * @return empty if the ledger knows nothing about the account at that time
+     */
+    public Optional<BigDecimal> balanceAt(String accountNumber, Instant at) {
+        Timestamp until = Timestamp.from(at);
+        // as_of is the newest created_at the snapshot covers, so none of its entries is later than at
+        List<Map<String, Object>> snapshot = jdbcTemplate.queryForList(
+                "SELECT last_entry_id, balance FROM account_balance_snapshot WHERE account_number = ? AND as_of <= ? "
+                        + "ORDER BY last_entry_id DESC LIMIT 1", accountNumber, until);
+        long fromId = snapshot.isEmpty() ? 0L : ((Number) snapshot.get(0).get("last_entry_id")).longValue();
+        // Every entry past a snapshot settled after at was created after at, so the scan stops there
+        Long toId = jdbcTemplate.query(
+                "SELECT last_entry_id FROM account_balance_snapshot WHERE account_number = ? AND last_entry_id > ? "
+                        + "AND COALESCE(settled_before, as_of) > ? ORDER BY last_entry_id LIMIT 1",
+                rs -> rs.next() ? rs.getLong(1) : Long.MAX_VALUE, accountNumber, fromId, until);
+        Map<String, Object> tail = jdbcTemplate.queryForMap(
+                "SELECT COUNT(*) AS entries, COALESCE(SUM(amount), 0) AS total FROM ledger_entry "
+                        + "WHERE account_number = ? AND id > ? AND id <= ? AND created_at <= ?",
+                accountNumber, fromId, toId, until);
+        if (snapshot.isEmpty() && ((Number) tail.get("entries")).longValue() == 0) {
+            return Optional.empty();
+        }
+        BigDecimal base = snapshot.isEmpty() ? BigDecimal.ZERO : (BigDecimal) snapshot.get(0).get("balance");
+        return Optional.of(base.add((BigDecimal) tail.get("total")));
+    }
+
+    /**
+     * The highest entry id committed so far. Entries with a lower id may still be in flight; once they have
+     * had time to commit, everything up to it can be folded.
+     */
+    public long findMaxEntryId() {
+        return jdbcTemplate.queryForObject("SELECT COALESCE(MAX(id), 0) FROM ledger_entry", Long.class);
+    }
+
+    /**
+     * Accounts with at least {@code every} entries up to {@code horizon} that no snapshot covers yet.
+     */
+    public List<String> findSnapshotCandidates(int every, long horizon) {
+        String sql = "SELECT e.account_number FROM ledger_entry e "
+                + "WHERE e.id <= ? AND e.id > COALESCE((SELECT MAX(s.last_entry_id) FROM account_balance_snapshot s "
+                + "WHERE s.account_number = e.account_number), 0) "
+                + "GROUP BY e.account_number HAVING COUNT(*) >= ?";
+        return jdbcTemplate.queryForList(sql, String.class, horizon, every);
+    }
+
+    /**
+     * Folds the account's entries up to {@code horizon} into a new snapshot on top of its latest one. The
+     * caller must only pass an id below which no transaction can still be open: an entry committed later
+     * with a lower id would be left out of every later balance.
+     *
+     * @param settledBefore every entry above {@code horizon} was created after this
+     * @return whether a snapshot was written; false if there was nothing to fold or another instance won
+     */
+    public boolean snapshot(String accountNumber, long horizon, Instant settledBefore) {
+        List<Map<String, Object>> latest = jdbcTemplate.queryForList(
+                "SELECT last_entry_id, balance, as_of FROM account_balance_snapshot WHERE account_number = ? "
+                        + "ORDER BY last_entry_id DESC LIMIT 1", accountNumber);
+        long fromId = latest.isEmpty() ? 0L : ((Number) latest.get(0).get("last_entry_id")).longValue();
+        BigDecimal base = latest.isEmpty() ? BigDecimal.ZERO : (BigDecimal) latest.get(0).get("balance");
+        Map<String, Object> folded = jdbcTemplate.queryForMap(
+                "SELECT MAX(id) AS last_id, COALESCE(SUM(amount), 0) AS total, MAX(created_at) AS as_of FROM ledger_entry "
+                        + "WHERE account_number = ? AND id > ? AND id <= ?",
+                accountNumber, fromId, horizon);
+        if (folded.get("last_id") == null) {
+            return false;
+        }
+        // An entry folded now may be older than one folded before it
+        Timestamp asOf = (Timestamp) folded.get("as_of");
+        if (!latest.isEmpty() && ((Timestamp) latest.get(0).get("as_of")).after(asOf)) {
+            asOf = (Timestamp) latest.get(0).get("as_of");
+        }
+        try {
+            jdbcTemplate.update("INSERT INTO account_balance_snapshot "
+                            + "(account_number, last_entry_id, balance, as_of, settled_before, created_at) VALUES (?, ?, ?, ?, ?, ?)",
+                    accountNumber, folded.get("last_id"), base.add((BigDecimal) folded.get("total")), asOf,
+                    Timestamp.from(settledBefore), Timestamp.from(Instant.now()));
+            return true;
+        } catch (DuplicateKeyException e) {
+            log.debug("Ledger snapshot of account {} up to entry {} already written", accountNumber, folded.get("last_id"));
+            return false;
+        }
+    }
+}
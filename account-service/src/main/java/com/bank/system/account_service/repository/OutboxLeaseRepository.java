@@ -0,0 +1,91 @@
+package com.bank.system.account_service.repository;
+
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.List;
+
+@Repository
+public class OutboxLeaseRepository {
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public OutboxLeaseRepository(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    public void createMissingPartitions(int partitions) {
+        for (int partition = 0; partition < partitions; partition++) {
+            try {
+                jdbcTemplate.update("""
+                    INSERT INTO outbox_lease (partition_no)
+                    SELECT ? WHERE NOT EXISTS (SELECT 1 FROM outbox_lease WHERE partition_no = ?)
+                """, partition, partition);
+            } catch (DuplicateKeyException e) {
+                // Another instance created it in the meantime
+            }
+        }
+    }
+
+    public void heartbeat(String owner, Instant leaseUntil) {
+        int updated = jdbcTemplate.update("UPDATE outbox_lease_member SET lease_until = ? WHERE owner = ?",
+                Timestamp.from(leaseUntil), owner);
+        if (updated == 0) {
+            jdbcTemplate.update("INSERT INTO outbox_lease_member (owner, lease_until) VALUES (?, ?)",
+                    owner, Timestamp.from(leaseUntil));
+        }
+    }
+
+    public int countLiveMembers(Instant now) {
+        Integer members = jdbcTemplate.queryForObject("SELECT COUNT(*) FROM outbox_lease_member WHERE lease_until >= ?",
+                Integer.class, Timestamp.from(now));
+        return members == null ? 0 : members;
+    }
+
+    /**
+     * Extends every lease the owner still holds and returns the partitions it covers, in ascending order.
+     */
+    public List<Integer> renewAll(String owner, Instant leaseUntil) {
+        jdbcTemplate.update("UPDATE outbox_lease SET lease_until = ? WHERE owner = ?", Timestamp.from(leaseUntil), owner);
+        return jdbcTemplate.queryForList("SELECT partition_no FROM outbox_lease WHERE owner = ? ORDER BY partition_no",
+                Integer.class, owner);
+    }
+
+    public boolean renew(int partition, String owner, Instant leaseUntil) {
+        return jdbcTemplate.update("UPDATE outbox_lease SET lease_until = ? WHERE partition_no = ? AND owner = ?",
+                Timestamp.from(leaseUntil), partition, owner) > 0;
+    }
+
+    public List<Integer> findClaimable(Instant now) {
+        return jdbcTemplate.queryForList("""
+            SELECT partition_no FROM outbox_lease
+            WHERE owner IS NULL OR lease_until < ?
+            ORDER BY partition_no
+        """, Integer.class, Timestamp.from(now));
+    }
+
+    /**
+     * Takes over a partition that is free or whose lease has expired. The condition is re-checked by the
+     * UPDATE itself, so only one of several competing instances can win.
+     */
+    public boolean claim(int partition, String owner, Instant leaseUntil, Instant now) {
+        return jdbcTemplate.update("""
+            UPDATE outbox_lease
+            SET owner = ?, lease_until = ?
+            WHERE partition_no = ? AND (owner IS NULL OR lease_until < ?)
+        """, owner, Timestamp.from(leaseUntil), partition, Timestamp.from(now)) > 0;
+    }
+
+    public void release(int partition, String owner) {
+        jdbcTemplate.update("UPDATE outbox_lease SET owner = NULL, lease_until = NULL WHERE partition_no = ? AND owner = ?",
+                partition, owner);
+    }
+
+    public void releaseAll(String owner) {
+        jdbcTemplate.update("UPDATE outbox_lease SET owner = NULL, lease_until = NULL WHERE owner = ?", owner);
+        jdbcTemplate.update("DELETE FROM outbox_lease_member WHERE owner = ?", owner);
+    }
+}
@@ -1,7 +1,10 @@
 package com.bank.system.account_service.service;
 
 import com.bank.system.account_service.domain.Account;
+import com.bank.system.account_service.domain.BalanceUpdate;
+import com.bank.system.account_service.ledger.AccountLedger;
 import com.bank.system.account_service.repository.AccountRepository;
+import com.bank.system.account_service.repository.LedgerEntryRepository;
 import com.bank.system.dtos.dto.PaymentInitiatedEvent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -9,17 +12,24 @@ import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.math.BigDecimal;
+import java.time.Instant;
 import java.util.Optional;
+import java.util.UUID;
 
 @Service
 public class AccountService {
 
     private static final Logger log = LoggerFactory.getLogger(AccountService.class);
     private final AccountRepository accountRepository;
+    private final AccountLedger accountLedger;
+    private final LedgerEntryRepository ledgerEntryRepository;
     private final PaymentAccountService paymentAccountService;
 
-    public AccountService(AccountRepository accountRepository, PaymentAccountService paymentAccountService) {
+    public AccountService(AccountRepository accountRepository, AccountLedger accountLedger,
+                          LedgerEntryRepository ledgerEntryRepository, PaymentAccountService paymentAccountService) {
         this.accountRepository = accountRepository;
+        this.accountLedger = accountLedger;
+        this.ledgerEntryRepository = ledgerEntryRepository;
         this.paymentAccountService = paymentAccountService;
     }
 
@@ -30,7 +40,9 @@ public class AccountService {
         }
         log.info("Attempting to create account for user ID: {}", account.getUserId());
         try {
-            return accountRepository.save(account);
+            Account created = accountRepository.save(account);
+            ledgerEntryRepository.append(created.getAccountNumber(), null, created.getBalance());
+            return created;
         } catch (Exception ex) {
             log.error("Failed to create account for user ID {}: {}", account.getUserId(), ex.getMessage());
             throw new RuntimeException("Account creation failed", ex);
@@ -64,18 +76,15 @@ public class AccountService {
         }
 
         try {
-            Optional<Account> optionalAccount = accountRepository.findByAccountNumber(accountNumber);
-            if (optionalAccount.isEmpty()) {
+            // A command of its own, so the ledger can tell it apart when this transaction rolls back and it is reverted
+            BalanceUpdate update = accountLedger.credit(UUID.randomUUID(), accountNumber, amount);
+            if (update.getStatus() == BalanceUpdate.Status.NOT_FOUND) {
                 log.warn("Deposit failed: Account {} not found.", accountNumber);
                 throw new RuntimeException("Account not found for deposit.");
             }
-
-            Account account = optionalAccount.get();
-            BigDecimal newBalance = account.getBalance().add(amount);
-            log.info("Depositing {} into account {}. New balance: {}", amount, accountNumber, newBalance);
-
-            Optional<Account> updatedAccount = accountRepository.updateBalance(accountNumber, newBalance);
-            return updatedAccount.orElseThrow(() -> new RuntimeException("Failed to update account balance after deposit."));
+            ledgerEntryRepository.append(accountNumber, null, amount);
+            log.info("Deposited {} into account {}. New balance: {}", amount, accountNumber, update.getAccount().getBalance());
+            return update.getAccount();
         } catch (Exception ex) {
             log.error("Error during deposit into account {}: {}", accountNumber, ex.getMessage());
             throw new RuntimeException("Deposit operation failed", ex);
@@ -89,35 +98,63 @@ public class AccountService {
         }
 
         try {
-            Optional<Account> optionalAccount = accountRepository.findByAccountNumber(accountNumber);
-            if (optionalAccount.isEmpty()) {
+            BalanceUpdate update = accountLedger.debit(UUID.randomUUID(), accountNumber, amount);
+            if (update.getStatus() == BalanceUpdate.Status.NOT_FOUND) {
                 log.warn("Withdrawal failed: Account {} not found.", accountNumber);
                 throw new RuntimeException("Account not found for withdrawal.");
             }
-
-            Account account = optionalAccount.get();
-            if (account.getBalance().compareTo(amount) < 0) {
+            if (update.getStatus() == BalanceUpdate.Status.INSUFFICIENT_FUNDS) {
                 log.warn("Withdrawal failed: Insufficient funds in account {}. Current balance: {}, requested: {}",
-                        accountNumber, account.getBalance(), amount);
+                        accountNumber, update.getAccount().getBalance(), amount);
                 throw new RuntimeException("Insufficient funds.");
             }
-
-            BigDecimal newBalance = account.getBalance().subtract(amount);
-            log.info("Withdrawing {} from account {}. New balance: {}", amount, accountNumber, newBalance);
-
-            Optional<Account> updatedAccount = accountRepository.updateBalance(accountNumber, newBalance);
-            return updatedAccount.orElseThrow(() -> new RuntimeException("Failed to update account balance after withdrawal."));
+            ledgerEntryRepository.append(accountNumber, null, amount.negate());
+            log.info("Withdrew {} from account {}. New balance: {}", amount, accountNumber, update.getAccount().getBalance());
+            return update.getAccount();
         } catch (Exception ex) {
             log.error("Error during withdrawal from account {}: {}", accountNumber, ex.getMessage());
             throw new RuntimeException("Withdrawal operation failed", ex);
         }
     }
 
+    /**
+     * Balance of the account as of {@code at} according to its ledger entries, or now if {@code at} is null.
+     */
+    public Optional<BigDecimal> getLedgerBalance(String accountNumber, Instant at) {
+        log.debug("Fetching ledger balance of account {} as of {}", accountNumber, at);
+        try {
+            return ledgerEntryRepository.balanceAt(accountNumber, at != null ? at : Instant.now());
+        } catch (Exception ex) {
+            log.error("Failed to fetch ledger balance of account {}: {}", accountNumber, ex.getMessage());
+            throw new RuntimeException("Failed to retrieve ledger balance", ex);
+        }
+    }
+
+    public Optional<Account> stripeAccount(String accountNumber, int stripes) {
+        if (stripes < 1) {
+            throw new IllegalArgumentException("Stripe count must be at least 1.");
+        }
+        if (!accountLedger.supportsStriping()) {
+            throw new IllegalStateException("Accounts cannot be striped while the ledger engine owns their balances.");
+        }
+        log.info("Attempting to spread account {} over {} stripe(s)", accountNumber, stripes);
+        try {
+            return accountRepository.stripe(accountNumber, stripes);
+        } catch (Exception ex) {
+            log.error("Failed to stripe account {}: {}", accountNumber, ex.getMessage());
+            throw new RuntimeException("Account striping failed", ex);
+        }
+    }
+
     @Transactional
     public boolean deleteAccount(String accountNumber) {
         log.info("Attempting to delete account: {}", accountNumber);
         try {
-            return accountRepository.deleteByAccountNumber(accountNumber);
+            boolean deleted = accountRepository.deleteByAccountNumber(accountNumber);
+            if (deleted) {
+                accountLedger.forget(accountNumber);
+            }
+            return deleted;
         } catch (Exception ex) {
             log.error("Failed to delete account {}: {}", accountNumber, ex.getMessage());
             throw new RuntimeException("Account deletion failed", ex);
@@ -4,6 +4,7 @@ import com.bank.system.account_service.domain.OutboxEvent;
 import com.bank.system.account_service.repository.AccountRepository;
 import com.bank.system.account_service.repository.OutboxEventRepository;
 import com.bank.system.dtos.dto.*;
+import com.bank.system.dtos.outbox.OutboxEventCodecRegistry;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import jakarta.transaction.Transactional;
@@ -12,6 +13,10 @@ import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
 
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 
@@ -20,11 +25,11 @@ public class AccountTransactionalService {
 
     private static final Logger log = LoggerFactory.getLogger(PaymentAccountService.class);
 
-    public static final String SENDER_DEBITED_FAILED_EVENT = "SenderDebitedFailedEvent";
-    public static final String SENDER_DEBITED_EVENT = "SenderDebitedEvent";
-    public static final String RECEIVER_CREDIT_EVENT = "ReceiverCreditEvent";
-    public static final String RECEIVER_CREDIT_FAILED_EVENT = "ReceiverCreditFailedEvent";
-    public static final String COMPENSATE_PAYMENT_EVENT = "CompensatePaymentEvent";
+    public static final String SENDER_DEBITED_FAILED_EVENT = OutboxEventCodecRegistry.SENDER_DEBITED_FAILED_EVENT;
+    public static final String SENDER_DEBITED_EVENT = OutboxEventCodecRegistry.SENDER_DEBITED_EVENT;
+    public static final String RECEIVER_CREDIT_EVENT = OutboxEventCodecRegistry.RECEIVER_CREDIT_EVENT;
+    public static final String RECEIVER_CREDIT_FAILED_EVENT = OutboxEventCodecRegistry.RECEIVER_CREDIT_FAILED_EVENT;
+    public static final String COMPENSATE_PAYMENT_EVENT = OutboxEventCodecRegistry.COMPENSATE_PAYMENT_EVENT;
 
     private final OutboxEventRepository outboxEventRepository;
     private final ObjectMapper objectMapper;
@@ -37,111 +42,85 @@ public class AccountTransactionalService {
 
     @Transactional
     public void sendCompensatePaymentEvent(CompensatePaymentEvent event) {
-        String eventPayload;
-        try {
-            eventPayload = objectMapper.writeValueAsString(event);
-        } catch (JsonProcessingException e) {
-            throw new RuntimeException("Failed to serialize " + COMPENSATE_PAYMENT_EVENT, e);
-        }
-        UUID id = UUID.randomUUID();
-        UUID entityId = UUID.randomUUID();
-        outboxEventRepository.save(new OutboxEvent(
-                id,
-                "Payment",
-                entityId, // handle entityId
-                COMPENSATE_PAYMENT_EVENT,
-                eventPayload,
-                Instant.now(),
-                false
-        ));
-        log.debug("Outbox event saved for Entity id: {}", entityId);
+        outboxEventRepository.save(toOutboxEvent(COMPENSATE_PAYMENT_EVENT, event.getPaymentId(), event));
+        log.debug("Outbox event saved for Entity id: {}", event.getPaymentId());
     }
 
     @Transactional
     public void sendReceiverCreditEvent(ReceiverCreditEvent event) {
-        String eventPayload;
-        try {
-            eventPayload = objectMapper.writeValueAsString(event);
-        } catch (JsonProcessingException e) {
-            throw new RuntimeException("Failed to serialize " + RECEIVER_CREDIT_EVENT, e);
-        }
-        UUID id = UUID.randomUUID();
-        UUID entityId = UUID.randomUUID();
-        outboxEventRepository.save(new OutboxEvent(
-                id,
-                "Payment",
-                entityId, // handle entityId
-                RECEIVER_CREDIT_EVENT,
-                eventPayload,
-                Instant.now(),
-                false
-        ));
-        log.debug("Outbox event saved for Entity id: {}", entityId);
+        outboxEventRepository.save(toOutboxEvent(RECEIVER_CREDIT_EVENT, event.getPaymentId(), event));
+        log.debug("Outbox event saved for Entity id: {}", event.getPaymentId());
     }
 
     @Transactional
     public void sendSenderDebitedEvent(SenderDebitedEvent event) {
-        String eventPayload;
-        try {
-            eventPayload = objectMapper.writeValueAsString(event);
-        } catch (JsonProcessingException e) {
-            throw new RuntimeException("Failed to serialize " + SENDER_DEBITED_EVENT, e);
-        }
-        UUID id = UUID.randomUUID();
-        UUID entityId = UUID.randomUUID();
-        outboxEventRepository.save(new OutboxEvent(
-                id,
-                "Payment",
-                entityId, // handle entityId
-                SENDER_DEBITED_EVENT,
-                eventPayload,
-                Instant.now(),
-                false
-        ));
-        log.debug("Outbox event saved for Entity id: {}", entityId);
+        outboxEventRepository.save(toOutboxEvent(SENDER_DEBITED_EVENT, event.getPaymentId(), event));
+        log.debug("Outbox event saved for Entity id: {}", event.getPaymentId());
     }
 
     @Transactional
     public void sendSenderDebitedFailedEvent(DebitFailedEvent event) {
-        String eventPayload;
-        try {
-            eventPayload = objectMapper.writeValueAsString(event);
-        } catch (JsonProcessingException e) {
-            throw new RuntimeException("Failed to serialize " + SENDER_DEBITED_FAILED_EVENT, e);
-        }
-        UUID id = UUID.randomUUID();
-        UUID entityId = UUID.randomUUID();
-        outboxEventRepository.save(new OutboxEvent(
-                id,
-                "Payment",
-                entityId, // handle entityId
-                SENDER_DEBITED_FAILED_EVENT,
-                eventPayload,
-                Instant.now(),
-                false
-        ));
-        log.debug("Outbox event saved for Entity id: {}", entityId);
+        outboxEventRepository.save(toOutboxEvent(SENDER_DEBITED_FAILED_EVENT, event.getPaymentId(), event));
+        log.debug("Outbox event saved for Entity id: {}", event.getPaymentId());
     }
 
     @Transactional
     public void sendReceiverCreditFailedEvent(CreditFailedEvent event) {
+        outboxEventRepository.save(toOutboxEvent(RECEIVER_CREDIT_FAILED_EVENT, event.getPaymentId(), event));
+        log.debug("Outbox event saved for Entity id: {}", event.getPaymentId());
+    }
+
+    /**
+     * Saves events built with {@link #toOutboxEvent} in one JDBC batch.
+     */
+    @Transactional
+    public void saveAll(List<OutboxEvent> events) {
+        outboxEventRepository.saveAll(events);
+        log.debug("{} outbox events saved", events.size());
+    }
+
+    /**
+     * Writes the latest reply of any of {@code types} recorded for each payment to the outbox once more, for a
+     * saga command that arrived again because its reply went missing. The copy keeps the original payload and
+     * so its eventId: payment-service skips it if the first one did arrive.
+     *
+     * @return the number of replies written
+     */
+    @Transactional
+    public int resendOutcomes(Collection<UUID> paymentIds, String... types) {
+        Map<UUID, OutboxEvent> outcomes = outboxEventRepository.findLatestByAggregateIds(paymentIds, List.of(types));
+        List<OutboxEvent> copies = new ArrayList<>(outcomes.size());
+        for (UUID paymentId : paymentIds) {
+            OutboxEvent outcome = outcomes.get(paymentId);
+            if (outcome == null) {
+                log.warn("No {} left in the outbox to re-send for payment {}", String.join(" or ", types), paymentId);
+                continue;
+            }
+            copies.add(new OutboxEvent(UUID.randomUUID(), outcome.getAggregateType(), paymentId, outcome.getType(),
+                    outcome.getPayload(), Instant.now(), false));
+        }
+        outboxEventRepository.saveAll(copies);
+        return copies.size();
+    }
+
+    /**
+     * Serializes {@code event} into an unsent outbox row of the payment, without saving it.
+     */
+    public OutboxEvent toOutboxEvent(String eventType, UUID paymentId, Object event) {
         String eventPayload;
         try {
             eventPayload = objectMapper.writeValueAsString(event);
         } catch (JsonProcessingException e) {
-            throw new RuntimeException("Failed to serialize " + RECEIVER_CREDIT_FAILED_EVENT, e);
+            throw new RuntimeException("Failed to serialize " + eventType, e);
         }
-        UUID id = UUID.randomUUID();
-        UUID entityId = UUID.randomUUID();
-        outboxEventRepository.save(new OutboxEvent(
-                id,
+        return new OutboxEvent(
+                UUID.randomUUID(),
                 "Payment",
-                entityId, // handle entityId
-                RECEIVER_CREDIT_FAILED_EVENT,
+                paymentId,
+                eventType,
                 eventPayload,
                 Instant.now(),
                 false
-        ));
-        log.debug("Outbox event saved for Entity id: {}", entityId);
+        );
     }
 }
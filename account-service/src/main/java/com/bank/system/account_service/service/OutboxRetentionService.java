@@ -0,0 +1,33 @@
+package com.bank.system.account_service.service;
+
+import com.bank.system.account_service.repository.OutboxEventRepository;
+import jakarta.transaction.Transactional;
+import org.springframework.stereotype.Service;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * One retention chunk per transaction, so compaction never holds row locks for longer than a single chunk.
+ */
+@Service
+public class OutboxRetentionService {
+
+    private final OutboxEventRepository outboxEventRepository;
+
+    public OutboxRetentionService(OutboxEventRepository outboxEventRepository) {
+        this.outboxEventRepository = outboxEventRepository;
+    }
+
+    @Transactional
+    public int archive(List<UUID> ids) {
+        outboxEventRepository.copySentToArchive(ids, Instant.now());
+        return outboxEventRepository.deleteSent(ids);
+    }
+
+    @Transactional
+    public int purge(List<UUID> ids) {
+        return outboxEventRepository.deleteSent(ids);
+    }
+}
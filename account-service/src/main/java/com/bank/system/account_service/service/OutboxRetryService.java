@@ -0,0 +1,74 @@
+package com.bank.system.account_service.service;
+
+import com.bank.system.account_service.config.OutboxProperties;
+import com.bank.system.account_service.domain.OutboxEvent;
+import com.bank.system.account_service.repository.OutboxEventRepository;
+import jakarta.transaction.Transactional;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Decides what happens to an outbox event after a failed publish: back off exponentially, or once it has
+ * used up max-attempts, flag it failed and copy it to outbox_event_dead_letter in the same transaction.
+ */
+@Service
+public class OutboxRetryService {
+
+    public enum Outcome {
+        RETRY_SCHEDULED,
+        DEAD_LETTERED,
+        /** The row was changed by someone else since it was fetched; nothing was recorded. */
+        CONFLICT
+    }
+
+    private static final int MAX_ERROR_LENGTH = 1000;
+
+    private final OutboxEventRepository outboxEventRepository;
+    private final OutboxProperties.Retry properties;
+
+    public OutboxRetryService(OutboxEventRepository outboxEventRepository, OutboxProperties outboxProperties) {
+        this.outboxEventRepository = outboxEventRepository;
+        this.properties = outboxProperties.getRetry();
+    }
+
+    @Transactional
+    public Outcome recordFailure(OutboxEvent event, Throwable failure) {
+        int attempts = event.getAttempts() + 1;
+        String error = describe(failure);
+        if (attempts >= properties.getMaxAttempts()) {
+            if (!outboxEventRepository.markAsFailed(event, error)) {
+                return Outcome.CONFLICT;
+            }
+            outboxEventRepository.copyFailedToDeadLetter(event.getId(), Instant.now());
+            return Outcome.DEAD_LETTERED;
+        }
+        return outboxEventRepository.scheduleRetry(event, Instant.now().plus(backoff(attempts)), error)
+                ? Outcome.RETRY_SCHEDULED
+                : Outcome.CONFLICT;
+    }
+
+    /**
+     * Delay before the next attempt, once {@code attempts} publishes have failed.
+     */
+    public Duration backoff(int attempts) {
+        Duration maxBackoff = properties.getMaxBackoff();
+        Duration backoff = properties.getInitialBackoff();
+        for (int i = 1; i < attempts && backoff.compareTo(maxBackoff) < 0; i++) {
+            backoff = backoff.multipliedBy(2);
+        }
+        return backoff.compareTo(maxBackoff) > 0 ? maxBackoff : backoff;
+    }
+
+    private static String describe(Throwable failure) {
+        Throwable cause = failure;
+        while ((cause instanceof CompletionException || cause instanceof ExecutionException) && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        String error = cause.getClass().getName() + ": " + cause.getMessage();
+        return error.length() > MAX_ERROR_LENGTH ? error.substring(0, MAX_ERROR_LENGTH) : error;
+    }
+}
@@ -1,23 +1,46 @@
 package com.bank.system.account_service.service;
 
-import com.bank.system.account_service.domain.Account;
+import com.bank.system.account_service.dedup.ProcessedEventDeduplicator;
+import com.bank.system.account_service.domain.BalanceChange;
+import com.bank.system.account_service.domain.BalanceUpdate;
+import com.bank.system.account_service.domain.LedgerEntry;
+import com.bank.system.account_service.domain.OutboxEvent;
 import com.bank.system.account_service.domain.ProcessedEvent;
 import com.bank.system.account_service.kafka.AccountProducer;
-import com.bank.system.account_service.repository.AccountRepository;
-import com.bank.system.account_service.repository.ProcessedEventRepository;
+import com.bank.system.account_service.ledger.AccountLedger;
+import com.bank.system.account_service.repository.LedgerEntryRepository;
 import com.bank.system.dtos.dto.*;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import jakarta.transaction.Transactional;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
 
 import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.function.Function;
 
+/**
+ * Account-service's steps of the payment saga: the sender's debit, the receiver's credit and the sender's refund.
+ * Every command is handled once per event id. Payment-service sends a command again with the same event id when
+ * no reply came back, so a command seen before gets the reply recorded for it the first time re-sent rather
+ * than being dropped.
+ * <p>
+ * A payment's credit and its compensation race each other when the credit request or its reply is late:
+ * whichever is handled first records the payment's credit fence, an id in processed_event. A credit request
+ * finding the fence claimed is refused, and a compensation finding it claimed reverses the credit, if one
+ * was applied, before refunding the sender.
+ */
 @Service
 public class PaymentAccountService {
 
@@ -26,37 +49,27 @@ public class PaymentAccountService {
     public static final String RECEIVER_CREDIT_REQUEST_EVENT = "ReceiverCreditRequestEvent";
     public static final String COMPENSATE_PAYMENT_EVENT = "CompensatePaymentEvent";
 
-    private final AccountRepository accountRepository;
+    private final AccountLedger accountLedger;
     private final AccountTransactionalService accountTransactionalService;
-    private final ProcessedEventRepository processedEventRepository;
-    private final ObjectMapper objectMapper;
+    private final ProcessedEventDeduplicator processedEvents;
+    private final LedgerEntryRepository ledgerEntryRepository;
 
 
-    public PaymentAccountService(AccountRepository accountRepository,
-                                 AccountTransactionalService accountTransactionalService, ProcessedEventRepository processedEventRepository, ObjectMapper objectMapper) {
-        this.accountRepository = accountRepository;
+    public PaymentAccountService(AccountLedger accountLedger,
+                                 AccountTransactionalService accountTransactionalService, ProcessedEventDeduplicator processedEvents,
+                                 LedgerEntryRepository ledgerEntryRepository) {
+        this.accountLedger = accountLedger;
         this.accountTransactionalService = accountTransactionalService;
-        this.processedEventRepository = processedEventRepository;
-        this.objectMapper = objectMapper;
+        this.processedEvents = processedEvents;
+        this.ledgerEntryRepository = ledgerEntryRepository;
     }
 
     @Transactional
     public boolean handlePaymentInitiatedEvent(PaymentInitiatedEvent event) {
-        if (processedEventRepository.existsById(event.getEventId())) {
+        if (!processedEvents.markProcessed(event, PAYMENT_INITIATED_EVENT)) {
+            accountTransactionalService.resendOutcomes(List.of(event.getPaymentId()),
+                    AccountTransactionalService.SENDER_DEBITED_EVENT, AccountTransactionalService.SENDER_DEBITED_FAILED_EVENT);
             return true;
-        } else {
-            String payload;
-            try {
-                payload = objectMapper.writeValueAsString(event);
-            } catch (JsonProcessingException e) {
-                throw new RuntimeException("Failed to serialize " + PAYMENT_INITIATED_EVENT, e);
-            }
-            processedEventRepository.save(new ProcessedEvent(
-                    event.getEventId(),
-                    PAYMENT_INITIATED_EVENT,
-                    payload,
-                    Instant.now()
-            ));
         }
 
         String senderAccountId = event.getSenderAccountId();
@@ -65,65 +78,50 @@ public class PaymentAccountService {
 
         log.info("Attempting to debit sender account {} for payment ID {}", senderAccountId, paymentId);
 
+        if (!AccountLedger.isApplicable(debitAmount)) {
+            String errorMsg = invalidAmount(event);
+            log.error(errorMsg);
+            accountTransactionalService.sendSenderDebitedFailedEvent(mapPaymentInitiatedEventToDebitFailedEvent(event, errorMsg));
+            return false;
+        }
+
         try {
-            Optional<Account> optionalAccount = accountRepository.findByAccountNumber(senderAccountId);
-            if (optionalAccount.isEmpty()) {
-                String errorMsg = String.format("Sender account %s not found for payment ID %s. Debit failed.", senderAccountId, paymentId);
+            BalanceUpdate debit = accountLedger.debit(event.getEventId(), senderAccountId, debitAmount);
+            if (debit.getStatus() == BalanceUpdate.Status.NOT_FOUND) {
+                String errorMsg = senderNotFound(event);
                 log.error(errorMsg);
                 DebitFailedEvent debitFailedEvent = mapPaymentInitiatedEventToDebitFailedEvent(event, errorMsg);
                 accountTransactionalService.sendSenderDebitedFailedEvent(debitFailedEvent);
                 return false;
             }
-
-            Account senderAccount = optionalAccount.get();
-            if (senderAccount.getBalance().compareTo(debitAmount) < 0) {
-                String errorMsg = String.format("Insufficient funds in sender account %s (balance: %s) for payment ID %s (amount: %s). Debit failed.",
-                        senderAccountId, senderAccount.getBalance(), paymentId, debitAmount);
+            if (debit.getStatus() == BalanceUpdate.Status.INSUFFICIENT_FUNDS) {
+                String errorMsg = insufficientFunds(event, debit);
                 log.error(errorMsg);
                 DebitFailedEvent debitFailedEvent = mapPaymentInitiatedEventToDebitFailedEvent(event, errorMsg);
                 accountTransactionalService.sendSenderDebitedFailedEvent(debitFailedEvent);
                 return false;
             }
 
-            BigDecimal newBalance = senderAccount.getBalance().subtract(debitAmount);
-            log.info("Debiting sender account {}. Old balance: {}, New balance: {}", senderAccountId, senderAccount.getBalance(), newBalance);
-
-            Optional<Account> updatedOptionalAccount = accountRepository.updateBalance(senderAccountId, newBalance);
-            if (updatedOptionalAccount.isPresent()) {
-                SenderDebitedEvent senderDebitedEvent = mapPaymentInitiatedEventToSenderDebitedEvent(event);
-                accountTransactionalService.sendSenderDebitedEvent(senderDebitedEvent);
-                log.info("SenderDebitedEvent published for paymentId: {} on account: {}", paymentId, senderAccountId);
-                return true;
-            } else {
-                String errorMsg = String.format("Failed to update balance for sender account %s for payment ID %s. Account not found after initial check.", senderAccountId, paymentId);
-                log.error(errorMsg);
-                DebitFailedEvent debitFailedEvent = mapPaymentInitiatedEventToDebitFailedEvent(event, errorMsg);
-                accountTransactionalService.sendSenderDebitedFailedEvent(debitFailedEvent);
-                return false;
-            }
+            ledgerEntryRepository.append(senderAccountId, paymentId, debitAmount.negate());
+            log.info("Debited sender account {}. New balance: {}", senderAccountId, debit.getAccount().getBalance());
+            SenderDebitedEvent senderDebitedEvent = mapPaymentInitiatedEventToSenderDebitedEvent(event);
+            accountTransactionalService.sendSenderDebitedEvent(senderDebitedEvent);
+            log.info("SenderDebitedEvent published for paymentId: {} on account: {}", paymentId, senderAccountId);
+            return true;
         } catch (Exception ex) {
+            // Nothing is recorded, so a redelivery or a retry of the saga sweeper handles the event again
             log.error("Critical error during debit process for payment ID {}: {}", paymentId, ex.getMessage(), ex);
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
             return false;
         }
     }
 
     @Transactional
     public void handleReceiverCreditRequestEvent(ReceiverCreditRequestEvent event) {
-        if (processedEventRepository.existsById(event.getEventId())) {
+        if (!processedEvents.markProcessed(event, RECEIVER_CREDIT_REQUEST_EVENT)) {
+            accountTransactionalService.resendOutcomes(List.of(event.getPaymentId()),
+                    AccountTransactionalService.RECEIVER_CREDIT_EVENT, AccountTransactionalService.RECEIVER_CREDIT_FAILED_EVENT);
             return;
-        } else {
-            String payload;
-            try {
-                payload = objectMapper.writeValueAsString(event);
-            } catch (JsonProcessingException e) {
-                throw new RuntimeException("Failed to serialize " + RECEIVER_CREDIT_REQUEST_EVENT, e);
-            }
-            processedEventRepository.save(new ProcessedEvent(
-                    event.getEventId(),
-                    RECEIVER_CREDIT_REQUEST_EVENT,
-                    payload,
-                    Instant.now()
-            ));
         }
 
         String receiverAccountId = event.getAccountId();
@@ -132,54 +130,42 @@ public class PaymentAccountService {
 
         log.info("Attempting to credit receiver account {} for payment ID {}", receiverAccountId, paymentId);
 
+        if (!processedEvents.markProcessed(creditFence(paymentId, RECEIVER_CREDIT_REQUEST_EVENT, Instant.now()))) {
+            String errorMsg = alreadyCompensated(event);
+            log.error(errorMsg);
+            accountTransactionalService.sendReceiverCreditFailedEvent(mapReceiverCreditRequestEventToCreditFailedEvent(event, errorMsg));
+            return;
+        }
+
         try {
-            Optional<Account> optionalAccount = accountRepository.findByAccountNumber(receiverAccountId);
-            if (optionalAccount.isEmpty()) {
-                String errorMsg = String.format("Receiver account %s not found for payment ID %s. Credit failed.", receiverAccountId, paymentId);
+            BalanceUpdate credit = accountLedger.credit(event.getEventId(), receiverAccountId, creditAmount);
+            if (credit.getStatus() == BalanceUpdate.Status.NOT_FOUND) {
+                String errorMsg = receiverNotFound(event);
                 log.error(errorMsg);
                 CreditFailedEvent creditFailedEvent = mapReceiverCreditRequestEventToCreditFailedEvent(event, errorMsg);
                 accountTransactionalService.sendReceiverCreditFailedEvent(creditFailedEvent);
                 return;
             }
 
-            Account receiverAccount = optionalAccount.get();
-            BigDecimal newBalance = receiverAccount.getBalance().add(creditAmount);
-            log.info("Crediting receiver account {}. Old balance: {}, New balance: {}", receiverAccountId, receiverAccount.getBalance(), newBalance);
-
-            Optional<Account> updatedOptionalAccount = accountRepository.updateBalance(receiverAccountId, newBalance);
-            if (updatedOptionalAccount.isPresent()) {
-                ReceiverCreditEvent receiverCreditEvent = mapReceiverCreditRequestEventToReceiverCreditEvent(event);
-                accountTransactionalService.sendReceiverCreditEvent(receiverCreditEvent);
-                log.info("ReceiverCreditEvent published for paymentId: {} on account: {}", paymentId, receiverAccountId);
-            } else {
-                String errorMsg = String.format("Failed to update balance for receiver account %s for payment ID %s.", receiverAccountId, paymentId);
-                log.error(errorMsg);
-                CreditFailedEvent creditFailedEvent = mapReceiverCreditRequestEventToCreditFailedEvent(event, errorMsg);
-                accountTransactionalService.sendReceiverCreditFailedEvent(creditFailedEvent);
-            }
+            ledgerEntryRepository.append(receiverAccountId, paymentId, creditAmount);
+            log.info("Credited receiver account {}. New balance: {}", receiverAccountId, credit.getAccount().getBalance());
+            ReceiverCreditEvent receiverCreditEvent = mapReceiverCreditRequestEventToReceiverCreditEvent(event);
+            accountTransactionalService.sendReceiverCreditEvent(receiverCreditEvent);
+            log.info("ReceiverCreditEvent published for paymentId: {} on account: {}", paymentId, receiverAccountId);
         } catch (Exception ex) {
+            // The credit may already be applied, so nothing is kept: the ledger reverts it along with the credit
+            // fence, and a redelivery or a retry of the saga sweeper handles the event again
             log.error("Error during credit process for payment ID {}: {}", paymentId, ex.getMessage(), ex);
-            CreditFailedEvent creditFailedEvent = mapReceiverCreditRequestEventToCreditFailedEvent(event, ex.getMessage());
-            accountTransactionalService.sendReceiverCreditFailedEvent(creditFailedEvent);
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
         }
     }
 
+    @Transactional
     public void handleCompensatePaymentRequestEvent(CompensatePaymentRequestEvent event) {
-        if (processedEventRepository.existsById(event.getEventId())) {
+        if (!processedEvents.markProcessed(event, COMPENSATE_PAYMENT_EVENT)) {
+            accountTransactionalService.resendOutcomes(List.of(event.getPaymentId()),
+                    AccountTransactionalService.COMPENSATE_PAYMENT_EVENT);
             return;
-        } else {
-            String payload;
-            try {
-                payload = objectMapper.writeValueAsString(event);
-            } catch (JsonProcessingException e) {
-                throw new RuntimeException("Failed to serialize " + COMPENSATE_PAYMENT_EVENT, e);
-            }
-            processedEventRepository.save(new ProcessedEvent(
-                    event.getEventId(),
-                    COMPENSATE_PAYMENT_EVENT,
-                    payload,
-                    Instant.now()
-            ));
         }
 
         String accountNumber = event.getAccountId();
@@ -189,30 +175,286 @@ public class PaymentAccountService {
         log.info("Attempting to compensate debit to account number {} for payment ID {}", accountNumber, paymentId);
 
         try {
-            Optional<Account> optionalAccount = accountRepository.findByAccountNumber(accountNumber);
-            if (optionalAccount.isEmpty()) {
+            if (!processedEvents.markProcessed(creditFence(paymentId, COMPENSATE_PAYMENT_EVENT, Instant.now()))) {
+                List<LedgerEntry> entries = new ArrayList<>(2);
+                List<OutboxEvent> outboxEvents = new ArrayList<>(1);
+                reverseCreditAndRefund(event, entries, outboxEvents);
+                ledgerEntryRepository.appendAll(entries);
+                accountTransactionalService.saveAll(outboxEvents);
+                return;
+            }
+
+            BalanceUpdate refund = accountLedger.credit(event.getEventId(), accountNumber, amount);
+            if (refund.getStatus() == BalanceUpdate.Status.NOT_FOUND) {
                 throw new RuntimeException(String.format("Receiver account %s not found for payment ID %s. Compensation failed.", accountNumber, paymentId));
             }
 
-            Account receiverAccount = optionalAccount.get();
-            BigDecimal newBalance = receiverAccount.getBalance().add(amount);
-            log.info("Crediting receiver account {}. Old balance: {}, New balance: {}", accountNumber, receiverAccount.getBalance(), newBalance);
+            ledgerEntryRepository.append(accountNumber, paymentId, amount);
+            log.info("Refunded account {}. New balance: {}", accountNumber, refund.getAccount().getBalance());
+            CompensatePaymentEvent compensatePaymentEvent = mapCompensatePaymentRequestEventToCompensatePaymentEvent(event);
+            accountTransactionalService.sendCompensatePaymentEvent(compensatePaymentEvent);
+            log.info("CompensatePaymentEvent published for paymentId: {} on account: {}", paymentId, accountNumber);
+        } catch (Exception ex) {
+            // Nothing is recorded, so a retry of the saga sweeper runs the compensation again
+            log.error("Error during compensate process for payment ID {}: {}", paymentId, ex.getMessage(), ex);
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+        }
+    }
 
-            Optional<Account> updatedOptionalAccount = accountRepository.updateBalance(accountNumber, newBalance);
-            if (updatedOptionalAccount.isPresent()) {
-                CompensatePaymentEvent compensatePaymentEvent = mapCompensatePaymentRequestEventToCompensatePaymentEvent(event);
-                accountTransactionalService.sendCompensatePaymentEvent(compensatePaymentEvent);
-                log.info("CompensatePaymentEvent published for paymentId: {} on account: {}", paymentId, accountNumber);
+    /**
+     * Batch form of {@link #handlePaymentInitiatedEvent}. The whole batch costs at most one processed_event
+     * lookup, one {@link AccountLedger#applyAll} for the debits and one JDBC batch each for processed_event,
+     * ledger_entry and the outbox, all in one transaction. If any of it fails the batch rolls back as a
+     * whole and the caller can replay it event by event.
+     */
+    @Transactional
+    public void handlePaymentInitiatedEvents(List<PaymentInitiatedEvent> events) {
+        List<PaymentInitiatedEvent> redelivered = new ArrayList<>();
+        List<PaymentInitiatedEvent> fresh = recordProcessed(events, PAYMENT_INITIATED_EVENT, redelivered);
+        List<BalanceUpdate> debits = accountLedger.applyAll(fresh.stream()
+                .filter(event -> AccountLedger.isApplicable(event.getAmount()))
+                .map(event -> BalanceChange.debit(event.getEventId(), event.getSenderAccountId(), event.getAmount()))
+                .toList());
+        List<LedgerEntry> entries = new ArrayList<>(fresh.size());
+        List<OutboxEvent> outboxEvents = new ArrayList<>(fresh.size());
+        int applicable = 0;
+        for (PaymentInitiatedEvent event : fresh) {
+            if (!AccountLedger.isApplicable(event.getAmount())) {
+                String errorMsg = invalidAmount(event);
+                log.error(errorMsg);
+                outboxEvents.add(accountTransactionalService.toOutboxEvent(AccountTransactionalService.SENDER_DEBITED_FAILED_EVENT,
+                        event.getPaymentId(), mapPaymentInitiatedEventToDebitFailedEvent(event, errorMsg)));
+                continue;
+            }
+            BalanceUpdate debit = debits.get(applicable++);
+            if (debit.isApplied()) {
+                entries.add(new LedgerEntry(event.getSenderAccountId(), event.getPaymentId(), event.getAmount().negate()));
+                outboxEvents.add(accountTransactionalService.toOutboxEvent(AccountTransactionalService.SENDER_DEBITED_EVENT,
+                        event.getPaymentId(), mapPaymentInitiatedEventToSenderDebitedEvent(event)));
             } else {
-                throw new RuntimeException(String.format("Failed to update balance for receiver account %s for payment ID %s.", accountNumber, paymentId));
+                String errorMsg = debit.getStatus() == BalanceUpdate.Status.NOT_FOUND
+                        ? senderNotFound(event)
+                        : insufficientFunds(event, debit);
+                log.error(errorMsg);
+                outboxEvents.add(accountTransactionalService.toOutboxEvent(AccountTransactionalService.SENDER_DEBITED_FAILED_EVENT,
+                        event.getPaymentId(), mapPaymentInitiatedEventToDebitFailedEvent(event, errorMsg)));
             }
-        } catch (Exception ex) {
-            log.error("Error during compensate process for payment ID {}: {}", paymentId, ex.getMessage(), ex);
         }
+        ledgerEntryRepository.appendAll(entries);
+        accountTransactionalService.saveAll(outboxEvents);
+        int resent = accountTransactionalService.resendOutcomes(paymentIds(redelivered, PaymentInitiatedEvent::getPaymentId),
+                AccountTransactionalService.SENDER_DEBITED_EVENT, AccountTransactionalService.SENDER_DEBITED_FAILED_EVENT);
+        log.info("Processed {} of {} PaymentInitiatedEvents in one batch, {} debited, {} replies re-sent",
+                fresh.size(), events.size(), entries.size(), resent);
+    }
+
+    /**
+     * Batch form of {@link #handleReceiverCreditRequestEvent}, grouped like {@link #handlePaymentInitiatedEvents}.
+     * The credit fences of the whole batch are claimed with one more lookup and JDBC batch.
+     */
+    @Transactional
+    public void handleReceiverCreditRequestEvents(List<ReceiverCreditRequestEvent> events) {
+        List<ReceiverCreditRequestEvent> redelivered = new ArrayList<>();
+        List<ReceiverCreditRequestEvent> fresh = recordProcessed(events, RECEIVER_CREDIT_REQUEST_EVENT, redelivered);
+        Set<UUID> compensated = claimCreditFences(paymentIds(fresh, ReceiverCreditRequestEvent::getPaymentId),
+                RECEIVER_CREDIT_REQUEST_EVENT);
+        List<ReceiverCreditRequestEvent> toCredit = new ArrayList<>(fresh.size());
+        List<OutboxEvent> outboxEvents = new ArrayList<>(fresh.size());
+        for (ReceiverCreditRequestEvent event : fresh) {
+            if (compensated.contains(event.getPaymentId())) {
+                String errorMsg = alreadyCompensated(event);
+                log.error(errorMsg);
+                outboxEvents.add(accountTransactionalService.toOutboxEvent(AccountTransactionalService.RECEIVER_CREDIT_FAILED_EVENT,
+                        event.getPaymentId(), mapReceiverCreditRequestEventToCreditFailedEvent(event, errorMsg)));
+            } else {
+                toCredit.add(event);
+            }
+        }
+        List<BalanceUpdate> credits = accountLedger.applyAll(toCredit.stream()
+                .map(event -> BalanceChange.credit(event.getEventId(), event.getAccountId(), event.getCreditedAmount()))
+                .toList());
+        List<LedgerEntry> entries = new ArrayList<>(toCredit.size());
+        for (int i = 0; i < toCredit.size(); i++) {
+            ReceiverCreditRequestEvent event = toCredit.get(i);
+            if (credits.get(i).isApplied()) {
+                entries.add(new LedgerEntry(event.getAccountId(), event.getPaymentId(), event.getCreditedAmount()));
+                outboxEvents.add(accountTransactionalService.toOutboxEvent(AccountTransactionalService.RECEIVER_CREDIT_EVENT,
+                        event.getPaymentId(), mapReceiverCreditRequestEventToReceiverCreditEvent(event)));
+            } else {
+                String errorMsg = receiverNotFound(event);
+                log.error(errorMsg);
+                outboxEvents.add(accountTransactionalService.toOutboxEvent(AccountTransactionalService.RECEIVER_CREDIT_FAILED_EVENT,
+                        event.getPaymentId(), mapReceiverCreditRequestEventToCreditFailedEvent(event, errorMsg)));
+            }
+        }
+        ledgerEntryRepository.appendAll(entries);
+        accountTransactionalService.saveAll(outboxEvents);
+        int resent = accountTransactionalService.resendOutcomes(paymentIds(redelivered, ReceiverCreditRequestEvent::getPaymentId),
+                AccountTransactionalService.RECEIVER_CREDIT_EVENT, AccountTransactionalService.RECEIVER_CREDIT_FAILED_EVENT);
+        log.info("Processed {} of {} ReceiverCreditRequestEvents in one batch, {} credited, {} replies re-sent",
+                fresh.size(), events.size(), entries.size(), resent);
+    }
+
+    /**
+     * Batch form of {@link #handleCompensatePaymentRequestEvent}, grouped like {@link #handleReceiverCreditRequestEvents}.
+     * Payments whose credit was handled first are compensated one at a time after the batch's plain refunds.
+     */
+    @Transactional
+    public void handleCompensatePaymentRequestEvents(List<CompensatePaymentRequestEvent> events) {
+        List<CompensatePaymentRequestEvent> redelivered = new ArrayList<>();
+        List<CompensatePaymentRequestEvent> fresh = recordProcessed(events, COMPENSATE_PAYMENT_EVENT, redelivered);
+        Set<UUID> credited = claimCreditFences(paymentIds(fresh, CompensatePaymentRequestEvent::getPaymentId),
+                COMPENSATE_PAYMENT_EVENT);
+        List<CompensatePaymentRequestEvent> toRefund = fresh.stream()
+                .filter(event -> !credited.contains(event.getPaymentId()))
+                .toList();
+        List<BalanceUpdate> refunds = accountLedger.applyAll(toRefund.stream()
+                .map(event -> BalanceChange.credit(event.getEventId(), event.getAccountId(), event.getAmount()))
+                .toList());
+        List<LedgerEntry> entries = new ArrayList<>(fresh.size());
+        List<OutboxEvent> outboxEvents = new ArrayList<>(fresh.size());
+        for (int i = 0; i < toRefund.size(); i++) {
+            CompensatePaymentRequestEvent event = toRefund.get(i);
+            if (refunds.get(i).isApplied()) {
+                entries.add(new LedgerEntry(event.getAccountId(), event.getPaymentId(), event.getAmount()));
+                outboxEvents.add(accountTransactionalService.toOutboxEvent(AccountTransactionalService.COMPENSATE_PAYMENT_EVENT,
+                        event.getPaymentId(), mapCompensatePaymentRequestEventToCompensatePaymentEvent(event)));
+            } else {
+                log.error("Error during compensate process for payment ID {}: Receiver account {} not found. Compensation failed.",
+                        event.getPaymentId(), event.getAccountId());
+            }
+        }
+        for (CompensatePaymentRequestEvent event : fresh) {
+            if (credited.contains(event.getPaymentId())) {
+                reverseCreditAndRefund(event, entries, outboxEvents);
+            }
+        }
+        ledgerEntryRepository.appendAll(entries);
+        accountTransactionalService.saveAll(outboxEvents);
+        int resent = accountTransactionalService.resendOutcomes(paymentIds(redelivered, CompensatePaymentRequestEvent::getPaymentId),
+                AccountTransactionalService.COMPENSATE_PAYMENT_EVENT);
+        log.info("Processed {} of {} CompensatePaymentRequestEvents in one batch, {} ledger entries, {} replies re-sent",
+                fresh.size(), events.size(), entries.size(), resent);
+    }
+
+    /**
+     * Compensates a payment whose credit request was handled before the compensation. A credit that was applied
+     * is reversed before the sender is refunded. If the receiver can no longer cover the reversal, the credit
+     * stands: nothing is refunded and the reply says the credit was kept, so the payment completes after all.
+     */
+    private void reverseCreditAndRefund(CompensatePaymentRequestEvent event, List<LedgerEntry> entries, List<OutboxEvent> outboxEvents) {
+        UUID paymentId = event.getPaymentId();
+        Optional<LedgerEntry> credit = ledgerEntryRepository.findCredit(paymentId);
+        if (credit.isPresent()) {
+            LedgerEntry applied = credit.get();
+            BalanceUpdate reversal = accountLedger.debit(derivedCommandId(event, "reversal"), applied.getAccountNumber(), applied.getAmount());
+            if (!reversal.isApplied()) {
+                String errorMsg = String.format("Credit of receiver account %s for payment ID %s cannot be reversed (%s). The credit is kept, nothing is refunded.",
+                        applied.getAccountNumber(), paymentId, reversal.getStatus());
+                log.error(errorMsg);
+                CompensatePaymentEvent creditKept = mapCompensatePaymentRequestEventToCompensatePaymentEvent(event);
+                creditKept.setReason(errorMsg);
+                creditKept.setCreditKept(true);
+                outboxEvents.add(accountTransactionalService.toOutboxEvent(AccountTransactionalService.COMPENSATE_PAYMENT_EVENT,
+                        paymentId, creditKept));
+                return;
+            }
+        }
+        BalanceUpdate refund = accountLedger.credit(event.getEventId(), event.getAccountId(), event.getAmount());
+        if (!refund.isApplied()) {
+            log.error("Error during compensate process for payment ID {}: Sender account {} not found. Compensation failed.",
+                    paymentId, event.getAccountId());
+            // Credits cannot bounce on funds, so the receiver gets back what the reversal took
+            credit.ifPresent(applied -> accountLedger.credit(derivedCommandId(event, "reversal-undone"),
+                    applied.getAccountNumber(), applied.getAmount()));
+            return;
+        }
+        credit.ifPresent(applied -> {
+            entries.add(new LedgerEntry(applied.getAccountNumber(), paymentId, applied.getAmount().negate()));
+            log.info("Reversed the credit of receiver account {} for payment ID {}", applied.getAccountNumber(), paymentId);
+        });
+        entries.add(new LedgerEntry(event.getAccountId(), paymentId, event.getAmount()));
+        outboxEvents.add(accountTransactionalService.toOutboxEvent(AccountTransactionalService.COMPENSATE_PAYMENT_EVENT,
+                paymentId, mapCompensatePaymentRequestEventToCompensatePaymentEvent(event)));
+    }
+
+    // Drops events that were processed before or repeat within the batch, and records the rest as processed.
+    // The ones processed before are added to redelivered: their reply may be what went missing.
+    private <E extends Event> List<E> recordProcessed(List<E> events, String eventType, List<E> redelivered) {
+        Map<UUID, E> unique = new LinkedHashMap<>();
+        for (E event : events) {
+            unique.putIfAbsent(event.getEventId(), event);
+        }
+        for (UUID eventId : processedEvents.findProcessed(unique.keySet())) {
+            redelivered.add(unique.remove(eventId));
+        }
+        List<E> fresh = new ArrayList<>(unique.values());
+        processedEvents.saveAll(fresh, eventType);
+        return fresh;
+    }
+
+    // Claims the credit fences of the payments not claimed yet, and returns the payments whose fence was claimed already
+    private Set<UUID> claimCreditFences(Collection<UUID> paymentIds, String claimedBy) {
+        Instant now = Instant.now();
+        Map<UUID, ProcessedEvent> fences = new LinkedHashMap<>();
+        for (UUID paymentId : paymentIds) {
+            fences.put(paymentId, creditFence(paymentId, claimedBy, now));
+        }
+        Set<UUID> claimedFences = processedEvents.findProcessed(fences.values().stream().map(ProcessedEvent::getEventId).toList());
+        Set<UUID> claimed = new HashSet<>();
+        List<ProcessedEvent> unclaimed = new ArrayList<>(fences.size());
+        for (Map.Entry<UUID, ProcessedEvent> fence : fences.entrySet()) {
+            if (claimedFences.contains(fence.getValue().getEventId())) {
+                claimed.add(fence.getKey());
+            } else {
+                unclaimed.add(fence.getValue());
+            }
+        }
+        processedEvents.saveAll(unclaimed);
+        return claimed;
+    }
+
+    // The payment id is kept as the payload, to tell what a fence in processed_event belongs to
+    private static ProcessedEvent creditFence(UUID paymentId, String claimedBy, Instant now) {
+        UUID fenceId = UUID.nameUUIDFromBytes(("credit-fence:" + paymentId).getBytes(StandardCharsets.UTF_8));
+        return new ProcessedEvent(fenceId, claimedBy, paymentId.toString(), now);
+    }
+
+    // Ledger command id of a further step taken on behalf of the event, the same on every redelivery
+    private static UUID derivedCommandId(Event event, String step) {
+        return UUID.nameUUIDFromBytes((event.getEventId() + ":" + step).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static <E> List<UUID> paymentIds(List<E> events, Function<E, UUID> paymentIdOf) {
+        return events.stream().map(paymentIdOf).toList();
+    }
+
+    private static String senderNotFound(PaymentInitiatedEvent event) {
+        return String.format("Sender account %s not found for payment ID %s. Debit failed.", event.getSenderAccountId(), event.getPaymentId());
+    }
+
+    private static String invalidAmount(PaymentInitiatedEvent event) {
+        return String.format("Amount %s of payment ID %s cannot be debited from sender account %s: it must be positive with at most %d decimals. Debit failed.",
+                event.getAmount(), event.getPaymentId(), event.getSenderAccountId(), AccountLedger.SCALE);
+    }
+
+    private static String insufficientFunds(PaymentInitiatedEvent event, BalanceUpdate debit) {
+        return String.format("Insufficient funds in sender account %s (balance: %s) for payment ID %s (amount: %s). Debit failed.",
+                event.getSenderAccountId(), debit.getAccount().getBalance(), event.getPaymentId(), event.getAmount());
+    }
+
+    private static String alreadyCompensated(ReceiverCreditRequestEvent event) {
+        return String.format("Payment ID %s was compensated before its credit to receiver account %s arrived. Credit refused.",
+                event.getPaymentId(), event.getAccountId());
+    }
+
+    private static String receiverNotFound(ReceiverCreditRequestEvent event) {
+        return String.format("Receiver account %s not found for payment ID %s. Credit failed.", event.getAccountId(), event.getPaymentId());
     }
 
     private static SenderDebitedEvent mapPaymentInitiatedEventToSenderDebitedEvent(PaymentInitiatedEvent paymentInitiatedEvent) {
         SenderDebitedEvent senderDebitedEvent = new SenderDebitedEvent();
+        senderDebitedEvent.setEventId(UUID.randomUUID());
         senderDebitedEvent.setAccountId(paymentInitiatedEvent.getSenderAccountId());
         senderDebitedEvent.setDebitedAmount(paymentInitiatedEvent.getAmount());
         senderDebitedEvent.setPaymentId(paymentInitiatedEvent.getPaymentId());
@@ -223,6 +465,7 @@ public class PaymentAccountService {
 
     private static ReceiverCreditEvent mapReceiverCreditRequestEventToReceiverCreditEvent(ReceiverCreditRequestEvent receiverCreditRequestEvent) {
         ReceiverCreditEvent receiverCreditEvent = new ReceiverCreditEvent();
+        receiverCreditEvent.setEventId(UUID.randomUUID());
         receiverCreditEvent.setAccountId(receiverCreditRequestEvent.getAccountId());
         receiverCreditEvent.setCreditedAmount(receiverCreditRequestEvent.getCreditedAmount());
         receiverCreditEvent.setPaymentId(receiverCreditRequestEvent.getPaymentId());
@@ -231,6 +474,7 @@ public class PaymentAccountService {
 
     private static CompensatePaymentEvent mapCompensatePaymentRequestEventToCompensatePaymentEvent(CompensatePaymentRequestEvent event) {
         CompensatePaymentEvent compensatePaymentEvent = new CompensatePaymentEvent();
+        compensatePaymentEvent.setEventId(UUID.randomUUID());
         compensatePaymentEvent.setAccountId(event.getAccountId());
         compensatePaymentEvent.setAmount(event.getAmount());
         compensatePaymentEvent.setPaymentId(event.getPaymentId());
@@ -240,6 +484,7 @@ public class PaymentAccountService {
 
     private static DebitFailedEvent mapPaymentInitiatedEventToDebitFailedEvent(PaymentInitiatedEvent paymentInitiatedEvent, String errorMsg) {
         DebitFailedEvent debitFailedEvent = new DebitFailedEvent();
+        debitFailedEvent.setEventId(UUID.randomUUID());
         debitFailedEvent.setPaymentId(paymentInitiatedEvent.getPaymentId());
         debitFailedEvent.setReason(errorMsg);
         debitFailedEvent.setAccountId(paymentInitiatedEvent.getSenderAccountId());
@@ -249,6 +494,7 @@ public class PaymentAccountService {
 
     private static CreditFailedEvent mapReceiverCreditRequestEventToCreditFailedEvent(ReceiverCreditRequestEvent receiverCreditRequestEvent, String errorMsg) {
         CreditFailedEvent creditFailedEvent = new CreditFailedEvent();
+        creditFailedEvent.setEventId(UUID.randomUUID());
         creditFailedEvent.setPaymentId(receiverCreditRequestEvent.getPaymentId());
         creditFailedEvent.setReason(errorMsg);
         creditFailedEvent.setAccountId(receiverCreditRequestEvent.getAccountId());
@@ -37,3 +37,170 @@ INSERT INTO account (account_number, user_id, balance, created_at) VALUES
 INSERT INTO account (account_number, user_id, balance, created_at) VALUES
 ('ACC-002-B', 102, 2300.50, CURRENT_TIMESTAMP());
 
+--changeset giampaolo:03-outbox-partition-lease
+ALTER TABLE outbox_event ADD COLUMN aggregate_hash INTEGER NOT NULL DEFAULT 0;
+--rollback ALTER TABLE outbox_event DROP COLUMN aggregate_hash;
+
+-- One row per outbox slice; a slice is published only by the instance currently holding its lease
+CREATE TABLE outbox_lease (
+    partition_no INTEGER PRIMARY KEY,
+    owner VARCHAR(255),
+    lease_until TIMESTAMP WITHOUT TIME ZONE
+);
+--rollback DROP TABLE outbox_lease;
+
+-- Dispatcher instances heartbeat here so slices can be shared fairly between the live ones
+CREATE TABLE outbox_lease_member (
+    owner VARCHAR(255) PRIMARY KEY,
+    lease_until TIMESTAMP WITHOUT TIME ZONE NOT NULL
+);
+--rollback DROP TABLE outbox_lease_member;
+
+--changeset giampaolo:04-outbox-sent-created-at-index dbms:postgresql
+-- Dispatch scans unsent rows by created_at and retention scans old sent rows by created_at; each gets
+-- a partial index so the hot unsent index stays small however many sent rows pile up
+CREATE INDEX idx_outbox_event_unsent_created_at ON outbox_event (created_at) WHERE sent = FALSE;
+CREATE INDEX idx_outbox_event_sent_created_at ON outbox_event (created_at) WHERE sent = TRUE;
+--rollback DROP INDEX idx_outbox_event_unsent_created_at; DROP INDEX idx_outbox_event_sent_created_at;
+
+--changeset giampaolo:04-outbox-sent-created-at-index-h2 dbms:h2
+CREATE INDEX idx_outbox_event_sent_created_at ON outbox_event (sent, created_at);
+--rollback DROP INDEX idx_outbox_event_sent_created_at;
+
+--changeset giampaolo:05-outbox-event-archive
+-- Sent events moved out of outbox_event by retention mode archive. Nothing ever purges them, so the table is not partitioned
+CREATE TABLE outbox_event_archive (
+    id UUID PRIMARY KEY,
+    aggregate_type TEXT NOT NULL,
+    aggregate_id TEXT NOT NULL,
+    type TEXT NOT NULL,
+    payload TEXT NOT NULL,
+    created_at TIMESTAMP WITHOUT TIME ZONE NOT NULL,
+    version INTEGER,
+    aggregate_hash INTEGER,
+    archived_at TIMESTAMP WITHOUT TIME ZONE NOT NULL
+);
+--rollback DROP TABLE outbox_event_archive;
+
+--changeset giampaolo:06-outbox-retry-dead-letter
+-- Failed publishes are retried with exponential backoff; events that run out of attempts are flagged
+-- failed and copied to outbox_event_dead_letter together with their last error
+ALTER TABLE outbox_event ADD COLUMN attempts INTEGER NOT NULL DEFAULT 0;
+ALTER TABLE outbox_event ADD COLUMN next_attempt_at TIMESTAMP WITHOUT TIME ZONE;
+ALTER TABLE outbox_event ADD COLUMN failed BOOLEAN NOT NULL DEFAULT FALSE;
+ALTER TABLE outbox_event ADD COLUMN last_error TEXT;
+--rollback ALTER TABLE outbox_event DROP COLUMN attempts; ALTER TABLE outbox_event DROP COLUMN next_attempt_at; ALTER TABLE outbox_event DROP COLUMN failed; ALTER TABLE outbox_event DROP COLUMN last_error;
+
+CREATE TABLE outbox_event_dead_letter (
+    id UUID PRIMARY KEY,
+    aggregate_type TEXT NOT NULL,
+    aggregate_id TEXT NOT NULL,
+    type TEXT NOT NULL,
+    payload TEXT NOT NULL,
+    created_at TIMESTAMP WITHOUT TIME ZONE NOT NULL,
+    attempts INTEGER NOT NULL,
+    last_error TEXT,
+    failed_at TIMESTAMP WITHOUT TIME ZONE NOT NULL
+);
+--rollback DROP TABLE outbox_event_dead_letter;
+
+--changeset giampaolo:06-outbox-retry-index dbms:postgresql
+-- Failed rows leave the hot unsent index; rows waiting out a backoff get their own small index, looked up
+-- per aggregate to hold back its later events
+DROP INDEX idx_outbox_event_unsent_created_at;
+CREATE INDEX idx_outbox_event_unsent_created_at ON outbox_event (created_at) WHERE sent = FALSE AND failed = FALSE;
+CREATE INDEX idx_outbox_event_backing_off ON outbox_event (aggregate_id, created_at) WHERE sent = FALSE AND next_attempt_at IS NOT NULL;
+--rollback DROP INDEX idx_outbox_event_backing_off; DROP INDEX idx_outbox_event_unsent_created_at; CREATE INDEX idx_outbox_event_unsent_created_at ON outbox_event (created_at) WHERE sent = FALSE;
+
+--changeset giampaolo:06-outbox-retry-index-h2 dbms:h2
+CREATE INDEX idx_outbox_event_aggregate_created_at ON outbox_event (aggregate_id, created_at);
+--rollback DROP INDEX idx_outbox_event_aggregate_created_at;
+
+--changeset giampaolo:07-account-stripes
+-- Hot accounts can opt into spreading their balance over account.stripes sub-rows of account_stripe, so
+-- concurrent debits and credits lock different rows; the account balance is the row plus its stripes
+ALTER TABLE account ADD COLUMN stripes INTEGER NOT NULL DEFAULT 1;
+CREATE TABLE account_stripe (
+    account_number VARCHAR(255) NOT NULL REFERENCES account (account_number) ON DELETE CASCADE,
+    stripe_no INTEGER NOT NULL,
+    balance DECIMAL(19, 2) NOT NULL CHECK (balance >= 0),
+    PRIMARY KEY (account_number, stripe_no)
+);
+--rollback DROP TABLE account_stripe; ALTER TABLE account DROP COLUMN stripes;
+
+--changeset giampaolo:08-ledger-entry
+-- Append-only history of every balance change. The identity id is the ledger's running sequence: snapshots
+-- fold entries up to an id, and a balance is the latest snapshot plus the entries after it. Existing
+-- accounts open the ledger with their current balance.
+CREATE TABLE ledger_entry (
+    id BIGINT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY,
+    account_number VARCHAR(255) NOT NULL,
+    payment_id UUID,
+    amount DECIMAL(19, 2) NOT NULL,
+    created_at TIMESTAMP WITHOUT TIME ZONE NOT NULL
+);
+CREATE INDEX idx_ledger_entry_account_id ON ledger_entry (account_number, id);
+
+CREATE TABLE account_balance_snapshot (
+    account_number VARCHAR(255) NOT NULL,
+    last_entry_id BIGINT NOT NULL,
+    balance DECIMAL(19, 2) NOT NULL,
+    as_of TIMESTAMP WITHOUT TIME ZONE NOT NULL,
+    created_at TIMESTAMP WITHOUT TIME ZONE NOT NULL,
+    PRIMARY KEY (account_number, last_entry_id)
+);
+
+INSERT INTO ledger_entry (account_number, payment_id, amount, created_at)
+SELECT a.account_number, NULL,
+       a.balance + COALESCE((SELECT SUM(s.balance) FROM account_stripe s WHERE s.account_number = a.account_number), 0),
+       COALESCE(a.updated_at, a.created_at, CURRENT_TIMESTAMP)
+FROM account a;
+--rollback DROP TABLE account_balance_snapshot; DROP TABLE ledger_entry;
+
+--changeset giampaolo:09-processed-event-compact dbms:postgresql
+-- The payload becomes optional (dedup.payload = hash keeps a SHA-256 of it, none keeps nothing) and the table
+-- is range partitioned by day on processed_at, so retention drops whole days instead of deleting rows. Day
+-- partitions are created ahead by ProcessedEventRetentionJob; anything else lands in the default one. The
+-- partition key has to be part of the primary key, so no key keeps event_id alone unique: the insert checks
+-- for it with NOT EXISTS, after locking the id with a transaction-scoped advisory lock.
+ALTER TABLE processed_event RENAME TO processed_event_unpartitioned;
+CREATE TABLE processed_event (
+    event_id UUID NOT NULL,
+    event_type VARCHAR(100) NOT NULL,
+    payload TEXT,
+    payload_hash VARCHAR(64),
+    processed_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    PRIMARY KEY (event_id, processed_at)
+) PARTITION BY RANGE (processed_at);
+CREATE TABLE processed_event_default PARTITION OF processed_event DEFAULT;
+CREATE INDEX idx_processed_event_processed_at ON processed_event (processed_at);
+INSERT INTO processed_event (event_id, event_type, payload, processed_at)
+SELECT event_id, event_type, payload, processed_at FROM processed_event_unpartitioned;
+DROP TABLE processed_event_unpartitioned;
+--rollback DROP TABLE processed_event; CREATE TABLE processed_event (event_id UUID PRIMARY KEY, event_type VARCHAR(100) NOT NULL, payload TEXT NOT NULL, processed_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP);
+
+--changeset giampaolo:09-processed-event-compact-h2 dbms:h2
+-- No declarative partitioning here; retention deletes expired days in chunks along the processed_at index
+ALTER TABLE processed_event ALTER COLUMN payload DROP NOT NULL;
+ALTER TABLE processed_event ADD COLUMN payload_hash VARCHAR(64);
+CREATE INDEX idx_processed_event_processed_at ON processed_event (processed_at);
+--rollback DROP INDEX idx_processed_event_processed_at; ALTER TABLE processed_event DROP COLUMN payload_hash;
+
+--changeset giampaolo:11-saga-outcome-indexes dbms:postgresql runInTransaction:false
+-- A redelivered saga command gets its recorded reply re-sent, looked up by payment; the backing-off index only
+-- covers unsent rows. A compensation looks up whether the payment's credit was applied before reversing it.
+CREATE INDEX CONCURRENTLY idx_outbox_event_aggregate_created_at ON outbox_event (aggregate_id, created_at);
+CREATE INDEX CONCURRENTLY idx_ledger_entry_payment_id ON ledger_entry (payment_id);
+--rollback DROP INDEX idx_ledger_entry_payment_id; DROP INDEX idx_outbox_event_aggregate_created_at;
+
+--changeset giampaolo:11-saga-outcome-indexes-h2 dbms:h2
+-- outbox_event is indexed by aggregate since 06-outbox-retry-index-h2
+CREATE INDEX idx_ledger_entry_payment_id ON ledger_entry (payment_id);
+--rollback DROP INDEX idx_ledger_entry_payment_id;
+
+--changeset giampaolo:12-ledger-snapshot-settled-before
+-- A snapshot covers every entry up to last_entry_id whatever its created_at; settled_before is the time before
+-- which every entry is covered, so a balance lookup knows where it may stop reading. Older snapshots fall back
+-- to as_of.
+ALTER TABLE account_balance_snapshot ADD COLUMN settled_before TIMESTAMP WITHOUT TIME ZONE;
+--rollback ALTER TABLE account_balance_snapshot DROP COLUMN settled_before;
@@ -0,0 +1,148 @@
+package com.bank.system.account_service.controller;
+
+import com.bank.system.account_service.AccountServiceApplication;
+import com.bank.system.account_service.config.ConcurrencyLimitedDataSource;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.servlet.context.ServletWebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import javax.sql.DataSource;
+import java.math.BigDecimal;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+
+/**
+ * Starts the service on virtual threads, with the data source behind the db-limit semaphore, and hits
+ * {@code /api/accounts/{accountNumber}/deposit} with far more concurrent callers than there are connections.
+ * Every deposit is a transaction that reads and writes the account more than once, so any of those steps
+ * borrowing a second connection instead of joining the transaction's would leave every permit held by a
+ * caller waiting for another one.
+ */
+class AccountControllerLoadTest {
+
+    private static final Logger log = LoggerFactory.getLogger(AccountControllerLoadTest.class);
+    private static final int CALLERS = 1_000;
+    private static final int REQUESTS_PER_CALLER = 3;
+    private static final int ACCOUNTS = 50;
+
+    @Test
+    void thousandConcurrentDepositsOnVirtualThreads() throws Exception {
+        try (ConfigurableApplicationContext context = start()) {
+            assertInstanceOf(ConcurrencyLimitedDataSource.class, context.getBean(DataSource.class));
+            JdbcTemplate jdbcTemplate = context.getBean(JdbcTemplate.class);
+            for (int i = 0; i < ACCOUNTS; i++) {
+                jdbcTemplate.update("INSERT INTO account (account_number, user_id, balance, created_at, updated_at) VALUES (?, 1, 0, ?, ?)",
+                        "LOAD-" + i, Timestamp.from(Instant.now()), Timestamp.from(Instant.now()));
+            }
+            try {
+                String base = "http://localhost:" + ((ServletWebServerApplicationContext) context).getWebServer().getPort()
+                        + "/api/accounts/";
+                long[] result = fire(base);
+
+                log.info("{} concurrent callers, {} deposits each, on virtual threads: {} requests/s, p99 {} ms, {} failed",
+                        CALLERS, REQUESTS_PER_CALLER, result[0], result[1], result[2]);
+                assertEquals(0, result[2], "every deposit succeeds, the semaphore queues the surplus");
+                assertEquals(0, new BigDecimal(CALLERS * REQUESTS_PER_CALLER).compareTo(jdbcTemplate.queryForObject(
+                        "SELECT SUM(balance) FROM account WHERE account_number LIKE 'LOAD-%'", BigDecimal.class)));
+                ConcurrencyLimitedDataSource limited = (ConcurrencyLimitedDataSource) context.getBean(DataSource.class);
+                assertEquals(0, limited.getWaitingThreads());
+                assertEquals(10, limited.getAvailablePermits(), "every permit is handed back");
+            } finally {
+                jdbcTemplate.update("DELETE FROM account_balance_snapshot WHERE account_number LIKE 'LOAD-%'");
+                jdbcTemplate.update("DELETE FROM ledger_entry WHERE account_number LIKE 'LOAD-%'");
+                jdbcTemplate.update("DELETE FROM account WHERE account_number LIKE 'LOAD-%'");
+            }
+        }
+    }
+
+    private static ConfigurableApplicationContext start() {
+        return new SpringApplicationBuilder(AccountServiceApplication.class).run(
+                "--server.port=0",
+                "--server.tomcat.accept-count=" + CALLERS,
+                "--spring.threads.virtual.enabled=true",
+                // Fail within the test's patience rather than the default 20s, should it ever deadlock again
+                "--execution.db-limit.acquire-timeout=5s",
+                "--spring.kafka.listener.auto-startup=false",
+                "--spring.jmx.enabled=false",
+                "--outbox.dispatcher.enabled=false",
+                "--outbox.retention.enabled=false",
+                "--logging.level.com.bank.system.account_service.service=WARN",
+                "--logging.level.com.bank.system.account_service.controller=WARN",
+                "--logging.level.com.bank.system.account_service.repository=WARN");
+    }
+
+    /**
+     * @return requests per second, the 99th percentile latency in milliseconds and the number of failed requests
+     */
+    private long[] fire(String base) throws InterruptedException {
+        long[] latencies = new long[CALLERS * REQUESTS_PER_CALLER];
+        AtomicInteger failed = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(CALLERS);
+        long started;
+        // Callers are platform threads so they don't compete with the server for the virtual thread carriers
+        try (ExecutorService clients = Executors.newFixedThreadPool(CALLERS);
+             HttpClient http = HttpClient.newBuilder()
+                     .version(HttpClient.Version.HTTP_1_1)
+                     .connectTimeout(Duration.ofSeconds(30))
+                     .build()) {
+            for (int c = 0; c < CALLERS; c++) {
+                int caller = c;
+                clients.submit(() -> {
+                    try {
+                        start.await();
+                        for (int r = 0; r < REQUESTS_PER_CALLER; r++) {
+                            long sent = System.nanoTime();
+                            URI uri = URI.create(base + "LOAD-" + ((caller + r) % ACCOUNTS) + "/deposit");
+                            if (deposit(http, uri) != 200) {
+                                failed.incrementAndGet();
+                            }
+                            latencies[caller * REQUESTS_PER_CALLER + r] = System.nanoTime() - sent;
+                        }
+                    } catch (Exception e) {
+                        failed.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                    return null;
+                });
+            }
+            started = System.nanoTime();
+            start.countDown();
+            done.await();
+        }
+        long elapsed = System.nanoTime() - started;
+        Arrays.sort(latencies);
+        return new long[]{
+                (long) (latencies.length / (elapsed / 1_000_000_000.0)),
+                latencies[(int) Math.ceil(latencies.length * 0.99) - 1] / 1_000_000,
+                failed.get()
+        };
+    }
+
+    private static int deposit(HttpClient http, URI uri) throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(uri)
+                .header("Content-Type", "application/json")
+                .timeout(Duration.ofSeconds(60))
+                .POST(HttpRequest.BodyPublishers.ofString("{\"amount\":1.00}"))
+                .build();
+        return http.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+    }
+}
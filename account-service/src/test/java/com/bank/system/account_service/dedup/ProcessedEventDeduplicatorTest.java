@@ -0,0 +1,185 @@
+package com.bank.system.account_service.dedup;
+
+import com.bank.system.account_service.config.DedupProperties;
+import com.bank.system.account_service.domain.ProcessedEvent;
+import com.bank.system.account_service.repository.ProcessedEventRepository;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+
+@SpringBootTest(properties = {
+        "outbox.dispatcher.enabled=false",
+        "ledger.snapshot.enabled=false"
+})
+class ProcessedEventDeduplicatorTest {
+
+    private static final Logger log = LoggerFactory.getLogger(ProcessedEventDeduplicatorTest.class);
+    private static final String TYPE = "DedupTestEvent";
+
+    @Autowired
+    private ProcessedEventDeduplicator deduplicator;
+
+    @Autowired
+    private ProcessedEventRepository processedEventRepository;
+
+    @Autowired
+    private DedupProperties dedupProperties;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @AfterEach
+    void tearDown() {
+        jdbcTemplate.update("DELETE FROM processed_event WHERE event_type = ?", TYPE);
+    }
+
+    @Test
+    void markProcessedReportsWhetherTheEventIsNew() {
+        ProcessedEvent event = event();
+
+        assertTrue(deduplicator.markProcessed(event));
+        assertFalse(deduplicator.markProcessed(event));
+        assertTrue(deduplicator.isProcessed(event.getEventId()));
+        assertEquals(1, rows());
+    }
+
+    @Test
+    void rolledBackEventIsNewAgain() {
+        ProcessedEvent event = event();
+        transactionTemplate.executeWithoutResult(status -> {
+            assertTrue(deduplicator.markProcessed(event));
+            status.setRollbackOnly();
+        });
+
+        assertFalse(deduplicator.isProcessed(event.getEventId()));
+        assertTrue(deduplicator.markProcessed(event), "the redelivered event is handled");
+    }
+
+    @Test
+    void concurrentDuplicatesAreRecordedOnce() throws Exception {
+        ProcessedEvent event = event();
+        CountDownLatch start = new CountDownLatch(1);
+        List<CompletableFuture<Boolean>> results = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            results.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return deduplicator.markProcessed(event);
+            }));
+        }
+        start.countDown();
+
+        assertEquals(1, results.stream().filter(CompletableFuture::join).count());
+        assertEquals(1, rows());
+    }
+
+    @Test
+    void aRedeliveryOnALaterDayIsStillADuplicate() {
+        ProcessedEvent event = event();
+        assertTrue(deduplicator.markProcessed(event));
+        // Recorded again with a processed_at that would put it in another day partition
+        ProcessedEvent redelivered = new ProcessedEvent(event.getEventId(), TYPE, "{}", event.getProcessedAt().plus(Duration.ofDays(1)));
+        ProcessedEventDeduplicator restarted = new ProcessedEventDeduplicator(processedEventRepository, dedupProperties, new ObjectMapper());
+
+        Boolean isNew = transactionTemplate.execute(status -> restarted.markProcessed(redelivered));
+        assertFalse(isNew);
+        assertEquals(1, rows(), "nothing is recorded a second time");
+    }
+
+    @Test
+    void aBatchHoldingAnEventRecordedMeanwhileRollsBack() {
+        ProcessedEvent recorded = event();
+        ProcessedEvent fresh = event();
+        assertTrue(deduplicator.markProcessed(recorded));
+
+        assertThrows(DuplicateKeyException.class, () -> transactionTemplate.executeWithoutResult(
+                status -> deduplicator.saveAll(List.of(fresh, recorded))));
+
+        assertFalse(deduplicator.isProcessed(fresh.getEventId()), "the whole batch is left for the one-by-one replay");
+        assertTrue(deduplicator.markProcessed(fresh));
+    }
+
+    @Test
+    void newIdsAreAnsweredWithoutALookupAndSeededIdsWithOne() {
+        List<UUID> seeded = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            ProcessedEvent event = event();
+            processedEventRepository.save(event);
+            seeded.add(event.getEventId());
+        }
+        ProcessedEventRepository repository = spy(new ProcessedEventRepository(jdbcTemplate));
+        ProcessedEventDeduplicator restarted = new ProcessedEventDeduplicator(repository, dedupProperties, new ObjectMapper());
+        restarted.load();
+
+        assertFalse(restarted.isProcessed(UUID.randomUUID()));
+        verify(repository, never()).existsById(any());
+        assertTrue(restarted.isProcessed(seeded.get(0)), "seeded from the table, then confirmed by it");
+
+        List<UUID> batch = new ArrayList<>(seeded);
+        batch.add(UUID.randomUUID());
+        assertEquals(Set.copyOf(seeded), restarted.findProcessed(batch));
+    }
+
+    @Test
+    void redeliveriesAreAnsweredFromMemory() {
+        List<UUID> ids = new ArrayList<>();
+        for (int i = 0; i < 2_000; i++) {
+            ProcessedEvent event = event();
+            deduplicator.markProcessed(event);
+            ids.add(event.getEventId());
+        }
+        // Warm both paths up before the clock starts
+        ids.forEach(processedEventRepository::existsById);
+        ids.forEach(deduplicator::isProcessed);
+
+        long started = System.nanoTime();
+        ids.forEach(processedEventRepository::existsById);
+        long table = System.nanoTime() - started;
+        started = System.nanoTime();
+        ids.forEach(deduplicator::isProcessed);
+        long memory = System.nanoTime() - started;
+
+        log.info("{} redelivered ids: {} us per lookup in processed_event, {} us per lookup through the deduplicator",
+                ids.size(), table / 1_000 / ids.size(), memory / 1_000 / ids.size());
+        assertTrue(memory * 5 < table, "recent ids should not go to the table");
+    }
+
+    private ProcessedEvent event() {
+        return new ProcessedEvent(UUID.randomUUID(), TYPE, "{}", Instant.now());
+    }
+
+    private int rows() {
+        return jdbcTemplate.queryForObject("SELECT COUNT(*) FROM processed_event WHERE event_type = ?", Integer.class, TYPE);
+    }
+}
@@ -0,0 +1,65 @@
+package com.bank.system.account_service.dedup;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RollingBloomFilterTest {
+
+    // Seeded, so the false positive counts below are the same on every run
+    private final Random random = new Random(42);
+
+    @Test
+    void everyIdPutWithinTheWindowIsFound() {
+        RollingBloomFilter filter = new RollingBloomFilter(1_000, 0.01);
+        List<UUID> ids = new ArrayList<>();
+        // Spans the current and the previous generation
+        for (int i = 0; i < 1_999; i++) {
+            UUID id = nextId();
+            filter.put(id);
+            ids.add(id);
+        }
+        for (UUID id : ids) {
+            assertTrue(filter.mightContain(id));
+        }
+    }
+
+    @Test
+    void falsePositivesStayNearTheConfiguredRate() {
+        RollingBloomFilter filter = new RollingBloomFilter(10_000, 0.01);
+        for (int i = 0; i < 9_999; i++) {
+            filter.put(nextId());
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 100_000; i++) {
+            if (filter.mightContain(nextId())) {
+                falsePositives++;
+            }
+        }
+        assertTrue(falsePositives < 2_000, "expected about 1% false positives, got " + falsePositives + " in 100000");
+    }
+
+    @Test
+    void idsRollOutAfterTwoGenerations() {
+        RollingBloomFilter filter = new RollingBloomFilter(100, 0.001);
+        UUID first = nextId();
+        filter.put(first);
+        for (int i = 0; i < 198; i++) {
+            filter.put(nextId());
+        }
+        assertTrue(filter.mightContain(first), "still in the previous generation");
+
+        filter.put(nextId());
+        assertFalse(filter.mightContain(first), "dropped with its generation");
+    }
+
+    private UUID nextId() {
+        return new UUID(random.nextLong(), random.nextLong());
+    }
+}
@@ -0,0 +1,209 @@
+package com.bank.system.account_service.jobs;
+
+import com.bank.system.account_service.config.LedgerProperties;
+import com.bank.system.account_service.domain.Account;
+import com.bank.system.account_service.repository.LedgerEntryRepository;
+import com.bank.system.account_service.service.AccountService;
+import com.bank.system.account_service.service.PaymentAccountService;
+import com.bank.system.dtos.dto.PaymentInitiatedEvent;
+import com.bank.system.dtos.dto.ReceiverCreditRequestEvent;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(properties = {
+        "outbox.dispatcher.enabled=false",
+        "ledger.snapshot.enabled=false",
+        "ledger.snapshot.every=5",
+        "ledger.snapshot.settle-time=0s"
+})
+class LedgerSnapshotJobTest {
+
+    @Autowired
+    private LedgerSnapshotJob snapshotJob;
+
+    @Autowired
+    private LedgerEntryRepository ledgerEntryRepository;
+
+    @Autowired
+    private AccountService accountService;
+
+    @Autowired
+    private PaymentAccountService paymentAccountService;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @AfterEach
+    void tearDown() {
+        jdbcTemplate.update("DELETE FROM account_balance_snapshot WHERE account_number LIKE 'SNAP-%'");
+        jdbcTemplate.update("DELETE FROM ledger_entry WHERE account_number LIKE 'SNAP-%'");
+        jdbcTemplate.update("DELETE FROM account WHERE account_number LIKE 'SNAP-%'");
+    }
+
+    @Test
+    void entriesAreFoldedIntoASnapshotEveryNEntries() {
+        String account = open(new BigDecimal("100.00"));
+        for (int i = 0; i < 3; i++) {
+            accountService.deposit(account, new BigDecimal("10.00"));
+        }
+        snapshotJob.snapshot();
+        assertEquals(0, snapshots(account), "four entries are short of a snapshot");
+
+        accountService.withdraw(account, new BigDecimal("5.50"));
+        snapshotJob.snapshot();
+        assertEquals(1, snapshots(account));
+        snapshotJob.snapshot();
+        assertEquals(1, snapshots(account), "nothing new to fold");
+
+        for (int i = 0; i < 5; i++) {
+            accountService.deposit(account, new BigDecimal("1.00"));
+        }
+        assertTrue(snapshotJob.snapshot() >= 1);
+        assertEquals(2, snapshots(account));
+        assertEquals(0, new BigDecimal("129.50").compareTo(latestSnapshotBalance(account)));
+        assertEquals(0, tableBalance(account).compareTo(ledgerEntryRepository.balanceAt(account, Instant.now()).orElseThrow()));
+    }
+
+    @Test
+    void balanceAtAPointInTimeIgnoresLaterEntries() throws Exception {
+        String account = open(new BigDecimal("50.00"));
+        for (int i = 0; i < 6; i++) {
+            accountService.deposit(account, new BigDecimal("2.00"));
+        }
+        Thread.sleep(5);
+        Instant between = Instant.now();
+        Thread.sleep(5);
+        for (int i = 0; i < 6; i++) {
+            accountService.withdraw(account, new BigDecimal("3.00"));
+        }
+
+        assertEquals(0, new BigDecimal("62.00").compareTo(ledgerEntryRepository.balanceAt(account, between).orElseThrow()));
+        snapshotJob.snapshot();
+        assertEquals(1, snapshots(account));
+        assertEquals(0, new BigDecimal("62.00").compareTo(ledgerEntryRepository.balanceAt(account, between).orElseThrow()),
+                "a snapshot taken after the point in time is not used for it");
+        assertEquals(0, new BigDecimal("44.00").compareTo(ledgerEntryRepository.balanceAt(account, Instant.now()).orElseThrow()));
+        assertTrue(ledgerEntryRepository.balanceAt(account, Instant.EPOCH).isEmpty());
+    }
+
+    @Test
+    void anEntryWithALowerIdButALaterTimestampIsStillFolded() {
+        String account = "SNAP-" + UUID.randomUUID();
+        // Written by an instance whose clock runs a minute ahead, before the five below
+        insertEntry(account, "7.00", Instant.now().plusSeconds(60));
+        for (int i = 0; i < 5; i++) {
+            insertEntry(account, "1.00", Instant.now());
+        }
+
+        snapshotJob.snapshot();
+
+        assertEquals(1, snapshots(account));
+        assertEquals(0, new BigDecimal("12.00").compareTo(latestSnapshotBalance(account)));
+        assertEquals(0, new BigDecimal("12.00").compareTo(
+                ledgerEntryRepository.balanceAt(account, Instant.now().plusSeconds(120)).orElseThrow()));
+        assertEquals(0, new BigDecimal("5.00").compareTo(ledgerEntryRepository.balanceAt(account, Instant.now()).orElseThrow()),
+                "the early-stamped entry only counts from its own timestamp");
+    }
+
+    @Test
+    void anEntryCommittedAfterHigherIdsIsNotSkipped() throws Exception {
+        LedgerProperties properties = new LedgerProperties();
+        properties.getSnapshot().setEvery(5);
+        properties.getSnapshot().setSettleTime(Duration.ofMillis(300));
+        LedgerSnapshotJob job = new LedgerSnapshotJob(ledgerEntryRepository, properties);
+        String account = "SNAP-" + UUID.randomUUID();
+        CountDownLatch inserted = new CountDownLatch(1);
+        CountDownLatch commit = new CountDownLatch(1);
+
+        CompletableFuture<Void> slowTransaction = CompletableFuture.runAsync(() -> new TransactionTemplate(transactionManager)
+                .executeWithoutResult(status -> {
+                    ledgerEntryRepository.append(account, null, new BigDecimal("7.00"));
+                    inserted.countDown();
+                    try {
+                        commit.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }));
+        assertTrue(inserted.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 5; i++) {
+            ledgerEntryRepository.append(account, null, new BigDecimal("1.00"));
+        }
+
+        assertEquals(0, job.snapshot(), "the ids committed so far have not settled yet");
+        commit.countDown();
+        slowTransaction.get(5, TimeUnit.SECONDS);
+        Thread.sleep(350);
+        assertEquals(1, job.snapshot());
+
+        assertEquals(0, new BigDecimal("12.00").compareTo(latestSnapshotBalance(account)));
+        assertEquals(0, new BigDecimal("12.00").compareTo(ledgerEntryRepository.balanceAt(account, Instant.now()).orElseThrow()));
+    }
+
+    @Test
+    void paymentDebitsAndCreditsAreRecorded() {
+        String sender = open(new BigDecimal("80.00"));
+        String receiver = open(new BigDecimal("0.00"));
+        UUID paymentId = UUID.randomUUID();
+
+        PaymentInitiatedEvent initiated = new PaymentInitiatedEvent(paymentId, sender, receiver, new BigDecimal("30.00"), "EUR", "key", Instant.now());
+        initiated.setEventId(UUID.randomUUID());
+        ReceiverCreditRequestEvent creditRequest = new ReceiverCreditRequestEvent(paymentId, receiver, new BigDecimal("30.00"), "EUR", Instant.now());
+        creditRequest.setEventId(UUID.randomUUID());
+        assertTrue(paymentAccountService.handlePaymentInitiatedEvent(initiated));
+        paymentAccountService.handlePaymentInitiatedEvent(initiated);
+        paymentAccountService.handleReceiverCreditRequestEvent(creditRequest);
+
+        assertEquals(1, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM ledger_entry WHERE payment_id = ? AND account_number = ?",
+                Integer.class, paymentId, sender), "a redelivered event writes no second entry");
+        assertEquals(0, tableBalance(sender).compareTo(ledgerEntryRepository.balanceAt(sender, Instant.now()).orElseThrow()));
+        assertEquals(0, tableBalance(receiver).compareTo(ledgerEntryRepository.balanceAt(receiver, Instant.now()).orElseThrow()));
+    }
+
+    private String open(BigDecimal balance) {
+        Account account = new Account();
+        account.setAccountNumber("SNAP-" + UUID.randomUUID());
+        account.setUserId(1L);
+        account.setBalance(balance);
+        return accountService.createAccount(account).getAccountNumber();
+    }
+
+    private void insertEntry(String accountNumber, String amount, Instant createdAt) {
+        jdbcTemplate.update("INSERT INTO ledger_entry (account_number, amount, created_at) VALUES (?, ?, ?)",
+                accountNumber, new BigDecimal(amount), Timestamp.from(createdAt));
+    }
+
+    private int snapshots(String accountNumber) {
+        return jdbcTemplate.queryForObject("SELECT COUNT(*) FROM account_balance_snapshot WHERE account_number = ?",
+                Integer.class, accountNumber);
+    }
+
+    private BigDecimal latestSnapshotBalance(String accountNumber) {
+        return jdbcTemplate.queryForObject("SELECT balance FROM account_balance_snapshot WHERE account_number = ? "
+                + "ORDER BY last_entry_id DESC LIMIT 1", BigDecimal.class, accountNumber);
+    }
+
+    private BigDecimal tableBalance(String accountNumber) {
+        return jdbcTemplate.queryForObject("SELECT balance FROM account WHERE account_number = ?", BigDecimal.class, accountNumber);
+    }
+}
@@ -0,0 +1,119 @@
+package com.bank.system.account_service.jobs;
+
+import com.bank.system.account_service.config.OutboxProperties;
+import com.bank.system.account_service.domain.OutboxEvent;
+import com.bank.system.account_service.kafka.AccountProducer;
+import com.bank.system.account_service.metrics.OutboxMetrics;
+import com.bank.system.account_service.repository.OutboxEventRepository;
+import com.bank.system.account_service.service.OutboxLeaseService;
+import com.bank.system.account_service.service.OutboxRetryService;
+import com.bank.system.dtos.dto.SenderDebitedEvent;
+import com.bank.system.dtos.outbox.OutboxEventCodecRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.bank.system.account_service.service.AccountTransactionalService.SENDER_DEBITED_EVENT;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * The housekeeping jobs share Spring's scheduler and may each run for up to their max-run-time; the
+ * dispatcher must keep publishing while they do.
+ */
+@SpringBootTest(properties = "outbox.dispatcher.enabled=false")
+class OutboxDispatcherSchedulingTest {
+
+    @Autowired
+    private OutboxEventRepository outboxEventRepository;
+
+    @Autowired
+    private OutboxEventCodecRegistry codecRegistry;
+
+    @Autowired
+    private OutboxLeaseService leaseService;
+
+    @Autowired
+    private OutboxLanePublisher lanePublisher;
+
+    @Autowired
+    private OutboxMetrics outboxMetrics;
+
+    @Autowired
+    private OutboxRetryService retryService;
+
+    @Autowired
+    private ThreadPoolTaskScheduler taskScheduler;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    private final CountDownLatch retentionFinished = new CountDownLatch(1);
+
+    @AfterEach
+    void tearDown() {
+        retentionFinished.countDown();
+        jdbcTemplate.update("DELETE FROM outbox_event");
+    }
+
+    @Test
+    void aWakeUpIsNotDelayedByALongRetentionRun() throws Exception {
+        // Every thread of the shared scheduler is busy, as if each housekeeping job were mid-run
+        CountDownLatch busy = new CountDownLatch(taskScheduler.getPoolSize());
+        for (int i = 0; i < taskScheduler.getPoolSize(); i++) {
+            taskScheduler.schedule(() -> {
+                busy.countDown();
+                try {
+                    retentionFinished.await(30, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, Instant.now());
+        }
+        assertTrue(busy.await(5, TimeUnit.SECONDS));
+
+        CountDownLatch published = new CountDownLatch(1);
+        OutboxEventDispatcherJob dispatcher = dispatcher(published);
+        try {
+            UUID paymentId = UUID.randomUUID();
+            SenderDebitedEvent event = new SenderDebitedEvent(paymentId, "ACC-001-A", BigDecimal.ONE, "EUR", Instant.now());
+            outboxEventRepository.save(new OutboxEvent(null, "Payment", paymentId, SENDER_DEBITED_EVENT,
+                    objectMapper.writeValueAsString(event), Instant.now(), false));
+
+            dispatcher.wakeUp();
+
+            assertTrue(published.await(2, TimeUnit.SECONDS), "the wake-up runs while the shared scheduler is busy");
+        } finally {
+            dispatcher.shutdown();
+        }
+    }
+
+    private OutboxEventDispatcherJob dispatcher(CountDownLatch published) {
+        OutboxProperties properties = new OutboxProperties();
+        properties.getDispatcher().setEnabled(true);
+        properties.getDispatcher().setWakeUpOnCommit(true);
+        AccountProducer producer = mock(AccountProducer.class);
+        when(producer.sendRaw(any(), any(), any())).thenAnswer(invocation -> {
+            published.countDown();
+            return CompletableFuture.completedFuture(null);
+        });
+        return new OutboxEventDispatcherJob(outboxEventRepository, codecRegistry, producer, properties,
+                leaseService, lanePublisher, outboxMetrics, retryService);
+    }
+}
@@ -0,0 +1,65 @@
+package com.bank.system.account_service.jobs;
+
+import com.bank.system.account_service.kafka.AccountProducer;
+import com.bank.system.account_service.service.AccountTransactionalService;
+import com.bank.system.dtos.dto.SenderDebitedEvent;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.bean.override.mockito.MockitoBean;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+// Polling is pushed out to a minute so only the after-commit wake-up can publish within the test
+@SpringBootTest(properties = {
+        "outbox.dispatcher.min-interval=1m",
+        "outbox.dispatcher.max-interval=1m"
+})
+class OutboxEventDispatcherWakeUpTest {
+
+    @Autowired
+    private AccountTransactionalService accountTransactionalService;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @MockitoBean
+    private AccountProducer accountProducer;
+
+    @BeforeEach
+    void setUp() {
+        jdbcTemplate.update("DELETE FROM outbox_event");
+        when(accountProducer.sendRaw(any(), any(), any())).thenReturn(CompletableFuture.completedFuture(null));
+    }
+
+    @Test
+    void publishesAsSoonAsTheOutboxTransactionCommits() throws InterruptedException {
+        SenderDebitedEvent event = new SenderDebitedEvent(UUID.randomUUID(), "ACC-001-A", BigDecimal.TEN, "EUR", Instant.now());
+
+        accountTransactionalService.sendSenderDebitedEvent(event);
+
+        verify(accountProducer, timeout(2_000)).sendRaw(any(), any(), any());
+        assertEquals(1, awaitSentCount(1));
+    }
+
+    private int awaitSentCount(int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2_000;
+        int sent;
+        while ((sent = jdbcTemplate.queryForObject("SELECT COUNT(*) FROM outbox_event WHERE sent = TRUE", Integer.class)) < expected
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        return sent;
+    }
+}
@@ -0,0 +1,169 @@
+package com.bank.system.account_service.jobs;
+
+import com.bank.system.account_service.domain.OutboxEvent;
+import com.bank.system.account_service.repository.OutboxEventRepository;
+import com.bank.system.dtos.dto.SenderDebitedEvent;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.kafka.core.DefaultKafkaConsumerFactory;
+import org.springframework.kafka.test.EmbeddedKafkaBroker;
+import org.springframework.kafka.test.context.EmbeddedKafka;
+import org.springframework.kafka.test.utils.KafkaTestUtils;
+import org.springframework.test.context.bean.override.mockito.MockitoSpyBean;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static com.bank.system.account_service.service.AccountTransactionalService.SENDER_DEBITED_EVENT;
+import static com.bank.system.dtos.outbox.OutboxEventCodecRegistry.SENDER_DEBITED_TOPIC;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doCallRealMethod;
+import static org.mockito.Mockito.doThrow;
+
+@SpringBootTest(properties = {
+        "spring.kafka.bootstrap-servers=${spring.embedded.kafka.brokers}",
+        "outbox.dispatcher.enabled=false",
+        "outbox.dispatcher.delivery=exactly-once",
+        "outbox.retention.enabled=false"
+})
+@EmbeddedKafka(partitions = 1, topics = SENDER_DEBITED_TOPIC, brokerProperties = {
+        "transaction.state.log.replication.factor=1",
+        "transaction.state.log.min.isr=1"
+})
+class OutboxExactlyOnceDispatchTest {
+
+    private static final int EVENTS = 50;
+
+    @Autowired
+    private OutboxEventDispatcherJob dispatcherJob;
+
+    @MockitoSpyBean
+    private OutboxEventRepository outboxEventRepository;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private EmbeddedKafkaBroker embeddedKafka;
+
+    private Consumer<String, String> consumer;
+
+    @BeforeEach
+    void setUp() {
+        clearTables();
+        Map<String, Object> props = KafkaTestUtils.consumerProps("outbox-exactly-once-test", "false", embeddedKafka);
+        props.put(ConsumerConfig.ISOLATION_LEVEL_CONFIG, "read_committed");
+        consumer = new DefaultKafkaConsumerFactory<>(props, new StringDeserializer(), new StringDeserializer()).createConsumer();
+        embeddedKafka.consumeFromAnEmbeddedTopic(consumer, SENDER_DEBITED_TOPIC);
+        // Skip whatever earlier tests left on the topic
+        consumer.seekToEnd(consumer.assignment());
+        consumer.assignment().forEach(consumer::position);
+    }
+
+    @AfterEach
+    void tearDown() {
+        consumer.close();
+        clearTables();
+    }
+
+    @Test
+    void committedBatchIsPublishedOnceAndMarkedAsSent() throws Exception {
+        List<String> paymentIds = new ArrayList<>();
+        for (int i = 0; i < EVENTS; i++) {
+            paymentIds.add(save(payload(UUID.randomUUID())).toString());
+        }
+        save("NoSuchEvent", UUID.randomUUID(), "{}");
+
+        dispatcherJob.dispatchEvents();
+
+        List<String> keys = new ArrayList<>();
+        for (ConsumerRecord<String, String> record : poll(EVENTS)) {
+            keys.add(record.key());
+        }
+        assertEquals(paymentIds, keys);
+        assertEquals(EVENTS, count("sent = TRUE"));
+        assertEquals(1, count("sent = FALSE AND attempts = 1"), "the poison event stays out of the transaction");
+    }
+
+    @Test
+    void abortedTransactionIsNeitherVisibleNorMarked() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            save(payload(UUID.randomUUID()));
+        }
+        // Larger than max.request.size, so the transaction it belongs to cannot commit
+        save(SENDER_DEBITED_EVENT, UUID.randomUUID(), "{\"padding\":\"" + "x".repeat(2 * 1024 * 1024) + "\"}");
+
+        dispatcherJob.dispatchEvents();
+
+        assertEquals(0, poll(1).count());
+        assertEquals(0, count("sent = TRUE"));
+        assertEquals(6, count("sent = FALSE AND attempts = 1"));
+    }
+
+    @Test
+    void committedBatchWhoseRowsCannotBeMarkedIsMarkedLaterWithoutRepublishing() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            save(payload(UUID.randomUUID()));
+        }
+        doThrow(new IllegalStateException("database unavailable")).doCallRealMethod()
+                .when(outboxEventRepository).markAllAsSent(any());
+
+        dispatcherJob.dispatchEvents();
+
+        assertEquals(5, poll(5).count());
+        assertEquals(5, count("sent = FALSE AND attempts = 0"), "a failed mark is no failed publish");
+
+        dispatcherJob.dispatchEvents();
+
+        assertEquals(5, count("sent = TRUE"));
+        assertEquals(0, poll(1).count(), "the delivered events are not published again");
+    }
+
+    private ConsumerRecords<String, String> poll(int minRecords) {
+        return KafkaTestUtils.getRecords(consumer, Duration.ofSeconds(5), minRecords);
+    }
+
+    private UUID save(String payload) throws Exception {
+        UUID paymentId = objectMapper.readValue(payload, SenderDebitedEvent.class).getPaymentId();
+        save(SENDER_DEBITED_EVENT, paymentId, payload);
+        return paymentId;
+    }
+
+    private void save(String type, UUID aggregateId, String payload) {
+        outboxEventRepository.save(new OutboxEvent(null, "Payment", aggregateId, type, payload, null, false));
+    }
+
+    private String payload(UUID paymentId) throws Exception {
+        SenderDebitedEvent event = new SenderDebitedEvent(paymentId, "ACC-001-A", BigDecimal.TEN, "EUR", Instant.now());
+        event.setEventId(UUID.randomUUID());
+        return objectMapper.writeValueAsString(event);
+    }
+
+    private int count(String condition) {
+        return jdbcTemplate.queryForObject("SELECT COUNT(*) FROM outbox_event WHERE " + condition, Integer.class);
+    }
+
+    private void clearTables() {
+        jdbcTemplate.update("DELETE FROM outbox_event");
+        jdbcTemplate.update("DELETE FROM outbox_event_dead_letter");
+    }
+}
@@ -0,0 +1,204 @@
+package com.bank.system.account_service.jobs;
+
+import com.bank.system.account_service.config.OutboxProperties;
+import com.bank.system.account_service.domain.OutboxEvent;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OutboxLanePublisherTest {
+
+    private static final Logger log = LoggerFactory.getLogger(OutboxLanePublisherTest.class);
+
+    private final List<OutboxLanePublisher> publishers = new ArrayList<>();
+
+    @AfterEach
+    void tearDown() {
+        publishers.forEach(OutboxLanePublisher::shutdown);
+    }
+
+    @Test
+    void keepsEachPaymentInOrderWhilePublishingPaymentsConcurrently() throws Exception {
+        List<OutboxEvent> events = interleavedEvents(16, 25);
+
+        Duration singleLane = publishAndVerifyOrder(publisher(1), events);
+        Duration fourLanes = publishAndVerifyOrder(publisher(4), events);
+
+        log.info("Outbox lane throughput for {} sends of 1ms: 1 lane {} ms, 4 lanes {} ms",
+                events.size(), singleLane.toMillis(), fourLanes.toMillis());
+        assertTrue(fourLanes.multipliedBy(2).compareTo(singleLane) < 0, "four lanes should be at least twice as fast as one");
+    }
+
+    @Test
+    void laterEventsOfAFailedPaymentDoNotOvertakeIt() {
+        UUID failing = UUID.randomUUID();
+        UUID healthy = UUID.randomUUID();
+        List<OutboxEvent> events = List.of(event(failing, 0), event(healthy, 0), event(failing, 1), event(healthy, 1));
+        List<OutboxEvent> sent = Collections.synchronizedList(new ArrayList<>());
+
+        List<CompletableFuture<?>> acks = publisher(2).publish(events, event -> {
+            if (event.getAggregateId().equals(failing) && event.getPayload().equals("0")) {
+                return CompletableFuture.failedFuture(new IllegalStateException("broker unavailable"));
+            }
+            sent.add(event);
+            return CompletableFuture.completedFuture(null);
+        });
+        CompletableFuture.allOf(acks.toArray(CompletableFuture[]::new)).exceptionally(ex -> null).join();
+
+        assertTrue(acks.get(0).isCompletedExceptionally());
+        assertTrue(acks.get(2).isCompletedExceptionally(), "second event of the failed payment must not be sent");
+        assertEquals(List.of(events.get(1), events.get(3)), sent);
+    }
+
+    @Test
+    void aLaterEventWaitsForTheAckOfTheOneBeforeIt() throws Exception {
+        UUID paymentId = UUID.randomUUID();
+        List<OutboxEvent> events = List.of(event(paymentId, 0), event(paymentId, 1));
+        List<OutboxEvent> sent = Collections.synchronizedList(new ArrayList<>());
+        CompletableFuture<Object> firstAck = new CompletableFuture<>();
+
+        List<CompletableFuture<?>> acks = publisher(2).publish(events, event -> {
+            sent.add(event);
+            return event == events.get(0) ? firstAck : CompletableFuture.completedFuture(null);
+        });
+        Thread.sleep(100);
+
+        assertEquals(List.of(events.get(0)), sent, "the second event is held while the first is unacknowledged");
+        assertFalse(acks.get(1).isDone());
+        firstAck.complete(null);
+        CompletableFuture.allOf(acks.toArray(CompletableFuture[]::new)).get(5, TimeUnit.SECONDS);
+        assertEquals(events, sent);
+    }
+
+    @Test
+    void aLaterEventIsFailedWhenTheOneBeforeItFailsLate() throws Exception {
+        UUID paymentId = UUID.randomUUID();
+        List<OutboxEvent> events = List.of(event(paymentId, 0), event(paymentId, 1));
+        List<OutboxEvent> sent = Collections.synchronizedList(new ArrayList<>());
+        CompletableFuture<Object> firstAck = new CompletableFuture<>();
+
+        List<CompletableFuture<?>> acks = publisher(2).publish(events, event -> {
+            sent.add(event);
+            return event == events.get(0) ? firstAck : CompletableFuture.completedFuture(null);
+        });
+        Thread.sleep(100);
+        firstAck.completeExceptionally(new IllegalStateException("delivery timed out"));
+
+        ExecutionException failure = assertThrows(ExecutionException.class, () -> acks.get(1).get(5, TimeUnit.SECONDS));
+        assertTrue(failure.getCause().getMessage().contains("was not published"));
+        assertEquals(List.of(events.get(0)), sent);
+    }
+
+    @Test
+    void reportsTheBacklogOfEachLane() throws Exception {
+        OutboxLanePublisher publisher = publisher(2);
+        List<UUID> paymentIds = paymentsOnOneLane(3, 2);
+        int lane = Math.floorMod(paymentIds.get(0).hashCode(), 2);
+        CountDownLatch release = new CountDownLatch(1);
+
+        List<CompletableFuture<?>> acks = publisher.publish(
+                List.of(event(paymentIds.get(0), 0), event(paymentIds.get(1), 0), event(paymentIds.get(2), 0)),
+                event -> {
+                    release.await(5, TimeUnit.SECONDS);
+                    return CompletableFuture.completedFuture(null);
+                });
+
+        assertEquals(3, publisher.getBacklog(lane));
+        assertEquals(0, publisher.getBacklog(1 - lane));
+        release.countDown();
+        CompletableFuture.allOf(acks.toArray(CompletableFuture[]::new)).get(5, TimeUnit.SECONDS);
+        long deadline = System.currentTimeMillis() + 2_000;
+        while (publisher.getBacklog(lane) > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(List.of(0, 0), publisher.getBacklogs());
+    }
+
+    private Duration publishAndVerifyOrder(OutboxLanePublisher publisher, List<OutboxEvent> events) throws Exception {
+        List<OutboxEvent> sent = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+
+        long start = System.nanoTime();
+        List<CompletableFuture<?>> acks = publisher.publish(events, event -> {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            Thread.sleep(1);
+            sent.add(event);
+            inFlight.decrementAndGet();
+            return CompletableFuture.completedFuture(null);
+        });
+        CompletableFuture.allOf(acks.toArray(CompletableFuture[]::new)).get(30, TimeUnit.SECONDS);
+        Duration elapsed = Duration.ofNanos(System.nanoTime() - start);
+
+        assertEquals(events.size(), sent.size());
+        Map<UUID, Integer> lastSequence = new HashMap<>();
+        for (OutboxEvent event : sent) {
+            int sequence = Integer.parseInt(event.getPayload());
+            assertEquals(lastSequence.getOrDefault(event.getAggregateId(), -1) + 1, sequence);
+            lastSequence.put(event.getAggregateId(), sequence);
+        }
+        assertTrue(maxInFlight.get() <= publisher.getLaneCount());
+        return elapsed;
+    }
+
+    private OutboxLanePublisher publisher(int lanes) {
+        OutboxProperties properties = new OutboxProperties();
+        properties.getPublisher().setLanes(lanes);
+        properties.getPublisher().setQueueDepth(50);
+        OutboxLanePublisher publisher = new OutboxLanePublisher(properties);
+        publishers.add(publisher);
+        return publisher;
+    }
+
+    private static List<OutboxEvent> interleavedEvents(int payments, int eventsPerPayment) {
+        List<UUID> paymentIds = new ArrayList<>();
+        for (int i = 0; i < payments; i++) {
+            paymentIds.add(UUID.randomUUID());
+        }
+        List<OutboxEvent> events = new ArrayList<>();
+        for (int sequence = 0; sequence < eventsPerPayment; sequence++) {
+            for (UUID paymentId : paymentIds) {
+                events.add(event(paymentId, sequence));
+            }
+        }
+        return events;
+    }
+
+    private static List<UUID> paymentsOnOneLane(int payments, int lanes) {
+        UUID first = UUID.randomUUID();
+        List<UUID> paymentIds = new ArrayList<>(List.of(first));
+        while (paymentIds.size() < payments) {
+            UUID candidate = UUID.randomUUID();
+            if (Math.floorMod(candidate.hashCode(), lanes) == Math.floorMod(first.hashCode(), lanes)) {
+                paymentIds.add(candidate);
+            }
+        }
+        return paymentIds;
+    }
+
+    // The payload carries the per-payment sequence number
+    private static OutboxEvent event(UUID paymentId, int sequence) {
+        return new OutboxEvent(UUID.randomUUID(), "Payment", paymentId, "SenderDebitedEvent",
+                String.valueOf(sequence), Instant.now(), false);
+    }
+}
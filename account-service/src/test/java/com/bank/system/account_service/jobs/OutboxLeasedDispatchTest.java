@@ -0,0 +1,204 @@
+package com.bank.system.account_service.jobs;
+
+import com.bank.system.account_service.config.OutboxProperties;
+import com.bank.system.account_service.domain.OutboxEvent;
+import com.bank.system.account_service.kafka.AccountProducer;
+import com.bank.system.account_service.metrics.OutboxMetrics;
+import com.bank.system.account_service.repository.OutboxEventRepository;
+import com.bank.system.account_service.repository.OutboxLeaseRepository;
+import com.bank.system.account_service.service.OutboxLeaseService;
+import com.bank.system.account_service.service.OutboxRetryService;
+import com.bank.system.dtos.dto.SenderDebitedEvent;
+import com.bank.system.dtos.outbox.OutboxEventCodecRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.bank.system.account_service.service.AccountTransactionalService.SENDER_DEBITED_EVENT;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@SpringBootTest(properties = "outbox.dispatcher.enabled=false")
+class OutboxLeasedDispatchTest {
+
+    private static final int PARTITIONS = 8;
+    private static final int AGGREGATES = 40;
+    private static final int EVENTS_PER_AGGREGATE = 25;
+
+    @Autowired
+    private OutboxEventRepository outboxEventRepository;
+
+    @Autowired
+    private OutboxLeaseRepository outboxLeaseRepository;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private OutboxEventCodecRegistry codecRegistry;
+
+    @Autowired
+    private OutboxLanePublisher lanePublisher;
+
+    @Autowired
+    private OutboxMetrics outboxMetrics;
+
+    @Autowired
+    private OutboxRetryService retryService;
+
+    // Every send of both instances, in the order the producer saw them
+    private final List<SenderDebitedEvent> published = Collections.synchronizedList(new ArrayList<>());
+
+    @BeforeEach
+    void setUp() {
+        clearTables();
+    }
+
+    @AfterEach
+    void tearDown() {
+        clearTables();
+    }
+
+    @Test
+    void twoInstancesShareThePartitionsWithoutDuplicatesAndKeepAggregateOrder() throws Exception {
+        Map<UUID, Integer> expectedCounts = insertEvents();
+        OutboxLeaseService leasesA = leaseService("instance-a", Duration.ofMinutes(1));
+        OutboxLeaseService leasesB = leaseService("instance-b", Duration.ofMinutes(1));
+
+        // A starts alone and takes everything, then hands half over once B has joined
+        assertEquals(PARTITIONS, leasesA.rebalance().size());
+        assertEquals(0, leasesB.rebalance().size());
+        List<Integer> partitionsA = leasesA.rebalance();
+        List<Integer> partitionsB = leasesB.rebalance();
+        assertEquals(PARTITIONS / 2, partitionsA.size());
+        assertEquals(PARTITIONS / 2, partitionsB.size());
+        Set<Integer> all = new HashSet<>(partitionsA);
+        all.addAll(partitionsB);
+        assertEquals(PARTITIONS, all.size());
+
+        AtomicInteger sentByA = new AtomicInteger();
+        AtomicInteger sentByB = new AtomicInteger();
+        OutboxEventDispatcherJob dispatcherA = dispatcher(leasesA, sentByA);
+        OutboxEventDispatcherJob dispatcherB = dispatcher(leasesB, sentByB);
+        try {
+            CompletableFuture.allOf(
+                    CompletableFuture.runAsync(() -> dispatchUntilDrained(dispatcherA)),
+                    CompletableFuture.runAsync(() -> dispatchUntilDrained(dispatcherB))
+            ).get();
+        } finally {
+            dispatcherA.shutdown();
+            dispatcherB.shutdown();
+        }
+
+        int total = AGGREGATES * EVENTS_PER_AGGREGATE;
+        assertEquals(total, published.size(), "every event is published exactly once");
+        assertEquals(total, sentByA.get() + sentByB.get());
+        assertTrue(sentByA.get() > 0 && sentByB.get() > 0, "both instances take part in publishing");
+        assertEquals(total, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM outbox_event WHERE sent = TRUE", Integer.class));
+
+        Map<UUID, Integer> lastSequence = new HashMap<>();
+        for (SenderDebitedEvent event : published) {
+            int sequence = event.getDebitedAmount().intValueExact();
+            int previous = lastSequence.getOrDefault(event.getPaymentId(), -1);
+            assertEquals(previous + 1, sequence, "events of payment " + event.getPaymentId() + " are published in order");
+            lastSequence.put(event.getPaymentId(), sequence);
+        }
+        expectedCounts.forEach((paymentId, count) -> assertEquals(count - 1, lastSequence.get(paymentId)));
+    }
+
+    @Test
+    void partitionsOfAStoppedInstanceAreTakenOverOnceItsLeaseExpires() throws Exception {
+        OutboxLeaseService leasesA = leaseService("instance-a", Duration.ofMillis(200));
+        OutboxLeaseService leasesB = leaseService("instance-b", Duration.ofMillis(200));
+
+        assertEquals(PARTITIONS, leasesA.rebalance().size());
+        assertEquals(0, leasesB.rebalance().size());
+
+        // A stops renewing without releasing anything
+        Thread.sleep(300);
+
+        assertEquals(PARTITIONS, leasesB.rebalance().size());
+        assertFalse(leasesA.extend(0), "an expired lease cannot be extended once it has been taken over");
+    }
+
+    private OutboxLeaseService leaseService(String ownerId, Duration duration) {
+        OutboxProperties properties = new OutboxProperties();
+        properties.getLease().setEnabled(true);
+        properties.getLease().setOwnerId(ownerId);
+        properties.getLease().setPartitions(PARTITIONS);
+        properties.getLease().setDuration(duration);
+        return new OutboxLeaseService(outboxLeaseRepository, properties);
+    }
+
+    private OutboxEventDispatcherJob dispatcher(OutboxLeaseService leaseService, AtomicInteger sent) {
+        OutboxProperties properties = new OutboxProperties();
+        properties.getDispatcher().setBatchSize(20);
+        properties.getLease().setEnabled(true);
+        properties.getLease().setPartitions(PARTITIONS);
+        properties.getLease().setWorkers(4);
+        AccountProducer producer = mock(AccountProducer.class);
+        when(producer.sendRaw(any(), any(), any())).thenAnswer(invocation -> {
+            published.add(objectMapper.readValue(invocation.<String>getArgument(2), SenderDebitedEvent.class));
+            sent.incrementAndGet();
+            return CompletableFuture.completedFuture(null);
+        });
+        return new OutboxEventDispatcherJob(outboxEventRepository, codecRegistry, producer, properties,
+                leaseService, lanePublisher, outboxMetrics, retryService);
+    }
+
+    private static void dispatchUntilDrained(OutboxEventDispatcherJob dispatcher) {
+        int idleCycles = 0;
+        while (idleCycles < 3) {
+            idleCycles = dispatcher.dispatchEvents() == 0 ? idleCycles + 1 : 0;
+        }
+    }
+
+    // Interleaves the aggregates so each partition holds several of them; debitedAmount carries the sequence number
+    private Map<UUID, Integer> insertEvents() throws Exception {
+        List<UUID> paymentIds = new ArrayList<>();
+        Map<UUID, Integer> counts = new HashMap<>();
+        for (int i = 0; i < AGGREGATES; i++) {
+            paymentIds.add(UUID.randomUUID());
+        }
+        for (int sequence = 0; sequence < EVENTS_PER_AGGREGATE; sequence++) {
+            for (UUID paymentId : paymentIds) {
+                SenderDebitedEvent event = new SenderDebitedEvent(paymentId, "ACC-001-A", BigDecimal.valueOf(sequence), "EUR", Instant.now());
+                outboxEventRepository.save(new OutboxEvent(null, "Payment", paymentId, SENDER_DEBITED_EVENT,
+                        objectMapper.writeValueAsString(event), Instant.now(), false));
+                counts.merge(paymentId, 1, Integer::sum);
+            }
+        }
+        return counts;
+    }
+
+    private void clearTables() {
+        jdbcTemplate.update("DELETE FROM outbox_event");
+        jdbcTemplate.update("DELETE FROM outbox_lease");
+        jdbcTemplate.update("DELETE FROM outbox_lease_member");
+    }
+}
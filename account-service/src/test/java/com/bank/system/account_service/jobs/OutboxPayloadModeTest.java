@@ -0,0 +1,115 @@
+package com.bank.system.account_service.jobs;
+
+import com.bank.system.dtos.dto.SenderDebitedEvent;
+import com.bank.system.dtos.outbox.OutboxEventCodec;
+import com.bank.system.dtos.outbox.OutboxEventCodecRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.kafka.support.mapping.AbstractJavaTypeMapper;
+import org.springframework.kafka.support.serializer.JsonDeserializer;
+import org.springframework.kafka.support.serializer.JsonSerializer;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Map;
+import java.util.UUID;
+
+import static com.bank.system.dtos.outbox.OutboxEventCodecRegistry.SENDER_DEBITED_EVENT;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OutboxPayloadModeTest {
+
+    private static final Logger log = LoggerFactory.getLogger(OutboxPayloadModeTest.class);
+    private static final int EVENTS = 50_000;
+
+    private final ObjectMapper objectMapper = Jackson2ObjectMapperBuilder.json().build();
+    private final OutboxEventCodecRegistry registry = OutboxEventCodecRegistry.standard(objectMapper);
+    private final JsonSerializer<Object> serializer = new JsonSerializer<>();
+    private final JsonDeserializer<Object> deserializer = new JsonDeserializer<>();
+
+    @AfterEach
+    void tearDown() {
+        serializer.close();
+        deserializer.close();
+    }
+
+    @Test
+    void rawRecordsAreConsumedExactlyLikeReSerializedOnes() throws Exception {
+        deserializer.configure(Map.of(JsonDeserializer.TRUSTED_PACKAGES, "*"), false);
+        SenderDebitedEvent event = event();
+        String payload = objectMapper.writeValueAsString(event);
+        OutboxEventCodec<?> codec = registry.get(SENDER_DEBITED_EVENT);
+
+        RecordHeaders decodedHeaders = new RecordHeaders();
+        byte[] decoded = serializer.serialize(codec.getTopic(), decodedHeaders, codec.decode(payload));
+        RecordHeaders rawHeaders = rawHeaders(codec);
+        byte[] raw = payload.getBytes(StandardCharsets.UTF_8);
+
+        assertEquals(event, deserializer.deserialize(codec.getTopic(), decodedHeaders, decoded));
+        assertEquals(event, deserializer.deserialize(codec.getTopic(), rawHeaders, raw));
+        assertEquals(event.getPaymentId().toString(), codec.keyOf(codec.decode(payload)));
+    }
+
+    @Test
+    void rawModeSkipsTheDecodeAndEncodeRoundTrip() throws Exception {
+        OutboxEventCodec<?> codec = registry.get(SENDER_DEBITED_EVENT);
+        String payload = objectMapper.writeValueAsString(event());
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        // Warm both paths up before measuring
+        encodeDecoded(codec, payload, EVENTS / 5);
+        encodeRaw(codec, payload, EVENTS / 5);
+
+        long start = threads.getCurrentThreadCpuTime();
+        long decodedBytes = encodeDecoded(codec, payload, EVENTS);
+        double decodedNanos = (threads.getCurrentThreadCpuTime() - start) / (double) EVENTS;
+
+        start = threads.getCurrentThreadCpuTime();
+        long rawBytes = encodeRaw(codec, payload, EVENTS);
+        double rawNanos = (threads.getCurrentThreadCpuTime() - start) / (double) EVENTS;
+
+        log.info("Outbox payload encoding CPU per event: decoded {} ns, raw {} ns",
+                String.format("%.0f", decodedNanos), String.format("%.0f", rawNanos));
+        assertTrue(decodedBytes > 0 && rawBytes > 0);
+        assertTrue(rawNanos * 3 < decodedNanos, "raw pass-through should cost well under a third of a decode/encode round trip");
+    }
+
+    private long encodeDecoded(OutboxEventCodec<?> codec, String payload, int count) throws Exception {
+        long bytes = 0;
+        for (int i = 0; i < count; i++) {
+            Object event = codec.decode(payload);
+            bytes += serializer.serialize(codec.getTopic(), new RecordHeaders(), event).length + codec.keyOf(event).length();
+        }
+        return bytes;
+    }
+
+    private long encodeRaw(OutboxEventCodec<?> codec, String payload, int count) {
+        long bytes = 0;
+        for (int i = 0; i < count; i++) {
+            bytes += payload.getBytes(StandardCharsets.UTF_8).length + rawHeaders(codec).toArray().length;
+        }
+        return bytes;
+    }
+
+    // What AccountProducer.sendRaw puts on the record
+    private static RecordHeaders rawHeaders(OutboxEventCodec<?> codec) {
+        RecordHeaders headers = new RecordHeaders();
+        headers.add(AbstractJavaTypeMapper.DEFAULT_CLASSID_FIELD_NAME, codec.getEventClass().getName().getBytes(StandardCharsets.UTF_8));
+        return headers;
+    }
+
+    private static SenderDebitedEvent event() {
+        SenderDebitedEvent event = new SenderDebitedEvent(UUID.randomUUID(), "ACC-001-A", new BigDecimal("125.50"), "EUR", Instant.now());
+        event.setEventId(UUID.randomUUID());
+        return event;
+    }
+}
@@ -0,0 +1,104 @@
+package com.bank.system.account_service.jobs;
+
+import com.bank.system.account_service.config.OutboxProperties;
+import com.bank.system.account_service.config.OutboxProperties.RetentionMode;
+import com.bank.system.account_service.domain.OutboxEvent;
+import com.bank.system.account_service.repository.OutboxEventRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(properties = {
+        "outbox.dispatcher.enabled=false",
+        "outbox.retention.enabled=false"
+})
+class OutboxRetentionJobTest {
+
+    private static final int OLD_SENT = 1_234;
+
+    @Autowired
+    private OutboxRetentionJob retentionJob;
+
+    @Autowired
+    private OutboxEventRepository outboxEventRepository;
+
+    @Autowired
+    private OutboxProperties outboxProperties;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    private RetentionMode originalMode;
+    private int originalChunkSize;
+
+    @BeforeEach
+    void setUp() {
+        clearTables();
+        originalMode = outboxProperties.getRetention().getMode();
+        originalChunkSize = outboxProperties.getRetention().getChunkSize();
+        outboxProperties.getRetention().setChunkSize(100);
+
+        Instant old = Instant.now().minus(outboxProperties.getRetention().getRetainFor()).minus(Duration.ofDays(1));
+        insertEvents(OLD_SENT, true, old);
+        insertEvents(5, false, old);
+        insertEvents(10, true, Instant.now());
+    }
+
+    @AfterEach
+    void tearDown() {
+        outboxProperties.getRetention().setMode(originalMode);
+        outboxProperties.getRetention().setChunkSize(originalChunkSize);
+        clearTables();
+    }
+
+    @Test
+    void archivesOldSentEventsAndKeepsUnsentAndRecentOnes() {
+        outboxProperties.getRetention().setMode(RetentionMode.ARCHIVE);
+
+        assertEquals(OLD_SENT, retentionJob.compact());
+
+        assertEquals(15, count("outbox_event"));
+        assertEquals(5, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM outbox_event WHERE sent = FALSE", Integer.class));
+        assertEquals(OLD_SENT, count("outbox_event_archive"));
+        assertTrue(retentionJob.getLastRowsPerSecond() > 0);
+        assertEquals(0, retentionJob.compact(), "a second pass finds nothing left to move");
+    }
+
+    @Test
+    void deleteModeDropsOldSentEventsWithoutArchiving() {
+        outboxProperties.getRetention().setMode(RetentionMode.DELETE);
+
+        assertEquals(OLD_SENT, retentionJob.compact());
+
+        assertEquals(15, count("outbox_event"));
+        assertEquals(0, count("outbox_event_archive"));
+    }
+
+    private void insertEvents(int count, boolean sent, Instant createdAt) {
+        for (int i = 0; i < count; i++) {
+            OutboxEvent event = new OutboxEvent(null, "Payment", UUID.randomUUID(), "SenderDebitedEvent", "{}", null, sent);
+            outboxEventRepository.save(event);
+            jdbcTemplate.update("UPDATE outbox_event SET created_at = ? WHERE id = ?", Timestamp.from(createdAt), event.getId());
+        }
+    }
+
+    private int count(String table) {
+        return jdbcTemplate.queryForObject("SELECT COUNT(*) FROM " + table, Integer.class);
+    }
+
+    private void clearTables() {
+        jdbcTemplate.update("DELETE FROM outbox_event");
+        jdbcTemplate.update("DELETE FROM outbox_event_archive");
+    }
+}
@@ -0,0 +1,167 @@
+package com.bank.system.account_service.jobs;
+
+import com.bank.system.account_service.config.OutboxProperties;
+import com.bank.system.account_service.domain.OutboxEvent;
+import com.bank.system.account_service.kafka.AccountProducer;
+import com.bank.system.account_service.repository.OutboxEventRepository;
+import com.bank.system.account_service.service.OutboxRetryService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.bean.override.mockito.MockitoBean;
+
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+import static com.bank.system.account_service.service.AccountTransactionalService.SENDER_DEBITED_EVENT;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
+
+@SpringBootTest(properties = "outbox.dispatcher.enabled=false")
+class OutboxRetryTest {
+
+    private static final int POISON = 10;
+    private static final int HEALTHY = 50;
+
+    @Autowired
+    private OutboxEventDispatcherJob dispatcherJob;
+
+    @Autowired
+    private OutboxEventRepository outboxEventRepository;
+
+    @Autowired
+    private OutboxRetryService retryService;
+
+    @Autowired
+    private OutboxProperties outboxProperties;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @MockitoBean
+    private AccountProducer accountProducer;
+
+    private int originalBatchSize;
+    private int originalMaxAttempts;
+
+    @BeforeEach
+    void setUp() {
+        clearTables();
+        when(accountProducer.sendRaw(any(), any(), any())).thenReturn(CompletableFuture.completedFuture(null));
+        originalBatchSize = outboxProperties.getDispatcher().getBatchSize();
+        originalMaxAttempts = outboxProperties.getRetry().getMaxAttempts();
+        outboxProperties.getDispatcher().setBatchSize(POISON);
+    }
+
+    @AfterEach
+    void tearDown() {
+        outboxProperties.getDispatcher().setBatchSize(originalBatchSize);
+        outboxProperties.getRetry().setMaxAttempts(originalMaxAttempts);
+        clearTables();
+    }
+
+    @Test
+    void poisonEventsBackOffInsteadOfBlockingTheQueue() {
+        // A full batch of unknown types at the head of the queue used to be fetched again on every cycle
+        for (int i = 0; i < POISON; i++) {
+            save(UUID.randomUUID(), "UnknownEvent");
+        }
+        for (int i = 0; i < HEALTHY; i++) {
+            save(UUID.randomUUID(), SENDER_DEBITED_EVENT);
+        }
+
+        dispatcherJob.dispatchEvents();
+        dispatcherJob.dispatchEvents();
+
+        assertEquals(HEALTHY, count("sent = TRUE"));
+        assertEquals(POISON, count("sent = FALSE AND attempts = 1 AND next_attempt_at > LOCALTIMESTAMP AND last_error IS NOT NULL"));
+        assertEquals(0, dispatcherJob.dispatchEvents(), "nothing is due until the backoff has elapsed");
+    }
+
+    @Test
+    void eventsOutOfAttemptsAreDeadLettered() {
+        outboxProperties.getRetry().setMaxAttempts(3);
+        save(UUID.randomUUID(), "UnknownEvent");
+
+        for (int attempt = 1; attempt <= 3; attempt++) {
+            assertEquals(1, dispatcherJob.dispatchEvents());
+            makeDue();
+        }
+
+        assertEquals(0, dispatcherJob.dispatchEvents());
+        assertEquals(1, count("failed = TRUE AND attempts = 3"));
+        assertEquals(0L, outboxEventRepository.countUnsent());
+        assertEquals(1, jdbcTemplate.queryForObject(
+                "SELECT COUNT(*) FROM outbox_event_dead_letter WHERE type = 'UnknownEvent' AND attempts = 3", Integer.class));
+    }
+
+    @Test
+    void laterEventsOfAnAggregateWaitForItsFailedEvent() {
+        UUID aggregateId = UUID.randomUUID();
+        List<String> published = Collections.synchronizedList(new ArrayList<>());
+        when(accountProducer.sendRaw(any(), any(), any())).thenAnswer(invocation -> {
+            published.add(invocation.getArgument(2));
+            // The first event of the aggregate fails once, everything else goes through
+            if (published.size() == 1) {
+                return CompletableFuture.failedFuture(new IllegalStateException("broker unavailable"));
+            }
+            return CompletableFuture.completedFuture(null);
+        });
+        save(aggregateId, SENDER_DEBITED_EVENT, "{\"seq\":1}");
+        save(aggregateId, SENDER_DEBITED_EVENT, "{\"seq\":2}");
+
+        dispatcherJob.dispatchEvents();
+        // A later event of the aggregate written after the failure must queue behind it as well
+        save(aggregateId, SENDER_DEBITED_EVENT, "{\"seq\":3}");
+        assertEquals(0, dispatcherJob.dispatchEvents());
+        assertEquals(1, count("attempts = 1"), "only the failed event is charged an attempt");
+
+        makeDue();
+        dispatcherJob.dispatchEvents();
+
+        assertEquals(List.of("{\"seq\":1}", "{\"seq\":1}", "{\"seq\":2}", "{\"seq\":3}"), published);
+        assertEquals(3, count("sent = TRUE"));
+    }
+
+    @Test
+    void backoffDoublesUpToTheMaximum() {
+        OutboxProperties.Retry retry = outboxProperties.getRetry();
+        assertEquals(retry.getInitialBackoff(), retryService.backoff(1));
+        assertEquals(retry.getInitialBackoff().multipliedBy(4), retryService.backoff(3));
+        assertEquals(retry.getMaxBackoff(), retryService.backoff(1_000));
+        assertTrue(retryService.backoff(9).compareTo(retryService.backoff(8)) >= 0);
+    }
+
+    private void save(UUID aggregateId, String type) {
+        save(aggregateId, type, "{}");
+    }
+
+    private void save(UUID aggregateId, String type, String payload) {
+        outboxEventRepository.save(new OutboxEvent(null, "Payment", aggregateId, type, payload, null, false));
+    }
+
+    private void makeDue() {
+        jdbcTemplate.update("UPDATE outbox_event SET next_attempt_at = ? WHERE next_attempt_at IS NOT NULL",
+                Timestamp.from(Instant.now().minus(Duration.ofSeconds(1))));
+    }
+
+    private int count(String condition) {
+        return jdbcTemplate.queryForObject("SELECT COUNT(*) FROM outbox_event WHERE " + condition, Integer.class);
+    }
+
+    private void clearTables() {
+        jdbcTemplate.update("DELETE FROM outbox_event");
+        jdbcTemplate.update("DELETE FROM outbox_event_dead_letter");
+    }
+}
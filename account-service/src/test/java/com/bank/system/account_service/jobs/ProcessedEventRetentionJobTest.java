@@ -0,0 +1,93 @@
+package com.bank.system.account_service.jobs;
+
+import com.bank.system.account_service.config.DedupProperties;
+import com.bank.system.account_service.domain.ProcessedEvent;
+import com.bank.system.account_service.repository.ProcessedEventRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+@SpringBootTest(properties = {
+        "outbox.dispatcher.enabled=false",
+        "ledger.snapshot.enabled=false",
+        "dedup.retention.enabled=false"
+})
+class ProcessedEventRetentionJobTest {
+
+    private static final String TYPE = "RetentionTestEvent";
+    private static final int OLD = 2_345;
+    private static final int RECENT = 10;
+
+    @Autowired
+    private ProcessedEventRetentionJob retentionJob;
+
+    @Autowired
+    private ProcessedEventRepository processedEventRepository;
+
+    @Autowired
+    private DedupProperties dedupProperties;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    private int originalChunkSize;
+
+    @BeforeEach
+    void setUp() {
+        originalChunkSize = dedupProperties.getRetention().getChunkSize();
+        dedupProperties.getRetention().setChunkSize(500);
+
+        Instant old = Instant.now().minus(dedupProperties.getRetention().getRetainFor()).minus(Duration.ofHours(1));
+        processedEventRepository.saveAll(events(OLD, old));
+        processedEventRepository.saveAll(events(RECENT, Instant.now()));
+    }
+
+    @AfterEach
+    void tearDown() {
+        dedupProperties.getRetention().setChunkSize(originalChunkSize);
+        jdbcTemplate.update("DELETE FROM processed_event WHERE event_type = ?", TYPE);
+    }
+
+    @Test
+    void deletesEventsPastTheWindowInChunksAndKeepsRecentOnes() {
+        assertFalse(processedEventRepository.isPartitioned(), "H2 keeps processed_event in one table");
+
+        assertEquals(OLD, retentionJob.purge());
+
+        assertEquals(RECENT, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM processed_event WHERE event_type = ?",
+                Integer.class, TYPE));
+        assertEquals(0, retentionJob.purge(), "a second pass finds nothing left to delete");
+    }
+
+    @Test
+    void stopsAfterMaxRunTimeAndLeavesTheRestForTheNextRun() {
+        Duration originalMaxRunTime = dedupProperties.getRetention().getMaxRunTime();
+        dedupProperties.getRetention().setMaxRunTime(Duration.ZERO);
+        try {
+            assertEquals(500, retentionJob.purge(), "one chunk is always deleted");
+        } finally {
+            dedupProperties.getRetention().setMaxRunTime(originalMaxRunTime);
+        }
+        assertEquals(OLD - 500, retentionJob.purge());
+    }
+
+    private static List<ProcessedEvent> events(int count, Instant processedAt) {
+        List<ProcessedEvent> events = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            events.add(new ProcessedEvent(UUID.randomUUID(), TYPE, null, processedAt));
+        }
+        return events;
+    }
+}
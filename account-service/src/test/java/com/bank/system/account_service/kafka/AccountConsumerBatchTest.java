@@ -0,0 +1,192 @@
+package com.bank.system.account_service.kafka;
+
+import com.bank.system.account_service.domain.Account;
+import com.bank.system.account_service.repository.AccountRepository;
+import com.bank.system.account_service.service.AccountTransactionalService;
+import com.bank.system.account_service.service.PaymentAccountService;
+import com.bank.system.dtos.dto.PaymentInitiatedEvent;
+import com.bank.system.dtos.dto.ReceiverCreditRequestEvent;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(properties = {
+        "outbox.dispatcher.enabled=false",
+        "ledger.snapshot.enabled=false"
+})
+class AccountConsumerBatchTest {
+
+    private static final Logger log = LoggerFactory.getLogger(AccountConsumerBatchTest.class);
+    private static final int POLLS = 10;
+    private static final int POLL_SIZE = 200;
+    private static final int ACCOUNTS = 50;
+
+    @Autowired
+    private AccountConsumer accountConsumer;
+
+    @Autowired
+    private PaymentAccountService paymentAccountService;
+
+    @Autowired
+    private AccountRepository accountRepository;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @AfterEach
+    void tearDown() {
+        jdbcTemplate.update("DELETE FROM outbox_event");
+        jdbcTemplate.update("DELETE FROM processed_event WHERE payload LIKE '%BATCH-%'");
+        jdbcTemplate.update("DELETE FROM ledger_entry WHERE account_number LIKE 'BATCH-%'");
+        jdbcTemplate.update("DELETE FROM account WHERE account_number LIKE 'BATCH-%'");
+    }
+
+    @Test
+    void batchAppliesDebitsInOrderAndSkipsDuplicates() {
+        String sender = open(new BigDecimal("100.00"));
+        PaymentInitiatedEvent first = initiated(sender, "60.00");
+        PaymentInitiatedEvent second = initiated(sender, "50.00");
+        PaymentInitiatedEvent third = initiated(sender, "40.00");
+        PaymentInitiatedEvent missing = initiated("BATCH-MISSING", "1.00");
+        paymentAccountService.handlePaymentInitiatedEvent(first);
+
+        accountConsumer.listenPaymentInitiatedEvents(List.of(first, second, third, third, missing));
+
+        assertEquals(0, BigDecimal.ZERO.compareTo(balance(sender)), "first was already processed, second bounced, third fit");
+        assertEquals(3, outboxCount(AccountTransactionalService.SENDER_DEBITED_EVENT), "first's reply is re-sent, not its debit");
+        assertEquals(2, outboxCount(AccountTransactionalService.SENDER_DEBITED_FAILED_EVENT));
+        assertEquals(2, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM ledger_entry WHERE account_number = ?", Integer.class, sender));
+        assertEquals(4, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM processed_event WHERE payload LIKE '%BATCH-%'", Integer.class));
+    }
+
+    @Test
+    void failedBatchIsRolledBackAndReplayedEventByEvent() {
+        String receiver = open(new BigDecimal("10.00"));
+        ReceiverCreditRequestEvent good = creditRequest(receiver, new BigDecimal("5.00"));
+        ReceiverCreditRequestEvent bad = creditRequest(receiver, null);
+
+        accountConsumer.listenReceiverCreditedRequestedEvents(List.of(good, bad));
+
+        assertEquals(0, new BigDecimal("15.00").compareTo(balance(receiver)), "the good credit is applied exactly once");
+        assertEquals(1, outboxCount(AccountTransactionalService.RECEIVER_CREDIT_EVENT));
+    }
+
+    @Test
+    void batchesOutrunRecordAtATimeHandling() {
+        List<String> accounts = new ArrayList<>();
+        for (int i = 0; i < ACCOUNTS; i++) {
+            accounts.add(open(new BigDecimal("1000000.00")));
+        }
+        // Warm both paths up before the clock starts
+        measure(polls(2, accounts), this::recordAtATime);
+        measure(polls(2, accounts), this::asOneBatch);
+
+        long[] record = measure(polls(POLLS, accounts), this::recordAtATime);
+        long[] batch = measure(polls(POLLS, accounts), this::asOneBatch);
+
+        log.info("Record mode: {} events/s, p99 {} us from poll to done; batch mode: {} events/s, p99 {} us from poll to done",
+                record[0], record[1] / 1_000, batch[0], batch[1] / 1_000);
+        assertTrue(batch[0] > record[0], "batches should process more events per second");
+        assertTrue(batch[1] < record[1], "batches should finish the events of a poll sooner");
+        long debitsPerAccount = (4L + 2 * POLLS) * POLL_SIZE / ACCOUNTS;
+        assertEquals(0, new BigDecimal("1000000.00").subtract(new BigDecimal("0.01").multiply(BigDecimal.valueOf(debitsPerAccount)))
+                .compareTo(balance(accounts.get(0))));
+    }
+
+    @FunctionalInterface
+    private interface PollHandler {
+        // Records in finishedAt when each event of the poll was done
+        void handle(List<PaymentInitiatedEvent> poll, long[] finishedAt);
+    }
+
+    private void recordAtATime(List<PaymentInitiatedEvent> poll, long[] finishedAt) {
+        for (int i = 0; i < poll.size(); i++) {
+            paymentAccountService.handlePaymentInitiatedEvent(poll.get(i));
+            finishedAt[i] = System.nanoTime();
+        }
+    }
+
+    private void asOneBatch(List<PaymentInitiatedEvent> poll, long[] finishedAt) {
+        paymentAccountService.handlePaymentInitiatedEvents(poll);
+        Arrays.fill(finishedAt, System.nanoTime());
+    }
+
+    /**
+     * Times every event from the start of its poll until it is done, which is what consumer lag is made of
+     * in either mode: a record waits for the ones ahead of it, a batch for the whole batch.
+     *
+     * @return events per second and the 99th percentile latency in nanoseconds
+     */
+    private long[] measure(List<List<PaymentInitiatedEvent>> polls, PollHandler handler) {
+        long[] latencies = new long[polls.size() * POLL_SIZE];
+        long[] finishedAt = new long[POLL_SIZE];
+        int done = 0;
+        long started = System.nanoTime();
+        for (List<PaymentInitiatedEvent> poll : polls) {
+            long polled = System.nanoTime();
+            handler.handle(poll, finishedAt);
+            for (int i = 0; i < poll.size(); i++) {
+                latencies[done++] = finishedAt[i] - polled;
+            }
+        }
+        long elapsed = System.nanoTime() - started;
+        Arrays.sort(latencies);
+        return new long[]{(long) (latencies.length / (elapsed / 1_000_000_000.0)), latencies[(int) Math.ceil(latencies.length * 0.99) - 1]};
+    }
+
+    private List<List<PaymentInitiatedEvent>> polls(int count, List<String> accounts) {
+        List<List<PaymentInitiatedEvent>> polls = new ArrayList<>();
+        for (int p = 0; p < count; p++) {
+            List<PaymentInitiatedEvent> poll = new ArrayList<>();
+            for (int i = 0; i < POLL_SIZE; i++) {
+                poll.add(initiated(accounts.get(i % accounts.size()), "0.01"));
+            }
+            polls.add(poll);
+        }
+        return polls;
+    }
+
+    private PaymentInitiatedEvent initiated(String sender, String amount) {
+        PaymentInitiatedEvent event = new PaymentInitiatedEvent(UUID.randomUUID(), sender, "BATCH-RECEIVER",
+                new BigDecimal(amount), "EUR", UUID.randomUUID().toString(), Instant.now());
+        event.setEventId(UUID.randomUUID());
+        return event;
+    }
+
+    private ReceiverCreditRequestEvent creditRequest(String receiver, BigDecimal amount) {
+        ReceiverCreditRequestEvent event = new ReceiverCreditRequestEvent(UUID.randomUUID(), receiver, amount, "EUR", Instant.now());
+        event.setEventId(UUID.randomUUID());
+        return event;
+    }
+
+    private String open(BigDecimal balance) {
+        Account account = new Account();
+        account.setAccountNumber("BATCH-" + UUID.randomUUID());
+        account.setUserId(1L);
+        account.setBalance(balance);
+        return accountRepository.save(account).getAccountNumber();
+    }
+
+    private BigDecimal balance(String accountNumber) {
+        return accountRepository.findByAccountNumber(accountNumber).orElseThrow().getBalance();
+    }
+
+    private int outboxCount(String type) {
+        return jdbcTemplate.queryForObject("SELECT COUNT(*) FROM outbox_event WHERE type = ? AND payload LIKE '%BATCH-%'",
+                Integer.class, type);
+    }
+}
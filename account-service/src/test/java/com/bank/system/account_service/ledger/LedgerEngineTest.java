@@ -0,0 +1,350 @@
+package com.bank.system.account_service.ledger;
+
+import com.bank.system.account_service.config.LedgerProperties;
+import com.bank.system.account_service.domain.Account;
+import com.bank.system.account_service.domain.BalanceUpdate;
+import com.bank.system.account_service.repository.AccountRepository;
+import com.bank.system.account_service.service.AccountService;
+import com.zaxxer.hikari.HikariDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.unit.DataSize;
+
+import javax.sql.DataSource;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(properties = "outbox.dispatcher.enabled=false")
+class LedgerEngineTest {
+
+    private static final Logger log = LoggerFactory.getLogger(LedgerEngineTest.class);
+    private static final BigDecimal OPENING_BALANCE = new BigDecimal("100.00");
+    private static final int THREADS = 4;
+    private static final int ACCOUNTS = 500;
+
+    @Autowired
+    private AccountRepository accountRepository;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private DataSource dataSource;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @TempDir
+    Path directory;
+
+    private LedgerEngine engine;
+    // Gives every benchmark thread its own command ids
+    private long runs = 1;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        engine = start(true);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        engine.close();
+        jdbcTemplate.update("DELETE FROM account WHERE account_number LIKE 'LEDGER-%'");
+    }
+
+    @Test
+    void appliesDebitsAndCreditsAndRefusesOverdrafts() {
+        String account = open(OPENING_BALANCE);
+        UUID commandId = UUID.randomUUID();
+
+        BalanceUpdate debit = engine.debit(commandId, account, new BigDecimal("30.50"));
+        BalanceUpdate redelivered = engine.debit(commandId, account, new BigDecimal("30.50"));
+        BalanceUpdate credit = engine.credit(UUID.randomUUID(), account, new BigDecimal("0.25"));
+        BalanceUpdate overdraft = engine.debit(UUID.randomUUID(), account, new BigDecimal("69.76"));
+
+        assertEquals(BalanceUpdate.Status.APPLIED, debit.getStatus());
+        assertEquals(0, new BigDecimal("69.50").compareTo(debit.getAccount().getBalance()));
+        assertEquals(BalanceUpdate.Status.APPLIED, redelivered.getStatus());
+        assertEquals(0, new BigDecimal("69.50").compareTo(redelivered.getAccount().getBalance()), "a redelivered command is not applied twice");
+        assertEquals(0, new BigDecimal("69.75").compareTo(credit.getAccount().getBalance()));
+        assertEquals(BalanceUpdate.Status.INSUFFICIENT_FUNDS, overdraft.getStatus());
+        assertEquals(0, new BigDecimal("69.75").compareTo(overdraft.getAccount().getBalance()));
+        assertEquals(BalanceUpdate.Status.NOT_FOUND, engine.credit(null, "LEDGER-MISSING", BigDecimal.ONE).getStatus());
+    }
+
+    @Test
+    void changesOfARolledBackTransactionAreRevertedAndApplyAgainOnRedelivery() throws Exception {
+        String account = open(OPENING_BALANCE);
+        UUID debitId = UUID.randomUUID();
+        UUID creditId = UUID.randomUUID();
+
+        new TransactionTemplate(transactionManager).executeWithoutResult(status -> {
+            assertTrue(engine.debit(debitId, account, new BigDecimal("30.00")).isApplied());
+            assertTrue(engine.credit(creditId, account, new BigDecimal("5.00")).isApplied());
+            status.setRollbackOnly();
+        });
+
+        assertEquals(0, OPENING_BALANCE.compareTo(engine.credit(null, account, BigDecimal.ZERO).getAccount().getBalance()));
+        assertEquals(0, new BigDecimal("70.00").compareTo(engine.debit(debitId, account, new BigDecimal("30.00")).getAccount().getBalance()),
+                "the redelivered debit is applied, not acknowledged as a duplicate");
+
+        // The revert is journaled along with the forgotten command id
+        engine.close();
+        engine = start(true);
+        assertEquals(0, new BigDecimal("75.00").compareTo(engine.credit(creditId, account, new BigDecimal("5.00")).getAccount().getBalance()));
+    }
+
+    @Test
+    void uncommittedCreditsCannotBeSpent() {
+        String account = open(OPENING_BALANCE);
+
+        new TransactionTemplate(transactionManager).executeWithoutResult(status -> {
+            assertTrue(engine.credit(UUID.randomUUID(), account, new BigDecimal("50.00")).isApplied());
+            BalanceUpdate overdraft = engine.submit(UUID.randomUUID(), account, -12_000L).join();
+            assertEquals(BalanceUpdate.Status.INSUFFICIENT_FUNDS, overdraft.getStatus(), "the credit is held until it commits");
+            assertTrue(engine.submit(UUID.randomUUID(), account, -10_000L).join().isApplied());
+            status.setRollbackOnly();
+        });
+
+        assertEquals(0, BigDecimal.ZERO.compareTo(engine.credit(null, account, BigDecimal.ZERO).getAccount().getBalance()),
+                "reverting the held credit does not overdraw the account");
+
+        new TransactionTemplate(transactionManager).executeWithoutResult(status ->
+                assertTrue(engine.credit(UUID.randomUUID(), account, new BigDecimal("50.00")).isApplied()));
+        assertTrue(engine.debit(UUID.randomUUID(), account, new BigDecimal("50.00")).isApplied(), "a committed credit is released");
+    }
+
+    @Test
+    void accountsAreLoadedOnTheCallersConnection() throws Exception {
+        int connections = dataSource.unwrap(HikariDataSource.class).getMaximumPoolSize();
+        List<String> numbers = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+            numbers.add(open(OPENING_BALANCE));
+        }
+        ExecutorService callers = Executors.newFixedThreadPool(connections);
+        CyclicBarrier allConnectionsTaken = new CyclicBarrier(connections);
+        try {
+            List<Future<BalanceUpdate>> credits = new ArrayList<>();
+            for (String number : numbers) {
+                credits.add(callers.submit(() -> new TransactionTemplate(transactionManager).execute(status -> {
+                    try {
+                        allConnectionsTaken.await(5, TimeUnit.SECONDS);
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                    return engine.credit(UUID.randomUUID(), number, BigDecimal.ONE);
+                })));
+            }
+            // Were accounts loaded by the sequencers, each would wait for a connection none of the callers gives back
+            for (Future<BalanceUpdate> credit : credits) {
+                assertTrue(credit.get(5, TimeUnit.SECONDS).isApplied());
+            }
+        } finally {
+            callers.shutdownNow();
+        }
+    }
+
+    @Test
+    void journalIsReplayedOverAStaleProjection() throws Exception {
+        String account = open(OPENING_BALANCE);
+        engine.debit(UUID.randomUUID(), account, new BigDecimal("40.00"));
+        engine.credit(UUID.randomUUID(), account, new BigDecimal("15.00"));
+        engine.close();
+        assertEquals(0, new BigDecimal("75.00").compareTo(tableBalance(account)), "closing projects the final balances");
+
+        // As if the process had died before the projection caught up
+        jdbcTemplate.update("UPDATE account SET balance = ? WHERE account_number = ?", OPENING_BALANCE, account);
+        engine = start(true);
+
+        assertEquals(0, new BigDecimal("75.00").compareTo(tableBalance(account)), "startup projects the replayed balances");
+        assertEquals(BalanceUpdate.Status.INSUFFICIENT_FUNDS, engine.debit(null, account, new BigDecimal("75.01")).getStatus());
+        assertTrue(engine.debit(null, account, new BigDecimal("75.00")).isApplied());
+    }
+
+    @Test
+    void tornTailOfTheJournalIsCutOff() throws Exception {
+        String account = open(OPENING_BALANCE);
+        engine.debit(null, account, new BigDecimal("10.00"));
+        engine.close();
+        for (int partition = 0; partition < 2; partition++) {
+            Files.write(directory.resolve("ledger-" + partition + ".wal"), new byte[]{0, 0, 0, 60, 1, 2, 3}, StandardOpenOption.APPEND);
+        }
+
+        engine = start(true);
+
+        assertEquals(0, new BigDecimal("80.00").compareTo(engine.debit(null, account, new BigDecimal("10.00")).getAccount().getBalance()));
+        engine.close();
+        engine = start(true);
+        assertEquals(0, new BigDecimal("80.00").compareTo(engine.credit(null, account, BigDecimal.ZERO).getAccount().getBalance()));
+    }
+
+    @Test
+    void accountsCannotBeStripedUnderTheEngine() throws Exception {
+        String account = open(OPENING_BALANCE);
+        engine.credit(null, account, new BigDecimal("5.00"));
+        AccountService accountService = new AccountService(accountRepository, engine, null, null);
+
+        assertThrows(IllegalStateException.class, () -> accountService.stripeAccount(account, 4));
+        engine.close();
+
+        assertEquals(0, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM account_stripe WHERE account_number = ?",
+                Integer.class, account));
+        assertEquals(0, new BigDecimal("105.00").compareTo(tableBalance(account)), "the projection is not counted twice");
+    }
+
+    @Test
+    void journalIsCompactedToTheCurrentState() throws Exception {
+        engine.close();
+        engine = start(true, DataSize.ofKilobytes(4), 100);
+        List<String> numbers = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            numbers.add(open(OPENING_BALANCE));
+        }
+        UUID last = null;
+        for (int i = 0; i < 2_000; i++) {
+            last = UUID.randomUUID();
+            engine.credit(last, numbers.get(i % numbers.size()), new BigDecimal("0.01"));
+        }
+        // 2,000 commands of about 80 bytes each were the journals never rewritten, against 20 accounts and the
+        // last 100 command ids of each partition
+        long journals = 0;
+        for (int partition = 0; partition < 2; partition++) {
+            journals += Files.size(directory.resolve("ledger-" + partition + ".wal"));
+        }
+        engine.close();
+        log.info("Ledger journals hold {} bytes after 2000 commands", journals);
+        assertTrue(journals < 20_000, "journals should have been compacted, " + journals);
+
+        // The replayed journal has to win over the table on its own, without the history
+        jdbcTemplate.update("UPDATE account SET balance = ? WHERE account_number LIKE 'LEDGER-%'", OPENING_BALANCE);
+        engine = start(true);
+
+        for (String number : numbers) {
+            assertEquals(0, new BigDecimal("101.00").compareTo(tableBalance(number)), number);
+        }
+        BalanceUpdate redelivered = engine.credit(last, numbers.get(1_999 % numbers.size()), new BigDecimal("0.01"));
+        assertEquals(0, new BigDecimal("101.00").compareTo(redelivered.getAccount().getBalance()),
+                "command ids survive compaction as redeliveries");
+    }
+
+    @Test
+    void engineOutrunsConditionalUpdatesByAnOrderOfMagnitude() throws Exception {
+        List<String> numbers = new ArrayList<>();
+        for (int i = 0; i < ACCOUNTS; i++) {
+            numbers.add(open(new BigDecimal("1000000.00")));
+        }
+        // Load every account into the engine, and warm both paths up, before the clock starts
+        numbers.forEach(number -> engine.credit(null, number, BigDecimal.ZERO));
+        measure(20_000, (thread, i, number, delta) -> engine.submit(new UUID(thread, i), number, delta), numbers);
+        measure(1_000, this::updateTable, numbers);
+
+        long journaled = measure(250_000, (thread, i, number, delta) -> engine.submit(new UUID(thread, i), number, delta), numbers);
+        long table = measure(2_500, this::updateTable, numbers);
+        engine.close();
+        engine = start(false);
+        long unsynced = measure(250_000, (thread, i, number, delta) -> engine.submit(new UUID(thread, i), number, delta), numbers);
+
+        log.info("Ledger engine: {} commands/s with one fsync per batch, {} commands/s without fsync, "
+                        + "{} commands/s as conditional UPDATEs of the account table ({} cores)",
+                journaled, unsynced, table, Runtime.getRuntime().availableProcessors());
+        // In-memory H2 flushes nothing, so the like-for-like comparison is the engine without fsync
+        assertTrue(unsynced > table * 10, "the engine should be at least ten times faster than the table");
+        assertTrue(journaled > table, "even forcing every batch to disk should beat the table");
+    }
+
+    @FunctionalInterface
+    private interface Submitter {
+        CompletableFuture<?> submit(long thread, int i, String accountNumber, long delta);
+    }
+
+    private CompletableFuture<?> updateTable(long thread, int i, String accountNumber, long delta) {
+        BigDecimal amount = BigDecimal.valueOf(Math.abs(delta), 2);
+        return CompletableFuture.completedFuture(delta < 0
+                ? accountRepository.debit(accountNumber, amount)
+                : accountRepository.credit(accountNumber, amount));
+    }
+
+    // Every thread submits alternating credits and debits spread over the accounts, without waiting in between
+    private long measure(int commandsPerThread, Submitter submitter, List<String> numbers) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> workers = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            long thread = runs++;
+            workers.add(executor.submit(() -> {
+                start.await();
+                // Commands of one account complete in order, so its last future stands for all of them
+                CompletableFuture<?>[] last = new CompletableFuture<?>[numbers.size()];
+                for (int i = 0; i < commandsPerThread; i++) {
+                    int account = i % numbers.size();
+                    long delta = (i / numbers.size()) % 2 == 0 ? 150 : -150;
+                    last[account] = submitter.submit(thread, i, numbers.get(account), delta);
+                }
+                CompletableFuture.allOf(last).join();
+                return null;
+            }));
+        }
+        long started = System.nanoTime();
+        start.countDown();
+        for (Future<?> worker : workers) {
+            worker.get();
+        }
+        executor.shutdown();
+        return (long) (THREADS * (double) commandsPerThread / ((System.nanoTime() - started) / 1_000_000_000.0));
+    }
+
+    private LedgerEngine start(boolean fsync) throws Exception {
+        LedgerProperties defaults = new LedgerProperties();
+        return start(fsync, defaults.getCompactAt(), defaults.getDedupWindow());
+    }
+
+    private LedgerEngine start(boolean fsync, DataSize compactAt, int dedupWindow) throws Exception {
+        LedgerProperties properties = new LedgerProperties();
+        properties.setCompactAt(compactAt);
+        properties.setDedupWindow(dedupWindow);
+        properties.setEnabled(true);
+        properties.setPartitions(2);
+        properties.setDirectory(directory.toString());
+        properties.setFsync(fsync);
+        LedgerEngine started = new LedgerEngine(properties, accountRepository);
+        started.start();
+        return started;
+    }
+
+    private String open(BigDecimal balance) {
+        Account account = new Account();
+        account.setAccountNumber("LEDGER-" + UUID.randomUUID());
+        account.setUserId(1L);
+        account.setBalance(balance);
+        return accountRepository.save(account).getAccountNumber();
+    }
+
+    private BigDecimal tableBalance(String accountNumber) {
+        return jdbcTemplate.queryForObject("SELECT balance FROM account WHERE account_number = ?", BigDecimal.class, accountNumber);
+    }
+}
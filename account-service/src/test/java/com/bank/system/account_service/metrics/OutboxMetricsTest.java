@@ -0,0 +1,117 @@
+package com.bank.system.account_service.metrics;
+
+import com.bank.system.account_service.domain.OutboxEvent;
+import com.bank.system.account_service.jobs.OutboxEventDispatcherJob;
+import com.bank.system.account_service.kafka.AccountProducer;
+import com.bank.system.account_service.repository.OutboxEventRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.bean.override.mockito.MockitoBean;
+import org.springframework.test.web.servlet.MockMvc;
+
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.bank.system.account_service.service.AccountTransactionalService.SENDER_DEBITED_EVENT;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@SpringBootTest(properties = "outbox.dispatcher.enabled=false")
+@AutoConfigureMockMvc
+class OutboxMetricsTest {
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private OutboxEventDispatcherJob dispatcherJob;
+
+    @Autowired
+    private OutboxEventRepository outboxEventRepository;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @MockitoBean
+    private AccountProducer accountProducer;
+
+    @BeforeEach
+    void setUp() {
+        jdbcTemplate.update("DELETE FROM outbox_event");
+        when(accountProducer.sendRaw(any(), any(), any())).thenReturn(CompletableFuture.completedFuture(null));
+    }
+
+    @AfterEach
+    void tearDown() {
+        jdbcTemplate.update("DELETE FROM outbox_event");
+    }
+
+    @Test
+    void exposesBacklogAndPublishMetricsOnTheActuator() throws Exception {
+        save(SENDER_DEBITED_EVENT, "{}");
+        save(SENDER_DEBITED_EVENT, "{}");
+        save("NoSuchEvent", "{}");
+        jdbcTemplate.update("UPDATE outbox_event SET created_at = ?", Timestamp.from(Instant.now().minus(Duration.ofMinutes(5))));
+
+        assertEquals(3.0, meterRegistry.get("outbox.backlog").gauge().value());
+        assertTrue(meterRegistry.get("outbox.oldest.unsent.age").gauge().value() >= 300);
+        double publishedBefore = countOrZero("outbox.events.published");
+
+        dispatcherJob.dispatchEvents();
+
+        assertEquals(1.0, meterRegistry.get("outbox.backlog").gauge().value(), "only the unknown type is left");
+        assertEquals(publishedBefore + 2, meterRegistry.get("outbox.events.published").tag("type", SENDER_DEBITED_EVENT).counter().count());
+        assertTrue(meterRegistry.get("outbox.publish.ack.latency").tag("type", SENDER_DEBITED_EVENT).timer().count() >= 2);
+        assertTrue(meterRegistry.get("outbox.create.to.send.latency").tag("type", SENDER_DEBITED_EVENT).timer()
+                .max(TimeUnit.SECONDS) >= 300);
+        assertTrue(meterRegistry.get("outbox.deserialize.failures").tag("type", "NoSuchEvent").counter().count() >= 1);
+
+        mockMvc.perform(get("/actuator/metrics/outbox.backlog"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.measurements[0].value").value(1.0));
+        mockMvc.perform(get("/actuator/metrics/outbox.events.published"))
+                .andExpect(status().isOk());
+    }
+
+    @Test
+    void countsVersionConflicts() {
+        save(SENDER_DEBITED_EVENT, "{}");
+        List<OutboxEvent> events = outboxEventRepository.fetchUnsentEvents(10);
+        double before = meterRegistry.get("outbox.version.conflicts").counter().count();
+
+        outboxEventRepository.markAllAsSent(events);
+        outboxEventRepository.markAllAsSent(events);
+
+        assertEquals(before + 1, meterRegistry.get("outbox.version.conflicts").counter().count());
+    }
+
+    private void save(String type, String payload) {
+        outboxEventRepository.save(new OutboxEvent(null, "Payment", UUID.randomUUID(), type, payload, null, false));
+    }
+
+    private double countOrZero(String name) {
+        return meterRegistry.find(name).tag("type", SENDER_DEBITED_EVENT).counters().stream()
+                .mapToDouble(Counter::count)
+                .sum();
+    }
+}
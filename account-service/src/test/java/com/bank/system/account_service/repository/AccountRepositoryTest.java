@@ -0,0 +1,136 @@
+package com.bank.system.account_service.repository;
+
+import com.bank.system.account_service.domain.Account;
+import com.bank.system.account_service.domain.BalanceUpdate;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(properties = "outbox.dispatcher.enabled=false")
+class AccountRepositoryTest {
+
+    private static final Logger log = LoggerFactory.getLogger(AccountRepositoryTest.class);
+    private static final int THREADS = 16;
+    private static final int TRANSFERS_PER_THREAD = 250;
+    private static final BigDecimal OPENING_BALANCE = new BigDecimal("500.00");
+
+    @Autowired
+    private AccountRepository accountRepository;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    private String first;
+    private String second;
+
+    @BeforeEach
+    void setUp() {
+        first = open(OPENING_BALANCE);
+        second = open(OPENING_BALANCE);
+    }
+
+    @AfterEach
+    void tearDown() {
+        accountRepository.deleteByAccountNumber(first);
+        accountRepository.deleteByAccountNumber(second);
+    }
+
+    @Test
+    void concurrentTransfersConserveTheTotalAndNeverOverdraw() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger refused = new AtomicInteger();
+        List<Future<?>> workers = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            workers.add(executor.submit(() -> {
+                start.await();
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < TRANSFERS_PER_THREAD; i++) {
+                    boolean forward = random.nextBoolean();
+                    BigDecimal amount = BigDecimal.valueOf(random.nextInt(1, 5_000), 2);
+                    BalanceUpdate debit = accountRepository.debit(forward ? first : second, amount);
+                    if (debit.isApplied()) {
+                        assertTrue(accountRepository.credit(forward ? second : first, amount).isApplied());
+                    } else {
+                        assertEquals(BalanceUpdate.Status.INSUFFICIENT_FUNDS, debit.getStatus());
+                        refused.incrementAndGet();
+                    }
+                }
+                return null;
+            }));
+        }
+        long started = System.nanoTime();
+        start.countDown();
+        for (Future<?> worker : workers) {
+            worker.get();
+        }
+        executor.shutdown();
+        double seconds = (System.nanoTime() - started) / 1_000_000_000.0;
+
+        BigDecimal firstBalance = balance(first);
+        BigDecimal secondBalance = balance(second);
+        log.info("Atomic balance updates: {} transfers from {} threads in {} s ({} refused), balances {} / {}",
+                THREADS * TRANSFERS_PER_THREAD, THREADS, String.format("%.2f", seconds), refused.get(), firstBalance, secondBalance);
+        assertEquals(0, OPENING_BALANCE.multiply(BigDecimal.TWO).compareTo(firstBalance.add(secondBalance)));
+        assertTrue(firstBalance.signum() >= 0 && secondBalance.signum() >= 0);
+    }
+
+    @Test
+    void debitReportsInsufficientFundsWithoutTouchingTheBalance() {
+        BalanceUpdate update = accountRepository.debit(first, OPENING_BALANCE.add(BigDecimal.ONE));
+
+        assertEquals(BalanceUpdate.Status.INSUFFICIENT_FUNDS, update.getStatus());
+        assertEquals(0, OPENING_BALANCE.compareTo(update.getAccount().getBalance()));
+        assertEquals(0, OPENING_BALANCE.compareTo(balance(first)));
+    }
+
+    @Test
+    void debitAndCreditReturnTheUpdatedAccount() {
+        BalanceUpdate debit = accountRepository.debit(first, OPENING_BALANCE);
+        BalanceUpdate credit = accountRepository.credit(second, new BigDecimal("0.50"));
+
+        assertEquals(BalanceUpdate.Status.APPLIED, debit.getStatus());
+        assertEquals(first, debit.getAccount().getAccountNumber());
+        assertEquals(0, BigDecimal.ZERO.compareTo(debit.getAccount().getBalance()));
+        assertEquals(0, new BigDecimal("500.50").compareTo(credit.getAccount().getBalance()));
+    }
+
+    @Test
+    void unknownAccountIsReportedAsNotFound() {
+        assertEquals(BalanceUpdate.Status.NOT_FOUND, accountRepository.debit("NO-SUCH-ACCOUNT", BigDecimal.ONE).getStatus());
+        assertEquals(BalanceUpdate.Status.NOT_FOUND, accountRepository.credit("NO-SUCH-ACCOUNT", BigDecimal.ONE).getStatus());
+        assertNull(accountRepository.credit("NO-SUCH-ACCOUNT", BigDecimal.ONE).getAccount());
+    }
+
+    private String open(BigDecimal balance) {
+        Account account = new Account();
+        account.setAccountNumber("ACC-" + UUID.randomUUID());
+        account.setUserId(1L);
+        account.setBalance(balance);
+        return accountRepository.save(account).getAccountNumber();
+    }
+
+    private BigDecimal balance(String accountNumber) {
+        return jdbcTemplate.queryForObject("SELECT balance FROM account WHERE account_number = ?", BigDecimal.class, accountNumber);
+    }
+}
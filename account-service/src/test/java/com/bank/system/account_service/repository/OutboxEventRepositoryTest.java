@@ -0,0 +1,48 @@
+package com.bank.system.account_service.repository;
+
+import com.bank.system.account_service.domain.MarkAsSentResult;
+import com.bank.system.account_service.domain.OutboxEvent;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(properties = "outbox.dispatcher.enabled=false")
+class OutboxEventRepositoryTest {
+
+    @Autowired
+    private OutboxEventRepository outboxEventRepository;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @BeforeEach
+    void setUp() {
+        jdbcTemplate.update("DELETE FROM outbox_event");
+    }
+
+    @Test
+    void markAllAsSentReportsRowsThatLostTheVersionRace() {
+        for (int i = 0; i < 3; i++) {
+            outboxEventRepository.save(new OutboxEvent(null, "Payment", UUID.randomUUID(), "SenderDebitedEvent",
+                    "{}", Instant.now(), false));
+        }
+        List<OutboxEvent> events = outboxEventRepository.fetchUnsentEvents(10);
+        OutboxEvent raced = events.get(1);
+        assertTrue(outboxEventRepository.markAsSent(raced.getId(), raced.getVersion()));
+
+        MarkAsSentResult result = outboxEventRepository.markAllAsSent(events);
+
+        assertEquals(List.of(events.get(0).getId(), events.get(2).getId()), result.getSentIds());
+        assertEquals(List.of(raced.getId()), result.getConflictedIds());
+        assertEquals(0, outboxEventRepository.fetchUnsentEvents(10).size());
+    }
+}
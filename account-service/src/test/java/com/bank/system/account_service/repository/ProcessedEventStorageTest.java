@@ -0,0 +1,106 @@
+package com.bank.system.account_service.repository;
+
+import com.bank.system.account_service.config.DedupProperties;
+import com.bank.system.account_service.config.DedupProperties.PayloadStorage;
+import com.bank.system.account_service.dedup.ProcessedEventDeduplicator;
+import com.bank.system.dtos.dto.PaymentInitiatedEvent;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import liquibase.integration.spring.SpringLiquibase;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Fills processed_event of an on-disk H2 database once per payload storage mode and compares the space the
+ * table takes and the cost of the lookup the deduplicator falls back to.
+ */
+class ProcessedEventStorageTest {
+
+    private static final Logger log = LoggerFactory.getLogger(ProcessedEventStorageTest.class);
+    private static final int ROWS = 50_000;
+    private static final int BATCH = 1_000;
+    private static final int LOOKUPS = 5_000;
+
+    private final ObjectMapper objectMapper = new ObjectMapper().registerModule(new JavaTimeModule());
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void hashAndNoneKeepTheTableFarSmallerThanFullPayloads() throws Exception {
+        long[] full = measure(PayloadStorage.FULL);
+        long[] hash = measure(PayloadStorage.HASH);
+        long[] none = measure(PayloadStorage.NONE);
+
+        log.info("{} processed events: full {} bytes/row, {} ns/lookup; hash {} bytes/row, {} ns/lookup; none {} bytes/row, {} ns/lookup",
+                ROWS, full[0], full[1], hash[0], hash[1], none[0], none[1]);
+        assertTrue(hash[0] < full[0], "a hash is shorter than the event it stands for");
+        assertTrue(none[0] < hash[0], "no payload at all is smaller still");
+    }
+
+    /**
+     * @return bytes per row of processed_event and its indexes, and nanoseconds per lookup by event id
+     */
+    private long[] measure(PayloadStorage storage) throws Exception {
+        String url = "jdbc:h2:" + directory.resolve(storage.name().toLowerCase()).resolve("bankdb");
+        SingleConnectionDataSource dataSource = new SingleConnectionDataSource(url, "sa", "", true);
+        try {
+            migrate(dataSource);
+            JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+            ProcessedEventRepository repository = new ProcessedEventRepository(jdbcTemplate);
+            DedupProperties properties = new DedupProperties();
+            properties.setPayload(storage);
+            ProcessedEventDeduplicator deduplicator = new ProcessedEventDeduplicator(repository, properties, objectMapper);
+
+            List<UUID> ids = new ArrayList<>(ROWS);
+            for (int b = 0; b < ROWS / BATCH; b++) {
+                List<PaymentInitiatedEvent> events = new ArrayList<>(BATCH);
+                for (int i = 0; i < BATCH; i++) {
+                    PaymentInitiatedEvent event = new PaymentInitiatedEvent(UUID.randomUUID(), "ACC-" + UUID.randomUUID(),
+                            "ACC-" + UUID.randomUUID(), new BigDecimal("125.50"), "EUR", UUID.randomUUID().toString(), Instant.now());
+                    event.setEventId(UUID.randomUUID());
+                    events.add(event);
+                    ids.add(event.getEventId());
+                }
+                deduplicator.saveAll(events, "PaymentInitiatedEvent");
+            }
+            jdbcTemplate.execute("CHECKPOINT SYNC");
+            long bytes = jdbcTemplate.queryForObject("SELECT DISK_SPACE_USED('PROCESSED_EVENT')", Long.class);
+
+            // Warm the lookup up before the clock starts
+            for (int i = 0; i < LOOKUPS; i++) {
+                repository.existsById(ids.get(i * 7 % ROWS));
+            }
+            long started = System.nanoTime();
+            for (int i = 0; i < LOOKUPS; i++) {
+                repository.existsById(ids.get(i * 11 % ROWS));
+            }
+            long lookup = (System.nanoTime() - started) / LOOKUPS;
+            return new long[]{bytes / ROWS, lookup};
+        } finally {
+            dataSource.destroy();
+        }
+    }
+
+    private static void migrate(SingleConnectionDataSource dataSource) throws Exception {
+        SpringLiquibase liquibase = new SpringLiquibase();
+        liquibase.setDataSource(dataSource);
+        liquibase.setChangeLog("classpath:db/changelog/db.changelog-master.sql");
+        liquibase.setResourceLoader(new DefaultResourceLoader());
+        liquibase.afterPropertiesSet();
+    }
+}
@@ -0,0 +1,205 @@
+package com.bank.system.account_service.repository;
+
+import com.bank.system.account_service.domain.Account;
+import com.bank.system.account_service.domain.BalanceUpdate;
+import org.h2.api.Trigger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(properties = "outbox.dispatcher.enabled=false")
+class StripedAccountRepositoryTest {
+
+    private static final Logger log = LoggerFactory.getLogger(StripedAccountRepositoryTest.class);
+    private static final int THREADS = 16;
+    private static final int OPERATIONS_PER_THREAD = 200;
+    private static final int STRIPES = 8;
+    private static final BigDecimal OPENING_BALANCE = new BigDecimal("400.00");
+
+    @Autowired
+    private AccountRepository accountRepository;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    private final List<String> accounts = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        accounts.clear();
+    }
+
+    @AfterEach
+    void tearDown() {
+        accounts.forEach(accountRepository::deleteByAccountNumber);
+    }
+
+    @Test
+    void stripingSpreadsTheBalanceAndFoldsItBack() {
+        String hot = open(new BigDecimal("500.03"));
+
+        Account striped = accountRepository.stripe(hot, 4).orElseThrow();
+
+        assertEquals(4, striped.getStripes());
+        assertEquals(0, new BigDecimal("500.03").compareTo(striped.getBalance()));
+        assertEquals(0, BigDecimal.ZERO.compareTo(rowBalance(hot)));
+        assertEquals(List.of(new BigDecimal("125.03"), new BigDecimal("125.00"), new BigDecimal("125.00"), new BigDecimal("125.00")),
+                jdbcTemplate.queryForList("SELECT balance FROM account_stripe WHERE account_number = ? ORDER BY stripe_no",
+                        BigDecimal.class, hot));
+
+        Account folded = accountRepository.stripe(hot, 1).orElseThrow();
+
+        assertEquals(1, folded.getStripes());
+        assertEquals(0, new BigDecimal("500.03").compareTo(rowBalance(hot)));
+        assertEquals(0, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM account_stripe WHERE account_number = ?", Integer.class, hot));
+    }
+
+    @Test
+    void debitBorrowsAcrossStripesUntilTheTotalRunsOut() {
+        String hot = open(OPENING_BALANCE);
+        accountRepository.stripe(hot, 4);
+
+        // No single stripe holds more than 100.00
+        BalanceUpdate borrowed = accountRepository.debit(hot, new BigDecimal("250.00"));
+        BalanceUpdate refused = accountRepository.debit(hot, new BigDecimal("150.01"));
+
+        assertEquals(BalanceUpdate.Status.APPLIED, borrowed.getStatus());
+        assertEquals(0, new BigDecimal("150.00").compareTo(borrowed.getAccount().getBalance()));
+        assertEquals(BalanceUpdate.Status.INSUFFICIENT_FUNDS, refused.getStatus());
+        assertEquals(0, new BigDecimal("150.00").compareTo(refused.getAccount().getBalance()));
+        assertTrue(accountRepository.debit(hot, new BigDecimal("150.00")).isApplied());
+        assertEquals(0, BigDecimal.ZERO.compareTo(accountRepository.findByAccountNumber(hot).orElseThrow().getBalance()));
+    }
+
+    @Test
+    void creditsAndDebitsOfAStripedAccountConserveTheTotal() throws Exception {
+        String hot = open(OPENING_BALANCE);
+        String other = open(OPENING_BALANCE);
+        accountRepository.stripe(hot, STRIPES);
+
+        run(hot, other);
+
+        BigDecimal hotBalance = accountRepository.findByAccountNumber(hot).orElseThrow().getBalance();
+        BigDecimal otherBalance = rowBalance(other);
+        assertEquals(0, OPENING_BALANCE.multiply(BigDecimal.TWO).compareTo(hotBalance.add(otherBalance)));
+        assertEquals(0, jdbcTemplate.queryForObject(
+                "SELECT COUNT(*) FROM account_stripe WHERE account_number = ? AND balance < 0", Integer.class, hot));
+    }
+
+    @Test
+    void stripingRaisesThroughputOnOneHotAccount() throws Exception {
+        String plain = open(OPENING_BALANCE);
+        String striped = open(OPENING_BALANCE);
+        accountRepository.stripe(striped, STRIPES);
+
+        // Warm-up, so neither run pays for JIT compilation or filling the connection pool
+        run(open(OPENING_BALANCE), null);
+
+        // H2 commits in memory, so a row lock is held for microseconds and nothing ever queues on it. A
+        // trigger sleeping after each balance write stands in for the commit flush a real database does
+        // while it still holds the lock.
+        double plainRate;
+        double stripedRate;
+        try {
+            createCommitLatencyTrigger("account");
+            createCommitLatencyTrigger("account_stripe");
+            plainRate = run(plain, null);
+            stripedRate = run(striped, null);
+        } finally {
+            jdbcTemplate.execute("DROP TRIGGER IF EXISTS account_commit_latency");
+            jdbcTemplate.execute("DROP TRIGGER IF EXISTS account_stripe_commit_latency");
+        }
+
+        log.info("Hot account: {} ops/s on one row, {} ops/s over {} stripes",
+                String.format("%.0f", plainRate), String.format("%.0f", stripedRate), STRIPES);
+        assertTrue(stripedRate > plainRate, "striping should spread the contention over the stripes");
+    }
+
+    // Every thread alternates credits and debits of the hot account; with a counterparty they become transfers
+    private double run(String hot, String counterparty) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> workers = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            workers.add(executor.submit(() -> {
+                start.await();
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+                    BigDecimal amount = BigDecimal.valueOf(random.nextInt(1, 2_000), 2);
+                    if (counterparty == null) {
+                        if (i % 2 == 0) {
+                            accountRepository.debit(hot, amount);
+                        } else {
+                            assertTrue(accountRepository.credit(hot, amount).isApplied());
+                        }
+                    } else {
+                        String from = i % 2 == 0 ? hot : counterparty;
+                        String to = i % 2 == 0 ? counterparty : hot;
+                        if (accountRepository.debit(from, amount).isApplied()) {
+                            assertTrue(accountRepository.credit(to, amount).isApplied());
+                        }
+                    }
+                }
+                return null;
+            }));
+        }
+        long started = System.nanoTime();
+        start.countDown();
+        for (Future<?> worker : workers) {
+            worker.get();
+        }
+        executor.shutdown();
+        return THREADS * OPERATIONS_PER_THREAD / ((System.nanoTime() - started) / 1_000_000_000.0);
+    }
+
+    private String open(BigDecimal balance) {
+        Account account = new Account();
+        account.setAccountNumber("ACC-" + UUID.randomUUID());
+        account.setUserId(1L);
+        account.setBalance(balance);
+        String accountNumber = accountRepository.save(account).getAccountNumber();
+        accounts.add(accountNumber);
+        return accountNumber;
+    }
+
+    private void createCommitLatencyTrigger(String table) {
+        jdbcTemplate.execute("CREATE TRIGGER " + table + "_commit_latency AFTER UPDATE ON " + table
+                + " FOR EACH ROW CALL '" + CommitLatencyTrigger.class.getName() + "'");
+    }
+
+    private BigDecimal rowBalance(String accountNumber) {
+        return jdbcTemplate.queryForObject("SELECT balance FROM account WHERE account_number = ?", BigDecimal.class, accountNumber);
+    }
+
+    public static class CommitLatencyTrigger implements Trigger {
+
+        @Override
+        public void fire(Connection conn, Object[] oldRow, Object[] newRow) throws SQLException {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package com.bank.system.account_service.service;
+
+import com.bank.system.account_service.domain.Account;
+import com.bank.system.account_service.ledger.AccountLedger;
+import com.bank.system.account_service.repository.AccountRepository;
+import com.bank.system.account_service.repository.LedgerEntryRepository;
+import com.bank.system.dtos.dto.CompensatePaymentEvent;
+import com.bank.system.dtos.dto.CompensatePaymentRequestEvent;
+import com.bank.system.dtos.dto.PaymentInitiatedEvent;
+import com.bank.system.dtos.dto.ReceiverCreditRequestEvent;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.bean.override.mockito.MockitoSpyBean;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doCallRealMethod;
+import static org.mockito.Mockito.doThrow;
+
+/**
+ * Sagas whose reply, rather than the command, is the event that went missing: payment-service sends the command
+ * again with the same event id, or gives up on the credit and compensates.
+ */
+@SpringBootTest(properties = {
+        "outbox.dispatcher.enabled=false",
+        "ledger.snapshot.enabled=false"
+})
+class PaymentAccountServiceTest {
+
+    @Autowired
+    private PaymentAccountService paymentAccountService;
+
+    @Autowired
+    private AccountRepository accountRepository;
+
+    @Autowired
+    private AccountLedger accountLedger;
+
+    @MockitoSpyBean
+    private LedgerEntryRepository ledgerEntryRepository;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    private final List<UUID> payments = new ArrayList<>();
+
+    @AfterEach
+    void tearDown() {
+        for (UUID paymentId : payments) {
+            jdbcTemplate.update("DELETE FROM outbox_event WHERE aggregate_id = ?", paymentId);
+        }
+        jdbcTemplate.update("DELETE FROM processed_event WHERE payload LIKE '%SAGA-%'");
+        jdbcTemplate.update("DELETE FROM ledger_entry WHERE account_number LIKE 'SAGA-%'");
+        jdbcTemplate.update("DELETE FROM account WHERE account_number LIKE 'SAGA-%'");
+    }
+
+    @Test
+    void aRedeliveredCommandGetsItsRecordedReplyAgain() throws Exception {
+        String sender = open("100.00");
+        PaymentInitiatedEvent initiated = initiated(sender, "SAGA-RECEIVER", "30.00");
+
+        paymentAccountService.handlePaymentInitiatedEvent(initiated);
+        paymentAccountService.handlePaymentInitiatedEvent(initiated);
+        paymentAccountService.handlePaymentInitiatedEvents(List.of(initiated));
+
+        assertEquals(0, new BigDecimal("70.00").compareTo(balance(sender)), "debited once");
+        List<String> replies = payloads(initiated.getPaymentId(), AccountTransactionalService.SENDER_DEBITED_EVENT);
+        assertEquals(3, replies.size(), "the reply is re-sent for every redelivery");
+        assertEquals(1, replies.stream().distinct().count(), "with its original eventId, so payment-service takes it once");
+        assertNotNull(objectMapper.readTree(replies.get(0)).get("eventId").textValue());
+    }
+
+    @Test
+    void aCreditWhoseReplyWasLostIsReversedByTheCompensation() throws Exception {
+        String sender = open("100.00");
+        String receiver = open("0.00");
+        PaymentInitiatedEvent initiated = initiated(sender, receiver, "30.00");
+        paymentAccountService.handlePaymentInitiatedEvent(initiated);
+        ReceiverCreditRequestEvent creditRequest = creditRequest(initiated);
+        paymentAccountService.handleReceiverCreditRequestEvent(creditRequest);
+        paymentAccountService.handleReceiverCreditRequestEvent(creditRequest);
+        List<String> credits = payloads(initiated.getPaymentId(), AccountTransactionalService.RECEIVER_CREDIT_EVENT);
+        assertEquals(2, credits.size());
+        assertEquals(credits.get(0), credits.get(1));
+        assertEquals(0, new BigDecimal("30.00").compareTo(balance(receiver)), "credited once");
+
+        // Neither ReceiverCreditEvent got through, and payment-service gave up on the credit
+        paymentAccountService.handleCompensatePaymentRequestEvent(compensation(initiated));
+
+        assertEquals(0, BigDecimal.ZERO.compareTo(balance(receiver)), "the credit is reversed");
+        assertEquals(0, new BigDecimal("100.00").compareTo(balance(sender)), "the sender is refunded");
+        CompensatePaymentEvent reply = reply(initiated);
+        assertFalse(reply.isCreditKept());
+        assertEquals(0, BigDecimal.ZERO.compareTo(jdbcTemplate.queryForObject(
+                "SELECT SUM(amount) FROM ledger_entry WHERE payment_id = ?", BigDecimal.class, initiated.getPaymentId())));
+    }
+
+    @Test
+    void aCreditTheReceiverHasSpentIsKeptInsteadOfRefunded() throws Exception {
+        String sender = open("100.00");
+        String receiver = open("0.00");
+        PaymentInitiatedEvent initiated = initiated(sender, receiver, "30.00");
+        paymentAccountService.handlePaymentInitiatedEvent(initiated);
+        paymentAccountService.handleReceiverCreditRequestEvent(creditRequest(initiated));
+        assertTrue(accountLedger.debit(UUID.randomUUID(), receiver, new BigDecimal("25.00")).isApplied());
+
+        CompensatePaymentRequestEvent compensation = compensation(initiated);
+        paymentAccountService.handleCompensatePaymentRequestEvents(List.of(compensation));
+        paymentAccountService.handleCompensatePaymentRequestEvents(List.of(compensation));
+
+        assertEquals(0, new BigDecimal("5.00").compareTo(balance(receiver)), "no reversal the receiver cannot cover");
+        assertEquals(0, new BigDecimal("70.00").compareTo(balance(sender)), "and no refund without one");
+        assertTrue(reply(initiated).isCreditKept());
+        List<String> replies = payloads(initiated.getPaymentId(), AccountTransactionalService.COMPENSATE_PAYMENT_EVENT);
+        assertEquals(2, replies.size());
+        assertEquals(replies.get(0), replies.get(1));
+    }
+
+    @Test
+    void aCreditRequestArrivingAfterTheCompensationIsRefused() {
+        String sender = open("100.00");
+        String receiver = open("0.00");
+        PaymentInitiatedEvent initiated = initiated(sender, receiver, "30.00");
+        paymentAccountService.handlePaymentInitiatedEvent(initiated);
+
+        // The credit request is still on its way when payment-service gives up on it
+        paymentAccountService.handleCompensatePaymentRequestEvents(List.of(compensation(initiated)));
+        paymentAccountService.handleReceiverCreditRequestEvents(List.of(creditRequest(initiated)));
+        paymentAccountService.handleReceiverCreditRequestEvent(creditRequest(initiated));
+
+        assertEquals(0, BigDecimal.ZERO.compareTo(balance(receiver)));
+        assertEquals(0, new BigDecimal("100.00").compareTo(balance(sender)));
+        assertEquals(2, payloads(initiated.getPaymentId(), AccountTransactionalService.RECEIVER_CREDIT_FAILED_EVENT).size());
+        assertTrue(payloads(initiated.getPaymentId(), AccountTransactionalService.RECEIVER_CREDIT_EVENT).isEmpty());
+    }
+
+    @Test
+    void aCreditThatCannotBeRecordedIsRolledBackAndTriedAgain() {
+        String sender = open("100.00");
+        String receiver = open("0.00");
+        PaymentInitiatedEvent initiated = initiated(sender, receiver, "30.00");
+        paymentAccountService.handlePaymentInitiatedEvent(initiated);
+        ReceiverCreditRequestEvent creditRequest = creditRequest(initiated);
+        // The credit is applied before its ledger entry fails
+        doThrow(new IllegalStateException("database unavailable")).doCallRealMethod()
+                .when(ledgerEntryRepository).append(eq(receiver), any(), any());
+
+        paymentAccountService.handleReceiverCreditRequestEvent(creditRequest);
+
+        assertEquals(0, BigDecimal.ZERO.compareTo(balance(receiver)), "the applied credit is reverted");
+        assertTrue(payloads(initiated.getPaymentId(), AccountTransactionalService.RECEIVER_CREDIT_FAILED_EVENT).isEmpty(),
+                "an unexpected error is no reason to give up on the credit");
+
+        paymentAccountService.handleReceiverCreditRequestEvent(creditRequest);
+
+        assertEquals(0, new BigDecimal("30.00").compareTo(balance(receiver)));
+        assertEquals(1, payloads(initiated.getPaymentId(), AccountTransactionalService.RECEIVER_CREDIT_EVENT).size());
+    }
+
+    @Test
+    void aCompensationThatFailedIsRunAgainByTheSweepersRetry() throws Exception {
+        String sender = "SAGA-" + UUID.randomUUID();
+        PaymentInitiatedEvent initiated = initiated(sender, "SAGA-RECEIVER", "30.00");
+        CompensatePaymentRequestEvent compensation = compensation(initiated);
+
+        // The sender's account is not there yet, so the refund throws
+        paymentAccountService.handleCompensatePaymentRequestEvent(compensation);
+        assertTrue(payloads(initiated.getPaymentId(), AccountTransactionalService.COMPENSATE_PAYMENT_EVENT).isEmpty());
+
+        open(sender, "70.00");
+        paymentAccountService.handleCompensatePaymentRequestEvent(compensation);
+
+        assertEquals(0, new BigDecimal("100.00").compareTo(balance(sender)), "the retry is not taken for a duplicate");
+        assertFalse(reply(initiated).isCreditKept());
+    }
+
+    @Test
+    void anAmountNoBalanceCanHoldFailsTheDebit() {
+        String sender = open("100.00");
+        PaymentInitiatedEvent single = initiated(sender, "SAGA-RECEIVER", "10.005");
+        PaymentInitiatedEvent batched = initiated(sender, "SAGA-RECEIVER", "10.005");
+        PaymentInitiatedEvent valid = initiated(sender, "SAGA-RECEIVER", "10.00");
+
+        assertFalse(paymentAccountService.handlePaymentInitiatedEvent(single));
+        paymentAccountService.handlePaymentInitiatedEvents(List.of(batched, valid));
+
+        assertEquals(1, payloads(single.getPaymentId(), AccountTransactionalService.SENDER_DEBITED_FAILED_EVENT).size());
+        assertEquals(1, payloads(batched.getPaymentId(), AccountTransactionalService.SENDER_DEBITED_FAILED_EVENT).size());
+        assertEquals(1, payloads(valid.getPaymentId(), AccountTransactionalService.SENDER_DEBITED_EVENT).size());
+        assertEquals(0, new BigDecimal("90.00").compareTo(balance(sender)));
+    }
+
+    private CompensatePaymentEvent reply(PaymentInitiatedEvent initiated) throws Exception {
+        List<String> replies = payloads(initiated.getPaymentId(), AccountTransactionalService.COMPENSATE_PAYMENT_EVENT);
+        assertFalse(replies.isEmpty(), "the compensation is answered");
+        return objectMapper.readValue(replies.get(0), CompensatePaymentEvent.class);
+    }
+
+    private List<String> payloads(UUID paymentId, String type) {
+        return jdbcTemplate.queryForList("SELECT payload FROM outbox_event WHERE aggregate_id = ? AND type = ? ORDER BY created_at",
+                String.class, paymentId, type);
+    }
+
+    private PaymentInitiatedEvent initiated(String sender, String receiver, String amount) {
+        PaymentInitiatedEvent event = new PaymentInitiatedEvent(UUID.randomUUID(), sender, receiver,
+                new BigDecimal(amount), "EUR", UUID.randomUUID().toString(), Instant.now());
+        event.setEventId(UUID.randomUUID());
+        payments.add(event.getPaymentId());
+        return event;
+    }
+
+    private static ReceiverCreditRequestEvent creditRequest(PaymentInitiatedEvent initiated) {
+        ReceiverCreditRequestEvent event = new ReceiverCreditRequestEvent(initiated.getPaymentId(), initiated.getReceiverAccountId(),
+                initiated.getAmount(), initiated.getCurrency(), Instant.now());
+        event.setEventId(UUID.randomUUID());
+        return event;
+    }
+
+    private static CompensatePaymentRequestEvent compensation(PaymentInitiatedEvent initiated) {
+        CompensatePaymentRequestEvent event = new CompensatePaymentRequestEvent(initiated.getPaymentId(),
+                initiated.getSenderAccountId(), "timed out", Instant.now());
+        event.setAmount(initiated.getAmount());
+        event.setEventId(UUID.randomUUID());
+        return event;
+    }
+
+    private String open(String balance) {
+        return open("SAGA-" + UUID.randomUUID(), balance);
+    }
+
+    private String open(String accountNumber, String balance) {
+        Account account = new Account();
+        account.setAccountNumber(accountNumber);
+        account.setUserId(1L);
+        account.setBalance(new BigDecimal(balance));
+        return accountRepository.save(account).getAccountNumber();
+    }
+
+    private BigDecimal balance(String accountNumber) {
+        return accountRepository.findByAccountNumber(accountNumber).orElseThrow().getBalance();
+    }
+}
@@ -11,6 +11,9 @@ public class CompensatePaymentEvent extends Event {
     private BigDecimal amount;
     private String reason;
     private Instant timestamp;
+    // Set on a reply whose compensation found the receiver's credit applied and beyond reversal: nothing was
+    // refunded and the payment stands
+    private boolean creditKept;
 
     public CompensatePaymentEvent() {
     }
@@ -54,6 +57,14 @@ public class CompensatePaymentEvent extends Event {
         this.timestamp = timestamp;
     }
 
+    public boolean isCreditKept() {
+        return creditKept;
+    }
+
+    public void setCreditKept(boolean creditKept) {
+        this.creditKept = creditKept;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -62,7 +73,8 @@ public class CompensatePaymentEvent extends Event {
         return Objects.equals(paymentId, that.paymentId) &&
                 Objects.equals(accountId, that.accountId) &&
                 Objects.equals(reason, that.reason) &&
-                Objects.equals(timestamp, that.timestamp);
+                Objects.equals(timestamp, that.timestamp) &&
+                creditKept == that.creditKept;
     }
 
     public BigDecimal getAmount() {
@@ -75,7 +87,7 @@ public class CompensatePaymentEvent extends Event {
 
     @Override
     public int hashCode() {
-        return Objects.hash(paymentId, accountId, amount, reason, timestamp);
+        return Objects.hash(paymentId, accountId, amount, reason, timestamp, creditKept);
     }
 
     @Override
@@ -86,6 +98,7 @@ public class CompensatePaymentEvent extends Event {
                 ", amount=" + amount +
                 ", reason='" + reason + '\'' +
                 ", timestamp=" + timestamp +
+                ", creditKept=" + creditKept +
                 '}';
     }
 }
\ No newline at end of file
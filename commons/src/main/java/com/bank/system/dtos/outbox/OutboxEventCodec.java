@@ -0,0 +1,47 @@
+package com.bank.system.dtos.outbox;
+
+import com.fasterxml.jackson.databind.ObjectReader;
+
+import java.io.IOException;
+import java.util.function.Function;
+
+/**
+ * Everything needed to publish one outbox event type: the topic it goes to, how to derive the record key
+ * and a pre-built reader for its stored JSON payload.
+ */
+public class OutboxEventCodec<T> {
+
+    private final String type;
+    private final Class<T> eventClass;
+    private final String topic;
+    private final Function<T, Object> keyExtractor;
+    private final ObjectReader reader;
+
+    OutboxEventCodec(String type, Class<T> eventClass, String topic, Function<T, Object> keyExtractor, ObjectReader reader) {
+        this.type = type;
+        this.eventClass = eventClass;
+        this.topic = topic;
+        this.keyExtractor = keyExtractor;
+        this.reader = reader;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public Class<T> getEventClass() {
+        return eventClass;
+    }
+
+    public String getTopic() {
+        return topic;
+    }
+
+    public T decode(String payload) throws IOException {
+        return reader.readValue(payload);
+    }
+
+    public String keyOf(Object event) {
+        return String.valueOf(keyExtractor.apply(eventClass.cast(event)));
+    }
+}
@@ -0,0 +1,84 @@
+package com.bank.system.dtos.outbox;
+
+import com.bank.system.dtos.dto.CompensatePaymentEvent;
+import com.bank.system.dtos.dto.CreditFailedEvent;
+import com.bank.system.dtos.dto.DebitFailedEvent;
+import com.bank.system.dtos.dto.PaymentCompletedEvent;
+import com.bank.system.dtos.dto.PaymentInitiatedEvent;
+import com.bank.system.dtos.dto.ReceiverCreditEvent;
+import com.bank.system.dtos.dto.ReceiverCreditRequestEvent;
+import com.bank.system.dtos.dto.SenderDebitedEvent;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Maps the type stored in outbox_event.type to the codec used to publish it. The standard registry below is
+ * the single place where event types, their topics and their keys are defined for every service.
+ */
+public class OutboxEventCodecRegistry {
+
+    public static final String SENDER_DEBITED_EVENT = "SenderDebitedEvent";
+    public static final String SENDER_DEBITED_FAILED_EVENT = "SenderDebitedFailedEvent";
+    public static final String RECEIVER_CREDIT_EVENT = "ReceiverCreditEvent";
+    public static final String RECEIVER_CREDIT_FAILED_EVENT = "ReceiverCreditFailedEvent";
+    public static final String COMPENSATE_PAYMENT_EVENT = "CompensatePaymentEvent";
+    public static final String PAYMENT_INITIATED_EVENT = "PaymentInitiatedEvent";
+    public static final String PAYMENT_COMPLETED_EVENT = "PaymentCompletedEvent";
+    public static final String RECEIVER_CREDIT_REQUEST_EVENT = "ReceiverCreditRequestEvent";
+
+    public static final String SENDER_DEBITED_TOPIC = "sender-debited-topic";
+    public static final String DEBIT_FAILED_TOPIC = "debit-failed-topic";
+    public static final String RECEIVER_CREDIT_TOPIC = "receiver-credit-topic";
+    public static final String CREDIT_FAILED_TOPIC = "credit-failed-topic";
+    public static final String COMPENSATE_PAYMENT_TOPIC = "compensate-payment-topic";
+    public static final String PAYMENT_INITIATED_TOPIC = "payment-initiated-topic";
+    public static final String PAYMENT_COMPLETED_TOPIC = "payment-completed-topic";
+    public static final String RECEIVER_CREDITED_REQUESTED_TOPIC = "receiver-credited-requested-topic";
+
+    private final ObjectMapper objectMapper;
+    private final Map<String, OutboxEventCodec<?>> codecs = new HashMap<>();
+
+    public OutboxEventCodecRegistry(ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
+    }
+
+    /**
+     * All outbox event types published by the account and payment services, keyed by payment id.
+     */
+    public static OutboxEventCodecRegistry standard(ObjectMapper objectMapper) {
+        return new OutboxEventCodecRegistry(objectMapper)
+                .register(SENDER_DEBITED_EVENT, SenderDebitedEvent.class, SENDER_DEBITED_TOPIC, SenderDebitedEvent::getPaymentId)
+                .register(SENDER_DEBITED_FAILED_EVENT, DebitFailedEvent.class, DEBIT_FAILED_TOPIC, DebitFailedEvent::getPaymentId)
+                .register(RECEIVER_CREDIT_EVENT, ReceiverCreditEvent.class, RECEIVER_CREDIT_TOPIC, ReceiverCreditEvent::getPaymentId)
+                .register(RECEIVER_CREDIT_FAILED_EVENT, CreditFailedEvent.class, CREDIT_FAILED_TOPIC, CreditFailedEvent::getPaymentId)
+                .register(COMPENSATE_PAYMENT_EVENT, CompensatePaymentEvent.class, COMPENSATE_PAYMENT_TOPIC, CompensatePaymentEvent::getPaymentId)
+                .register(PAYMENT_INITIATED_EVENT, PaymentInitiatedEvent.class, PAYMENT_INITIATED_TOPIC, PaymentInitiatedEvent::getPaymentId)
+                .register(PAYMENT_COMPLETED_EVENT, PaymentCompletedEvent.class, PAYMENT_COMPLETED_TOPIC, PaymentCompletedEvent::getPaymentId)
+                .register(RECEIVER_CREDIT_REQUEST_EVENT, ReceiverCreditRequestEvent.class, RECEIVER_CREDITED_REQUESTED_TOPIC,
+                        ReceiverCreditRequestEvent::getPaymentId);
+    }
+
+    public <T> OutboxEventCodecRegistry register(String type, Class<T> eventClass, String topic, Function<T, Object> keyExtractor) {
+        codecs.put(type, new OutboxEventCodec<>(type, eventClass, topic, keyExtractor, objectMapper.readerFor(eventClass)));
+        return this;
+    }
+
+    /**
+     * @throws IllegalArgumentException if no codec is registered for the type
+     */
+    public OutboxEventCodec<?> get(String type) {
+        OutboxEventCodec<?> codec = codecs.get(type);
+        if (codec == null) {
+            throw new IllegalArgumentException("Unknown outbox event type " + type);
+        }
+        return codec;
+    }
+
+    public Collection<OutboxEventCodec<?>> getAll() {
+        return codecs.values();
+    }
+}
@@ -0,0 +1,48 @@
+package com.bank.system.payment_service.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+@ConfigurationProperties(prefix = "batch")
+public class BatchProperties {
+
+    // Payments one POST /api/payments/batch may carry; larger requests are rejected with 400
+    private int maxItems = 10_000;
+    // Rows sent to the database per JDBC batch
+    private int jdbcBatchSize = 500;
+    // Idempotency keys per IN (...) lookup
+    private int lookupChunkSize = 1_000;
+    // Attempts to insert a batch that keeps losing idempotency keys to concurrent submissions
+    private int maxInsertAttempts = 3;
+
+    public int getMaxItems() {
+        return maxItems;
+    }
+
+    public void setMaxItems(int maxItems) {
+        this.maxItems = maxItems;
+    }
+
+    public int getJdbcBatchSize() {
+        return jdbcBatchSize;
+    }
+
+    public void setJdbcBatchSize(int jdbcBatchSize) {
+        this.jdbcBatchSize = jdbcBatchSize;
+    }
+
+    public int getLookupChunkSize() {
+        return lookupChunkSize;
+    }
+
+    public void setLookupChunkSize(int lookupChunkSize) {
+        this.lookupChunkSize = lookupChunkSize;
+    }
+
+    public int getMaxInsertAttempts() {
+        return maxInsertAttempts;
+    }
+
+    public void setMaxInsertAttempts(int maxInsertAttempts) {
+        this.maxInsertAttempts = maxInsertAttempts;
+    }
+}
@@ -0,0 +1,43 @@
+package com.bank.system.payment_service.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+@ConfigurationProperties(prefix = "consumer")
+public class ConsumerProperties {
+
+    private final Parallel parallel = new Parallel();
+
+    public Parallel getParallel() {
+        return parallel;
+    }
+
+    public static class Parallel {
+        private boolean enabled = true;
+        private int workers = 8;
+        private boolean virtualThreads = false;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getWorkers() {
+            return workers;
+        }
+
+        public void setWorkers(int workers) {
+            this.workers = workers;
+        }
+
+        public boolean isVirtualThreads() {
+            return virtualThreads;
+        }
+
+        public void setVirtualThreads(boolean virtualThreads) {
+            this.virtualThreads = virtualThreads;
+        }
+    }
+}
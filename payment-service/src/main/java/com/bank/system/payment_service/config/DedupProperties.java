@@ -0,0 +1,127 @@
+package com.bank.system.payment_service.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+@ConfigurationProperties(prefix = "dedup")
+public class DedupProperties {
+
+    private boolean enabled = true;
+    private int recentIds = 10_000;
+    private PayloadStorage payload = PayloadStorage.FULL;
+    private final Bloom bloom = new Bloom();
+    private final Retention retention = new Retention();
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public int getRecentIds() {
+        return recentIds;
+    }
+
+    public void setRecentIds(int recentIds) {
+        this.recentIds = recentIds;
+    }
+
+    public PayloadStorage getPayload() {
+        return payload;
+    }
+
+    public void setPayload(PayloadStorage payload) {
+        this.payload = payload;
+    }
+
+    public Bloom getBloom() {
+        return bloom;
+    }
+
+    public Retention getRetention() {
+        return retention;
+    }
+
+    public enum PayloadStorage {
+        /** Store the consumed event as JSON next to its id. */
+        FULL,
+        /** Store only a SHA-256 of the JSON, enough to check an event against an audit copy. */
+        HASH,
+        /** Store the id, type and time only; the event is not serialized at all. */
+        NONE
+    }
+
+    public static class Bloom {
+        private int expectedInsertions = 1_000_000;
+        private double falsePositiveRate = 0.01;
+
+        public int getExpectedInsertions() {
+            return expectedInsertions;
+        }
+
+        public void setExpectedInsertions(int expectedInsertions) {
+            this.expectedInsertions = expectedInsertions;
+        }
+
+        public double getFalsePositiveRate() {
+            return falsePositiveRate;
+        }
+
+        public void setFalsePositiveRate(double falsePositiveRate) {
+            this.falsePositiveRate = falsePositiveRate;
+        }
+    }
+
+    public static class Retention {
+        private boolean enabled = true;
+        // Keep processed ids at least this long; must cover how long Kafka can redeliver an event
+        private Duration retainFor = Duration.ofDays(7);
+        private int chunkSize = 1_000;
+        private Duration maxRunTime = Duration.ofSeconds(30);
+        // Day partitions created ahead of time where the table is partitioned
+        private int partitionsAhead = 2;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public Duration getRetainFor() {
+            return retainFor;
+        }
+
+        public void setRetainFor(Duration retainFor) {
+            this.retainFor = retainFor;
+        }
+
+        public int getChunkSize() {
+            return chunkSize;
+        }
+
+        public void setChunkSize(int chunkSize) {
+            this.chunkSize = chunkSize;
+        }
+
+        public Duration getMaxRunTime() {
+            return maxRunTime;
+        }
+
+        public void setMaxRunTime(Duration maxRunTime) {
+            this.maxRunTime = maxRunTime;
+        }
+
+        public int getPartitionsAhead() {
+            return partitionsAhead;
+        }
+
+        public void setPartitionsAhead(int partitionsAhead) {
+            this.partitionsAhead = partitionsAhead;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.bank.system.payment_service.config;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.time.Duration;
+
+/**
+ * Execution model switches. Setting {@code spring.threads.virtual.enabled} moves Tomcat request handling,
+ * the Kafka listener containers and scheduled jobs onto virtual threads (Spring Boot does that part); the
+ * outbox lanes and parallel consumer workers follow the same flag. The JDBC pool is the one resource that
+ * does not grow with the thread count, so {@code execution.db-limit} puts a semaphore sized to the pool in
+ * front of it.
+ */
+@Configuration
+@EnableConfigurationProperties(ExecutionProperties.class)
+public class ExecutionConfig {
+
+    private static final Logger log = LoggerFactory.getLogger(ExecutionConfig.class);
+
+    @Bean
+    public static BeanPostProcessor dataSourceConcurrencyLimiter(ObjectProvider<ExecutionProperties> executionProperties) {
+        return new BeanPostProcessor() {
+            @Override
+            public Object postProcessAfterInitialization(Object bean, String beanName) {
+                if (!(bean instanceof HikariDataSource hikari)) {
+                    return bean;
+                }
+                ExecutionProperties.DbLimit properties = executionProperties.getObject().getDbLimit();
+                if (!properties.isEnabled()) {
+                    return bean;
+                }
+                int permits = properties.getPermits() > 0 ? properties.getPermits() : hikari.getMaximumPoolSize();
+                Duration acquireTimeout = properties.getAcquireTimeout() != null
+                        ? properties.getAcquireTimeout() : Duration.ofMillis(hikari.getConnectionTimeout());
+                log.info("Limiting data source '{}' to {} concurrent connections", beanName, permits);
+                return new ConcurrencyLimitedDataSource(hikari, permits, acquireTimeout);
+            }
+        };
+    }
+}
@@ -0,0 +1,99 @@
+package com.bank.system.payment_service.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.UUID;
+
+@ConfigurationProperties(prefix = "ingestion")
+public class IngestionProperties {
+
+    // Where uploaded payment files are kept until they are ingested; must survive a restart to resume
+    private String directory = System.getProperty("java.io.tmpdir") + "/payment-files";
+    // Items inserted per transaction; the checkpoint advances once per chunk
+    private int chunkSize = 1_000;
+    // Parsed chunks waiting for the writer; the parser blocks beyond this
+    private int queueDepth = 4;
+    // Files ingested at once, each on a parser and a writer thread
+    private int maxConcurrentFiles = 2;
+    private boolean resumeOnStartup = true;
+    private boolean deleteCompleted = true;
+    // Recorded on the files this instance ingests; must be unique per instance and survive its restart
+    private String ownerId = defaultOwnerId();
+    // A file whose owner has not checkpointed for this long may be resumed by another instance that can read it
+    private Duration staleAfter = Duration.ofMinutes(5);
+
+    private static String defaultOwnerId() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return UUID.randomUUID().toString();
+        }
+    }
+
+    public String getDirectory() {
+        return directory;
+    }
+
+    public void setDirectory(String directory) {
+        this.directory = directory;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    public void setQueueDepth(int queueDepth) {
+        this.queueDepth = queueDepth;
+    }
+
+    public int getMaxConcurrentFiles() {
+        return maxConcurrentFiles;
+    }
+
+    public void setMaxConcurrentFiles(int maxConcurrentFiles) {
+        this.maxConcurrentFiles = maxConcurrentFiles;
+    }
+
+    public boolean isResumeOnStartup() {
+        return resumeOnStartup;
+    }
+
+    public void setResumeOnStartup(boolean resumeOnStartup) {
+        this.resumeOnStartup = resumeOnStartup;
+    }
+
+    public boolean isDeleteCompleted() {
+        return deleteCompleted;
+    }
+
+    public void setDeleteCompleted(boolean deleteCompleted) {
+        this.deleteCompleted = deleteCompleted;
+    }
+
+    public String getOwnerId() {
+        return ownerId;
+    }
+
+    public void setOwnerId(String ownerId) {
+        this.ownerId = ownerId;
+    }
+
+    public Duration getStaleAfter() {
+        return staleAfter;
+    }
+
+    public void setStaleAfter(Duration staleAfter) {
+        this.staleAfter = staleAfter;
+    }
+}
@@ -0,0 +1,9 @@
+package com.bank.system.payment_service.config;
+
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+@EnableConfigurationProperties(ConsumerProperties.class)
+public class KafkaConsumerConfig {
+}
@@ -0,0 +1,17 @@
+package com.bank.system.payment_service.config;
+
+import com.bank.system.dtos.outbox.OutboxEventCodecRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+@EnableConfigurationProperties(OutboxProperties.class)
+public class OutboxConfig {
+
+    @Bean
+    public OutboxEventCodecRegistry outboxEventCodecRegistry(ObjectMapper objectMapper) {
+        return OutboxEventCodecRegistry.standard(objectMapper);
+    }
+}
@@ -0,0 +1,341 @@
+package com.bank.system.payment_service.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+@ConfigurationProperties(prefix = "outbox")
+public class OutboxProperties {
+
+    private final Dispatcher dispatcher = new Dispatcher();
+    private final Lease lease = new Lease();
+    private final Publisher publisher = new Publisher();
+    private final Retention retention = new Retention();
+    private final Retry retry = new Retry();
+
+    public Dispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    public Lease getLease() {
+        return lease;
+    }
+
+    public Publisher getPublisher() {
+        return publisher;
+    }
+
+    public Retention getRetention() {
+        return retention;
+    }
+
+    public Retry getRetry() {
+        return retry;
+    }
+
+    public enum DispatchMode {
+        /** One batch per cycle at a fixed interval (max-interval). */
+        FIXED,
+        /** Keep fetching while batches come back full, back off exponentially when idle. */
+        DRAINING
+    }
+
+    public enum PayloadMode {
+        /** Publish the JSON stored in outbox_event as-is, with the type header consumers deserialize by. */
+        RAW,
+        /** Parse the stored JSON into its event class and let the producer serialize it again. */
+        DECODED
+    }
+
+    public enum DeliveryMode {
+        /** Every send is acknowledged on its own; a crash before the rows are marked publishes them again. */
+        AT_LEAST_ONCE,
+        /** Each batch is published in one Kafka transaction and marked as sent only once it has committed. */
+        EXACTLY_ONCE
+    }
+
+    public enum RetentionMode {
+        /** Copy expired sent events to outbox_event_archive before removing them. */
+        ARCHIVE,
+        /** Remove expired sent events without keeping a copy. */
+        DELETE
+    }
+
+    public static class Dispatcher {
+        private boolean enabled = true;
+        private DispatchMode mode = DispatchMode.DRAINING;
+        private int batchSize = 100;
+        private Duration maxDrainTime = Duration.ofMillis(500);
+        private Duration minInterval = Duration.ofMillis(50);
+        private Duration maxInterval = Duration.ofSeconds(1);
+        private Duration ackTimeout = Duration.ofSeconds(30);
+        private boolean wakeUpOnCommit = true;
+        private PayloadMode payloadMode = PayloadMode.RAW;
+        private DeliveryMode delivery = DeliveryMode.AT_LEAST_ONCE;
+        private String transactionIdPrefix = "outbox-";
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public DispatchMode getMode() {
+            return mode;
+        }
+
+        public void setMode(DispatchMode mode) {
+            this.mode = mode;
+        }
+
+        public int getBatchSize() {
+            return batchSize;
+        }
+
+        public void setBatchSize(int batchSize) {
+            this.batchSize = batchSize;
+        }
+
+        public Duration getMaxDrainTime() {
+            return maxDrainTime;
+        }
+
+        public void setMaxDrainTime(Duration maxDrainTime) {
+            this.maxDrainTime = maxDrainTime;
+        }
+
+        public Duration getMinInterval() {
+            return minInterval;
+        }
+
+        public void setMinInterval(Duration minInterval) {
+            this.minInterval = minInterval;
+        }
+
+        public Duration getMaxInterval() {
+            return maxInterval;
+        }
+
+        public void setMaxInterval(Duration maxInterval) {
+            this.maxInterval = maxInterval;
+        }
+
+        public Duration getAckTimeout() {
+            return ackTimeout;
+        }
+
+        public void setAckTimeout(Duration ackTimeout) {
+            this.ackTimeout = ackTimeout;
+        }
+
+        public boolean isWakeUpOnCommit() {
+            return wakeUpOnCommit;
+        }
+
+        public void setWakeUpOnCommit(boolean wakeUpOnCommit) {
+            this.wakeUpOnCommit = wakeUpOnCommit;
+        }
+
+        public PayloadMode getPayloadMode() {
+            return payloadMode;
+        }
+
+        public void setPayloadMode(PayloadMode payloadMode) {
+            this.payloadMode = payloadMode;
+        }
+
+        public DeliveryMode getDelivery() {
+            return delivery;
+        }
+
+        public void setDelivery(DeliveryMode delivery) {
+            this.delivery = delivery;
+        }
+
+        public String getTransactionIdPrefix() {
+            return transactionIdPrefix;
+        }
+
+        public void setTransactionIdPrefix(String transactionIdPrefix) {
+            this.transactionIdPrefix = transactionIdPrefix;
+        }
+    }
+
+    /**
+     * Lease-based dispatch for running several instances side by side. Outbox rows are split into
+     * {@code partitions} slices by a hash of their aggregate id; each instance leases a fair share of the
+     * slices and drains them on {@code workers} threads, so no two instances ever publish the same slice.
+     * The lease duration has to outlive ack-timeout, otherwise a slow batch may be taken over mid-flight.
+     * Without leases nothing keeps a second instance from publishing the same rows.
+     */
+    public static class Lease {
+        private boolean enabled = false;
+        private int partitions = 16;
+        private Duration duration = Duration.ofMinutes(1);
+        private int workers = 4;
+        private String ownerId;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getPartitions() {
+            return partitions;
+        }
+
+        public void setPartitions(int partitions) {
+            this.partitions = partitions;
+        }
+
+        public Duration getDuration() {
+            return duration;
+        }
+
+        public void setDuration(Duration duration) {
+            this.duration = duration;
+        }
+
+        public int getWorkers() {
+            return workers;
+        }
+
+        public void setWorkers(int workers) {
+            this.workers = workers;
+        }
+
+        public String getOwnerId() {
+            return ownerId;
+        }
+
+        public void setOwnerId(String ownerId) {
+            this.ownerId = ownerId;
+        }
+    }
+
+    /**
+     * Worker lanes that hand outbox events to the producer. Events are routed by aggregate id, so each
+     * payment keeps its order while different payments are published in parallel.
+     */
+    public static class Publisher {
+        private int lanes = 4;
+        private int queueDepth = 1000;
+
+        public int getLanes() {
+            return lanes;
+        }
+
+        public void setLanes(int lanes) {
+            this.lanes = lanes;
+        }
+
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
+        public void setQueueDepth(int queueDepth) {
+            this.queueDepth = queueDepth;
+        }
+    }
+
+    /**
+     * Background compaction of sent outbox events. Rows older than {@code retain-for} are archived or
+     * deleted in chunks of {@code chunk-size}, each in its own short transaction.
+     */
+    public static class Retention {
+        private boolean enabled = true;
+        private RetentionMode mode = RetentionMode.ARCHIVE;
+        private Duration retainFor = Duration.ofDays(7);
+        private int chunkSize = 500;
+        private Duration maxRunTime = Duration.ofSeconds(30);
+        private Duration interval = Duration.ofMinutes(1);
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public RetentionMode getMode() {
+            return mode;
+        }
+
+        public void setMode(RetentionMode mode) {
+            this.mode = mode;
+        }
+
+        public Duration getRetainFor() {
+            return retainFor;
+        }
+
+        public void setRetainFor(Duration retainFor) {
+            this.retainFor = retainFor;
+        }
+
+        public int getChunkSize() {
+            return chunkSize;
+        }
+
+        public void setChunkSize(int chunkSize) {
+            this.chunkSize = chunkSize;
+        }
+
+        public Duration getMaxRunTime() {
+            return maxRunTime;
+        }
+
+        public void setMaxRunTime(Duration maxRunTime) {
+            this.maxRunTime = maxRunTime;
+        }
+
+        public Duration getInterval() {
+            return interval;
+        }
+
+        public void setInterval(Duration interval) {
+            this.interval = interval;
+        }
+    }
+
+    /**
+     * Backoff for events that fail to publish. The delay starts at {@code initial-backoff} and doubles with
+     * every attempt up to {@code max-backoff}; after {@code max-attempts} the event is flagged failed and
+     * copied to outbox_event_dead_letter, so a poison row never holds up the rest of the outbox.
+     */
+    public static class Retry {
+        private int maxAttempts = 10;
+        private Duration initialBackoff = Duration.ofSeconds(1);
+        private Duration maxBackoff = Duration.ofMinutes(5);
+
+        public int getMaxAttempts() {
+            return maxAttempts;
+        }
+
+        public void setMaxAttempts(int maxAttempts) {
+            this.maxAttempts = maxAttempts;
+        }
+
+        public Duration getInitialBackoff() {
+            return initialBackoff;
+        }
+
+        public void setInitialBackoff(Duration initialBackoff) {
+            this.initialBackoff = initialBackoff;
+        }
+
+        public Duration getMaxBackoff() {
+            return maxBackoff;
+        }
+
+        public void setMaxBackoff(Duration maxBackoff) {
+            this.maxBackoff = maxBackoff;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.bank.system.payment_service.config;
+
+import com.bank.system.payment_service.domain.PaymentStatus;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+
+@ConfigurationProperties(prefix = "saga")
+public class SagaProperties {
+
+    private final Sweeper sweeper = new Sweeper();
+
+    public Sweeper getSweeper() {
+        return sweeper;
+    }
+
+    public static class Sweeper {
+        private boolean enabled = true;
+        // How long a payment may sit in each status before it is retried; statuses not listed are never swept
+        private Map<PaymentStatus, Duration> timeouts = new EnumMap<>(Map.of(
+                PaymentStatus.INITIATED, Duration.ofMinutes(5),
+                PaymentStatus.SENDER_DEBITED, Duration.ofMinutes(5),
+                PaymentStatus.CREDIT_FAILED, Duration.ofMinutes(15)));
+        // Retries of one status before the saga gives up on it
+        private int maxRetries = 3;
+        private int chunkSize = 500;
+        private Duration maxRunTime = Duration.ofSeconds(30);
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public Map<PaymentStatus, Duration> getTimeouts() {
+            return timeouts;
+        }
+
+        public void setTimeouts(Map<PaymentStatus, Duration> timeouts) {
+            this.timeouts = timeouts;
+        }
+
+        public int getMaxRetries() {
+            return maxRetries;
+        }
+
+        public void setMaxRetries(int maxRetries) {
+            this.maxRetries = maxRetries;
+        }
+
+        public int getChunkSize() {
+            return chunkSize;
+        }
+
+        public void setChunkSize(int chunkSize) {
+            this.chunkSize = chunkSize;
+        }
+
+        public Duration getMaxRunTime() {
+            return maxRunTime;
+        }
+
+        public void setMaxRunTime(Duration maxRunTime) {
+            this.maxRunTime = maxRunTime;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.bank.system.payment_service.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+@ConfigurationProperties(prefix = "status")
+public class StatusProperties {
+
+    // How long GET /api/payments/{id}/events waits for a transition before answering with the current status
+    private Duration longPollTimeout = Duration.ofSeconds(30);
+    // How long an event stream stays open if the payment does not reach a terminal status
+    private Duration streamTimeout = Duration.ofMinutes(5);
+    // Long polls and streams held at once; further ones are turned away with 503
+    private int maxWaiters = 20_000;
+
+    public Duration getLongPollTimeout() {
+        return longPollTimeout;
+    }
+
+    public void setLongPollTimeout(Duration longPollTimeout) {
+        this.longPollTimeout = longPollTimeout;
+    }
+
+    public Duration getStreamTimeout() {
+        return streamTimeout;
+    }
+
+    public void setStreamTimeout(Duration streamTimeout) {
+        this.streamTimeout = streamTimeout;
+    }
+
+    public int getMaxWaiters() {
+        return maxWaiters;
+    }
+
+    public void setMaxWaiters(int maxWaiters) {
+        this.maxWaiters = maxWaiters;
+    }
+}
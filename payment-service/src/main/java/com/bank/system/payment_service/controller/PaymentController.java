@@ -2,15 +2,30 @@ package com.bank.system.payment_service.controller;
 
 import com.bank.system.dtos.dto.PaymentRequestDTO;
 import com.bank.system.payment_service.domain.Payment;
+import com.bank.system.payment_service.domain.PaymentFile;
+import com.bank.system.payment_service.domain.PaymentStatus;
 import com.bank.system.payment_service.service.PaymentService;
 import jakarta.validation.Valid;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.InputStream;
+import java.util.List;
+import java.util.UUID;
 
 @RestController
 @RequestMapping("/api/payments")
@@ -35,5 +50,54 @@ public class PaymentController {
         return paymentService.initiatePayment(requestDTO);
     }
 
-    // TODO: Add endpoints for getting payment status, history (if not handled by Transaction Service)
+    /**
+     * Bulk submission, e.g. a payroll run. Answers with one JSON line per item, in the order of the items:
+     * CREATED, EXISTING for an idempotency key submitted before, or REJECTED with the reason.
+     */
+    @PostMapping(value = "/batch", produces = "application/x-ndjson")
+    public ResponseEntity<StreamingResponseBody> submitBatch(@RequestBody List<PaymentRequestDTO> requestDTOs) {
+        return paymentService.submitBatch(requestDTOs);
+    }
+
+    /**
+     * Upload of a payment file as the raw request body: text/csv or pain.001 as application/xml. The file is
+     * ingested in the background; poll the returned location for its progress.
+     *
+     * @param name the customer's file name, kept for reference
+     */
+    @PostMapping(value = "/files", consumes = {"text/csv", MediaType.APPLICATION_XML_VALUE, MediaType.TEXT_XML_VALUE})
+    public ResponseEntity<PaymentFile> uploadFile(@RequestParam(defaultValue = "upload") String name,
+                                                  @RequestHeader(HttpHeaders.CONTENT_TYPE) String contentType,
+                                                  InputStream content) {
+        return paymentService.uploadFile(name, contentType, content);
+    }
+
+    @GetMapping("/files/{id}")
+    public ResponseEntity<PaymentFile> getFile(@PathVariable UUID id) {
+        return paymentService.getFile(id);
+    }
+
+    @GetMapping("/{id}")
+    public ResponseEntity<Payment> getPayment(@PathVariable UUID id) {
+        return paymentService.getPayment(id);
+    }
+
+    /**
+     * Long poll for the payment's next status.
+     *
+     * @param status the status the caller already knows; answered at once if the payment has moved on
+     */
+    @GetMapping(value = "/{id}/events", produces = MediaType.APPLICATION_JSON_VALUE)
+    public DeferredResult<ResponseEntity<Payment>> awaitStatusChange(@PathVariable UUID id,
+                                                                     @RequestParam(required = false) PaymentStatus status) {
+        return paymentService.awaitStatusChange(id, status);
+    }
+
+    /**
+     * Server-sent events of the payment's status until the saga finishes.
+     */
+    @GetMapping(value = "/{id}/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<SseEmitter> streamStatus(@PathVariable UUID id) {
+        return paymentService.streamStatus(id);
+    }
 }
@@ -0,0 +1,165 @@
+package com.bank.system.payment_service.dedup;
+
+import com.bank.system.payment_service.config.DedupProperties;
+import com.bank.system.payment_service.config.DedupProperties.PayloadStorage;
+import com.bank.system.payment_service.domain.ProcessedEvent;
+import com.bank.system.payment_service.repository.ProcessedEventRepository;
+import com.bank.system.dtos.dto.Event;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Answers "was this event processed already?" in front of processed_event. Almost every consumed event is
+ * new, so the table is asked only when it might not be: ids committed recently are answered from a bounded
+ * cache, and ids the {@link RollingBloomFilter} has never seen are new without a lookup. The filter is
+ * seeded from the newest rows of the table at startup.
+ * <p>
+ * An id joins the cache only once the transaction that recorded it has committed, so a rolled back event
+ * is processed again on redelivery. An id that rolled out of the filter looks new; recording it then finds
+ * it in processed_event and comes back as a duplicate, so the filter can cost a lookup but never a double
+ * processing.
+ */
+@Component
+public class ProcessedEventDeduplicator {
+
+    private static final Logger log = LoggerFactory.getLogger(ProcessedEventDeduplicator.class);
+
+    private final ProcessedEventRepository processedEventRepository;
+    private final DedupProperties properties;
+    private final ObjectMapper objectMapper;
+    private final RollingBloomFilter bloomFilter;
+    private final Map<UUID, Boolean> recentIds;
+
+    public ProcessedEventDeduplicator(ProcessedEventRepository processedEventRepository, DedupProperties properties,
+                                      ObjectMapper objectMapper) {
+        this.processedEventRepository = processedEventRepository;
+        this.properties = properties;
+        this.objectMapper = objectMapper;
+        this.bloomFilter = new RollingBloomFilter(properties.getBloom().getExpectedInsertions(),
+                properties.getBloom().getFalsePositiveRate());
+        int capacity = properties.getRecentIds();
+        this.recentIds = new LinkedHashMap<>(capacity * 4 / 3 + 1) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<UUID, Boolean> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    @PostConstruct
+    public void load() {
+        if (!properties.isEnabled()) {
+            return;
+        }
+        int[] loaded = {0};
+        processedEventRepository.forEachRecentId(properties.getBloom().getExpectedInsertions(), eventId -> {
+            bloomFilter.put(eventId);
+            loaded[0]++;
+        });
+        log.info("Seeded the processed-event Bloom filter ({} bits, {} hashes) with {} ids",
+                bloomFilter.getBits(), bloomFilter.getHashes(), loaded[0]);
+    }
+
+    public boolean isProcessed(UUID eventId) {
+        if (!properties.isEnabled()) {
+            return processedEventRepository.existsById(eventId);
+        }
+        if (isRecent(eventId)) {
+            return true;
+        }
+        return bloomFilter.mightContain(eventId) && processedEventRepository.existsById(eventId);
+    }
+
+    /**
+     * Records a consumed event as processed unless it was already, keeping as much of its payload as
+     * dedup.payload asks for.
+     *
+     * @return whether the event is new and should be handled
+     */
+    public boolean markProcessed(Event event, String eventType) {
+        return markProcessed(toProcessedEvent(event, eventType, Instant.now()));
+    }
+
+    /**
+     * Records the event as processed unless it was already.
+     *
+     * @return whether the event is new and should be handled
+     */
+    public boolean markProcessed(ProcessedEvent event) {
+        if (!properties.isEnabled()) {
+            return processedEventRepository.insertIfAbsent(event);
+        }
+        if (isRecent(event.getEventId())) {
+            return false;
+        }
+        boolean inserted = processedEventRepository.insertIfAbsent(event);
+        remember(List.of(event.getEventId()));
+        return inserted;
+    }
+
+    private ProcessedEvent toProcessedEvent(Event event, String eventType, Instant processedAt) {
+        if (properties.getPayload() == PayloadStorage.NONE) {
+            return new ProcessedEvent(event.getEventId(), eventType, null, processedAt);
+        }
+        String payload;
+        try {
+            payload = objectMapper.writeValueAsString(event);
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException("Failed to serialize " + eventType, e);
+        }
+        if (properties.getPayload() == PayloadStorage.HASH) {
+            return new ProcessedEvent(event.getEventId(), eventType, null, sha256(payload), processedAt);
+        }
+        return new ProcessedEvent(event.getEventId(), eventType, payload, processedAt);
+    }
+
+    private static String sha256(String payload) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(payload.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private void remember(List<UUID> eventIds) {
+        eventIds.forEach(bloomFilter::put);
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            addRecent(eventIds);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                addRecent(eventIds);
+            }
+        });
+    }
+
+    private boolean isRecent(UUID eventId) {
+        synchronized (recentIds) {
+            return recentIds.containsKey(eventId);
+        }
+    }
+
+    private void addRecent(List<UUID> eventIds) {
+        synchronized (recentIds) {
+            eventIds.forEach(eventId -> recentIds.put(eventId, Boolean.TRUE));
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.bank.system.payment_service.dedup;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A Bloom filter over event ids that forgets old ids instead of filling up. It keeps two generations of
+ * {@code expectedInsertions} ids each; once the current one is full it becomes the previous one and the
+ * old previous one is dropped, so an id is remembered for at least {@code expectedInsertions} and at most
+ * twice that many later insertions. Within that window {@link #mightContain} never answers false for an
+ * id that was put; ids that rolled out look absent, so callers must still be safe against them.
+ */
+public class RollingBloomFilter {
+
+    private final int expectedInsertions;
+    private final int bits;
+    private final int hashes;
+    private final ReentrantLock rotation = new ReentrantLock();
+    private volatile Generation current;
+    private volatile Generation previous;
+
+    public RollingBloomFilter(int expectedInsertions, double falsePositiveRate) {
+        this.expectedInsertions = expectedInsertions;
+        double ln2 = Math.log(2);
+        this.bits = (int) Math.max(64, Math.ceil(-expectedInsertions * Math.log(falsePositiveRate) / (ln2 * ln2)));
+        this.hashes = Math.max(1, (int) Math.round((double) bits / expectedInsertions * ln2));
+        this.current = new Generation(bits);
+        this.previous = new Generation(bits);
+    }
+
+    public void put(UUID id) {
+        Generation generation = current;
+        long hash1 = mix(id.getMostSignificantBits());
+        long hash2 = mix(id.getLeastSignificantBits());
+        for (int i = 0; i < hashes; i++) {
+            generation.set(index(hash1, hash2, i));
+        }
+        if (generation.inserted.incrementAndGet() == expectedInsertions) {
+            rotate(generation);
+        }
+    }
+
+    public boolean mightContain(UUID id) {
+        long hash1 = mix(id.getMostSignificantBits());
+        long hash2 = mix(id.getLeastSignificantBits());
+        return contains(current, hash1, hash2) || contains(previous, hash1, hash2);
+    }
+
+    public int getBits() {
+        return bits;
+    }
+
+    public int getHashes() {
+        return hashes;
+    }
+
+    private boolean contains(Generation generation, long hash1, long hash2) {
+        for (int i = 0; i < hashes; i++) {
+            if (!generation.get(index(hash1, hash2, i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void rotate(Generation full) {
+        rotation.lock();
+        try {
+            if (current == full) {
+                previous = full;
+                current = new Generation(bits);
+            }
+        } finally {
+            rotation.unlock();
+        }
+    }
+
+    // Kirsch-Mitzenmacher: the i-th hash is hash1 + i * hash2
+    private int index(long hash1, long hash2, int i) {
+        return (int) Math.floorMod(hash1 + i * hash2, (long) bits);
+    }
+
+    // Random UUIDs are random already; the finalizer of MurmurHash3 spreads the ones that are not
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+
+    private static final class Generation {
+        private final AtomicLongArray words;
+        private final AtomicInteger inserted = new AtomicInteger();
+
+        private Generation(int bits) {
+            this.words = new AtomicLongArray((bits + 63) / 64);
+        }
+
+        private void set(int bit) {
+            long mask = 1L << bit;
+            int word = bit >>> 6;
+            long value;
+            do {
+                value = words.get(word);
+                if ((value & mask) != 0) {
+                    return;
+                }
+            } while (!words.compareAndSet(word, value, value | mask));
+        }
+
+        private boolean get(int bit) {
+            return (words.get(bit >>> 6) & (1L << bit)) != 0;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.bank.system.payment_service.domain;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Outcome of acknowledging a batch of outbox events: which rows were flagged as sent and which
+ * lost the optimistic version check because another dispatcher updated them first.
+ */
+public class MarkAsSentResult {
+
+    private final List<UUID> sentIds;
+    private final List<UUID> conflictedIds;
+
+    public MarkAsSentResult(List<UUID> sentIds, List<UUID> conflictedIds) {
+        this.sentIds = List.copyOf(sentIds);
+        this.conflictedIds = List.copyOf(conflictedIds);
+    }
+
+    public static MarkAsSentResult empty() {
+        return new MarkAsSentResult(List.of(), List.of());
+    }
+
+    public List<UUID> getSentIds() {
+        return sentIds;
+    }
+
+    public List<UUID> getConflictedIds() {
+        return conflictedIds;
+    }
+
+    public boolean hasConflicts() {
+        return !conflictedIds.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "MarkAsSentResult{" +
+                "sent=" + sentIds.size() +
+                ", conflicted=" + conflictedIds +
+                '}';
+    }
+}
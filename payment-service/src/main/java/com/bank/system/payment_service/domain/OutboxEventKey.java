@@ -0,0 +1,26 @@
+package com.bank.system.payment_service.domain;
+
+import java.time.Instant;
+import java.util.UUID;
+
+/**
+ * Position of an outbox row in (created_at, id) order, used as the keyset cursor when walking the table in chunks.
+ */
+public class OutboxEventKey {
+
+    private final UUID id;
+    private final Instant createdAt;
+
+    public OutboxEventKey(UUID id, Instant createdAt) {
+        this.id = id;
+        this.createdAt = createdAt;
+    }
+
+    public UUID getId() {
+        return id;
+    }
+
+    public Instant getCreatedAt() {
+        return createdAt;
+    }
+}
@@ -0,0 +1,26 @@
+package com.bank.system.payment_service.domain;
+
+import java.util.UUID;
+
+/**
+ * Published in-process whenever a row is written to outbox_event. Listeners bound to the
+ * after-commit phase only see it once the surrounding transaction has committed.
+ */
+public class OutboxEventSaved {
+
+    private final UUID outboxEventId;
+    private final String type;
+
+    public OutboxEventSaved(UUID outboxEventId, String type) {
+        this.outboxEventId = outboxEventId;
+        this.type = type;
+    }
+
+    public UUID getOutboxEventId() {
+        return outboxEventId;
+    }
+
+    public String getType() {
+        return type;
+    }
+}
@@ -0,0 +1,82 @@
+package com.bank.system.payment_service.domain;
+
+import java.util.UUID;
+
+/**
+ * Outcome of one item of a batch submission: the payment created for it, the payment an earlier
+ * submission of the same idempotency key created, or why the item was rejected.
+ */
+public class PaymentBatchResult {
+
+    public enum Outcome {
+        CREATED,
+        EXISTING,
+        REJECTED
+    }
+
+    private final int index;
+    private final String idempotencyKey;
+    private final Outcome outcome;
+    private final UUID paymentId;
+    private final PaymentStatus status;
+    private final String error;
+
+    private PaymentBatchResult(int index, String idempotencyKey, Outcome outcome, UUID paymentId, PaymentStatus status,
+                               String error) {
+        this.index = index;
+        this.idempotencyKey = idempotencyKey;
+        this.outcome = outcome;
+        this.paymentId = paymentId;
+        this.status = status;
+        this.error = error;
+    }
+
+    public static PaymentBatchResult created(int index, Payment payment) {
+        return new PaymentBatchResult(index, payment.getIdempotencyKey(), Outcome.CREATED, payment.getId(),
+                payment.getStatus(), null);
+    }
+
+    public static PaymentBatchResult existing(int index, Payment payment) {
+        return new PaymentBatchResult(index, payment.getIdempotencyKey(), Outcome.EXISTING, payment.getId(),
+                payment.getStatus(), null);
+    }
+
+    public static PaymentBatchResult rejected(int index, String idempotencyKey, String error) {
+        return new PaymentBatchResult(index, idempotencyKey, Outcome.REJECTED, null, null, error);
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+
+    public Outcome getOutcome() {
+        return outcome;
+    }
+
+    public UUID getPaymentId() {
+        return paymentId;
+    }
+
+    public PaymentStatus getStatus() {
+        return status;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    @Override
+    public String toString() {
+        return "PaymentBatchResult{" +
+                "index=" + index +
+                ", idempotencyKey='" + idempotencyKey + '\'' +
+                ", outcome=" + outcome +
+                ", paymentId=" + paymentId +
+                ", error='" + error + '\'' +
+                '}';
+    }
+}
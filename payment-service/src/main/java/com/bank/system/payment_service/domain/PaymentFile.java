@@ -0,0 +1,66 @@
+package com.bank.system.payment_service.domain;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+import java.time.Instant;
+import java.util.UUID;
+
+/**
+ * An uploaded payment file and how far its ingestion has got. {@code itemsDone} is the checkpoint: the
+ * outcome of every item before it is committed, so an interrupted ingestion resumes right after it.
+ */
+public class PaymentFile {
+    private UUID id;
+    private String fileName;
+    private PaymentFileFormat format;
+    private String storagePath;
+    private String owner;
+    private PaymentFileStatus status;
+    private long itemsDone;
+    private long created;
+    private long existing;
+    private long rejected;
+    private String error;
+    private Instant createdAt;
+    private Instant updatedAt;
+
+    public PaymentFile() {}
+
+    public PaymentFile(UUID id, String fileName, PaymentFileFormat format, String storagePath) {
+        this.id = id;
+        this.fileName = fileName;
+        this.format = format;
+        this.storagePath = storagePath;
+        this.status = PaymentFileStatus.RECEIVED;
+    }
+
+    // getters & setters
+    public UUID getId() { return id; }
+    public void setId(UUID id) { this.id = id; }
+    public String getFileName() { return fileName; }
+    public void setFileName(String fileName) { this.fileName = fileName; }
+    public PaymentFileFormat getFormat() { return format; }
+    public void setFormat(PaymentFileFormat format) { this.format = format; }
+    @JsonIgnore
+    public String getStoragePath() { return storagePath; }
+    public void setStoragePath(String storagePath) { this.storagePath = storagePath; }
+    @JsonIgnore
+    public String getOwner() { return owner; }
+    public void setOwner(String owner) { this.owner = owner; }
+    public PaymentFileStatus getStatus() { return status; }
+    public void setStatus(PaymentFileStatus status) { this.status = status; }
+    public long getItemsDone() { return itemsDone; }
+    public void setItemsDone(long itemsDone) { this.itemsDone = itemsDone; }
+    public long getCreated() { return created; }
+    public void setCreated(long created) { this.created = created; }
+    public long getExisting() { return existing; }
+    public void setExisting(long existing) { this.existing = existing; }
+    public long getRejected() { return rejected; }
+    public void setRejected(long rejected) { this.rejected = rejected; }
+    public String getError() { return error; }
+    public void setError(String error) { this.error = error; }
+    public Instant getCreatedAt() { return createdAt; }
+    public void setCreatedAt(Instant createdAt) { this.createdAt = createdAt; }
+    public Instant getUpdatedAt() { return updatedAt; }
+    public void setUpdatedAt(Instant updatedAt) { this.updatedAt = updatedAt; }
+}
@@ -0,0 +1,8 @@
+package com.bank.system.payment_service.domain;
+
+public enum PaymentFileFormat {
+    // One payment per line under a header naming the columns
+    CSV,
+    // ISO 20022 customer credit transfer initiation, one payment per CdtTrfTxInf
+    PAIN_001
+}
@@ -0,0 +1,8 @@
+package com.bank.system.payment_service.domain;
+
+public enum PaymentFileStatus {
+    RECEIVED,
+    PROCESSING,
+    COMPLETED,
+    FAILED
+}
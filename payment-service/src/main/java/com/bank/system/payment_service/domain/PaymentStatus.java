@@ -8,5 +8,12 @@ public enum PaymentStatus {
     FAILED,
     CREDIT_FAILED,
     DEBIT_FAILED,
-    CANCELLED
+    CANCELLED;
+
+    /**
+     * Whether the saga has finished with this status and the payment will not change any more.
+     */
+    public boolean isTerminal() {
+        return this == COMPLETED || this == FAILED || this == DEBIT_FAILED || this == CANCELLED;
+    }
 }
\ No newline at end of file
@@ -7,6 +7,7 @@ public class ProcessedEvent {
     private UUID eventId;
     private String eventType;
     private String payload;
+    private String payloadHash;
     private Instant processedAt;
 
     public ProcessedEvent() {}
@@ -18,6 +19,11 @@ public class ProcessedEvent {
         this.processedAt = processedAt;
     }
 
+    public ProcessedEvent(UUID eventId, String eventType, String payload, String payloadHash, Instant processedAt) {
+        this(eventId, eventType, payload, processedAt);
+        this.payloadHash = payloadHash;
+    }
+
     // getters & setters
     public UUID getEventId() { return eventId; }
     public void setEventId(UUID eventId) { this.eventId = eventId; }
@@ -25,6 +31,8 @@ public class ProcessedEvent {
     public void setEventType(String eventType) { this.eventType = eventType; }
     public String getPayload() { return payload; }
     public void setPayload(String payload) { this.payload = payload; }
+    public String getPayloadHash() { return payloadHash; }
+    public void setPayloadHash(String payloadHash) { this.payloadHash = payloadHash; }
     public Instant getProcessedAt() { return processedAt; }
     public void setProcessedAt(Instant processedAt) { this.processedAt = processedAt; }
 }
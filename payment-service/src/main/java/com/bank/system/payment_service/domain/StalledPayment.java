@@ -0,0 +1,33 @@
+package com.bank.system.payment_service.domain;
+
+import java.time.Instant;
+import java.util.UUID;
+
+/**
+ * A payment that has sat in one status past its saga timeout: its position in (updated_at, id) order, used
+ * as the keyset cursor when the sweeper walks a status, and the retries already spent on that status.
+ */
+public class StalledPayment {
+
+    private final UUID id;
+    private final Instant updatedAt;
+    private final int sagaRetries;
+
+    public StalledPayment(UUID id, Instant updatedAt, int sagaRetries) {
+        this.id = id;
+        this.updatedAt = updatedAt;
+        this.sagaRetries = sagaRetries;
+    }
+
+    public UUID getId() {
+        return id;
+    }
+
+    public Instant getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public int getSagaRetries() {
+        return sagaRetries;
+    }
+}
@@ -0,0 +1,98 @@
+package com.bank.system.payment_service.idempotency;
+
+import com.bank.system.payment_service.config.IdempotencyProperties;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The ids of the payments accepted for recent idempotency keys, so a retried submission reads its payment
+ * by primary key instead of failing an insert first. Only the id is kept: the payment's status moves on
+ * after it is accepted, and a retry is answered with the current one. Entries expire after
+ * idempotency.cache.ttl and the least recently used ones are dropped beyond max-keys; a key that is no
+ * longer here is resolved by the unique index on payment.idempotency_key, so the cache saves a failed
+ * insert but is never what keeps a payment from being created twice.
+ * <p>
+ * A key is only remembered once the transaction that created its payment has committed.
+ */
+@Component
+public class IdempotencyKeyCache {
+
+    private final IdempotencyProperties.Cache properties;
+    private final long ttlNanos;
+    private final Map<String, Entry> entries;
+
+    public IdempotencyKeyCache(IdempotencyProperties idempotencyProperties) {
+        this.properties = idempotencyProperties.getCache();
+        this.ttlNanos = properties.getTtl().toNanos();
+        int capacity = properties.getMaxKeys();
+        this.entries = new LinkedHashMap<>(Math.min(capacity, 1 << 16) * 4 / 3 + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @return the id of the payment accepted for the key, or null if the key is unknown here or expired
+     */
+    public UUID get(String idempotencyKey) {
+        if (!properties.isEnabled()) {
+            return null;
+        }
+        synchronized (entries) {
+            Entry entry = entries.get(idempotencyKey);
+            if (entry == null) {
+                return null;
+            }
+            if (System.nanoTime() - entry.storedAt > ttlNanos) {
+                entries.remove(idempotencyKey);
+                return null;
+            }
+            return entry.paymentId;
+        }
+    }
+
+    public void put(String idempotencyKey, UUID paymentId) {
+        if (!properties.isEnabled()) {
+            return;
+        }
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            store(idempotencyKey, paymentId);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                store(idempotencyKey, paymentId);
+            }
+        });
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private void store(String idempotencyKey, UUID paymentId) {
+        synchronized (entries) {
+            entries.put(idempotencyKey, new Entry(paymentId, System.nanoTime()));
+        }
+    }
+
+    private static final class Entry {
+        private final UUID paymentId;
+        private final long storedAt;
+
+        private Entry(UUID paymentId, long storedAt) {
+            this.paymentId = paymentId;
+            this.storedAt = storedAt;
+        }
+    }
+}
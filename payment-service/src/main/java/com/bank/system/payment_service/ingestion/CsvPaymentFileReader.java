@@ -0,0 +1,136 @@
+package com.bank.system.payment_service.ingestion;
+
+import com.bank.system.dtos.dto.PaymentRequestDTO;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * CSV with a header line naming the columns sender_account_id, receiver_account_id, amount, currency and
+ * optionally idempotency_key, in any order (camelCase names work too). Fields may be double-quoted, with
+ * "" standing for a quote; a quoted field cannot span lines. Blank lines are skipped.
+ */
+class CsvPaymentFileReader implements PaymentFileReader {
+
+    private final BufferedReader reader;
+    private final String keyPrefix;
+    private int sender = -1;
+    private int receiver = -1;
+    private int amount = -1;
+    private int currency = -1;
+    private int idempotencyKey = -1;
+    private long index;
+
+    CsvPaymentFileReader(InputStream in, String keyPrefix) throws IOException {
+        this.reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        this.keyPrefix = keyPrefix;
+        readHeader();
+    }
+
+    private void readHeader() throws IOException {
+        String header = nextLine();
+        if (header == null) {
+            return;
+        }
+        if (header.startsWith("\uFEFF")) {
+            header = header.substring(1);
+        }
+        List<String> columns = split(header);
+        for (int i = 0; i < columns.size(); i++) {
+            switch (columns.get(i).trim().replace("_", "").toLowerCase(Locale.ROOT)) {
+                case "senderaccountid" -> sender = i;
+                case "receiveraccountid" -> receiver = i;
+                case "amount" -> amount = i;
+                case "currency" -> currency = i;
+                case "idempotencykey" -> idempotencyKey = i;
+                default -> {
+                    // Extra columns are ignored
+                }
+            }
+        }
+        if (sender < 0 || receiver < 0 || amount < 0 || currency < 0) {
+            throw new IOException("CSV header must name sender_account_id, receiver_account_id, amount and currency: " + header);
+        }
+    }
+
+    @Override
+    public PaymentRequestDTO next() throws IOException {
+        String line = nextLine();
+        if (line == null) {
+            return null;
+        }
+        List<String> fields = split(line);
+        String key = field(fields, idempotencyKey);
+        PaymentRequestDTO request = new PaymentRequestDTO(field(fields, sender), field(fields, receiver),
+                decimal(field(fields, amount)), field(fields, currency), key != null ? key : keyPrefix + ":" + index);
+        index++;
+        return request;
+    }
+
+    private String nextLine() throws IOException {
+        String line;
+        do {
+            line = reader.readLine();
+        } while (line != null && line.isBlank());
+        return line;
+    }
+
+    private static String field(List<String> fields, int column) {
+        if (column < 0 || column >= fields.size()) {
+            return null;
+        }
+        String value = fields.get(column).trim();
+        return value.isEmpty() ? null : value;
+    }
+
+    private static BigDecimal decimal(String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return new BigDecimal(value);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    static List<String> split(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
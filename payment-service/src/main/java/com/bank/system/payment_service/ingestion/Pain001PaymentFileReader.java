@@ -0,0 +1,161 @@
+package com.bank.system.payment_service.ingestion;
+
+import com.bank.system.dtos.dto.PaymentRequestDTO;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * ISO 20022 pain.001 (CstmrCdtTrfInitn) read with StAX. Each PmtInf names the debtor account, which
+ * becomes the sender of every CdtTrfTxInf in it; a CdtTrfTxInf gives the amount and currency (InstdAmt),
+ * the creditor account and its identification. Accounts are the IBAN, or the Othr/Id where there is none.
+ * The InstrId, else the EndToEndId unless it is NOTPROVIDED, is only unique within what one customer
+ * sends, so the idempotency key is {@code <MsgId>:<debtor account>:<id>}: the same file sent twice
+ * yields the same keys, while another file or another customer reusing an id does not collide with it.
+ * Elements are matched by local name, so any pain.001 version works; DTDs and external entities are refused.
+ */
+class Pain001PaymentFileReader implements PaymentFileReader {
+
+    private static final XMLInputFactory FACTORY = XMLInputFactory.newFactory();
+
+    static {
+        FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    private final InputStream in;
+    private final XMLStreamReader xml;
+    private final String keyPrefix;
+    // Local names of the open elements, innermost first
+    private final Deque<String> path = new ArrayDeque<>();
+    private String messageId;
+    private String debtorAccount;
+    private long index;
+
+    // Fields of the CdtTrfTxInf being read
+    private String instructionId;
+    private String endToEndId;
+    private String amount;
+    private String currency;
+    private String creditorAccount;
+
+    Pain001PaymentFileReader(InputStream in, String keyPrefix) throws IOException {
+        this.in = in;
+        try {
+            this.xml = FACTORY.createXMLStreamReader(in);
+        } catch (XMLStreamException e) {
+            throw new IOException("Cannot read pain.001: " + e.getMessage(), e);
+        }
+        this.keyPrefix = keyPrefix;
+    }
+
+    @Override
+    public PaymentRequestDTO next() throws IOException {
+        try {
+            while (xml.hasNext()) {
+                switch (xml.next()) {
+                    case XMLStreamConstants.START_ELEMENT -> {
+                        String name = xml.getLocalName();
+                        path.push(name);
+                        switch (name) {
+                            case "PmtInf" -> debtorAccount = null;
+                            case "CdtTrfTxInf" -> {
+                                instructionId = null;
+                                endToEndId = null;
+                                amount = null;
+                                currency = null;
+                                creditorAccount = null;
+                            }
+                            case "InstdAmt" -> {
+                                currency = xml.getAttributeValue(null, "Ccy");
+                                amount = xml.getElementText().trim();
+                                path.pop();
+                            }
+                            case "IBAN", "Id", "MsgId", "InstrId", "EndToEndId" -> {
+                                if (!"Id".equals(name) || isLeaf()) {
+                                    text(name, xml.getElementText().trim());
+                                    path.pop();
+                                }
+                            }
+                            default -> {
+                            }
+                        }
+                    }
+                    case XMLStreamConstants.END_ELEMENT -> {
+                        if ("CdtTrfTxInf".equals(path.pop())) {
+                            return item();
+                        }
+                    }
+                    default -> {
+                    }
+                }
+            }
+            return null;
+        } catch (XMLStreamException e) {
+            throw new IOException("Malformed pain.001 after " + index + " payments: " + e.getMessage(), e);
+        }
+    }
+
+    // An account's Id is an element holding IBAN or Othr, but Othr/Id holds the identifier itself
+    private boolean isLeaf() {
+        Object[] open = path.toArray();
+        return open.length > 1 && "Othr".equals(open[1]);
+    }
+
+    private void text(String name, String value) {
+        if ("MsgId".equals(name)) {
+            messageId = path.contains("GrpHdr") ? value : messageId;
+        } else if ("InstrId".equals(name)) {
+            instructionId = value;
+        } else if ("EndToEndId".equals(name)) {
+            endToEndId = value;
+        } else if (path.contains("DbtrAcct")) {
+            debtorAccount = debtorAccount != null ? debtorAccount : value;
+        } else if (path.contains("CdtrAcct")) {
+            creditorAccount = creditorAccount != null ? creditorAccount : value;
+        }
+    }
+
+    private PaymentRequestDTO item() {
+        String id = instructionId;
+        if (isBlank(id) && !"NOTPROVIDED".equals(endToEndId)) {
+            id = endToEndId;
+        }
+        // Without a MsgId the file itself is the scope, as for items without an id
+        String key = isBlank(id) ? keyPrefix + ":" + index
+                : (isBlank(messageId) ? keyPrefix : messageId) + ":" + debtorAccount + ":" + id;
+        index++;
+        return new PaymentRequestDTO(debtorAccount, creditorAccount, decimal(amount), currency, key);
+    }
+
+    private static BigDecimal decimal(String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return new BigDecimal(value);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static boolean isBlank(String value) {
+        return value == null || value.isBlank();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try (in) {
+            xml.close();
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package com.bank.system.payment_service.ingestion;
+
+import com.bank.system.dtos.dto.PaymentRequestDTO;
+import com.bank.system.payment_service.config.IngestionProperties;
+import com.bank.system.payment_service.domain.PaymentBatchResult;
+import com.bank.system.payment_service.domain.PaymentFile;
+import com.bank.system.payment_service.domain.PaymentFileFormat;
+import com.bank.system.payment_service.domain.PaymentFileStatus;
+import com.bank.system.payment_service.repository.PaymentFileRepository;
+import com.bank.system.payment_service.service.PaymentBatchService;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Ingests uploaded payment files. The upload is copied to ingestion.directory as it arrives and ingested
+ * in the background as a two-stage pipeline: a parser thread reads the file item by item into chunks of
+ * chunk-size and hands them over a queue of queue-depth chunks to the writer, which submits each chunk
+ * through {@link PaymentBatchService} in one transaction and then advances the file's checkpoint. A full
+ * queue blocks the parser, so memory is bounded by the queue whatever the size of the file.
+ * <p>
+ * After a crash or restart, unfinished files are picked up again and read past their checkpoint. A chunk
+ * committed just before the crash but not yet checkpointed is submitted again; its items carry the same
+ * idempotency keys as before and come back as existing payments instead of duplicates.
+ * <p>
+ * The stored upload is local to the instance that received it, so a file is only resumed where its
+ * storage path exists, and only once claimed: the file records the instance ingesting it, and another
+ * instance takes it over only after that owner's checkpoint has gone stale. An owner that finds its file
+ * taken over stops without touching it.
+ */
+@Component
+public class PaymentFileIngester {
+
+    private static final Logger log = LoggerFactory.getLogger(PaymentFileIngester.class);
+    private static final long POLL_MILLIS = 100;
+
+    private final PaymentFileRepository paymentFileRepository;
+    private final PaymentBatchService paymentBatchService;
+    private final IngestionProperties properties;
+    private final ExecutorService writers;
+    private final ExecutorService parsers;
+    private final Set<UUID> running = ConcurrentHashMap.newKeySet();
+
+    public PaymentFileIngester(PaymentFileRepository paymentFileRepository,
+                               PaymentBatchService paymentBatchService,
+                               IngestionProperties properties,
+                               @Value("${spring.threads.virtual.enabled:false}") boolean virtualThreads) {
+        this.paymentFileRepository = paymentFileRepository;
+        this.paymentBatchService = paymentBatchService;
+        this.properties = properties;
+        this.writers = Executors.newFixedThreadPool(properties.getMaxConcurrentFiles(), threadFactory("ingest-writer-", virtualThreads));
+        this.parsers = Executors.newFixedThreadPool(properties.getMaxConcurrentFiles(), threadFactory("ingest-parser-", virtualThreads));
+    }
+
+    private static ThreadFactory threadFactory(String prefix, boolean virtualThreads) {
+        return virtualThreads ? Thread.ofVirtual().name(prefix, 0).factory() : new CustomizableThreadFactory(prefix);
+    }
+
+    /**
+     * Stores the uploaded content and queues the file for ingestion.
+     *
+     * @return the file as received; its progress is read back with {@link PaymentFileRepository#findById}
+     */
+    public PaymentFile accept(String fileName, PaymentFileFormat format, InputStream content) throws IOException {
+        UUID id = UUID.randomUUID();
+        Path directory = Files.createDirectories(Path.of(properties.getDirectory()));
+        Path stored = directory.resolve(id + (format == PaymentFileFormat.CSV ? ".csv" : ".xml"));
+        long bytes = Files.copy(content, stored);
+        PaymentFile file;
+        try {
+            file = new PaymentFile(id, fileName, format, stored.toString());
+            file.setOwner(properties.getOwnerId());
+            paymentFileRepository.save(file);
+        } catch (RuntimeException e) {
+            Files.deleteIfExists(stored);
+            throw e;
+        }
+        log.info("Received payment file {} ({}, {} bytes) as {}", fileName, format, bytes, id);
+        submit(file);
+        return file;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void resumeUnfinished() {
+        if (!properties.isResumeOnStartup()) {
+            return;
+        }
+        for (PaymentFile file : paymentFileRepository.findUnfinished()) {
+            if (!Files.exists(Path.of(file.getStoragePath()))) {
+                // Stored by another instance; it is resumed there
+                log.debug("Payment file {} is not stored here, leaving it to {}", file.getId(), file.getOwner());
+                continue;
+            }
+            log.info("Resuming payment file {} after {} items", file.getId(), file.getItemsDone());
+            submit(file);
+        }
+    }
+
+    private void submit(PaymentFile file) {
+        if (running.add(file.getId())) {
+            writers.execute(() -> {
+                try {
+                    ingest(file);
+                } finally {
+                    running.remove(file.getId());
+                }
+            });
+        }
+    }
+
+    void ingest(PaymentFile file) {
+        String previousOwner = file.getOwner();
+        file.setOwner(properties.getOwnerId());
+        if (!paymentFileRepository.claim(file, Instant.now().minus(properties.getStaleAfter()))) {
+            log.info("Payment file {} is being ingested by {}", file.getId(), previousOwner);
+            return;
+        }
+        file.setStatus(PaymentFileStatus.PROCESSING);
+        Path stored = Path.of(file.getStoragePath());
+        long skip = file.getItemsDone();
+        BlockingQueue<List<PaymentRequestDTO>> chunks = new ArrayBlockingQueue<>(properties.getQueueDepth());
+        AtomicBoolean stopped = new AtomicBoolean();
+        Future<?> parser = parsers.submit(() -> {
+            parse(file, stored, skip, chunks, stopped);
+            return null;
+        });
+        try {
+            long started = System.nanoTime();
+            if (!write(file, chunks, parser) || !paymentFileRepository.complete(file)) {
+                log.warn("Payment file {} was taken over by another instance after {} items", file.getId(), file.getItemsDone());
+                return;
+            }
+            log.info("Ingested payment file {} in {} ms: {} items, {} created, {} existing, {} rejected", file.getId(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started), file.getItemsDone(), file.getCreated(),
+                    file.getExisting(), file.getRejected());
+            if (properties.isDeleteCompleted()) {
+                Files.deleteIfExists(stored);
+            }
+        } catch (InterruptedException e) {
+            // Shutting down; the file stays PROCESSING and is resumed from its checkpoint on the next start
+            Thread.currentThread().interrupt();
+            log.info("Stopped ingesting payment file {} after {} items", file.getId(), file.getItemsDone());
+        } catch (Exception e) {
+            Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+            log.error("Ingesting payment file {} failed after {} items: {}", file.getId(), file.getItemsDone(),
+                    cause.getMessage(), cause);
+            paymentFileRepository.fail(file, cause.getMessage());
+        } finally {
+            stopped.set(true);
+            parser.cancel(true);
+        }
+    }
+
+    // Writer stage: one transaction per chunk, then the checkpoint; false once the file has been taken over
+    private boolean write(PaymentFile file, BlockingQueue<List<PaymentRequestDTO>> chunks, Future<?> parser)
+            throws InterruptedException, ExecutionException {
+        while (true) {
+            List<PaymentRequestDTO> chunk = chunks.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            if (chunk == null) {
+                if (parser.isDone()) {
+                    // Rethrows what stopped the parser; after a clean finish the end marker is already queued
+                    parser.get();
+                }
+                continue;
+            }
+            if (chunk.isEmpty()) {
+                return true;
+            }
+            for (PaymentBatchResult result : paymentBatchService.submit(chunk)) {
+                switch (result.getOutcome()) {
+                    case CREATED -> file.setCreated(file.getCreated() + 1);
+                    case EXISTING -> file.setExisting(file.getExisting() + 1);
+                    case REJECTED -> file.setRejected(file.getRejected() + 1);
+                }
+            }
+            file.setItemsDone(file.getItemsDone() + chunk.size());
+            if (!paymentFileRepository.checkpoint(file)) {
+                return false;
+            }
+        }
+    }
+
+    // Parser stage: items before the checkpoint are read past, the rest are handed over chunk by chunk
+    private void parse(PaymentFile file, Path stored, long skip, BlockingQueue<List<PaymentRequestDTO>> chunks,
+                       AtomicBoolean stopped) throws IOException, InterruptedException {
+        int chunkSize = properties.getChunkSize();
+        try (PaymentFileReader reader = PaymentFileReader.open(file.getFormat(), Files.newInputStream(stored),
+                file.getId().toString())) {
+            for (long i = 0; i < skip && reader.next() != null; i++) {
+                // Committed before the restart
+            }
+            List<PaymentRequestDTO> chunk = new ArrayList<>(chunkSize);
+            PaymentRequestDTO item;
+            while ((item = reader.next()) != null) {
+                chunk.add(item);
+                if (chunk.size() == chunkSize) {
+                    handOver(chunk, chunks, stopped);
+                    chunk = new ArrayList<>(chunkSize);
+                }
+            }
+            if (!chunk.isEmpty()) {
+                handOver(chunk, chunks, stopped);
+            }
+            handOver(List.of(), chunks, stopped);
+        }
+    }
+
+    // Blocks while the writer is behind; gives up once the writer has stopped
+    private static void handOver(List<PaymentRequestDTO> chunk, BlockingQueue<List<PaymentRequestDTO>> chunks,
+                                 AtomicBoolean stopped) throws InterruptedException {
+        while (!chunks.offer(chunk, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+            if (stopped.get()) {
+                throw new InterruptedException("Writer stopped");
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        writers.shutdownNow();
+        parsers.shutdownNow();
+    }
+}
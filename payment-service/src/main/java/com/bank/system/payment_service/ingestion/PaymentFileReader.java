@@ -0,0 +1,30 @@
+package com.bank.system.payment_service.ingestion;
+
+import com.bank.system.dtos.dto.PaymentRequestDTO;
+import com.bank.system.payment_service.domain.PaymentFileFormat;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the payments of a file one at a time, holding no more than the current item in memory. Fields
+ * that cannot be read are left null, so the item is rejected by validation rather than failing the file.
+ * An item without an idempotency key of its own gets {@code <keyPrefix>:<item index>}, so re-reading
+ * the same file yields the same keys.
+ */
+public interface PaymentFileReader extends Closeable {
+
+    /**
+     * @return the next payment of the file, or null once the file is exhausted
+     * @throws IOException if the file cannot be read on, e.g. malformed XML
+     */
+    PaymentRequestDTO next() throws IOException;
+
+    static PaymentFileReader open(PaymentFileFormat format, InputStream in, String keyPrefix) throws IOException {
+        return switch (format) {
+            case CSV -> new CsvPaymentFileReader(in, keyPrefix);
+            case PAIN_001 -> new Pain001PaymentFileReader(in, keyPrefix);
+        };
+    }
+}
@@ -1,117 +1,443 @@
 package com.bank.system.payment_service.jobs;
 
-import com.bank.system.dtos.dto.CompensatePaymentEvent;
-import com.bank.system.dtos.dto.PaymentCompletedEvent;
-import com.bank.system.dtos.dto.PaymentInitiatedEvent;
-import com.bank.system.dtos.dto.ReceiverCreditRequestEvent;
+import com.bank.system.dtos.outbox.OutboxEventCodec;
+import com.bank.system.dtos.outbox.OutboxEventCodecRegistry;
+import com.bank.system.payment_service.config.OutboxProperties;
+import com.bank.system.payment_service.config.OutboxProperties.DeliveryMode;
+import com.bank.system.payment_service.config.OutboxProperties.DispatchMode;
+import com.bank.system.payment_service.config.OutboxProperties.PayloadMode;
+import com.bank.system.payment_service.domain.MarkAsSentResult;
 import com.bank.system.payment_service.domain.OutboxEvent;
+import com.bank.system.payment_service.domain.OutboxEventSaved;
 import com.bank.system.payment_service.kafka.PaymentProducer;
+import com.bank.system.payment_service.metrics.OutboxMetrics;
 import com.bank.system.payment_service.repository.OutboxEventRepository;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.bank.system.payment_service.service.OutboxLeaseService;
+import com.bank.system.payment_service.service.OutboxRetryService;
+import jakarta.annotation.PreDestroy;
+import org.apache.kafka.clients.producer.ProducerRecord;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.TriggerContext;
+import org.springframework.scheduling.annotation.SchedulingConfigurer;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.scheduling.config.ScheduledTaskRegistrar;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
 
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntFunction;
 
 @Component
-public class OutboxEventDispatcherJob {
+public class OutboxEventDispatcherJob implements SchedulingConfigurer {
 
     private static final Logger log = LoggerFactory.getLogger(OutboxEventDispatcherJob.class);
 
     private final OutboxEventRepository outboxRepository;
-    private final ObjectMapper objectMapper;
+    private final OutboxEventCodecRegistry codecRegistry;
     private final PaymentProducer paymentProducer;
+    private final OutboxProperties.Dispatcher properties;
+    // Polls and wake-ups get a thread of their own, so they never queue behind the housekeeping jobs on Spring's scheduler
+    private final ThreadPoolTaskScheduler dispatcherScheduler;
+    private final OutboxLeaseService leaseService;
+    private final OutboxLanePublisher lanePublisher;
+    private final OutboxMetrics outboxMetrics;
+    private final OutboxRetryService retryService;
+    private final OutboxProperties.Lease leaseProperties;
+    // Drains leased partitions in parallel; only created when lease-based dispatch is enabled
+    private final ExecutorService partitionWorkers;
+
+    // Delay until the next cycle; shrinks to min-interval while there is work, doubles while idle
+    private volatile Duration currentInterval;
+
+    // Polling and commit wake-ups share one cycle at a time; a wake-up that arrives mid-cycle asks for another pass
+    private final ReentrantLock cycleLock = new ReentrantLock();
+    private final AtomicBoolean wakeUpScheduled = new AtomicBoolean();
+    private final AtomicBoolean rerunRequested = new AtomicBoolean();
+    // Published events whose rows could not be marked as sent; marked again at the start of every pass and
+    // never published again while they wait, unless this instance stops first
+    private final Map<UUID, OutboxEvent> unmarked = new ConcurrentHashMap<>();
 
     @Autowired
     public OutboxEventDispatcherJob(OutboxEventRepository outboxRepository,
-                                    ObjectMapper objectMapper,
-                                    PaymentProducer paymentProducer) {
+                                    OutboxEventCodecRegistry codecRegistry,
+                                    PaymentProducer paymentProducer,
+                                    OutboxProperties outboxProperties,
+                                    OutboxLeaseService leaseService,
+                                    OutboxLanePublisher lanePublisher,
+                                    OutboxMetrics outboxMetrics,
+                                    OutboxRetryService retryService) {
         this.outboxRepository = outboxRepository;
-        this.objectMapper = objectMapper;
+        this.codecRegistry = codecRegistry;
         this.paymentProducer = paymentProducer;
+        this.properties = outboxProperties.getDispatcher();
+        this.dispatcherScheduler = new ThreadPoolTaskScheduler();
+        dispatcherScheduler.setThreadNamePrefix("outbox-dispatcher-");
+        dispatcherScheduler.initialize();
+        this.leaseService = leaseService;
+        this.lanePublisher = lanePublisher;
+        this.outboxMetrics = outboxMetrics;
+        this.retryService = retryService;
+        this.leaseProperties = outboxProperties.getLease();
+        this.partitionWorkers = leaseProperties.isEnabled()
+                ? Executors.newFixedThreadPool(leaseProperties.getWorkers(), new CustomizableThreadFactory("outbox-partition-"))
+                : null;
+        this.currentInterval = properties.getMinInterval();
+    }
+
+    @Override
+    public void configureTasks(ScheduledTaskRegistrar taskRegistrar) {
+        if (!properties.isEnabled()) {
+            log.info("Outbox dispatcher is disabled");
+            return;
+        }
+        // Started alongside the @Scheduled jobs, but deliberately not on the registrar's shared scheduler
+        dispatcherScheduler.schedule(this::dispatchEvents, this::nextExecution);
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onOutboxEventSaved(OutboxEventSaved saved) {
+        wakeUp();
+    }
+
+    /**
+     * Requests a dispatcher cycle right away instead of waiting for the next poll. Calls are coalesced:
+     * at most one wake-up is queued on the scheduler at any time. Polling stays in place as a safety net.
+     */
+    public void wakeUp() {
+        if (!properties.isEnabled() || !properties.isWakeUpOnCommit()) {
+            return;
+        }
+        if (wakeUpScheduled.compareAndSet(false, true)) {
+            dispatcherScheduler.schedule(() -> {
+                wakeUpScheduled.set(false);
+                dispatchEvents();
+            }, Instant.now());
+        }
+    }
+
+    /**
+     * Runs one dispatcher cycle. In {@link DispatchMode#DRAINING} mode batches are fetched back to back
+     * for as long as they come back full and max-drain-time has not elapsed; in {@link DispatchMode#FIXED}
+     * mode a single batch is sent.
+     *
+     * @return the number of outbox events dispatched during this cycle
+     */
+    public int dispatchEvents() {
+        if (!cycleLock.tryLock()) {
+            rerunRequested.set(true);
+            return 0;
+        }
+        int dispatched = 0;
+        try {
+            do {
+                rerunRequested.set(false);
+                dispatched += drain();
+            } while (rerunRequested.get());
+            adjustInterval(dispatched);
+        } finally {
+            cycleLock.unlock();
+        }
+        // A request that slipped in between the last check and the unlock gets its own cycle
+        if (rerunRequested.get()) {
+            wakeUp();
+        }
+        return dispatched;
     }
 
-    @Scheduled(fixedRate = 1000)
-    public void dispatchEvents() {
-        List<OutboxEvent> events = outboxRepository.fetchUnsentEvents(10);
+    private int drain() {
+        remarkUnmarked();
+        if (!leaseProperties.isEnabled()) {
+            return drain(outboxRepository::fetchUnsentEvents, () -> true);
+        }
+        return drainLeasedPartitions();
+    }
+
+    /**
+     * Publishes every partition this instance holds a lease on, one worker per partition. A partition is
+     * only ever drained by a single thread, which keeps the events of each aggregate in order.
+     */
+    private int drainLeasedPartitions() {
+        List<Integer> partitions = leaseService.rebalance();
+        int partitionCount = leaseService.getPartitions();
+        List<CompletableFuture<Integer>> drains = new ArrayList<>(partitions.size());
+        for (int partition : partitions) {
+            drains.add(CompletableFuture.supplyAsync(() -> drain(
+                    limit -> outboxRepository.fetchUnsentEvents(limit, partition, partitionCount),
+                    () -> leaseService.extend(partition)), partitionWorkers)
+                    .exceptionally(ex -> {
+                        log.error("Failed to drain outbox partition {}", partition, ex);
+                        return 0;
+                    }));
+        }
+        return drains.stream().mapToInt(CompletableFuture::join).sum();
+    }
+
+    private int drain(IntFunction<List<OutboxEvent>> fetch, BooleanSupplier leaseHeld) {
+        int batchSize = properties.getBatchSize();
+        long deadline = System.nanoTime() + properties.getMaxDrainTime().toNanos();
+        int dispatched = 0;
+        int fetched;
+        do {
+            // Re-checked before every batch so a partition taken over by another instance is not published twice
+            if (!leaseHeld.getAsBoolean()) {
+                break;
+            }
+            fetched = dispatchBatch(fetch.apply(batchSize));
+            dispatched += fetched;
+        } while (properties.getMode() == DispatchMode.DRAINING
+                && fetched == batchSize
+                && System.nanoTime() < deadline);
+        return dispatched;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        dispatcherScheduler.shutdown();
+        if (partitionWorkers != null) {
+            partitionWorkers.shutdown();
+        }
+    }
+
+    Duration getCurrentInterval() {
+        return currentInterval;
+    }
+
+    private int dispatchBatch(List<OutboxEvent> fetched) {
+        List<OutboxEvent> events = unmarked.isEmpty()
+                ? fetched
+                : fetched.stream().filter(event -> !unmarked.containsKey(event.getId())).toList();
+        if (properties.getDelivery() == DeliveryMode.EXACTLY_ONCE) {
+            dispatchBatchInTransaction(events);
+        } else {
+            dispatchBatchAcknowledged(events);
+        }
+        return fetched.size();
+    }
+
+    private void dispatchBatchAcknowledged(List<OutboxEvent> events) {
+        Queue<OutboxEvent> acknowledged = new ConcurrentLinkedQueue<>();
+        Map<UUID, Throwable> failures = new ConcurrentHashMap<>();
+        List<CompletableFuture<?>> sends = lanePublisher.publish(events, this::send);
+        if (log.isDebugEnabled()) {
+            log.debug("Outbox lane backlog after queuing {} events: {}", events.size(), lanePublisher.getBacklogs());
+        }
+        List<CompletableFuture<?>> acks = new ArrayList<>(sends.size());
+        for (int i = 0; i < events.size(); i++) {
+            OutboxEvent event = events.get(i);
+            // Rows are marked in bulk once the whole batch has settled
+            acks.add(sends.get(i).whenComplete((result, ex) -> {
+                if (ex == null) {
+                    acknowledged.add(event);
+                } else {
+                    log.error("Failed to send {} for event ID {}", event.getType(), event.getId(), ex);
+                    failures.put(event.getId(), ex);
+                }
+            }));
+        }
+        // Wait for this batch to be acknowledged so the next fetch does not pick up rows still in flight
+        awaitAcks(acks);
+        markAsSent(new ArrayList<>(acknowledged));
+        recordFailures(events, failures);
+    }
+
+    /**
+     * Backs failed events off, or dead-letters them once they are out of attempts. Later events of an
+     * aggregate whose earlier event failed in this batch were only held back by the publisher; they are not
+     * charged an attempt and stay behind the earlier event until its backoff has elapsed.
+     */
+    private void recordFailures(List<OutboxEvent> events, Map<UUID, Throwable> failures) {
+        if (failures.isEmpty()) {
+            return;
+        }
+        Set<UUID> failedAggregates = new HashSet<>();
+        for (OutboxEvent event : events) {
+            Throwable failure = failures.get(event.getId());
+            if (failure == null || !failedAggregates.add(event.getAggregateId())) {
+                continue;
+            }
+            switch (retryService.recordFailure(event, failure)) {
+                case RETRY_SCHEDULED -> outboxMetrics.recordRetry(event.getType());
+                case DEAD_LETTERED -> {
+                    outboxMetrics.recordDeadLetter(event.getType());
+                    log.error("Moved {} event ID {} to the dead-letter table after {} attempts",
+                            event.getType(), event.getId(), event.getAttempts() + 1);
+                }
+                case CONFLICT -> log.warn("Version conflict: {} was already updated", event.getId());
+            }
+        }
+    }
 
+    /**
+     * Publishes a batch in one Kafka transaction and marks it as sent only after the commit. Events that
+     * cannot be encoded, and the later events of their aggregates, are left out of the transaction and
+     * retried; if the transaction aborts, none of the batch is marked. Marking is a step of its own: the
+     * events are delivered once the transaction has committed, whatever happens to their rows.
+     */
+    private void dispatchBatchInTransaction(List<OutboxEvent> events) {
+        Map<UUID, Throwable> failures = new HashMap<>();
+        Set<UUID> failedAggregates = new HashSet<>();
+        List<OutboxEvent> included = new ArrayList<>(events.size());
+        List<ProducerRecord<String, byte[]>> records = new ArrayList<>(events.size());
         for (OutboxEvent event : events) {
+            if (failedAggregates.contains(event.getAggregateId())) {
+                failures.put(event.getId(), new IllegalStateException(
+                        "Earlier event of aggregate " + event.getAggregateId() + " was not published"));
+                continue;
+            }
             try {
-                switch (event.getType()) {
-                    case "PaymentInitiatedEvent" -> {
-                        PaymentInitiatedEvent payload = objectMapper.readValue(event.getPayload(), PaymentInitiatedEvent.class);
-                        paymentProducer.sendPaymentInitiatedEvent(payload)
-                                .whenComplete((result, ex) -> {
-                                    if (ex == null) {
-                                        boolean success = outboxRepository.markAsSent(event.getId(), event.getVersion());
-                                        if (success) {
-                                            log.info("Marked as sent: PaymentInitiatedEvent {}", event.getId());
-                                        } else {
-                                            log.warn("Version conflict: PaymentInitiatedEvent {} was already updated", event.getId());
-                                        }
-                                    } else {
-                                        log.error("Failed to send PaymentInitiatedEvent {}", event.getId(), ex);
-                                    }
-                                });
-                    }
-                    case "PaymentCompletedEvent" -> {
-                        PaymentCompletedEvent payload = objectMapper.readValue(event.getPayload(), PaymentCompletedEvent.class);
-                        paymentProducer.sendPaymentCompletedEvent(payload)
-                                .whenComplete((result, ex) -> {
-                                    if (ex == null) {
-                                        boolean success = outboxRepository.markAsSent(event.getId(), event.getVersion());
-                                        if (success) {
-                                            log.info("Marked as sent: PaymentCompletedEvent {}", event.getId());
-                                        } else {
-                                            log.warn("Version conflict: PaymentCompletedEvent {} was already updated", event.getId());
-                                        }
-                                    } else {
-                                        log.error("Failed to send PaymentCompletedEvent {}", event.getId(), ex);
-                                    }
-                                });
-                    }
-                    case "ReceiverCreditRequestEvent" -> {
-                        ReceiverCreditRequestEvent payload = objectMapper.readValue(event.getPayload(), ReceiverCreditRequestEvent.class);
-                        paymentProducer.sendReceiverCreditRequestEvent(payload)
-                                .whenComplete((result, ex) -> {
-                                    if (ex == null) {
-                                        boolean success = outboxRepository.markAsSent(event.getId(), event.getVersion());
-                                        if (success) {
-                                            log.info("Marked as sent: ReceiverCreditRequestEvent {}", event.getId());
-                                        } else {
-                                            log.warn("Version conflict: ReceiverCreditRequestEvent {} was already updated", event.getId());
-                                        }
-                                    } else {
-                                        log.error("Failed to send ReceiverCreditRequestEvent {}", event.getId(), ex);
-                                    }
-                                });
-                    }
-                    case "CompensatePaymentEvent" -> {
-                        CompensatePaymentEvent payload = objectMapper.readValue(event.getPayload(), CompensatePaymentEvent.class);
-                        paymentProducer.sendCompensatePaymentEvent(payload)
-                                .whenComplete((result, ex) -> {
-                                    if (ex == null) {
-                                        boolean success = outboxRepository.markAsSent(event.getId(), event.getVersion());
-                                        if (success) {
-                                            log.info("Marked as sent: CompensatePaymentEvent {}", event.getId());
-                                        } else {
-                                            log.warn("Version conflict: CompensatePaymentEvent {} was already updated", event.getId());
-                                        }
-                                    } else {
-                                        log.error("Failed to send CompensatePaymentEvent {}", event.getId(), ex);
-                                    }
-                                });
-                    }
-                    default -> {
-                        log.warn("Unknown outbox event type {} for event {}", event.getType(), event.getId());
-                    }
+                OutboxEventCodec<?> codec = codecFor(event);
+                if (properties.getPayloadMode() == PayloadMode.DECODED) {
+                    // Records are always written as stored; decoding only rejects payloads consumers could not read
+                    decode(codec, event);
                 }
+                records.add(paymentProducer.rawRecord(codec, event.getAggregateId().toString(), event.getPayload()));
+                included.add(event);
             } catch (Exception e) {
-                log.error("Error processing outbox event {}", event.getId(), e);
+                log.error("Failed to send {} for event ID {}", event.getType(), event.getId(), e);
+                failures.put(event.getId(), e);
+                failedAggregates.add(event.getAggregateId());
+            }
+        }
+        if (!records.isEmpty()) {
+            long sendStart = System.nanoTime();
+            Throwable failure = null;
+            try {
+                paymentProducer.sendInTransaction(records);
+            } catch (RuntimeException e) {
+                log.error("Kafka transaction for {} outbox events was aborted", records.size(), e);
+                failure = e;
+                for (OutboxEvent event : included) {
+                    failures.put(event.getId(), e);
+                }
+            }
+            for (OutboxEvent event : included) {
+                outboxMetrics.recordSend(event, sendStart, failure);
+            }
+            if (failure == null) {
+                markAsSent(included);
             }
         }
+        recordFailures(events, failures);
+    }
+
+    // Runs on the publisher lane the event's aggregate is routed to
+    private CompletableFuture<?> send(OutboxEvent event) throws IOException {
+        OutboxEventCodec<?> codec = codecFor(event);
+        CompletableFuture<?> ack;
+        long sendStart;
+        if (properties.getPayloadMode() == PayloadMode.RAW) {
+            sendStart = System.nanoTime();
+            // Every event type is keyed by payment id, which is also the outbox aggregate id
+            ack = paymentProducer.sendRaw(codec, event.getAggregateId().toString(), event.getPayload());
+        } else {
+            Object payload = decode(codec, event);
+            sendStart = System.nanoTime();
+            ack = paymentProducer.send(codec, codec.keyOf(payload), payload);
+        }
+        return ack.whenComplete((result, ex) -> outboxMetrics.recordSend(event, sendStart, ex));
+    }
+
+    private OutboxEventCodec<?> codecFor(OutboxEvent event) {
+        try {
+            return codecRegistry.get(event.getType());
+        } catch (IllegalArgumentException e) {
+            outboxMetrics.recordDeserializeFailure(event.getType());
+            throw e;
+        }
+    }
+
+    private Object decode(OutboxEventCodec<?> codec, OutboxEvent event) throws IOException {
+        try {
+            return codec.decode(event.getPayload());
+        } catch (IOException e) {
+            outboxMetrics.recordDeserializeFailure(event.getType());
+            throw e;
+        }
+    }
+
+    /**
+     * Marks published events as sent. A failure to do so is no failure to publish: the events keep their
+     * attempts and wait in {@link #unmarked} to be marked again rather than published again.
+     */
+    private void markAsSent(List<OutboxEvent> acknowledged) {
+        if (acknowledged.isEmpty()) {
+            return;
+        }
+        MarkAsSentResult result;
+        try {
+            result = outboxRepository.markAllAsSent(acknowledged);
+        } catch (RuntimeException e) {
+            log.error("Failed to mark {} published outbox events as sent, will retry: {}", acknowledged.size(), e.getMessage());
+            acknowledged.forEach(event -> unmarked.put(event.getId(), event));
+            return;
+        }
+        acknowledged.forEach(event -> unmarked.remove(event.getId()));
+        log.info("Marked as sent: {} outbox events", result.getSentIds().size());
+        for (UUID conflictedId : result.getConflictedIds()) {
+            log.warn("Version conflict: {} was already updated", conflictedId);
+        }
+    }
+
+    private void remarkUnmarked() {
+        if (!unmarked.isEmpty()) {
+            markAsSent(new ArrayList<>(unmarked.values()));
+        }
+    }
+
+    private void awaitAcks(List<CompletableFuture<?>> acks) {
+        if (acks.isEmpty()) {
+            return;
+        }
+        try {
+            CompletableFuture.allOf(acks.toArray(CompletableFuture[]::new))
+                    .get(properties.getAckTimeout().toMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // Individual send failures are already logged by the completion callbacks
+        } catch (TimeoutException e) {
+            log.warn("Timed out after {} waiting for {} outbox sends to be acknowledged", properties.getAckTimeout(), acks.size());
+        }
+    }
+
+    private void adjustInterval(int dispatched) {
+        Duration maxInterval = properties.getMaxInterval();
+        if (properties.getMode() == DispatchMode.FIXED) {
+            currentInterval = maxInterval;
+        } else if (dispatched > 0) {
+            currentInterval = properties.getMinInterval();
+        } else {
+            Duration doubled = currentInterval.multipliedBy(2);
+            currentInterval = doubled.compareTo(maxInterval) > 0 ? maxInterval : doubled;
+        }
+    }
+
+    private Instant nextExecution(TriggerContext triggerContext) {
+        Instant lastCompletion = triggerContext.lastCompletion();
+        return (lastCompletion != null ? lastCompletion : Instant.now()).plus(currentInterval);
     }
 }
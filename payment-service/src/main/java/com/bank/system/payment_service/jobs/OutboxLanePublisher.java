@@ -0,0 +1,172 @@
+package com.bank.system.payment_service.jobs;
+
+import com.bank.system.payment_service.config.OutboxProperties;
+import com.bank.system.payment_service.domain.OutboxEvent;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fans outbox events out to a fixed number of single-threaded lanes keyed by aggregate id, so different
+ * payments are published concurrently. An event is handed to the producer only once the producer has
+ * acknowledged the previous event of its payment, so a payment's events are never reordered by a slow or
+ * failed send. Each lane takes at most queue-depth new events; a full lane blocks the submitting thread
+ * instead of dropping events.
+ */
+@Component
+public class OutboxLanePublisher {
+
+    @FunctionalInterface
+    public interface Sender {
+        CompletableFuture<?> send(OutboxEvent event) throws Exception;
+    }
+
+    private final List<ThreadPoolExecutor> lanes;
+    // Bounds the events submitted to each lane; events waiting on an earlier ack re-enter their lane without one
+    private final List<Semaphore> capacity;
+
+    public OutboxLanePublisher(OutboxProperties outboxProperties) {
+        this(outboxProperties, false);
+    }
+
+    /**
+     * With {@code virtualThreads} every lane runs on a virtual thread, so a lane blocked on a full producer
+     * buffer or a slow metadata fetch does not hold a platform thread.
+     */
+    @Autowired
+    public OutboxLanePublisher(OutboxProperties outboxProperties,
+                               @Value("${spring.threads.virtual.enabled:false}") boolean virtualThreads) {
+        OutboxProperties.Publisher properties = outboxProperties.getPublisher();
+        ThreadFactory threadFactory = virtualThreads
+                ? Thread.ofVirtual().name("outbox-lane-", 0).factory()
+                : new CustomizableThreadFactory("outbox-lane-");
+        this.lanes = new ArrayList<>(properties.getLanes());
+        this.capacity = new ArrayList<>(properties.getLanes());
+        for (int i = 0; i < properties.getLanes(); i++) {
+            lanes.add(new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), threadFactory));
+            capacity.add(new Semaphore(properties.getQueueDepth()));
+        }
+    }
+
+    /**
+     * Queues a batch for publishing and returns one future per event, completing once the producer has
+     * acknowledged (or failed) that event. A later event of an aggregate waits for the ack of the one before
+     * it, without holding up its lane. If that one fails, the later ones are failed too rather than
+     * overtaking it; they are retried with it on the next dispatcher cycle.
+     */
+    public List<CompletableFuture<?>> publish(List<OutboxEvent> events, Sender sender) {
+        Map<UUID, CompletableFuture<?>> previousByAggregate = new HashMap<>();
+        List<CompletableFuture<?>> acks = new ArrayList<>(events.size());
+        for (OutboxEvent event : events) {
+            CompletableFuture<?> previous = previousByAggregate.get(event.getAggregateId());
+            CompletableFuture<Object> ack = new CompletableFuture<>();
+            int lane = laneOf(event.getAggregateId());
+            if (previous == null) {
+                submit(lane, () -> send(event, sender, ack), ack);
+            } else {
+                previous.whenComplete((result, ex) -> {
+                    if (ex != null) {
+                        ack.completeExceptionally(new IllegalStateException(
+                                "Earlier event of aggregate " + event.getAggregateId() + " was not published", ex));
+                    } else {
+                        resume(lane, () -> send(event, sender, ack), ack);
+                    }
+                });
+            }
+            previousByAggregate.put(event.getAggregateId(), ack);
+            acks.add(ack);
+        }
+        return acks;
+    }
+
+    // Waits for room in the lane; runs on the dispatcher's thread
+    private void submit(int lane, Runnable task, CompletableFuture<?> ack) {
+        Semaphore permits = capacity.get(lane);
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            ack.completeExceptionally(new RejectedExecutionException("Interrupted while waiting for a full outbox lane", e));
+            return;
+        }
+        try {
+            lanes.get(lane).execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    permits.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            ack.completeExceptionally(e);
+        }
+    }
+
+    // Never blocks: it runs on whichever thread completed the previous ack, often the producer's own
+    private void resume(int lane, Runnable task, CompletableFuture<?> ack) {
+        try {
+            lanes.get(lane).execute(task);
+        } catch (RejectedExecutionException e) {
+            ack.completeExceptionally(e);
+        }
+    }
+
+    private void send(OutboxEvent event, Sender sender, CompletableFuture<Object> ack) {
+        try {
+            sender.send(event).whenComplete((result, ex) -> {
+                if (ex == null) {
+                    ack.complete(result);
+                } else {
+                    ack.completeExceptionally(ex);
+                }
+            });
+        } catch (Exception e) {
+            ack.completeExceptionally(e);
+        }
+    }
+
+    public int getLaneCount() {
+        return lanes.size();
+    }
+
+    /**
+     * Number of events waiting in or being handed to the producer by the given lane.
+     */
+    public int getBacklog(int lane) {
+        ThreadPoolExecutor executor = lanes.get(lane);
+        return executor.getQueue().size() + executor.getActiveCount();
+    }
+
+    public List<Integer> getBacklogs() {
+        List<Integer> backlogs = new ArrayList<>(lanes.size());
+        for (int lane = 0; lane < lanes.size(); lane++) {
+            backlogs.add(getBacklog(lane));
+        }
+        return backlogs;
+    }
+
+    private int laneOf(UUID aggregateId) {
+        return Math.floorMod(aggregateId.hashCode(), lanes.size());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        lanes.forEach(ThreadPoolExecutor::shutdown);
+    }
+}
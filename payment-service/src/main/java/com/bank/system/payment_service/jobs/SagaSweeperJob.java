@@ -0,0 +1,161 @@
+package com.bank.system.payment_service.jobs;
+
+import com.bank.system.payment_service.config.SagaProperties;
+import com.bank.system.payment_service.domain.Payment;
+import com.bank.system.payment_service.domain.PaymentStatus;
+import com.bank.system.payment_service.domain.StalledPayment;
+import com.bank.system.payment_service.metrics.SagaMetrics;
+import com.bank.system.payment_service.repository.PaymentRepository;
+import com.bank.system.payment_service.service.SagaSweepService;
+import com.bank.system.payment_service.status.PaymentStatusNotifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Finds payments whose saga has stalled because an event was lost on the way, and moves them along. For every
+ * status with a timeout, payments last updated longer ago than that are walked in (updated_at, id) order with
+ * a keyset cursor along idx_payment_status_updated_at, which only holds in-flight payments, so the cost
+ * follows the number of stalled sagas rather than the size of the payment table.
+ * <p>
+ * A stalled payment gets the event it is waiting on an answer to sent again, up to max-retries times per
+ * status; account-service answers a command it has seen before with the reply it recorded, so a lost reply
+ * is recovered as well as a lost command. After that a SENDER_DEBITED payment is compensated. An INITIATED
+ * payment is never given up on, since its debit may have happened without word of it, and neither is a
+ * CREDIT_FAILED one, which has no way forward but its compensation: both keep getting their event re-sent
+ * and are reported as overdue.
+ * <p>
+ * Every run also counts the in-flight payments per status for the saga gauges, even with sweeping disabled.
+ */
+@Component
+public class SagaSweeperJob {
+
+    private static final Logger log = LoggerFactory.getLogger(SagaSweeperJob.class);
+    private static final StalledPayment START = new StalledPayment(new UUID(0L, 0L), Instant.EPOCH, 0);
+
+    private final PaymentRepository paymentRepository;
+    private final SagaSweepService sweepService;
+    private final PaymentStatusNotifier statusNotifier;
+    private final SagaMetrics sagaMetrics;
+    private final SagaProperties.Sweeper properties;
+
+    public SagaSweeperJob(PaymentRepository paymentRepository,
+                          SagaSweepService sweepService,
+                          PaymentStatusNotifier statusNotifier,
+                          SagaMetrics sagaMetrics,
+                          SagaProperties sagaProperties) {
+        this.paymentRepository = paymentRepository;
+        this.sweepService = sweepService;
+        this.statusNotifier = statusNotifier;
+        this.sagaMetrics = sagaMetrics;
+        this.properties = sagaProperties.getSweeper();
+    }
+
+    @Scheduled(fixedDelayString = "${saga.sweeper.interval:30s}", initialDelayString = "${saga.sweeper.interval:30s}")
+    public void scheduledSweep() {
+        if (properties.isEnabled()) {
+            sweep();
+        } else {
+            countInFlight();
+        }
+    }
+
+    /**
+     * Runs one sweep over every status with a timeout, stopping early once max-run-time has elapsed; the next
+     * run picks up the rest.
+     *
+     * @return the number of events re-sent plus the number of payments given up on
+     */
+    public int sweep() {
+        long deadline = System.nanoTime() + properties.getMaxRunTime().toNanos();
+        int swept = 0;
+        for (Map.Entry<PaymentStatus, Duration> timeout : properties.getTimeouts().entrySet()) {
+            swept += sweep(timeout.getKey(), Instant.now().minus(timeout.getValue()), deadline);
+            if (System.nanoTime() >= deadline) {
+                break;
+            }
+        }
+        countInFlight();
+        return swept;
+    }
+
+    private void countInFlight() {
+        try {
+            sagaMetrics.recordInFlight(paymentRepository.countInFlight());
+        } catch (RuntimeException e) {
+            log.warn("Left the in-flight saga gauges at their last count: {}", e.getMessage());
+        }
+    }
+
+    private int sweep(PaymentStatus status, Instant stalledBefore, long deadline) {
+        try {
+            SagaSweepService.awaitedEventType(status);
+        } catch (IllegalArgumentException e) {
+            log.warn("Ignoring the saga timeout configured for {}: {}", status, e.getMessage());
+            return 0;
+        }
+        int chunkSize = properties.getChunkSize();
+        StalledPayment cursor = START;
+        int retried = 0;
+        int timedOut = 0;
+        int overdue = 0;
+        List<StalledPayment> chunk;
+        do {
+            chunk = paymentRepository.findStalled(status, stalledBefore, cursor, chunkSize);
+            if (chunk.isEmpty()) {
+                break;
+            }
+            List<UUID> retry = new ArrayList<>(chunk.size());
+            List<UUID> giveUp = new ArrayList<>();
+            for (StalledPayment payment : chunk) {
+                boolean exhausted = payment.getSagaRetries() >= properties.getMaxRetries();
+                if (exhausted && status != PaymentStatus.SENDER_DEBITED) {
+                    overdue++;
+                }
+                (exhausted && status == PaymentStatus.SENDER_DEBITED ? giveUp : retry).add(payment.getId());
+            }
+            try {
+                if (!retry.isEmpty()) {
+                    retried += sweepService.retry(status, retry, stalledBefore);
+                }
+                if (!giveUp.isEmpty()) {
+                    timedOut += giveUp(giveUp, stalledBefore);
+                }
+            } catch (RuntimeException e) {
+                // Most likely another instance swept the same payments; carry on past this chunk
+                log.warn("Skipped a saga sweep chunk of {} payments in {}: {}", chunk.size(), status, e.getMessage());
+            }
+            cursor = chunk.get(chunk.size() - 1);
+        } while (chunk.size() == chunkSize && System.nanoTime() < deadline);
+
+        if (retried > 0) {
+            sagaMetrics.recordRetries(status, retried);
+        }
+        if (timedOut > 0) {
+            sagaMetrics.recordTimeouts(status, timedOut);
+        }
+        if (retried > 0 || timedOut > 0) {
+            log.info("Saga sweep of {} payments stalled since before {}: {} events re-sent, {} payments given up on",
+                    status, stalledBefore, retried, timedOut);
+        }
+        if (overdue > 0) {
+            log.error("{} payments in {} are still waiting for the answer to {} after {} retries", overdue, status,
+                    SagaSweepService.awaitedEventType(status), properties.getMaxRetries());
+        }
+        return retried + timedOut;
+    }
+
+    private int giveUp(List<UUID> paymentIds, Instant stalledBefore) {
+        List<Payment> moved = sweepService.compensate(paymentIds, stalledBefore);
+        moved.forEach(statusNotifier::publish);
+        return moved.size();
+    }
+}
@@ -0,0 +1,76 @@
+package com.bank.system.payment_service.kafka;
+
+import com.bank.system.payment_service.config.ConsumerProperties;
+import jakarta.annotation.PreDestroy;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs consumed records on a pool of workers, keeping the records of one key in the order they were
+ * submitted while records of different keys run concurrently. Every key with work in flight has a tail
+ * future; a new record is chained behind it, and the key is dropped once its last record is done, so the
+ * map only ever holds the keys currently in flight. With parallel consumption disabled records run inline
+ * on the listener thread, exactly as before.
+ */
+@Component
+public class KeyOrderedExecutor {
+
+    private final boolean parallel;
+    private final ExecutorService workers;
+    private final Map<Object, CompletableFuture<Void>> tails = new ConcurrentHashMap<>();
+
+    public KeyOrderedExecutor(ConsumerProperties consumerProperties) {
+        ConsumerProperties.Parallel properties = consumerProperties.getParallel();
+        this.parallel = properties.isEnabled();
+        if (!parallel) {
+            this.workers = null;
+        } else if (properties.isVirtualThreads()) {
+            this.workers = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("payment-consumer-", 0).factory());
+        } else {
+            this.workers = Executors.newFixedThreadPool(properties.getWorkers(), new CustomizableThreadFactory("payment-consumer-"));
+        }
+    }
+
+    /**
+     * Runs {@code task} once every task submitted before it under the same key has finished, and returns
+     * at once. The future completes when the task has run, exceptionally if it threw; a failed task does
+     * not hold back the next one of its key.
+     */
+    public CompletableFuture<Void> submit(Object key, Runnable task) {
+        if (!parallel) {
+            try {
+                task.run();
+                return CompletableFuture.completedFuture(null);
+            } catch (RuntimeException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+        CompletableFuture<Void> next = tails.compute(key, (k, tail) -> tail == null
+                ? CompletableFuture.runAsync(task, workers)
+                : tail.handle((done, failure) -> null).thenRunAsync(task, workers));
+        next.whenComplete((done, failure) -> tails.remove(key, next));
+        return next;
+    }
+
+    /**
+     * @return the number of keys that have a record queued or running
+     */
+    public int getKeysInFlight() {
+        return tails.size();
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        if (workers != null) {
+            workers.shutdown();
+            workers.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+}
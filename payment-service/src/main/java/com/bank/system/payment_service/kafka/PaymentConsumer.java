@@ -6,8 +6,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.kafka.annotation.KafkaListener;
+import org.springframework.kafka.support.Acknowledgment;
 import org.springframework.stereotype.Component;
 
+import java.util.UUID;
+
 @Component
 public class PaymentConsumer {
 
@@ -20,61 +23,83 @@ public class PaymentConsumer {
     public static final String CREDIT_FAILED_TOPIC = "credit-failed-topic";
     public static final String COMPENSATE_PAYMENT_TOPIC = "compensate-payment-topic";
 
+    // Records without a payment id are kept in order among themselves
+    private static final Object NO_PAYMENT_ID = new Object();
+
     private final PaymentAccountService paymentAccountService;
+    private final KeyOrderedExecutor keyOrderedExecutor;
 
     @Autowired
-    public PaymentConsumer(PaymentAccountService paymentAccountService) {
+    public PaymentConsumer(PaymentAccountService paymentAccountService, KeyOrderedExecutor keyOrderedExecutor) {
         this.paymentAccountService = paymentAccountService;
+        this.keyOrderedExecutor = keyOrderedExecutor;
     }
 
     @KafkaListener(topics = SENDER_DEBITED_TOPIC, groupId = "${" + SPRING_KAFKA_CONSUMER_GROUP_ID + "}")
-    public void listenSenderDebited(SenderDebitedEvent event) {
+    public void listenSenderDebited(SenderDebitedEvent event, Acknowledgment ack) {
         log.info("Consumed SenderDebitedEvent for paymentId: {}", event.getPaymentId());
-        try {
-            paymentAccountService.handleSenderDebited(event);
-        } catch (Exception ex) {
-            log.error("Error handling SenderDebitedEvent for paymentId {}: {}", event.getPaymentId(), ex.getMessage(), ex);
-            // Consider sending to a DLQ or implementing retry logic here
-        }
+        dispatch(event.getPaymentId(), ack, () -> {
+            try {
+                paymentAccountService.handleSenderDebited(event);
+            } catch (Exception ex) {
+                log.error("Error handling SenderDebitedEvent for paymentId {}: {}", event.getPaymentId(), ex.getMessage(), ex);
+                // Consider sending to a DLQ or implementing retry logic here
+            }
+        });
     }
 
     @KafkaListener(topics = RECEIVER_CREDITED_TOPIC, groupId = "${" + SPRING_KAFKA_CONSUMER_GROUP_ID + "}")
-    public void listenReceiverCredited(ReceiverCreditEvent event) {
+    public void listenReceiverCredited(ReceiverCreditEvent event, Acknowledgment ack) {
         log.info("Consumed ReceiverCreditedEvent for paymentId: {}", event.getPaymentId());
-        try {
-            paymentAccountService.handleReceiverCredited(event);
-        } catch (Exception ex) {
-            log.error("Error handling ReceiverCreditedEvent for paymentId {}: {}", event.getPaymentId(), ex.getMessage(), ex);
-        }
+        dispatch(event.getPaymentId(), ack, () -> {
+            try {
+                paymentAccountService.handleReceiverCredited(event);
+            } catch (Exception ex) {
+                log.error("Error handling ReceiverCreditedEvent for paymentId {}: {}", event.getPaymentId(), ex.getMessage(), ex);
+            }
+        });
     }
 
     @KafkaListener(topics = DEBIT_FAILED_TOPIC, groupId = "${" + SPRING_KAFKA_CONSUMER_GROUP_ID + "}")
-    public void listenDebitFailed(DebitFailedEvent event) {
+    public void listenDebitFailed(DebitFailedEvent event, Acknowledgment ack) {
         log.info("Consumed DebitFailedEvent for paymentId: {}", event.getPaymentId());
-        try {
-            paymentAccountService.handleDebitFailed(event);
-        } catch (Exception ex) {
-            log.error("Error handling DebitFailedEvent for paymentId {}: {}", event.getPaymentId(), ex.getMessage(), ex);
-        }
+        dispatch(event.getPaymentId(), ack, () -> {
+            try {
+                paymentAccountService.handleDebitFailed(event);
+            } catch (Exception ex) {
+                log.error("Error handling DebitFailedEvent for paymentId {}: {}", event.getPaymentId(), ex.getMessage(), ex);
+            }
+        });
     }
 
     @KafkaListener(topics = CREDIT_FAILED_TOPIC, groupId = "${" + SPRING_KAFKA_CONSUMER_GROUP_ID + "}")
-    public void listenCreditFailed(CreditFailedEvent event) {
+    public void listenCreditFailed(CreditFailedEvent event, Acknowledgment ack) {
         log.info("Consumed CreditFailedEvent for paymentId: {}", event.getPaymentId());
-        try {
-            paymentAccountService.handleCreditFailed(event);
-        } catch (Exception ex) {
-            log.error("Error handling CreditFailedEvent for paymentId {}: {}", event.getPaymentId(), ex.getMessage(), ex);
-        }
+        dispatch(event.getPaymentId(), ack, () -> {
+            try {
+                paymentAccountService.handleCreditFailed(event);
+            } catch (Exception ex) {
+                log.error("Error handling CreditFailedEvent for paymentId {}: {}", event.getPaymentId(), ex.getMessage(), ex);
+            }
+        });
     }
 
     @KafkaListener(topics = COMPENSATE_PAYMENT_TOPIC, groupId = "${" + SPRING_KAFKA_CONSUMER_GROUP_ID + "}")
-    public void listenCompensatePayment(CompensatePaymentEvent event) {
+    public void listenCompensatePayment(CompensatePaymentEvent event, Acknowledgment ack) {
         log.info("Consumed CompensatePaymentEvent for paymentId: {}", event.getPaymentId());
-        try {
-            paymentAccountService.handleCompensatePayment(event);
-        } catch (Exception ex) {
-            log.error("Error handling CompensatePaymentEvent for paymentId {}: {}", event.getPaymentId(), ex.getMessage(), ex);
-        }
+        dispatch(event.getPaymentId(), ack, () -> {
+            try {
+                paymentAccountService.handleCompensatePayment(event);
+            } catch (Exception ex) {
+                log.error("Error handling CompensatePaymentEvent for paymentId {}: {}", event.getPaymentId(), ex.getMessage(), ex);
+            }
+        });
+    }
+
+    // Records of one payment stay in order, records of different payments are handled concurrently. The
+    // container commits an offset only once it and every offset below it have been acknowledged.
+    private void dispatch(UUID paymentId, Acknowledgment ack, Runnable handler) {
+        keyOrderedExecutor.submit(paymentId != null ? paymentId : NO_PAYMENT_ID, handler)
+                .whenComplete((done, failure) -> ack.acknowledge());
     }
 }
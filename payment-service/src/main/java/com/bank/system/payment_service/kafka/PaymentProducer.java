@@ -1,89 +1,100 @@
 package com.bank.system.payment_service.kafka;
 
-import com.bank.system.dtos.dto.CompensatePaymentEvent;
-import com.bank.system.dtos.dto.PaymentCompletedEvent;
-import com.bank.system.dtos.dto.PaymentInitiatedEvent;
-import com.bank.system.dtos.dto.ReceiverCreditRequestEvent;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import com.bank.system.dtos.outbox.OutboxEventCodec;
+import com.bank.system.payment_service.config.OutboxProperties;
+import com.bank.system.payment_service.config.OutboxProperties.DeliveryMode;
+import com.bank.system.payment_service.service.OutboxLeaseService;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import jakarta.annotation.PreDestroy;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.kafka.core.DefaultKafkaProducerFactory;
 import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.core.ProducerFactory;
 import org.springframework.kafka.support.SendResult;
+import org.springframework.kafka.support.mapping.AbstractJavaTypeMapper;
 import org.springframework.stereotype.Component;
 
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 
 @Component
 public class PaymentProducer {
 
-    private static final Logger log = LoggerFactory.getLogger(PaymentProducer.class);
-
-    private static final String PAYMENT_COMPLETED_TOPIC = "payment-completed-topic";
-    private static final String PAYMENT_INITIATED_TOPIC = "payment-initiated-topic";
-    private static final String RECEIVER_CREDITED_REQUESTED_TOPIC = "receiver-credited-requested-topic";
-    private static final String COMPENSATE_PAYMENT_TOPIC = "compensate-payment-topic";
-
     private final KafkaTemplate<String, Object> kafkaTemplate;
+    // Same producer settings, but values are written as the raw bytes stored in the outbox
+    private final KafkaTemplate<String, byte[]> rawKafkaTemplate;
+    // Idempotent, transactional producers for the exactly-once outbox relay; null unless that mode is enabled
+    private final DefaultKafkaProducerFactory<String, byte[]> transactionalProducerFactory;
+    private final KafkaTemplate<String, byte[]> transactionalKafkaTemplate;
 
     @Autowired
-    public PaymentProducer(KafkaTemplate<String, Object> kafkaTemplate) {
+    @SuppressWarnings("unchecked")
+    public PaymentProducer(KafkaTemplate<String, Object> kafkaTemplate, OutboxProperties outboxProperties, OutboxLeaseService leaseService) {
         this.kafkaTemplate = kafkaTemplate;
+        this.rawKafkaTemplate = new KafkaTemplate<>((ProducerFactory<String, byte[]>) (ProducerFactory<?, ?>) kafkaTemplate.getProducerFactory(),
+                Map.of(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class));
+        if (outboxProperties.getDispatcher().getDelivery() == DeliveryMode.EXACTLY_ONCE) {
+            Map<String, Object> configs = new HashMap<>(kafkaTemplate.getProducerFactory().getConfigurationProperties());
+            configs.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class);
+            configs.put(ProducerConfig.ENABLE_IDEMPOTENCE_CONFIG, true);
+            configs.put(ProducerConfig.ACKS_CONFIG, "all");
+            this.transactionalProducerFactory = new DefaultKafkaProducerFactory<>(configs);
+            // Unique per instance, otherwise instances sharing the outbox would fence each other's producers
+            transactionalProducerFactory.setTransactionIdPrefix(
+                    outboxProperties.getDispatcher().getTransactionIdPrefix() + leaseService.getOwnerId() + "-");
+            this.transactionalKafkaTemplate = new KafkaTemplate<>(transactionalProducerFactory);
+        } else {
+            this.transactionalProducerFactory = null;
+            this.transactionalKafkaTemplate = null;
+        }
     }
 
-    public CompletableFuture<SendResult<String, Object>> sendPaymentInitiatedEvent(PaymentInitiatedEvent event) {
-        log.info("Sending PaymentInitiatedEvent for paymentId: {}", event.getPaymentId());
-        return kafkaTemplate.send(PAYMENT_INITIATED_TOPIC, String.valueOf(event.getPaymentId()), event)
-                .whenComplete((result, ex) -> {
-                    if (ex == null) {
-                        log.info("PaymentInitiatedEvent sent successfully for paymentId: {} to topic {} with offset {}",
-                                event.getPaymentId(), result.getRecordMetadata().topic(), result.getRecordMetadata().offset());
-                    } else {
-                        log.error("Failed to send PaymentInitiatedEvent for paymentId: {}. Reason: {}",
-                                event.getPaymentId(), ex.getMessage(), ex);
-                    }
-                });
+    /**
+     * Publishes an outbox event decoded through its codec; the template's JsonSerializer encodes it again.
+     */
+    public CompletableFuture<SendResult<String, Object>> send(OutboxEventCodec<?> codec, String key, Object event) {
+        return kafkaTemplate.send(codec.getTopic(), key, event);
     }
 
-    public CompletableFuture<SendResult<String, Object>> sendReceiverCreditRequestEvent(ReceiverCreditRequestEvent event) {
-        log.info("Sending ReceiverCreditRequestEvent for paymentId: {}", event.getPaymentId());
-        return kafkaTemplate.send(RECEIVER_CREDITED_REQUESTED_TOPIC, String.valueOf(event.getPaymentId()), event)
-                .whenComplete((result, ex) -> {
-                    if (ex == null) {
-                        log.info("ReceiverCreditRequestEvent sent successfully for paymentId: {} to topic {} with offset {}",
-                                event.getPaymentId(), result.getRecordMetadata().topic(), result.getRecordMetadata().offset());
-                    } else {
-                        log.error("Failed to send ReceiverCreditRequestEvent for paymentId: {}. Reason: {}",
-                                event.getPaymentId(), ex.getMessage(), ex);
-                    }
-                });
+    /**
+     * Publishes the JSON stored in the outbox without decoding it. The type header is the one JsonSerializer
+     * would have added, so consumers deserialize the record exactly as before.
+     */
+    public CompletableFuture<SendResult<String, byte[]>> sendRaw(OutboxEventCodec<?> codec, String key, String payload) {
+        return rawKafkaTemplate.send(rawRecord(codec, key, payload));
     }
 
-    public CompletableFuture<SendResult<String, Object>> sendPaymentCompletedEvent(PaymentCompletedEvent event) {
-        log.info("Sending PaymentCompletedEvent for paymentId: {}", event.getPaymentId());
-        return kafkaTemplate.send(PAYMENT_COMPLETED_TOPIC, String.valueOf(event.getPaymentId()), event)
-                .whenComplete((result, ex) -> {
-                    if (ex == null) {
-                        log.info("PaymentCompletedEvent sent successfully for paymentId: {} to topic {} with offset {}",
-                                event.getPaymentId(), result.getRecordMetadata().topic(), result.getRecordMetadata().offset());
-                    } else {
-                        log.error("Failed to send PaymentCompletedEvent for paymentId: {}. Reason: {}",
-                                event.getPaymentId(), ex.getMessage(), ex);
-                    }
-                });
+    public ProducerRecord<String, byte[]> rawRecord(OutboxEventCodec<?> codec, String key, String payload) {
+        ProducerRecord<String, byte[]> record = new ProducerRecord<>(codec.getTopic(), key, payload.getBytes(StandardCharsets.UTF_8));
+        record.headers().add(AbstractJavaTypeMapper.DEFAULT_CLASSID_FIELD_NAME,
+                codec.getEventClass().getName().getBytes(StandardCharsets.UTF_8));
+        return record;
     }
 
-    public CompletableFuture<SendResult<String, Object>> sendCompensatePaymentEvent(CompensatePaymentEvent event) {
-        log.info("Sending CompensatePaymentEvent for paymentId: {}", event.getPaymentId());
-        return kafkaTemplate.send(COMPENSATE_PAYMENT_TOPIC, String.valueOf(event.getPaymentId()), event)
-                .whenComplete((result, ex) -> {
-                    if (ex == null) {
-                        log.info("CompensatePaymentEvent sent successfully for paymentId: {} to topic {} with offset {}",
-                                event.getPaymentId(), result.getRecordMetadata().topic(), result.getRecordMetadata().offset());
-                    } else {
-                        log.error("Failed to send CompensatePaymentEvent for paymentId: {}. Reason: {}",
-                                event.getPaymentId(), ex.getMessage(), ex);
-                    }
-                });
+    /**
+     * Publishes the records, in order, in a single Kafka transaction and returns once it has committed.
+     * If any record fails the whole transaction is aborted and the exception rethrown; read_committed
+     * consumers then see none of the records.
+     */
+    public void sendInTransaction(List<ProducerRecord<String, byte[]>> records) {
+        if (transactionalKafkaTemplate == null) {
+            throw new IllegalStateException("outbox.dispatcher.delivery is not exactly-once");
+        }
+        transactionalKafkaTemplate.executeInTransaction(operations -> {
+            records.forEach(operations::send);
+            return null;
+        });
     }
 
-}
\ No newline at end of file
+    @PreDestroy
+    public void shutdown() {
+        if (transactionalProducerFactory != null) {
+            transactionalProducerFactory.destroy();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.bank.system.payment_service.metrics;
+
+import com.bank.system.payment_service.domain.PaymentStatus;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.stereotype.Component;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Micrometer instrumentation of the payment saga. payment.sagas.in.flight counts the payments in each
+ * status the saga has not finished with as of the last sweeper run, which counts them once per interval
+ * rather than once per scrape; the sweeper also records the retries and timeouts it acts on. Timeouts of
+ * INITIATED payments deserve a look: they failed without anyone hearing of a debit.
+ */
+@Component
+public class SagaMetrics {
+
+    private final MeterRegistry meterRegistry;
+    private final Map<PaymentStatus, Counter> retries = new ConcurrentHashMap<>();
+    private final Map<PaymentStatus, Counter> timeouts = new ConcurrentHashMap<>();
+    private final Map<PaymentStatus, AtomicLong> inFlight = new EnumMap<>(PaymentStatus.class);
+
+    public SagaMetrics(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+        for (PaymentStatus status : PaymentStatus.values()) {
+            if (!status.isTerminal()) {
+                AtomicLong count = new AtomicLong();
+                inFlight.put(status, count);
+                Gauge.builder("payment.sagas.in.flight", count, AtomicLong::get)
+                        .description("Payments in a status the saga has not finished with, as of the last sweep")
+                        .tag("status", status.name())
+                        .register(meterRegistry);
+            }
+        }
+    }
+
+    public void recordInFlight(Map<PaymentStatus, Long> counts) {
+        counts.forEach((status, count) -> {
+            AtomicLong gauge = inFlight.get(status);
+            if (gauge != null) {
+                gauge.set(count);
+            }
+        });
+    }
+
+    public void recordRetries(PaymentStatus status, int count) {
+        retries.computeIfAbsent(status, s -> Counter.builder("payment.saga.sweeper.retries")
+                .description("Saga events re-sent for payments stalled past their timeout")
+                .tag("status", s.name())
+                .register(meterRegistry)).increment(count);
+    }
+
+    public void recordTimeouts(PaymentStatus status, int count) {
+        timeouts.computeIfAbsent(status, s -> Counter.builder("payment.saga.sweeper.timeouts")
+                .description("Payments the sweeper gave up on after max-retries and moved on")
+                .tag("status", s.name())
+                .register(meterRegistry)).increment(count);
+    }
+}
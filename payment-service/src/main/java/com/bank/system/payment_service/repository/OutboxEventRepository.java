@@ -1,20 +1,51 @@
 package com.bank.system.payment_service.repository;
 
+import com.bank.system.payment_service.domain.MarkAsSentResult;
 import com.bank.system.payment_service.domain.OutboxEvent;
+import com.bank.system.payment_service.domain.OutboxEventKey;
+import com.bank.system.payment_service.domain.OutboxEventSaved;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Repository;
 
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
 import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.UUID;
 
 @Repository
 public class OutboxEventRepository {
 
+    // Correlated on outbox_event e; bound to the current time
+    private static final String EARLIER_EVENT_BACKING_OFF = """
+            SELECT 1 FROM outbox_event earlier
+            WHERE earlier.aggregate_id = e.aggregate_id
+              AND earlier.sent = FALSE AND earlier.failed = FALSE
+              AND earlier.next_attempt_at > ?
+              AND earlier.created_at < e.created_at
+            """;
+
     private final JdbcTemplate jdbcTemplate;
+    private final ApplicationEventPublisher eventPublisher;
+    private final Counter versionConflicts;
 
-    public OutboxEventRepository(JdbcTemplate jdbcTemplate) {
+    public OutboxEventRepository(JdbcTemplate jdbcTemplate, ApplicationEventPublisher eventPublisher, MeterRegistry meterRegistry) {
         this.jdbcTemplate = jdbcTemplate;
+        this.eventPublisher = eventPublisher;
+        this.versionConflicts = Counter.builder("outbox.version.conflicts")
+                .description("Outbox rows that could not be marked as sent because their version had changed")
+                .register(meterRegistry);
     }
 
     public void save(OutboxEvent event) {
@@ -25,32 +56,119 @@ public class OutboxEventRepository {
         jdbcTemplate.update("""
             INSERT INTO outbox_event (
                 id, aggregate_type, aggregate_id, type, payload,
-                created_at, sent, version
-            ) VALUES (?, ?, ?, ?, ?, ?, ?, ?)
+                created_at, sent, version, aggregate_hash
+            ) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)
         """, event.getId(), event.getAggregateType(), event.getAggregateId(),
-                event.getType(), event.getPayload(), event.getCreatedAt(), event.isSent(), event.getVersion());
+                event.getType(), event.getPayload(), event.getCreatedAt(), event.isSent(), event.getVersion(),
+                aggregateHash(event.getAggregateId()));
+        // Lets the dispatcher publish right after commit instead of waiting for its next poll
+        eventPublisher.publishEvent(new OutboxEventSaved(event.getId(), event.getType()));
     }
 
+    public void saveAll(List<OutboxEvent> events) {
+        if (events.isEmpty()) {
+            return;
+        }
+        // Dispatch goes by created_at, so the rows of one batch are a microsecond apart to keep their order
+        Instant now = Instant.now().truncatedTo(ChronoUnit.MICROS);
+        for (int i = 0; i < events.size(); i++) {
+            OutboxEvent event = events.get(i);
+            event.setId(UUID.randomUUID());
+            event.setCreatedAt(now.plus(i, ChronoUnit.MICROS));
+            event.setVersion(0);
+        }
+        jdbcTemplate.batchUpdate("""
+            INSERT INTO outbox_event (
+                id, aggregate_type, aggregate_id, type, payload,
+                created_at, sent, version, aggregate_hash
+            ) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)
+        """, events, events.size(), (ps, event) -> {
+            ps.setObject(1, event.getId());
+            ps.setString(2, event.getAggregateType());
+            ps.setObject(3, event.getAggregateId());
+            ps.setString(4, event.getType());
+            ps.setString(5, event.getPayload());
+            ps.setTimestamp(6, Timestamp.from(event.getCreatedAt()));
+            ps.setBoolean(7, event.isSent());
+            ps.setInt(8, event.getVersion());
+            ps.setInt(9, aggregateHash(event.getAggregateId()));
+        });
+        // One wake-up covers the whole batch, the dispatcher drains whatever is due
+        OutboxEvent last = events.get(events.size() - 1);
+        eventPublisher.publishEvent(new OutboxEventSaved(last.getId(), last.getType()));
+    }
+
+    /**
+     * Oldest unsent events that are due. Failed events, events still waiting out a retry backoff and later
+     * events of an aggregate whose earlier event is waiting out a backoff are skipped, so a broken event
+     * neither blocks the rest of the outbox nor lets its own aggregate overtake it.
+     * <p>
+     * Nothing is locked: the rows are published outside any transaction, so a row lock would be gone before
+     * the first of them is sent. Two instances reading here publish the same events; several instances need
+     * outbox.lease.enabled, which reads {@link #fetchUnsentEvents(int, int, int)} on leased slices instead.
+     */
     public List<OutboxEvent> fetchUnsentEvents(int limit) {
+        Timestamp now = Timestamp.from(Instant.now());
         return jdbcTemplate.query("""
-            SELECT * FROM outbox_event
-            WHERE sent = FALSE
-            ORDER BY created_at
+            SELECT * FROM outbox_event e
+            WHERE e.sent = FALSE AND e.failed = FALSE
+              AND (e.next_attempt_at IS NULL OR e.next_attempt_at <= ?)
+              AND NOT EXISTS (%s)
+            ORDER BY e.created_at
             LIMIT ?
-            FOR UPDATE SKIP LOCKED
-        """, new Object[]{limit}, (rs, rowNum) -> {
-            OutboxEvent event = new OutboxEvent(
-                    UUID.fromString(rs.getString("id")),
-                    rs.getString("aggregate_type"),
-                    rs.getObject("aggregate_id", UUID.class),
-                    rs.getString("type"),
-                    rs.getString("payload"),
-                    rs.getTimestamp("created_at").toInstant(),
-                    rs.getBoolean("sent")
-            );
-            event.setVersion(rs.getInt("version"));
-            return event;
-        });
+        """.formatted(EARLIER_EVENT_BACKING_OFF), this::mapOutboxEvent, now, now, limit);
+    }
+
+    /**
+     * Same as {@link #fetchUnsentEvents(int)}, restricted to the slice of aggregates hashed to {@code partition}.
+     * All events of one aggregate land in the same slice, so publishing a slice in order keeps them in order.
+     * The caller's lease on the slice is what keeps other instances off these rows.
+     */
+    public List<OutboxEvent> fetchUnsentEvents(int limit, int partition, int partitions) {
+        Timestamp now = Timestamp.from(Instant.now());
+        return jdbcTemplate.query("""
+            SELECT * FROM outbox_event e
+            WHERE e.sent = FALSE AND e.failed = FALSE AND MOD(e.aggregate_hash, ?) = ?
+              AND (e.next_attempt_at IS NULL OR e.next_attempt_at <= ?)
+              AND NOT EXISTS (%s)
+            ORDER BY e.created_at
+            LIMIT ?
+        """.formatted(EARLIER_EVENT_BACKING_OFF), this::mapOutboxEvent, partitions, partition, now, now, limit);
+    }
+
+    /**
+     * The most recent event of {@code type} written for each of {@code aggregateIds}, sent or not. Aggregates
+     * whose event has been archived or deleted by retention are missing from the result.
+     */
+    public Map<UUID, OutboxEvent> findLatestByAggregateIds(List<UUID> aggregateIds, String type) {
+        List<Object> args = new ArrayList<>(aggregateIds.size() + 1);
+        args.add(type);
+        aggregateIds.forEach(id -> args.add(id.toString()));
+        Map<UUID, OutboxEvent> latest = new HashMap<>();
+        jdbcTemplate.query("""
+            SELECT * FROM outbox_event e
+            WHERE e.type = ? AND e.aggregate_id IN (%s)
+            ORDER BY e.created_at
+        """.formatted(placeholders(aggregateIds.size())), (ResultSet rs) -> {
+            OutboxEvent event = mapOutboxEvent(rs, 0);
+            latest.put(event.getAggregateId(), event);
+        }, args.toArray());
+        return latest;
+    }
+
+    private OutboxEvent mapOutboxEvent(ResultSet rs, int rowNum) throws SQLException {
+        OutboxEvent event = new OutboxEvent(
+                UUID.fromString(rs.getString("id")),
+                rs.getString("aggregate_type"),
+                rs.getObject("aggregate_id", UUID.class),
+                rs.getString("type"),
+                rs.getString("payload"),
+                rs.getTimestamp("created_at").toInstant(),
+                rs.getBoolean("sent")
+        );
+        event.setVersion(rs.getInt("version"));
+        event.setAttempts(rs.getInt("attempts"));
+        return event;
     }
 
     public boolean markAsSent(UUID id, int currentVersion) {
@@ -59,6 +177,141 @@ public class OutboxEventRepository {
             SET sent = TRUE, version = version + 1
             WHERE id = ? AND version = ?
         """, id, currentVersion);
+        if (updated == 0) {
+            versionConflicts.increment();
+        }
+        return updated > 0;
+    }
+
+    /**
+     * Flags a batch of events as sent with a single JDBC batch. Each row still has to match the version
+     * it was fetched with; rows that were updated in the meantime are reported as conflicts.
+     */
+    public MarkAsSentResult markAllAsSent(List<OutboxEvent> events) {
+        if (events.isEmpty()) {
+            return MarkAsSentResult.empty();
+        }
+        int[][] counts = jdbcTemplate.batchUpdate("""
+            UPDATE outbox_event
+            SET sent = TRUE, version = version + 1
+            WHERE id = ? AND version = ?
+        """, events, events.size(), (ps, event) -> {
+            ps.setObject(1, event.getId());
+            ps.setInt(2, event.getVersion());
+        });
+
+        List<UUID> sent = new ArrayList<>(events.size());
+        List<UUID> conflicted = new ArrayList<>();
+        int[] updated = counts[0];
+        for (int i = 0; i < events.size(); i++) {
+            // Some drivers only report that the statement succeeded, not how many rows it touched
+            if (updated[i] > 0 || updated[i] == Statement.SUCCESS_NO_INFO) {
+                sent.add(events.get(i).getId());
+            } else {
+                conflicted.add(events.get(i).getId());
+            }
+        }
+        versionConflicts.increment(conflicted.size());
+        return new MarkAsSentResult(sent, conflicted);
+    }
+
+    /**
+     * Pushes an event back until {@code nextAttemptAt} after a failed publish. Like {@link #markAsSent},
+     * the row has to still match the version it was fetched with.
+     */
+    public boolean scheduleRetry(OutboxEvent event, Instant nextAttemptAt, String error) {
+        int updated = jdbcTemplate.update("""
+            UPDATE outbox_event
+            SET attempts = attempts + 1, next_attempt_at = ?, last_error = ?, version = version + 1
+            WHERE id = ? AND version = ? AND sent = FALSE
+        """, Timestamp.from(nextAttemptAt), error, event.getId(), event.getVersion());
+        if (updated == 0) {
+            versionConflicts.increment();
+        }
         return updated > 0;
     }
+
+    /**
+     * Flags an event that ran out of attempts as failed; it is never fetched for dispatch again.
+     */
+    public boolean markAsFailed(OutboxEvent event, String error) {
+        int updated = jdbcTemplate.update("""
+            UPDATE outbox_event
+            SET attempts = attempts + 1, failed = TRUE, next_attempt_at = NULL, last_error = ?, version = version + 1
+            WHERE id = ? AND version = ? AND sent = FALSE
+        """, error, event.getId(), event.getVersion());
+        if (updated == 0) {
+            versionConflicts.increment();
+        }
+        return updated > 0;
+    }
+
+    public int copyFailedToDeadLetter(UUID id, Instant failedAt) {
+        return jdbcTemplate.update("""
+            INSERT INTO outbox_event_dead_letter (
+                id, aggregate_type, aggregate_id, type, payload,
+                created_at, attempts, last_error, failed_at
+            )
+            SELECT id, aggregate_type, aggregate_id, type, payload,
+                   created_at, attempts, last_error, ?
+            FROM outbox_event
+            WHERE failed = TRUE AND id = ?
+        """, Timestamp.from(failedAt), id);
+    }
+
+    public long countUnsent() {
+        Long unsent = jdbcTemplate.queryForObject("SELECT COUNT(*) FROM outbox_event WHERE sent = FALSE AND failed = FALSE", Long.class);
+        return unsent == null ? 0 : unsent;
+    }
+
+    public Optional<Instant> findOldestUnsentCreatedAt() {
+        Timestamp oldest = jdbcTemplate.queryForObject(
+                "SELECT MIN(created_at) FROM outbox_event WHERE sent = FALSE AND failed = FALSE", Timestamp.class);
+        return Optional.ofNullable(oldest).map(Timestamp::toInstant);
+    }
+
+    /**
+     * Next chunk of sent events created before {@code cutoff}, strictly after {@code after} in (created_at, id) order.
+     */
+    public List<OutboxEventKey> findSentBefore(Instant cutoff, OutboxEventKey after, int limit) {
+        return jdbcTemplate.query("""
+            SELECT id, created_at FROM outbox_event
+            WHERE sent = TRUE AND created_at < ?
+              AND (created_at > ? OR (created_at = ? AND id > ?))
+            ORDER BY created_at, id
+            LIMIT ?
+        """, (rs, rowNum) -> new OutboxEventKey(rs.getObject("id", UUID.class), rs.getTimestamp("created_at").toInstant()),
+                Timestamp.from(cutoff), Timestamp.from(after.getCreatedAt()), Timestamp.from(after.getCreatedAt()),
+                after.getId(), limit);
+    }
+
+    public int copySentToArchive(List<UUID> ids, Instant archivedAt) {
+        List<Object> args = new ArrayList<>(ids.size() + 1);
+        args.add(Timestamp.from(archivedAt));
+        args.addAll(ids);
+        return jdbcTemplate.update("""
+            INSERT INTO outbox_event_archive (
+                id, aggregate_type, aggregate_id, type, payload,
+                created_at, version, aggregate_hash, archived_at
+            )
+            SELECT id, aggregate_type, aggregate_id, type, payload,
+                   created_at, version, aggregate_hash, ?
+            FROM outbox_event
+            WHERE sent = TRUE AND id IN (%s)
+        """.formatted(placeholders(ids.size())), args.toArray());
+    }
+
+    public int deleteSent(List<UUID> ids) {
+        return jdbcTemplate.update("DELETE FROM outbox_event WHERE sent = TRUE AND id IN (%s)".formatted(placeholders(ids.size())),
+                ids.toArray());
+    }
+
+    private static String placeholders(int count) {
+        return String.join(", ", Collections.nCopies(count, "?"));
+    }
+
+    // Non-negative so MOD(aggregate_hash, partitions) always yields a valid partition number
+    static int aggregateHash(UUID aggregateId) {
+        return aggregateId.hashCode() & Integer.MAX_VALUE;
+    }
 }
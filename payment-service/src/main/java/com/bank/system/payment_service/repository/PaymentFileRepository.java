@@ -0,0 +1,110 @@
+package com.bank.system.payment_service.repository;
+
+import com.bank.system.payment_service.domain.PaymentFile;
+import com.bank.system.payment_service.domain.PaymentFileFormat;
+import com.bank.system.payment_service.domain.PaymentFileStatus;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.stereotype.Repository;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+@Repository
+public class PaymentFileRepository {
+
+    private static final int MAX_ERROR_LENGTH = 1024;
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public PaymentFileRepository(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    private final RowMapper<PaymentFile> rowMapper = (rs, rowNum) -> {
+        PaymentFile file = new PaymentFile(
+                UUID.fromString(rs.getString("id")),
+                rs.getString("file_name"),
+                PaymentFileFormat.valueOf(rs.getString("format")),
+                rs.getString("storage_path"));
+        file.setOwner(rs.getString("owner"));
+        file.setStatus(PaymentFileStatus.valueOf(rs.getString("status")));
+        file.setItemsDone(rs.getLong("items_done"));
+        file.setCreated(rs.getLong("created"));
+        file.setExisting(rs.getLong("existing"));
+        file.setRejected(rs.getLong("rejected"));
+        file.setError(rs.getString("error"));
+        file.setCreatedAt(rs.getTimestamp("created_at").toInstant());
+        Timestamp updatedAt = rs.getTimestamp("updated_at");
+        file.setUpdatedAt(updatedAt != null ? updatedAt.toInstant() : null);
+        return file;
+    };
+
+    public PaymentFile save(PaymentFile file) {
+        Instant now = Instant.now();
+        file.setCreatedAt(now);
+        file.setUpdatedAt(now);
+        jdbcTemplate.update("""
+            INSERT INTO payment_file (id, file_name, format, storage_path, owner, status, created_at, updated_at)
+            VALUES (?, ?, ?, ?, ?, ?, ?, ?)
+        """, file.getId(), file.getFileName(), file.getFormat().name(), file.getStoragePath(), file.getOwner(),
+                file.getStatus().name(), Timestamp.from(now), Timestamp.from(now));
+        return file;
+    }
+
+    public Optional<PaymentFile> findById(UUID id) {
+        return jdbcTemplate.query("SELECT * FROM payment_file WHERE id = ?", rowMapper, id).stream().findFirst();
+    }
+
+    /**
+     * Files received but not finished, oldest first: those still queued and those whose ingestion was
+     * interrupted.
+     */
+    public List<PaymentFile> findUnfinished() {
+        return jdbcTemplate.query("SELECT * FROM payment_file WHERE status IN (?, ?) ORDER BY created_at", rowMapper,
+                PaymentFileStatus.RECEIVED.name(), PaymentFileStatus.PROCESSING.name());
+    }
+
+    /**
+     * Takes the unfinished file for {@code file.getOwner()} and marks it PROCESSING. Succeeds when nobody
+     * owns the file yet, when the owner already does, or when the last checkpoint is older than
+     * {@code staleBefore}; a file another instance is still advancing is left to it.
+     *
+     * @return whether the file is now owned by {@code file.getOwner()}
+     */
+    public boolean claim(PaymentFile file, Instant staleBefore) {
+        return jdbcTemplate.update("""
+            UPDATE payment_file SET owner = ?, status = ?, updated_at = ?
+            WHERE id = ? AND status IN (?, ?) AND (owner IS NULL OR owner = ? OR updated_at < ?)
+        """, file.getOwner(), PaymentFileStatus.PROCESSING.name(), Timestamp.from(Instant.now()), file.getId(),
+                PaymentFileStatus.RECEIVED.name(), PaymentFileStatus.PROCESSING.name(), file.getOwner(),
+                Timestamp.from(staleBefore)) > 0;
+    }
+
+    /**
+     * Records that the outcome of every item before {@code itemsDone} is committed.
+     *
+     * @return false when the file has been taken over by another owner, whose checkpoint is left as it is
+     */
+    public boolean checkpoint(PaymentFile file) {
+        return jdbcTemplate.update("""
+            UPDATE payment_file SET items_done = ?, created = ?, existing = ?, rejected = ?, updated_at = ?
+            WHERE id = ? AND owner = ?
+        """, file.getItemsDone(), file.getCreated(), file.getExisting(), file.getRejected(),
+                Timestamp.from(Instant.now()), file.getId(), file.getOwner()) > 0;
+    }
+
+    public boolean complete(PaymentFile file) {
+        return jdbcTemplate.update("UPDATE payment_file SET status = ?, updated_at = ? WHERE id = ? AND owner = ?",
+                PaymentFileStatus.COMPLETED.name(), Timestamp.from(Instant.now()), file.getId(), file.getOwner()) > 0;
+    }
+
+    public boolean fail(PaymentFile file, String error) {
+        String truncated = error != null && error.length() > MAX_ERROR_LENGTH ? error.substring(0, MAX_ERROR_LENGTH) : error;
+        return jdbcTemplate.update("UPDATE payment_file SET status = ?, error = ?, updated_at = ? WHERE id = ? AND owner = ?",
+                PaymentFileStatus.FAILED.name(), truncated, Timestamp.from(Instant.now()), file.getId(), file.getOwner()) > 0;
+    }
+}
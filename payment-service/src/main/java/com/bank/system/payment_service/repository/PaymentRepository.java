@@ -2,31 +2,52 @@ package com.bank.system.payment_service.repository;
 
 import com.bank.system.payment_service.domain.Payment;
 import com.bank.system.payment_service.domain.PaymentStatus;
-import com.zaxxer.hikari.HikariDataSource;
+import com.bank.system.payment_service.domain.StalledPayment;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.datasource.DataSourceUtils;
 import org.springframework.stereotype.Repository;
 
+import javax.sql.DataSource;
 import java.sql.*;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.StringJoiner;
 import java.util.UUID;
 
 @Repository
 public class PaymentRepository {
 
     private static final Logger log = LoggerFactory.getLogger(PaymentRepository.class);
-    private final HikariDataSource dataSource;
+    // SQLSTATE of a unique constraint violation, the same on PostgreSQL and H2
+    private static final String UNIQUE_VIOLATION = "23505";
+    private static final String COLUMNS = "id, sender_account_id, receiver_account_id, amount, currency, status, idempotency_key, created_at, updated_at";
+    private final DataSource dataSource;
+    private volatile Boolean returningSupported;
 
-    public PaymentRepository(HikariDataSource dataSource) {
+    public PaymentRepository(DataSource dataSource) {
         this.dataSource = dataSource;
     }
 
+    /**
+     * Inserts the payment, relying on the unique index on idempotency_key instead of a lookup beforehand.
+     *
+     * @throws DuplicateKeyException if a payment with the same idempotency key exists
+     */
     public Payment save(Payment payment) {
         String sql = "INSERT INTO payment (id, sender_account_id, receiver_account_id, amount, currency, status, idempotency_key, created_at, updated_at) " +
                 "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
-        try (Connection conn = dataSource.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
+        Connection conn = DataSourceUtils.getConnection(dataSource);
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
 
             payment.setId(UUID.randomUUID());
             payment.setCreatedAt(Instant.now());
@@ -49,15 +70,69 @@ public class PaymentRepository {
             log.info("Payment saved: {}", payment.getId());
             return payment;
         } catch (SQLException e) {
+            if (isUniqueViolation(e)) {
+                throw new DuplicateKeyException("Payment with idempotency key " + payment.getIdempotencyKey() + " already exists", e);
+            }
             log.error("Error saving payment {}: {}", payment.getId(), e.getMessage());
             throw new RuntimeException("Failed to save payment", e);
+        } finally {
+            DataSourceUtils.releaseConnection(conn, dataSource);
+        }
+    }
+
+    /**
+     * Inserts the payments with JDBC batching; all of them or, on a repeated idempotency key, none once the
+     * surrounding transaction rolls back.
+     *
+     * @throws DuplicateKeyException if one of the idempotency keys exists already
+     */
+    public List<Payment> saveAll(List<Payment> payments, int batchSize) {
+        String sql = "INSERT INTO payment (id, sender_account_id, receiver_account_id, amount, currency, status, idempotency_key, created_at, updated_at) " +
+                "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+        Connection conn = DataSourceUtils.getConnection(dataSource);
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            Instant now = Instant.now();
+            int pending = 0;
+            for (Payment payment : payments) {
+                payment.setId(UUID.randomUUID());
+                payment.setCreatedAt(now);
+                payment.setUpdatedAt(now);
+
+                stmt.setObject(1, payment.getId());
+                stmt.setString(2, payment.getSenderAccountId());
+                stmt.setString(3, payment.getReceiverAccountId());
+                stmt.setBigDecimal(4, payment.getAmount());
+                stmt.setString(5, payment.getCurrency());
+                stmt.setString(6, payment.getStatus().name());
+                stmt.setString(7, payment.getIdempotencyKey());
+                stmt.setTimestamp(8, Timestamp.from(now));
+                stmt.setTimestamp(9, Timestamp.from(now));
+                stmt.addBatch();
+                if (++pending == batchSize) {
+                    stmt.executeBatch();
+                    pending = 0;
+                }
+            }
+            if (pending > 0) {
+                stmt.executeBatch();
+            }
+            log.info("Saved {} payments in one batch", payments.size());
+            return payments;
+        } catch (SQLException e) {
+            if (isUniqueViolation(e)) {
+                throw new DuplicateKeyException("One of " + payments.size() + " idempotency keys already exists", e);
+            }
+            log.error("Error saving a batch of {} payments: {}", payments.size(), e.getMessage());
+            throw new RuntimeException("Failed to save payments", e);
+        } finally {
+            DataSourceUtils.releaseConnection(conn, dataSource);
         }
     }
 
     public Optional<Payment> findById(UUID id) {
         String sql = "SELECT id, sender_account_id, receiver_account_id, amount, currency, status, idempotency_key, created_at, updated_at FROM payment WHERE id = ?";
-        try (Connection conn = dataSource.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
+        Connection conn = DataSourceUtils.getConnection(dataSource);
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
 
             stmt.setObject(1, id);
             try (ResultSet rs = stmt.executeQuery()) {
@@ -69,13 +144,15 @@ public class PaymentRepository {
         } catch (SQLException e) {
             log.error("Error finding payment by ID {}: {}", id, e.getMessage());
             throw new RuntimeException("Failed to find payment by ID", e);
+        } finally {
+            DataSourceUtils.releaseConnection(conn, dataSource);
         }
     }
 
     public Optional<Payment> findByIdForUpdate(UUID id) {
         String sql = "SELECT id, sender_account_id, receiver_account_id, amount, currency, status, idempotency_key, created_at, updated_at FROM payment WHERE id = ? FOR UPDATE";
-        try (Connection conn = dataSource.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
+        Connection conn = DataSourceUtils.getConnection(dataSource);
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
 
             stmt.setObject(1, id);
             try (ResultSet rs = stmt.executeQuery()) {
@@ -87,13 +164,15 @@ public class PaymentRepository {
         } catch (SQLException e) {
             log.error("Error finding payment by ID {}: {}", id, e.getMessage());
             throw new RuntimeException("Failed to find payment by ID", e);
+        } finally {
+            DataSourceUtils.releaseConnection(conn, dataSource);
         }
     }
 
     public Optional<Payment> findByIdempotencyKeyId(String idempotencyKey) {
         String sql = "SELECT id, sender_account_id, receiver_account_id, amount, currency, status, idempotency_key, created_at, updated_at FROM payment WHERE idempotency_key = ?";
-        try (Connection conn = dataSource.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
+        Connection conn = DataSourceUtils.getConnection(dataSource);
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
 
             stmt.setObject(1, idempotencyKey);
             try (ResultSet rs = stmt.executeQuery()) {
@@ -105,29 +184,237 @@ public class PaymentRepository {
         } catch (SQLException e) {
             log.error("Error finding payment idempotency key {}: {}", idempotencyKey, e.getMessage());
             throw new RuntimeException("Failed to find payment by idempotency key", e);
+        } finally {
+            DataSourceUtils.releaseConnection(conn, dataSource);
+        }
+    }
+
+    /**
+     * The payments of whichever of the idempotency keys exist, by key, asking in chunks of {@code chunkSize} keys.
+     */
+    public Map<String, Payment> findByIdempotencyKeys(Collection<String> idempotencyKeys, int chunkSize) {
+        Map<String, Payment> found = new HashMap<>();
+        List<String> keys = new ArrayList<>(idempotencyKeys);
+        Connection conn = DataSourceUtils.getConnection(dataSource);
+        try {
+            for (int from = 0; from < keys.size(); from += chunkSize) {
+                List<String> chunk = keys.subList(from, Math.min(from + chunkSize, keys.size()));
+                String sql = "SELECT id, sender_account_id, receiver_account_id, amount, currency, status, idempotency_key, created_at, updated_at FROM payment WHERE idempotency_key IN ("
+                        + placeholders(chunk.size()) + ")";
+                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                    for (int i = 0; i < chunk.size(); i++) {
+                        stmt.setString(i + 1, chunk.get(i));
+                    }
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        while (rs.next()) {
+                            Payment payment = mapResultSetToPayment(rs);
+                            found.put(payment.getIdempotencyKey(), payment);
+                        }
+                    }
+                }
+            }
+            return found;
+        } catch (SQLException e) {
+            log.error("Error finding payments by {} idempotency keys: {}", keys.size(), e.getMessage());
+            throw new RuntimeException("Failed to find payments by idempotency keys", e);
+        } finally {
+            DataSourceUtils.releaseConnection(conn, dataSource);
         }
     }
 
-    public Optional<Payment> updateStatus(UUID id, PaymentStatus newStatus) {
-        String sql = "UPDATE payment SET status = ?, updated_at = ? WHERE id = ?";
-        try (Connection conn = dataSource.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
+    /**
+     * Moves the payment to {@code target} if its status is one of {@code from}, in one statement that also
+     * returns the updated row: UPDATE ... RETURNING on PostgreSQL, a FINAL TABLE over the UPDATE on H2.
+     *
+     * @return the updated payment, or empty if it does not exist or is in another status
+     */
+    public Optional<Payment> transitionStatus(UUID id, PaymentStatus target, Set<PaymentStatus> from) {
+        String update = "UPDATE payment SET status = ?, updated_at = ?, saga_retries = 0 WHERE id = ? AND status IN ("
+                + placeholders(from.size()) + ")";
+        Connection conn = DataSourceUtils.getConnection(dataSource);
+        try {
+            try (PreparedStatement stmt = conn.prepareStatement(returning(conn, update, COLUMNS))) {
+                stmt.setString(1, target.name());
+                stmt.setTimestamp(2, Timestamp.from(Instant.now()));
+                stmt.setObject(3, id);
+                int i = 4;
+                for (PaymentStatus status : from) {
+                    stmt.setString(i++, status.name());
+                }
+                try (ResultSet rs = stmt.executeQuery()) {
+                    if (rs.next()) {
+                        log.info("Payment {} status updated to {}", id, target);
+                        return Optional.of(mapResultSetToPayment(rs));
+                    }
+                    return Optional.empty();
+                }
+            }
+        } catch (SQLException e) {
+            log.error("Error moving payment {} to {}: {}", id, target, e.getMessage());
+            throw new RuntimeException("Failed to update payment status", e);
+        } finally {
+            DataSourceUtils.releaseConnection(conn, dataSource);
+        }
+    }
 
-            stmt.setString(1, newStatus.name());
+    /**
+     * Applies {@link #transitionStatus} to every payment of {@code ids} that has not been updated since
+     * {@code before}, in one statement. Payments in another status, or touched in the meantime, are left alone.
+     *
+     * @return the updated payments
+     */
+    public List<Payment> transitionStatuses(List<UUID> ids, PaymentStatus target, Set<PaymentStatus> from, Instant before) {
+        String update = "UPDATE payment SET status = ?, updated_at = ?, saga_retries = 0 WHERE status IN ("
+                + placeholders(from.size()) + ") AND updated_at < ? AND id IN (" + placeholders(ids.size()) + ")";
+        Connection conn = DataSourceUtils.getConnection(dataSource);
+        try (PreparedStatement stmt = conn.prepareStatement(returning(conn, update, COLUMNS))) {
+            stmt.setString(1, target.name());
             stmt.setTimestamp(2, Timestamp.from(Instant.now()));
-            stmt.setObject(3, id);
+            int i = 3;
+            for (PaymentStatus status : from) {
+                stmt.setString(i++, status.name());
+            }
+            stmt.setTimestamp(i++, Timestamp.from(before));
+            for (UUID id : ids) {
+                stmt.setString(i++, id.toString());
+            }
+            List<Payment> updated = new ArrayList<>(ids.size());
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    updated.add(mapResultSetToPayment(rs));
+                }
+            }
+            log.info("{} of {} payments moved to {}", updated.size(), ids.size(), target);
+            return updated;
+        } catch (SQLException e) {
+            log.error("Error moving {} payments to {}: {}", ids.size(), target, e.getMessage());
+            throw new RuntimeException("Failed to update payment statuses", e);
+        } finally {
+            DataSourceUtils.releaseConnection(conn, dataSource);
+        }
+    }
 
-            int affectedRows = stmt.executeUpdate();
-            if (affectedRows > 0) {
-                log.info("Payment {} status updated to {}", id, newStatus);
-                return findById(id);
+    /**
+     * Next chunk of payments in {@code status} last updated before {@code before}, strictly after {@code after}
+     * in (updated_at, id) order. The status is written into the statement rather than bound, so PostgreSQL
+     * can answer from the partial index on in-flight payments.
+     */
+    public List<StalledPayment> findStalled(PaymentStatus status, Instant before, StalledPayment after, int limit) {
+        String sql = "SELECT id, updated_at, saga_retries FROM payment WHERE status = '" + status.name() + "' AND updated_at < ?"
+                + " AND (updated_at > ? OR (updated_at = ? AND id > ?)) ORDER BY updated_at, id LIMIT ?";
+        Connection conn = DataSourceUtils.getConnection(dataSource);
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setTimestamp(1, Timestamp.from(before));
+            stmt.setTimestamp(2, Timestamp.from(after.getUpdatedAt()));
+            stmt.setTimestamp(3, Timestamp.from(after.getUpdatedAt()));
+            stmt.setString(4, after.getId().toString());
+            stmt.setInt(5, limit);
+            List<StalledPayment> stalled = new ArrayList<>();
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    stalled.add(new StalledPayment(UUID.fromString(rs.getString("id")), rs.getTimestamp("updated_at").toInstant(),
+                            rs.getInt("saga_retries")));
+                }
             }
-            log.warn("Payment {} not found for status update.", id);
-            return Optional.empty();
+            return stalled;
         } catch (SQLException e) {
-            log.error("Error updating payment {} status to {}: {}", id, newStatus, e.getMessage());
-            throw new RuntimeException("Failed to update payment status", e);
+            log.error("Error finding payments stalled in {}: {}", status, e.getMessage());
+            throw new RuntimeException("Failed to find stalled payments", e);
+        } finally {
+            DataSourceUtils.releaseConnection(conn, dataSource);
+        }
+    }
+
+    /**
+     * Counts one more saga retry against every payment of {@code ids} that is still in {@code status} and has
+     * not been updated since {@code before}, and restarts its timeout.
+     *
+     * @return the ids of the payments updated; the others have moved on since they were found
+     */
+    public List<UUID> markRetried(PaymentStatus status, List<UUID> ids, Instant before) {
+        String update = "UPDATE payment SET saga_retries = saga_retries + 1, updated_at = ? WHERE status = '" + status.name()
+                + "' AND updated_at < ? AND id IN (" + placeholders(ids.size()) + ")";
+        Connection conn = DataSourceUtils.getConnection(dataSource);
+        try (PreparedStatement stmt = conn.prepareStatement(returning(conn, update, "id"))) {
+            stmt.setTimestamp(1, Timestamp.from(Instant.now()));
+            stmt.setTimestamp(2, Timestamp.from(before));
+            int i = 3;
+            for (UUID id : ids) {
+                stmt.setString(i++, id.toString());
+            }
+            List<UUID> updated = new ArrayList<>(ids.size());
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    updated.add(UUID.fromString(rs.getString("id")));
+                }
+            }
+            return updated;
+        } catch (SQLException e) {
+            log.error("Error recording retries of {} payments in {}: {}", ids.size(), status, e.getMessage());
+            throw new RuntimeException("Failed to record saga retries", e);
+        } finally {
+            DataSourceUtils.releaseConnection(conn, dataSource);
+        }
+    }
+
+    /**
+     * Payments currently in each status the saga has not finished with, zero included. The status list is
+     * spelled out as literals so that PostgreSQL matches the predicate of idx_payment_status_updated_at and
+     * counts from that index, never from the table.
+     */
+    public Map<PaymentStatus, Long> countInFlight() {
+        Map<PaymentStatus, Long> counts = new EnumMap<>(PaymentStatus.class);
+        StringJoiner inFlight = new StringJoiner(", ");
+        for (PaymentStatus status : PaymentStatus.values()) {
+            if (!status.isTerminal()) {
+                counts.put(status, 0L);
+                inFlight.add("'" + status.name() + "'");
+            }
+        }
+        String sql = "SELECT status, COUNT(*) FROM payment WHERE status IN (" + inFlight + ") GROUP BY status";
+        Connection conn = DataSourceUtils.getConnection(dataSource);
+        try (PreparedStatement stmt = conn.prepareStatement(sql);
+             ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) {
+                counts.put(PaymentStatus.valueOf(rs.getString(1)), rs.getLong(2));
+            }
+            return counts;
+        } catch (SQLException e) {
+            log.error("Error counting in-flight payments: {}", e.getMessage());
+            throw new RuntimeException("Failed to count payments", e);
+        } finally {
+            DataSourceUtils.releaseConnection(conn, dataSource);
+        }
+    }
+
+    // UPDATE ... RETURNING on PostgreSQL, a FINAL TABLE over the UPDATE on H2
+    private String returning(Connection conn, String update, String columns) throws SQLException {
+        return supportsReturning(conn)
+                ? update + " RETURNING " + columns
+                : "SELECT " + columns + " FROM FINAL TABLE (" + update + ")";
+    }
+
+    private boolean supportsReturning(Connection conn) throws SQLException {
+        Boolean supported = returningSupported;
+        if (supported == null) {
+            supported = "PostgreSQL".equals(conn.getMetaData().getDatabaseProductName());
+            returningSupported = supported;
+        }
+        return supported;
+    }
+
+    private static String placeholders(int count) {
+        return String.join(", ", Collections.nCopies(count, "?"));
+    }
+
+    // A batch reports the failing statement as the next exception of its BatchUpdateException
+    private static boolean isUniqueViolation(SQLException e) {
+        for (SQLException cause = e; cause != null; cause = cause.getNextException()) {
+            if (UNIQUE_VIOLATION.equals(cause.getSQLState())) {
+                return true;
+            }
         }
+        return false;
     }
 
     private Payment mapResultSetToPayment(ResultSet rs) throws SQLException {
@@ -1,19 +1,38 @@
 package com.bank.system.payment_service.repository;
 
 import com.bank.system.payment_service.domain.ProcessedEvent;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.function.Consumer;
 
 @Repository
 public class ProcessedEventRepository {
 
+    private static final String PARTITION_PREFIX = "processed_event_p";
+    private static final DateTimeFormatter PARTITION_DAY = DateTimeFormatter.BASIC_ISO_DATE;
+    // Inserts nothing when the id is recorded already, in whichever day it was
+    private static final String INSERT_IF_ABSENT = "INSERT INTO processed_event (event_id, event_type, payload, payload_hash, processed_at) "
+            + "SELECT ?, ?, ?, ?, ? WHERE NOT EXISTS (SELECT 1 FROM processed_event WHERE event_id = ?)";
+    // Held until the transaction ends, so a second claim of the id only checks once the first has committed
+    private static final String LOCK_IDS = "SELECT pg_advisory_xact_lock(k) FROM unnest(?::bigint[]) AS k";
+
     private final JdbcTemplate jdbcTemplate;
+    private volatile Boolean partitionedTable;
 
     public ProcessedEventRepository(JdbcTemplate jdbcTemplate) {
         this.jdbcTemplate = jdbcTemplate;
@@ -26,6 +45,7 @@ public class ProcessedEventRepository {
                     UUID.fromString(rs.getString("event_id")),
                     rs.getString("event_type"),
                     rs.getString("payload"),
+                    rs.getString("payload_hash"),
                     rs.getTimestamp("processed_at").toInstant()
             );
         }
@@ -42,7 +62,7 @@ public class ProcessedEventRepository {
     }
 
     public boolean existsById(UUID eventId) {
-        String sql = "SELECT 1 FROM processed_event WHERE event_id = ?";
+        String sql = "SELECT 1 FROM processed_event WHERE event_id = ? LIMIT 1";
         try {
             Integer result = jdbcTemplate.queryForObject(sql, Integer.class, eventId.toString());
             return result != null && result == 1;
@@ -51,14 +71,114 @@ public class ProcessedEventRepository {
         }
     }
 
+    /**
+     * Records the event.
+     *
+     * @throws DuplicateKeyException if it was recorded already
+     */
     public void save(ProcessedEvent event) {
-        String sql = "INSERT INTO processed_event (event_id, event_type, payload, processed_at) VALUES (?, ?, ?, ?)";
-        jdbcTemplate.update(
-                sql,
-                event.getEventId().toString(),
-                event.getEventType(),
-                event.getPayload(),
-                event.getProcessedAt()
-        );
+        if (!insertIfAbsent(event)) {
+            throw new DuplicateKeyException("Event " + event.getEventId() + " was processed already");
+        }
+    }
+
+    /**
+     * Records the event unless its id was recorded already, so of two transactions recording the same event
+     * only one gets true, whichever partition or consumer thread they come from. Must run in a transaction.
+     * <p>
+     * On H2 processed_event is keyed by event_id and the NOT EXISTS insert is backed by that key. On
+     * PostgreSQL the key of the day-partitioned table has to include processed_at, and a redelivery is
+     * recorded under a later processed_at, in another partition, so no key can catch it. There the id is
+     * locked for the rest of the transaction before it is checked; the second claim waits for the first to
+     * commit and then finds its row.
+     *
+     * @return whether the event was new
+     */
+    public boolean insertIfAbsent(ProcessedEvent event) {
+        if (isPartitioned()) {
+            lockIds(List.of(event.getEventId()));
+        }
+        try {
+            return jdbcTemplate.update(INSERT_IF_ABSENT, insertArguments(event)) == 1;
+        } catch (DuplicateKeyException e) {
+            // Recorded concurrently between the NOT EXISTS check and the insert
+            return false;
+        }
+    }
+
+    // Sorted, so two transactions locking overlapping batches cannot deadlock. Outside a transaction the lock
+    // would be released by the autocommit of its own statement and guard nothing.
+    private void lockIds(List<UUID> eventIds) {
+        if (!TransactionSynchronizationManager.isActualTransactionActive()) {
+            throw new IllegalStateException("Processed event ids can only be claimed in a transaction");
+        }
+        Long[] keys = eventIds.stream()
+                .map(eventId -> eventId.getMostSignificantBits() ^ eventId.getLeastSignificantBits())
+                .sorted()
+                .toArray(Long[]::new);
+        jdbcTemplate.query(LOCK_IDS, rs -> null, (Object) keys);
+    }
+
+    private static Object[] insertArguments(ProcessedEvent event) {
+        String eventId = event.getEventId().toString();
+        return new Object[]{eventId, event.getEventType(), event.getPayload(), event.getPayloadHash(),
+                Timestamp.from(event.getProcessedAt()), eventId};
+    }
+
+    /**
+     * Streams the ids of the most recently processed events, newest first.
+     */
+    public void forEachRecentId(int limit, Consumer<UUID> action) {
+        jdbcTemplate.query("SELECT event_id FROM processed_event ORDER BY processed_at DESC LIMIT ?",
+                (RowCallbackHandler) rs -> action.accept(UUID.fromString(rs.getString("event_id"))), limit);
+    }
+
+    /**
+     * Deletes up to {@code limit} rows processed before {@code cutoff}.
+     *
+     * @return the number of rows deleted
+     */
+    public int deleteProcessedBefore(Instant cutoff, int limit) {
+        return jdbcTemplate.update("DELETE FROM processed_event WHERE event_id IN "
+                + "(SELECT event_id FROM processed_event WHERE processed_at < ? LIMIT ?)", Timestamp.from(cutoff), limit);
+    }
+
+    /**
+     * Whether processed_event is range partitioned by day, which only the PostgreSQL changeset sets up, and so
+     * whether event ids need locking to stay unique.
+     */
+    public boolean isPartitioned() {
+        Boolean partitioned = partitionedTable;
+        if (partitioned == null) {
+            String product = jdbcTemplate.execute((ConnectionCallback<String>) connection -> connection.getMetaData().getDatabaseProductName());
+            partitioned = "PostgreSQL".equals(product);
+            partitionedTable = partitioned;
+        }
+        return partitioned;
+    }
+
+    /**
+     * The days that have a partition of their own, oldest first.
+     */
+    public List<LocalDate> findDayPartitions() {
+        return jdbcTemplate.queryForList("SELECT c.relname FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid "
+                        + "JOIN pg_class p ON p.oid = i.inhparent WHERE p.relname = 'processed_event' AND c.relname LIKE ?",
+                String.class, PARTITION_PREFIX + "%").stream()
+                .map(name -> LocalDate.parse(name.substring(PARTITION_PREFIX.length()), PARTITION_DAY))
+                .sorted()
+                .toList();
+    }
+
+    public void createDayPartition(LocalDate day) {
+        jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS %s PARTITION OF processed_event FOR VALUES FROM ('%s') TO ('%s')"
+                .formatted(partitionName(day), day, day.plusDays(1)));
+    }
+
+    public void dropDayPartition(LocalDate day) {
+        jdbcTemplate.execute("DROP TABLE IF EXISTS " + partitionName(day));
+    }
+
+    private static String partitionName(LocalDate day) {
+        return PARTITION_PREFIX + day.format(PARTITION_DAY);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,77 @@
+package com.bank.system.payment_service.saga;
+
+import com.bank.system.payment_service.domain.Payment;
+import com.bank.system.payment_service.repository.PaymentRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * Applies {@link PaymentTransition}s. The status check and the update are one conditional UPDATE that
+ * hands back the updated row, so a transition costs one round trip and two events racing for the same
+ * payment cannot both win. Only a rejected transition reads the payment again, to report the status that
+ * stood in its way; rejections are counted as payment.transitions.rejected by transition and status.
+ */
+@Component
+public class PaymentStateMachine {
+
+    private static final Logger log = LoggerFactory.getLogger(PaymentStateMachine.class);
+    private static final String MISSING = "MISSING";
+
+    private final PaymentRepository paymentRepository;
+    private final MeterRegistry meterRegistry;
+
+    public PaymentStateMachine(PaymentRepository paymentRepository, MeterRegistry meterRegistry) {
+        this.paymentRepository = paymentRepository;
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * @return the payment in its new status, or empty if the payment does not exist or is in a status the
+     * transition is not allowed from
+     */
+    public Optional<Payment> apply(UUID paymentId, PaymentTransition transition) {
+        Optional<Payment> updated = paymentRepository.transitionStatus(paymentId, transition.getTarget(), transition.getFrom());
+        if (updated.isPresent()) {
+            counter("payment.transitions", "Payment status transitions applied", transition, null).increment();
+            return updated;
+        }
+        String current = paymentRepository.findById(paymentId).map(payment -> payment.getStatus().name()).orElse(MISSING);
+        counter("payment.transitions.rejected", "Saga events that arrived for a payment in a status they do not apply to",
+                transition, current).increment();
+        log.warn("Rejected transition {} of payment {}: it is {}, expected one of {}", transition, paymentId, current,
+                transition.getFrom());
+        return Optional.empty();
+    }
+
+    /**
+     * Applies {@code transition} to every payment of {@code paymentIds} that has not been updated since
+     * {@code unchangedSince}, in one statement. Payments that moved on in the meantime are left out and not
+     * counted as rejected: the caller only looked at them before they did.
+     *
+     * @return the payments in their new status
+     */
+    public List<Payment> applyAll(List<UUID> paymentIds, PaymentTransition transition, Instant unchangedSince) {
+        List<Payment> updated = paymentRepository.transitionStatuses(paymentIds, transition.getTarget(), transition.getFrom(),
+                unchangedSince);
+        counter("payment.transitions", "Payment status transitions applied", transition, null).increment(updated.size());
+        return updated;
+    }
+
+    private Counter counter(String name, String description, PaymentTransition transition, String status) {
+        Counter.Builder builder = Counter.builder(name)
+                .description(description)
+                .tag("transition", transition.name());
+        if (status != null) {
+            builder.tag("status", status);
+        }
+        return builder.register(meterRegistry);
+    }
+}
@@ -0,0 +1,49 @@
+package com.bank.system.payment_service.saga;
+
+import com.bank.system.payment_service.domain.PaymentStatus;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * The payment saga's transition table: what each saga event moves a payment to and the statuses it may
+ * move it from. A payment in any other status has moved past the event already, or the event arrived
+ * ahead of its predecessor, and the event is rejected.
+ */
+public enum PaymentTransition {
+    // The sender's account was debited; next the receiver is credited
+    SENDER_DEBITED(PaymentStatus.SENDER_DEBITED, PaymentStatus.INITIATED),
+    // The receiver's account was credited; the saga has finished
+    RECEIVER_CREDITED(PaymentStatus.COMPLETED, PaymentStatus.SENDER_DEBITED),
+    // The sender could not be debited, nothing to undo
+    DEBIT_FAILED(PaymentStatus.DEBIT_FAILED, PaymentStatus.INITIATED),
+    // The receiver could not be credited; the sender's debit is compensated next
+    CREDIT_FAILED(PaymentStatus.CREDIT_FAILED, PaymentStatus.SENDER_DEBITED),
+    // The sender's debit was refunded; the payment has failed for good
+    COMPENSATED(PaymentStatus.FAILED, PaymentStatus.CREDIT_FAILED),
+    // The compensation found the credit applied after all and could not reverse it; the credit stands and the
+    // saga has finished as if it had been reported in time
+    CREDIT_KEPT(PaymentStatus.COMPLETED, PaymentStatus.CREDIT_FAILED),
+    // The sweeper gave up waiting for the credit; the sender's debit is compensated next, as on CREDIT_FAILED
+    CREDIT_TIMED_OUT(PaymentStatus.CREDIT_FAILED, PaymentStatus.SENDER_DEBITED);
+
+    private final PaymentStatus target;
+    private final Set<PaymentStatus> from;
+
+    PaymentTransition(PaymentStatus target, PaymentStatus first, PaymentStatus... rest) {
+        this.target = target;
+        this.from = EnumSet.of(first, rest);
+    }
+
+    public PaymentStatus getTarget() {
+        return target;
+    }
+
+    public Set<PaymentStatus> getFrom() {
+        return from;
+    }
+
+    public boolean isAllowedFrom(PaymentStatus status) {
+        return from.contains(status);
+    }
+}
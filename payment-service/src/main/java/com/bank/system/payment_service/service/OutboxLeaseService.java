@@ -0,0 +1,105 @@
+package com.bank.system.payment_service.service;
+
+import com.bank.system.payment_service.config.OutboxProperties;
+import com.bank.system.payment_service.repository.OutboxLeaseRepository;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Keeps track of the outbox partitions this instance is allowed to publish. Every instance heartbeats
+ * as a member and holds at most its fair share (partitions divided by live members, rounded up) of the
+ * partition leases; surplus leases are handed back so that a newly started instance can pick them up.
+ */
+@Service
+public class OutboxLeaseService {
+
+    private static final Logger log = LoggerFactory.getLogger(OutboxLeaseService.class);
+
+    private final OutboxLeaseRepository leaseRepository;
+    private final OutboxProperties.Lease properties;
+    private final String ownerId;
+
+    private volatile boolean partitionsCreated;
+
+    public OutboxLeaseService(OutboxLeaseRepository leaseRepository, OutboxProperties outboxProperties) {
+        this.leaseRepository = leaseRepository;
+        this.properties = outboxProperties.getLease();
+        this.ownerId = StringUtils.hasText(properties.getOwnerId()) ? properties.getOwnerId() : UUID.randomUUID().toString();
+        if (properties.isEnabled()
+                && properties.getDuration().compareTo(outboxProperties.getDispatcher().getAckTimeout()) <= 0) {
+            log.warn("outbox.lease.duration ({}) should be longer than outbox.dispatcher.ack-timeout ({})",
+                    properties.getDuration(), outboxProperties.getDispatcher().getAckTimeout());
+        }
+    }
+
+    public String getOwnerId() {
+        return ownerId;
+    }
+
+    public int getPartitions() {
+        return properties.getPartitions();
+    }
+
+    /**
+     * Renews the leases held by this instance, gives back the ones above its fair share and claims free
+     * or expired ones up to it. Must not be called while batches of a held partition are still in flight.
+     *
+     * @return the partitions this instance may publish until the next rebalance, in ascending order
+     */
+    public List<Integer> rebalance() {
+        if (!partitionsCreated) {
+            leaseRepository.createMissingPartitions(properties.getPartitions());
+            partitionsCreated = true;
+        }
+        Instant now = Instant.now();
+        Instant leaseUntil = now.plus(properties.getDuration());
+        leaseRepository.heartbeat(ownerId, leaseUntil);
+
+        List<Integer> held = new ArrayList<>(leaseRepository.renewAll(ownerId, leaseUntil));
+        int members = Math.max(1, leaseRepository.countLiveMembers(now));
+        int fairShare = (properties.getPartitions() + members - 1) / members;
+
+        while (held.size() > fairShare) {
+            int surplus = held.remove(held.size() - 1);
+            leaseRepository.release(surplus, ownerId);
+            log.info("Released outbox partition {} ({} members)", surplus, members);
+        }
+        if (held.size() < fairShare) {
+            for (int partition : leaseRepository.findClaimable(now)) {
+                if (held.size() >= fairShare) {
+                    break;
+                }
+                if (leaseRepository.claim(partition, ownerId, leaseUntil, now)) {
+                    held.add(partition);
+                    log.info("Claimed outbox partition {} ({} members)", partition, members);
+                }
+            }
+            held.sort(null);
+        }
+        return held;
+    }
+
+    /**
+     * Extends the lease on a single partition before another batch of it is published.
+     *
+     * @return false if the lease has been lost and the partition must not be published any more
+     */
+    public boolean extend(int partition) {
+        return leaseRepository.renew(partition, ownerId, Instant.now().plus(properties.getDuration()));
+    }
+
+    @PreDestroy
+    public void releaseAll() {
+        if (properties.isEnabled() && partitionsCreated) {
+            leaseRepository.releaseAll(ownerId);
+        }
+    }
+}
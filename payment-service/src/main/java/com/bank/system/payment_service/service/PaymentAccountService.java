@@ -1,18 +1,20 @@
 package com.bank.system.payment_service.service;
 
 import com.bank.system.dtos.dto.*;
+import com.bank.system.dtos.outbox.OutboxEventCodecRegistry;
+import com.bank.system.payment_service.dedup.ProcessedEventDeduplicator;
+import com.bank.system.payment_service.idempotency.IdempotencyKeyCache;
 import com.bank.system.payment_service.domain.Payment;
-import com.bank.system.payment_service.domain.PaymentStatus;
-import com.bank.system.payment_service.domain.ProcessedEvent;
 import com.bank.system.payment_service.repository.PaymentRepository;
-import com.bank.system.payment_service.repository.ProcessedEventRepository;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.bank.system.payment_service.saga.PaymentStateMachine;
+import com.bank.system.payment_service.saga.PaymentTransition;
+import com.bank.system.payment_service.status.PaymentStatusNotifier;
+import jakarta.transaction.Transactional;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.stereotype.Service;
 
-import java.time.Instant;
 import java.util.Optional;
 import java.util.UUID;
 
@@ -20,10 +22,10 @@ import java.util.UUID;
 public class PaymentAccountService {
 
     private static final Logger log = LoggerFactory.getLogger(PaymentAccountService.class);
-    public static final String PAYMENT_INITIATED_EVENT = "PaymentInitiatedEvent";
-    public static final String RECEIVER_CREDIT_REQUEST_EVENT = "ReceiverCreditRequestEvent";
-    public static final String PAYMENT_COMPLETED_EVENT = "PaymentCompletedEvent";
-    public static final String COMPENSATE_PAYMENT_EVENT = "CompensatePaymentEvent";
+    public static final String PAYMENT_INITIATED_EVENT = OutboxEventCodecRegistry.PAYMENT_INITIATED_EVENT;
+    public static final String RECEIVER_CREDIT_REQUEST_EVENT = OutboxEventCodecRegistry.RECEIVER_CREDIT_REQUEST_EVENT;
+    public static final String PAYMENT_COMPLETED_EVENT = OutboxEventCodecRegistry.PAYMENT_COMPLETED_EVENT;
+    public static final String COMPENSATE_PAYMENT_EVENT = OutboxEventCodecRegistry.COMPENSATE_PAYMENT_EVENT;
 
     public static final String SENDER_DEBITED_FAILED_EVENT = "SenderDebitedFailedEvent";
     public static final String SENDER_DEBITED_EVENT = "SenderDebitedEvent";
@@ -32,120 +34,131 @@ public class PaymentAccountService {
 
     private final PaymentRepository paymentRepository;
     private final PaymentTransactionalService paymentTransactionalService;
-    private final ObjectMapper objectMapper;
-    private final ProcessedEventRepository processedEventRepository;
+    private final ProcessedEventDeduplicator processedEvents;
+    private final IdempotencyKeyCache idempotencyKeys;
+    private final PaymentStatusNotifier statusNotifier;
+    private final PaymentStateMachine stateMachine;
 
     public PaymentAccountService(PaymentRepository paymentRepository,
                                  PaymentTransactionalService paymentTransactionalService,
-                                 ObjectMapper objectMapper,
-                                 ProcessedEventRepository processedEventRepository) {
+                                 ProcessedEventDeduplicator processedEvents,
+                                 IdempotencyKeyCache idempotencyKeys,
+                                 PaymentStatusNotifier statusNotifier,
+                                 PaymentStateMachine stateMachine) {
         this.paymentRepository = paymentRepository;
         this.paymentTransactionalService = paymentTransactionalService;
-        this.objectMapper = objectMapper;
-        this.processedEventRepository = processedEventRepository;
+        this.processedEvents = processedEvents;
+        this.idempotencyKeys = idempotencyKeys;
+        this.statusNotifier = statusNotifier;
+        this.stateMachine = stateMachine;
     }
 
+    /**
+     * Creates the payment unless its idempotency key was seen before, in which case the payment created
+     * for it is returned as it is now. Recent keys are resolved to their payment id from memory; otherwise
+     * the insert goes first and the unique index on idempotency_key settles duplicates, including
+     * concurrent ones.
+     */
     public Payment initiatePayment(PaymentRequestDTO requestDTO) {
-        Optional<Payment> existingPaymentOpt = paymentRepository.findByIdempotencyKeyId(requestDTO.getIdempotencyKey());
-        if (existingPaymentOpt.isPresent()) {
-            Payment existingPayment = existingPaymentOpt.get();
-            log.warn("Payment with idempotencyKey {} already exists with status: {}",
-                    requestDTO.getIdempotencyKey(), existingPayment.getStatus());
-            return existingPayment;
-        } else {
-            return paymentTransactionalService.createPaymentAndOutboxEvent(requestDTO);
+        String idempotencyKey = requestDTO.getIdempotencyKey();
+        UUID cachedId = idempotencyKeys.get(idempotencyKey);
+        if (cachedId != null) {
+            Optional<Payment> current = paymentRepository.findById(cachedId);
+            if (current.isPresent()) {
+                log.debug("Payment with idempotencyKey {} resolved by the idempotency cache", idempotencyKey);
+                return current.get();
+            }
         }
+        Payment payment;
+        try {
+            payment = paymentTransactionalService.createPaymentAndOutboxEvent(requestDTO);
+        } catch (DuplicateKeyException e) {
+            payment = paymentRepository.findByIdempotencyKeyId(idempotencyKey)
+                    .orElseThrow(() -> new IllegalStateException("Payment with idempotencyKey " + idempotencyKey
+                            + " conflicted on insert but cannot be found", e));
+            log.warn("Payment with idempotencyKey {} already exists with status: {}", idempotencyKey, payment.getStatus());
+        }
+        idempotencyKeys.put(idempotencyKey, payment.getId());
+        return payment;
     }
 
-    private Optional<Payment> updateTransaction(UUID paymentId, PaymentStatus paymentStatus) {
-        paymentRepository.findByIdForUpdate(paymentId);
-        return paymentRepository.updateStatus(paymentId, paymentStatus);
+    // Every status transition goes through here so waiting clients hear about it
+    private Optional<Payment> transition(UUID paymentId, PaymentTransition transition) {
+        Optional<Payment> updated = stateMachine.apply(paymentId, transition);
+        updated.ifPresent(statusNotifier::publish);
+        return updated;
     }
 
+    // Each handler records its event and applies the transition in one transaction: on PostgreSQL the event id
+    // stays locked until the handler commits, so a redelivery handled concurrently waits and then finds it
+    @Transactional
     public void handleSenderDebited(SenderDebitedEvent event) {
-        if (processedEventRepository.existsById(event.getEventId())) {
+        if (!processedEvents.markProcessed(event, SENDER_DEBITED_EVENT)) {
             return;
         }
-        saveProcessedEvent(event, SENDER_DEBITED_EVENT);
 
         log.info("Received SenderDebitedEvent for paymentId: {}", event.getPaymentId());
-        updateTransaction(event.getPaymentId(), PaymentStatus.SENDER_DEBITED)
-                .ifPresentOrElse(updatedPayment -> {
+        transition(event.getPaymentId(), PaymentTransition.SENDER_DEBITED)
+                .ifPresent(updatedPayment -> {
                     paymentTransactionalService.updatePaymentReceiverCreditRequestEventAndCreateOutboxEvent(updatedPayment);
                     log.info("Payment {} status updated to SENDER_DEBITED. Next: Credit Receiver.", event.getPaymentId());
-                }, () -> log.error("Failed to update payment status to SENDER_DEBITED for paymentId: {}. Payment not found.", event.getPaymentId()));
+                });
     }
 
+    @Transactional
     public void handleReceiverCredited(ReceiverCreditEvent event) {
-        if (processedEventRepository.existsById(event.getEventId())) {
+        if (!processedEvents.markProcessed(event, RECEIVER_CREDIT_EVENT)) {
             return;
         }
-        saveProcessedEvent(event, RECEIVER_CREDIT_EVENT);
 
         log.info("Received ReceiverCreditedEvent for paymentId: {}", event.getPaymentId());
-        paymentRepository.updateStatus(event.getPaymentId(), PaymentStatus.COMPLETED).ifPresentOrElse(payment -> {
-                    log.info("Payment {} status updated to COMPLETED. Publishing PaymentCompletedEvent.", event.getPaymentId());
-                    paymentTransactionalService.updatePaymentPaymentCompletedEventAndCreateOutboxEvent(payment);
-                }, () -> log.error("Failed to update payment status to COMPLETED for paymentId: {}. Payment not found.", event.getPaymentId())
-        );
+        transition(event.getPaymentId(), PaymentTransition.RECEIVER_CREDITED).ifPresent(payment -> {
+            log.info("Payment {} status updated to COMPLETED. Publishing PaymentCompletedEvent.", event.getPaymentId());
+            paymentTransactionalService.updatePaymentPaymentCompletedEventAndCreateOutboxEvent(payment);
+        });
     }
 
+    @Transactional
     public void handleCompensatePayment(CompensatePaymentEvent event) {
-        if (processedEventRepository.existsById(event.getEventId())) {
+        if (!processedEvents.markProcessed(event, COMPENSATE_PAYMENT_EVENT)) {
             return;
         }
-        saveProcessedEvent(event, COMPENSATE_PAYMENT_EVENT);
 
         log.info("Received CompensatePaymentEvent for paymentId: {}", event.getPaymentId());
-        paymentRepository.updateStatus(event.getPaymentId(), PaymentStatus.COMPLETED).ifPresentOrElse(payment -> {
-                    log.info("Payment {} status updated to COMPLETED. Publishing PaymentCompletedEvent.", event.getPaymentId());
-                    paymentTransactionalService.updatePaymentPaymentCompletedEventAndCreateOutboxEvent(payment);
-                }, () -> log.error("Failed to update payment status to COMPLETED for paymentId: {}. Payment not found.", event.getPaymentId())
-        );
+        if (event.isCreditKept()) {
+            transition(event.getPaymentId(), PaymentTransition.CREDIT_KEPT).ifPresent(payment -> {
+                log.info("Payment {} kept its credit instead of being compensated, status updated to COMPLETED.", event.getPaymentId());
+                paymentTransactionalService.updatePaymentPaymentCompletedEventAndCreateOutboxEvent(payment);
+            });
+            return;
+        }
+        // The sender's debit has been refunded: the payment failed, it did not complete
+        transition(event.getPaymentId(), PaymentTransition.COMPENSATED)
+                .ifPresent(payment -> log.info("Payment {} compensated, status updated to FAILED.", event.getPaymentId()));
     }
 
+    @Transactional
     public void handleDebitFailed(DebitFailedEvent event) {
-        if (processedEventRepository.existsById(event.getEventId())) {
+        if (!processedEvents.markProcessed(event, SENDER_DEBITED_FAILED_EVENT)) {
             return;
         }
-        saveProcessedEvent(event, SENDER_DEBITED_FAILED_EVENT);
 
         log.info("Received DebitFailedEvent for paymentId: {}", event.getPaymentId());
-        Optional<Payment> updatedPaymentOpt = paymentRepository.updateStatus(event.getPaymentId(), PaymentStatus.DEBIT_FAILED);
-        if (updatedPaymentOpt.isPresent()) {
-            log.info("Payment {} status updated to DEBIT_FAILED.", event.getPaymentId());
-        } else {
-            log.error("Failed to update payment status to DEBIT_FAILED for paymentId: {}. Payment not found.", event.getPaymentId());
-        }
+        transition(event.getPaymentId(), PaymentTransition.DEBIT_FAILED)
+                .ifPresent(payment -> log.info("Payment {} status updated to DEBIT_FAILED.", event.getPaymentId()));
     }
 
+    @Transactional
     public void handleCreditFailed(CreditFailedEvent event) {
-        if (processedEventRepository.existsById(event.getEventId())) {
+        if (!processedEvents.markProcessed(event, RECEIVER_CREDIT_FAILED_EVENT)) {
             return;
         }
-        saveProcessedEvent(event, RECEIVER_CREDIT_FAILED_EVENT);
 
         log.info("Received CreditFailedEvent for paymentId: {}", event.getPaymentId());
-        paymentRepository.updateStatus(event.getPaymentId(), PaymentStatus.CREDIT_FAILED).ifPresentOrElse(
-                payment -> {
-                    log.info("Payment {} status updated to CREDIT_FAILED. Publishing CompensatePaymentEvent.", event.getPaymentId());
-                    paymentTransactionalService.updatePaymentCompensatePaymentEventAndCreateOutboxEvent(payment);
-                }, () -> log.error("Failed to update payment status to CREDIT_FAILED for paymentId: {}. Payment not found.", event.getPaymentId())
-        );
+        transition(event.getPaymentId(), PaymentTransition.CREDIT_FAILED).ifPresent(payment -> {
+            log.info("Payment {} status updated to CREDIT_FAILED. Publishing CompensatePaymentEvent.", event.getPaymentId());
+            paymentTransactionalService.updatePaymentCompensatePaymentEventAndCreateOutboxEvent(payment);
+        });
     }
 
-    private void saveProcessedEvent(Event event, String eventType) {
-        String payload;
-        try {
-            payload = objectMapper.writeValueAsString(event);
-        } catch (JsonProcessingException e) {
-            throw new RuntimeException("Failed to serialize " + eventType, e);
-        }
-        processedEventRepository.save(new ProcessedEvent(
-                event.getEventId(),
-                eventType,
-                payload,
-                Instant.now()
-        ));
-    }
 }
@@ -0,0 +1,176 @@
+package com.bank.system.payment_service.service;
+
+import com.bank.system.dtos.dto.PaymentRequestDTO;
+import com.bank.system.payment_service.config.BatchProperties;
+import com.bank.system.payment_service.domain.Payment;
+import com.bank.system.payment_service.domain.PaymentBatchResult;
+import com.bank.system.payment_service.idempotency.IdempotencyKeyCache;
+import com.bank.system.payment_service.repository.PaymentRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.stereotype.Service;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Creates many payments at once. Items are validated one by one, idempotency keys already known are
+ * resolved with one lookup per lookup-chunk-size keys, and all new payments with their
+ * PaymentInitiatedEvents are inserted in one transaction with JDBC batching. A key repeated within the
+ * batch is answered with the payment of its first occurrence. The idempotency cache is filled for later
+ * single submissions but not read here: it holds payment ids, and their rows would cost the same lookup.
+ * <p>
+ * If a concurrent submission wins one of the keys between the lookup and the insert, the unique index
+ * rolls the whole insert back and the batch is looked up and inserted again; after max-insert-attempts
+ * the remaining items are submitted one by one.
+ */
+@Service
+public class PaymentBatchService {
+
+    private static final Logger log = LoggerFactory.getLogger(PaymentBatchService.class);
+    private static final int MAX_KEY_LENGTH = 255;
+
+    private final PaymentTransactionalService paymentTransactionalService;
+    private final PaymentRepository paymentRepository;
+    private final IdempotencyKeyCache idempotencyKeys;
+    private final BatchProperties properties;
+
+    public PaymentBatchService(PaymentTransactionalService paymentTransactionalService,
+                               PaymentRepository paymentRepository,
+                               IdempotencyKeyCache idempotencyKeys,
+                               BatchProperties properties) {
+        this.paymentTransactionalService = paymentTransactionalService;
+        this.paymentRepository = paymentRepository;
+        this.idempotencyKeys = idempotencyKeys;
+        this.properties = properties;
+    }
+
+    /**
+     * @return one result per request, in the order of the requests
+     */
+    public List<PaymentBatchResult> submit(List<PaymentRequestDTO> requests) {
+        PaymentBatchResult[] results = new PaymentBatchResult[requests.size()];
+        Payment[] payments = new Payment[requests.size()];
+        // First index of every key still to be resolved, and the later indexes repeating it
+        Map<String, Integer> pending = new LinkedHashMap<>();
+        Map<Integer, List<Integer>> repeats = new HashMap<>();
+
+        for (int i = 0; i < requests.size(); i++) {
+            PaymentRequestDTO request = requests.get(i);
+            String error = validate(request);
+            if (error != null) {
+                results[i] = PaymentBatchResult.rejected(i, request == null ? null : request.getIdempotencyKey(), error);
+                continue;
+            }
+            Integer first = pending.putIfAbsent(request.getIdempotencyKey(), i);
+            if (first != null) {
+                repeats.computeIfAbsent(first, k -> new ArrayList<>()).add(i);
+            }
+        }
+
+        int created = 0;
+        for (int attempt = 1; !pending.isEmpty() && attempt <= properties.getMaxInsertAttempts(); attempt++) {
+            Map<String, Payment> existing = paymentRepository.findByIdempotencyKeys(pending.keySet(),
+                    properties.getLookupChunkSize());
+            existing.forEach((key, payment) -> {
+                int index = pending.remove(key);
+                payments[index] = payment;
+                results[index] = PaymentBatchResult.existing(index, payment);
+                idempotencyKeys.put(key, payment.getId());
+            });
+            if (pending.isEmpty()) {
+                break;
+            }
+
+            List<PaymentRequestDTO> inserts = pending.values().stream().map(requests::get).toList();
+            try {
+                List<Payment> inserted = paymentTransactionalService.createPaymentsAndOutboxEvents(inserts,
+                        properties.getJdbcBatchSize());
+                int n = 0;
+                for (int index : pending.values()) {
+                    Payment payment = inserted.get(n++);
+                    payments[index] = payment;
+                    results[index] = PaymentBatchResult.created(index, payment);
+                    idempotencyKeys.put(payment.getIdempotencyKey(), payment.getId());
+                }
+                created = inserted.size();
+                pending.clear();
+            } catch (DuplicateKeyException e) {
+                log.warn("Batch of {} payments lost an idempotency key to a concurrent submission (attempt {})",
+                        inserts.size(), attempt);
+            }
+        }
+        // Keys that kept conflicting are settled one by one, like single submissions
+        for (int index : pending.values()) {
+            PaymentRequestDTO request = requests.get(index);
+            Payment payment;
+            try {
+                payment = paymentTransactionalService.createPaymentAndOutboxEvent(request);
+                results[index] = PaymentBatchResult.created(index, payment);
+                created++;
+            } catch (DuplicateKeyException e) {
+                payment = paymentRepository.findByIdempotencyKeyId(request.getIdempotencyKey())
+                        .orElseThrow(() -> new IllegalStateException("Payment with idempotencyKey " + request.getIdempotencyKey()
+                                + " conflicted on insert but cannot be found", e));
+                results[index] = PaymentBatchResult.existing(index, payment);
+            }
+            payments[index] = payment;
+            idempotencyKeys.put(request.getIdempotencyKey(), payment.getId());
+        }
+
+        repeats.forEach((first, indexes) -> {
+            for (int index : indexes) {
+                results[index] = PaymentBatchResult.existing(index, payments[first]);
+            }
+        });
+
+        log.info("Batch of {} payment requests: {} created, {} rejected", requests.size(), created,
+                Arrays.stream(results).filter(r -> r.getOutcome() == PaymentBatchResult.Outcome.REJECTED).count());
+        return Arrays.asList(results);
+    }
+
+    /**
+     * @return why the request cannot become a payment, or null if it can
+     */
+    static String validate(PaymentRequestDTO request) {
+        if (request == null) {
+            return "payment request is missing";
+        }
+        if (isBlank(request.getIdempotencyKey())) {
+            return "idempotencyKey is required";
+        }
+        if (request.getIdempotencyKey().length() > MAX_KEY_LENGTH) {
+            return "idempotencyKey is longer than " + MAX_KEY_LENGTH + " characters";
+        }
+        if (isBlank(request.getSenderAccountId())) {
+            return "senderAccountId is required";
+        }
+        if (isBlank(request.getReceiverAccountId())) {
+            return "receiverAccountId is required";
+        }
+        if (request.getSenderAccountId().equals(request.getReceiverAccountId())) {
+            return "senderAccountId and receiverAccountId must differ";
+        }
+        if (request.getAmount() == null || request.getAmount().signum() <= 0) {
+            return "amount must be positive";
+        }
+        if (request.getAmount().stripTrailingZeros().scale() > 2
+                || request.getAmount().compareTo(new BigDecimal("99999999999999999.99")) > 0) {
+            return "amount does not fit DECIMAL(19, 2)";
+        }
+        if (request.getCurrency() == null || !request.getCurrency().matches("[A-Z]{3}")) {
+            return "currency must be a three-letter ISO 4217 code";
+        }
+        return null;
+    }
+
+    private static boolean isBlank(String value) {
+        return value == null || value.isBlank();
+    }
+}
@@ -1,21 +1,70 @@
 package com.bank.system.payment_service.service;
 
 import com.bank.system.dtos.dto.PaymentRequestDTO;
+import com.bank.system.payment_service.config.BatchProperties;
+import com.bank.system.payment_service.config.StatusProperties;
 import com.bank.system.payment_service.domain.Payment;
+import com.bank.system.payment_service.domain.PaymentBatchResult;
+import com.bank.system.payment_service.domain.PaymentFile;
+import com.bank.system.payment_service.domain.PaymentFileFormat;
+import com.bank.system.payment_service.domain.PaymentStatus;
+import com.bank.system.payment_service.ingestion.PaymentFileIngester;
+import com.bank.system.payment_service.repository.PaymentFileRepository;
+import com.bank.system.payment_service.repository.PaymentRepository;
+import com.bank.system.payment_service.status.PaymentStatusNotifier;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
 
 @Service
 public class PaymentService {
 
     private final PaymentAccountService paymentAccountService;
+    private final PaymentRepository paymentRepository;
+    private final PaymentStatusNotifier statusNotifier;
+    private final StatusProperties statusProperties;
+    private final PaymentBatchService paymentBatchService;
+    private final BatchProperties batchProperties;
+    private final ObjectMapper objectMapper;
+    private final PaymentFileIngester paymentFileIngester;
+    private final PaymentFileRepository paymentFileRepository;
     private static final Logger log = LoggerFactory.getLogger(PaymentService.class);
+    public static final MediaType NDJSON = MediaType.parseMediaType("application/x-ndjson");
+    public static final MediaType TEXT_CSV = MediaType.parseMediaType("text/csv");
 
-    public PaymentService(PaymentAccountService paymentAccountService) {
+    public PaymentService(PaymentAccountService paymentAccountService,
+                          PaymentRepository paymentRepository,
+                          PaymentStatusNotifier statusNotifier,
+                          StatusProperties statusProperties,
+                          PaymentBatchService paymentBatchService,
+                          BatchProperties batchProperties,
+                          ObjectMapper objectMapper,
+                          PaymentFileIngester paymentFileIngester,
+                          PaymentFileRepository paymentFileRepository) {
         this.paymentAccountService = paymentAccountService;
+        this.paymentRepository = paymentRepository;
+        this.statusNotifier = statusNotifier;
+        this.statusProperties = statusProperties;
+        this.paymentBatchService = paymentBatchService;
+        this.batchProperties = batchProperties;
+        this.objectMapper = objectMapper;
+        this.paymentFileIngester = paymentFileIngester;
+        this.paymentFileRepository = paymentFileRepository;
     }
 
     public ResponseEntity<Payment> initiatePayment(PaymentRequestDTO requestDTO) {
@@ -24,10 +73,203 @@ public class PaymentService {
         try {
             Payment payment = paymentAccountService.initiatePayment(requestDTO); // Synchronous call
             log.info("Payment initiated successfully with ID: {}", payment.getId());
-            return ResponseEntity.status(HttpStatus.ACCEPTED).body(payment);
+            return ResponseEntity.accepted().location(URI.create("/api/payments/" + payment.getId())).body(payment);
         } catch (Exception ex) {
             log.error("Error initiating payment: {}", ex.getMessage(), ex);
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
         }
     }
+
+    /**
+     * Submits up to batch.max-items payments at once and answers with one JSON result per line, in the
+     * order of the requests. The batch is persisted before the response starts, so a failure is answered
+     * with a 500 rather than a truncated 200; only writing the results out is streamed.
+     */
+    public ResponseEntity<StreamingResponseBody> submitBatch(List<PaymentRequestDTO> requests) {
+        if (requests == null || requests.isEmpty() || requests.size() > batchProperties.getMaxItems()) {
+            log.warn("Rejected a payment batch of {} items, the limit is {}", requests == null ? 0 : requests.size(),
+                    batchProperties.getMaxItems());
+            return ResponseEntity.badRequest().build();
+        }
+        log.info("Received a batch of {} payment requests", requests.size());
+        List<PaymentBatchResult> results;
+        try {
+            results = paymentBatchService.submit(requests);
+        } catch (Exception ex) {
+            log.error("Error submitting a batch of {} payments: {}", requests.size(), ex.getMessage(), ex);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+        StreamingResponseBody body = out -> {
+            for (PaymentBatchResult result : results) {
+                out.write(objectMapper.writeValueAsBytes(result));
+                out.write('\n');
+            }
+        };
+        return ResponseEntity.ok().contentType(NDJSON).body(body);
+    }
+
+    /**
+     * Stores an uploaded payment file, CSV or pain.001 XML by content type, and ingests it in the
+     * background; progress is read from the returned location.
+     */
+    public ResponseEntity<PaymentFile> uploadFile(String fileName, String contentType, InputStream content) {
+        PaymentFileFormat format = fileFormat(contentType);
+        if (format == null) {
+            log.warn("Rejected payment file {} of content type {}", fileName, contentType);
+            return ResponseEntity.status(HttpStatus.UNSUPPORTED_MEDIA_TYPE).build();
+        }
+        try {
+            PaymentFile file = paymentFileIngester.accept(fileName, format, content);
+            return ResponseEntity.accepted().location(URI.create("/api/payments/files/" + file.getId())).body(file);
+        } catch (IOException ex) {
+            log.error("Error storing payment file {}: {}", fileName, ex.getMessage(), ex);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+
+    public ResponseEntity<PaymentFile> getFile(UUID fileId) {
+        return paymentFileRepository.findById(fileId)
+                .map(ResponseEntity::ok)
+                .orElseGet(() -> ResponseEntity.notFound().build());
+    }
+
+    private static PaymentFileFormat fileFormat(String contentType) {
+        MediaType mediaType;
+        try {
+            mediaType = MediaType.parseMediaType(contentType);
+        } catch (RuntimeException e) {
+            return null;
+        }
+        if (mediaType.isCompatibleWith(TEXT_CSV)) {
+            return PaymentFileFormat.CSV;
+        }
+        if (mediaType.isCompatibleWith(MediaType.APPLICATION_XML) || mediaType.isCompatibleWith(MediaType.TEXT_XML)) {
+            return PaymentFileFormat.PAIN_001;
+        }
+        return null;
+    }
+
+    public ResponseEntity<Payment> getPayment(UUID paymentId) {
+        return paymentRepository.findById(paymentId)
+                .map(ResponseEntity::ok)
+                .orElseGet(() -> ResponseEntity.notFound().build());
+    }
+
+    /**
+     * Long poll: answers as soon as the payment's status differs from {@code knownStatus}, or after
+     * status.long-poll-timeout with whatever the status is then. Without a known status the next
+     * transition is awaited. No thread is held while waiting.
+     */
+    public DeferredResult<ResponseEntity<Payment>> awaitStatusChange(UUID paymentId, PaymentStatus knownStatus) {
+        DeferredResult<ResponseEntity<Payment>> result = new DeferredResult<>(statusProperties.getLongPollTimeout().toMillis());
+        Runnable unsubscribe;
+        try {
+            unsubscribe = statusNotifier.subscribe(paymentId, payment -> {
+                if (knownStatus == null || payment.getStatus() != knownStatus) {
+                    result.setResult(ResponseEntity.ok(payment));
+                }
+            });
+        } catch (IllegalStateException e) {
+            log.warn("Turned away a status long poll for payment {}: {}", paymentId, e.getMessage());
+            result.setResult(ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build());
+            return result;
+        }
+        result.onCompletion(unsubscribe);
+        result.onTimeout(() -> result.setResult(getPayment(paymentId)));
+
+        // Subscribed before reading, so a transition committed in between is not missed
+        Optional<Payment> current = findSubscribed(paymentId, unsubscribe);
+        if (current.isEmpty()) {
+            result.setResult(ResponseEntity.notFound().build());
+        } else if (knownStatus != null && current.get().getStatus() != knownStatus) {
+            result.setResult(ResponseEntity.ok(current.get()));
+        }
+        return result;
+    }
+
+    /**
+     * Server-sent events: the current status, then every transition until a terminal status or
+     * status.stream-timeout.
+     */
+    public ResponseEntity<SseEmitter> streamStatus(UUID paymentId) {
+        SseEmitter emitter = new SseEmitter(statusProperties.getStreamTimeout().toMillis());
+        StatusStream stream = new StatusStream(emitter);
+        Runnable unsubscribe;
+        try {
+            unsubscribe = statusNotifier.subscribe(paymentId, stream::send);
+        } catch (IllegalStateException e) {
+            log.warn("Turned away a status stream for payment {}: {}", paymentId, e.getMessage());
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+        }
+        stream.setUnsubscribe(unsubscribe);
+        emitter.onCompletion(unsubscribe);
+        emitter.onTimeout(emitter::complete);
+        emitter.onError(e -> unsubscribe.run());
+
+        Optional<Payment> current = findSubscribed(paymentId, unsubscribe);
+        if (current.isEmpty()) {
+            unsubscribe.run();
+            return ResponseEntity.notFound().build();
+        }
+        stream.send(current.get());
+        return ResponseEntity.ok(emitter);
+    }
+
+    // The async request never starts if the read fails, so nothing else would release the subscription
+    private Optional<Payment> findSubscribed(UUID paymentId, Runnable unsubscribe) {
+        try {
+            return paymentRepository.findById(paymentId);
+        } catch (RuntimeException e) {
+            unsubscribe.run();
+            throw e;
+        }
+    }
+
+    // Sends each status once and in order, whether it comes from the notifier or from the initial read
+    private static final class StatusStream {
+        private final SseEmitter emitter;
+        private PaymentStatus lastStatus;
+        private Instant lastUpdatedAt = Instant.EPOCH;
+        private boolean finished;
+        private Runnable unsubscribe;
+
+        private StatusStream(SseEmitter emitter) {
+            this.emitter = emitter;
+        }
+
+        // An emitter completed before Spring picked it up never calls its completion callback, so a
+        // finished stream lets go of its subscription itself
+        synchronized void setUnsubscribe(Runnable unsubscribe) {
+            this.unsubscribe = unsubscribe;
+            if (finished) {
+                unsubscribe.run();
+            }
+        }
+
+        synchronized void send(Payment payment) {
+            Instant updatedAt = payment.getUpdatedAt() != null ? payment.getUpdatedAt() : payment.getCreatedAt();
+            if (finished || payment.getStatus() == lastStatus || updatedAt.isBefore(lastUpdatedAt)) {
+                return;
+            }
+            lastStatus = payment.getStatus();
+            lastUpdatedAt = updatedAt;
+            try {
+                emitter.send(SseEmitter.event().name("status").id(payment.getStatus().name()).data(payment));
+                if (payment.getStatus().isTerminal()) {
+                    emitter.complete();
+                    finish();
+                }
+            } catch (IOException | IllegalStateException e) {
+                emitter.completeWithError(e);
+                finish();
+            }
+        }
+
+        private void finish() {
+            finished = true;
+            if (unsubscribe != null) {
+                unsubscribe.run();
+            }
+        }
+    }
 }
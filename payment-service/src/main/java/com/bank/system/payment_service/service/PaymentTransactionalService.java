@@ -14,6 +14,8 @@ import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
 
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 
 import static com.bank.system.payment_service.service.PaymentAccountService.*;
@@ -61,6 +63,31 @@ public class PaymentTransactionalService {
         return savedPayment;
     }
 
+    /**
+     * Batch form of {@link #createPaymentAndOutboxEvent}: all payments and their PaymentInitiatedEvents are
+     * inserted with JDBC batching in one transaction.
+     */
+    @Transactional
+    public List<Payment> createPaymentsAndOutboxEvents(List<PaymentRequestDTO> requests, int batchSize) {
+        List<Payment> payments = paymentRepository.saveAll(requests.stream()
+                .map(PaymentMapper::mapPaymentRequestDtoToPayment)
+                .toList(), batchSize);
+
+        List<OutboxEvent> outboxEvents = new ArrayList<>(payments.size());
+        for (Payment payment : payments) {
+            String eventPayload;
+            try {
+                eventPayload = objectMapper.writeValueAsString(PaymentMapper.mapToPaymentInitiatedEvent(payment));
+            } catch (JsonProcessingException e) {
+                throw new RuntimeException("Failed to serialize " + PAYMENT_INITIATED_EVENT, e);
+            }
+            outboxEvents.add(new OutboxEvent(UUID.randomUUID(), "Payment", payment.getId(), PAYMENT_INITIATED_EVENT,
+                    eventPayload, Instant.now(), false));
+        }
+        outboxEventRepository.saveAll(outboxEvents);
+        return payments;
+    }
+
     @Transactional
     public void updatePaymentReceiverCreditRequestEventAndCreateOutboxEvent(Payment payment) {
         ReceiverCreditRequestEvent event = PaymentMapper.mapPaymentToReceiverCreditRequestEvent(payment);
@@ -0,0 +1,119 @@
+package com.bank.system.payment_service.service;
+
+import com.bank.system.dtos.dto.CompensatePaymentEvent;
+import com.bank.system.payment_service.domain.OutboxEvent;
+import com.bank.system.payment_service.domain.Payment;
+import com.bank.system.payment_service.domain.PaymentStatus;
+import com.bank.system.payment_service.mapper.PaymentMapper;
+import com.bank.system.payment_service.repository.OutboxEventRepository;
+import com.bank.system.payment_service.repository.PaymentRepository;
+import com.bank.system.payment_service.saga.PaymentStateMachine;
+import com.bank.system.payment_service.saga.PaymentTransition;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.transaction.Transactional;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static com.bank.system.payment_service.service.PaymentAccountService.*;
+
+/**
+ * What the saga sweeper does to one chunk of stalled payments, each in its own transaction. Every write is
+ * conditional on the payment still being in the status and at the updated_at it was found with, so a saga
+ * event that arrives while the sweeper is at work wins and the payment is left alone.
+ */
+@Service
+public class SagaSweepService {
+
+    private static final Logger log = LoggerFactory.getLogger(SagaSweepService.class);
+
+    private final PaymentRepository paymentRepository;
+    private final OutboxEventRepository outboxEventRepository;
+    private final PaymentStateMachine stateMachine;
+    private final ObjectMapper objectMapper;
+
+    public SagaSweepService(PaymentRepository paymentRepository,
+                            OutboxEventRepository outboxEventRepository,
+                            PaymentStateMachine stateMachine,
+                            ObjectMapper objectMapper) {
+        this.paymentRepository = paymentRepository;
+        this.outboxEventRepository = outboxEventRepository;
+        this.stateMachine = stateMachine;
+        this.objectMapper = objectMapper;
+    }
+
+    /**
+     * Counts a retry against the payments and writes the event each of them is waiting on an answer to back
+     * to the outbox. The copy keeps the original payload and so its eventId: if the first one did arrive,
+     * account-service does not debit or credit again but re-sends the reply it recorded for it, in case that
+     * reply is what got lost.
+     *
+     * @return the number of events written
+     */
+    @Transactional
+    public int retry(PaymentStatus status, List<UUID> paymentIds, Instant stalledBefore) {
+        String type = awaitedEventType(status);
+        List<UUID> retried = paymentRepository.markRetried(status, paymentIds, stalledBefore);
+        if (retried.isEmpty()) {
+            return 0;
+        }
+        Map<UUID, OutboxEvent> originals = outboxEventRepository.findLatestByAggregateIds(retried, type);
+        List<OutboxEvent> copies = new ArrayList<>(retried.size());
+        for (UUID paymentId : retried) {
+            OutboxEvent original = originals.get(paymentId);
+            if (original == null) {
+                log.warn("No {} left in the outbox to re-send for payment {}", type, paymentId);
+                continue;
+            }
+            copies.add(new OutboxEvent(null, original.getAggregateType(), paymentId, type, original.getPayload(), null, false));
+        }
+        outboxEventRepository.saveAll(copies);
+        return copies.size();
+    }
+
+    /**
+     * Gives up waiting for the receiver's credit: the payments move to CREDIT_FAILED and the sender's debit
+     * is compensated, as if account-service had reported the credit as failed. Should the credit have been
+     * applied after all, account-service reverses it before refunding the sender, or, if the receiver can no
+     * longer cover that, keeps it and answers so, which completes the payment instead.
+     *
+     * @return the payments moved, in their new status
+     */
+    @Transactional
+    public List<Payment> compensate(List<UUID> paymentIds, Instant stalledBefore) {
+        List<Payment> payments = stateMachine.applyAll(paymentIds, PaymentTransition.CREDIT_TIMED_OUT, stalledBefore);
+        List<OutboxEvent> events = new ArrayList<>(payments.size());
+        for (Payment payment : payments) {
+            CompensatePaymentEvent event = PaymentMapper.mapPaymentToCompensatePaymentEvent(payment);
+            try {
+                events.add(new OutboxEvent(null, "Payment", payment.getId(), COMPENSATE_PAYMENT_EVENT,
+                        objectMapper.writeValueAsString(event), null, false));
+            } catch (JsonProcessingException e) {
+                throw new RuntimeException("Failed to serialize CompensatePaymentEvent", e);
+            }
+        }
+        outboxEventRepository.saveAll(events);
+        return payments;
+    }
+
+    /**
+     * The event whose answer moves a payment out of {@code status}, the one a retry sends again.
+     *
+     * @throws IllegalArgumentException if no saga event is awaited in that status
+     */
+    public static String awaitedEventType(PaymentStatus status) {
+        return switch (status) {
+            case INITIATED -> PAYMENT_INITIATED_EVENT;
+            case SENDER_DEBITED -> RECEIVER_CREDIT_REQUEST_EVENT;
+            case CREDIT_FAILED -> COMPENSATE_PAYMENT_EVENT;
+            default -> throw new IllegalArgumentException("No saga event is awaited in status " + status);
+        };
+    }
+}
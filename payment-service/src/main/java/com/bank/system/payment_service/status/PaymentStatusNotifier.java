@@ -0,0 +1,97 @@
+package com.bank.system.payment_service.status;
+
+import com.bank.system.payment_service.config.StatusProperties;
+import com.bank.system.payment_service.domain.Payment;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Hands payment status transitions to whoever is waiting for them, so long polls and event streams are
+ * answered as the saga moves instead of by polling the payment table. A waiter is a callback, not a
+ * thread: the servlet request behind it is suspended until the callback completes it.
+ * <p>
+ * Only transitions handled by this instance are seen here; waiters on other instances fall back to the
+ * table when they time out.
+ */
+@Component
+public class PaymentStatusNotifier {
+
+    private static final Logger log = LoggerFactory.getLogger(PaymentStatusNotifier.class);
+
+    private final Map<UUID, List<Consumer<Payment>>> listeners = new ConcurrentHashMap<>();
+    private final AtomicInteger waiters = new AtomicInteger();
+    private final int maxWaiters;
+
+    public PaymentStatusNotifier(StatusProperties properties) {
+        this.maxWaiters = properties.getMaxWaiters();
+    }
+
+    /**
+     * Calls the listener with every later transition of the payment until the returned handle is run.
+     *
+     * @throws IllegalStateException if max-waiters listeners are registered already
+     */
+    public Runnable subscribe(UUID paymentId, Consumer<Payment> listener) {
+        if (waiters.incrementAndGet() > maxWaiters) {
+            waiters.decrementAndGet();
+            throw new IllegalStateException("Too many payment status waiters (" + maxWaiters + ")");
+        }
+        listeners.computeIfAbsent(paymentId, id -> new CopyOnWriteArrayList<>()).add(listener);
+        AtomicBoolean unsubscribed = new AtomicBoolean();
+        return () -> {
+            if (unsubscribed.compareAndSet(false, true)) {
+                listeners.computeIfPresent(paymentId, (id, list) -> {
+                    list.remove(listener);
+                    return list.isEmpty() ? null : list;
+                });
+                waiters.decrementAndGet();
+            }
+        };
+    }
+
+    /**
+     * Passes the payment's new status on to its listeners, once the surrounding transaction has committed.
+     */
+    public void publish(Payment payment) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            notifyListeners(payment);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                notifyListeners(payment);
+            }
+        });
+    }
+
+    public int getWaiters() {
+        return waiters.get();
+    }
+
+    private void notifyListeners(Payment payment) {
+        List<Consumer<Payment>> paymentListeners = listeners.get(payment.getId());
+        if (paymentListeners == null) {
+            return;
+        }
+        for (Consumer<Payment> listener : paymentListeners) {
+            try {
+                listener.accept(payment);
+            } catch (RuntimeException e) {
+                log.warn("Payment status listener for {} failed: {}", payment.getId(), e.getMessage());
+            }
+        }
+    }
+}
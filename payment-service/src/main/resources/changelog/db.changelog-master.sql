@@ -32,4 +32,163 @@ CREATE TABLE processed_event (
     payload TEXT NOT NULL,
     processed_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP
 );
---rollback DROP TABLE processed_event;
\ No newline at end of file
+--rollback DROP TABLE processed_event;
+
+--changeset giampaolo:03-outbox-partition-lease
+ALTER TABLE outbox_event ADD COLUMN aggregate_hash INTEGER NOT NULL DEFAULT 0;
+--rollback ALTER TABLE outbox_event DROP COLUMN aggregate_hash;
+
+-- One row per outbox slice; a slice is published only by the instance currently holding its lease
+CREATE TABLE outbox_lease (
+    partition_no INTEGER PRIMARY KEY,
+    owner VARCHAR(255),
+    lease_until TIMESTAMP WITHOUT TIME ZONE
+);
+--rollback DROP TABLE outbox_lease;
+
+-- Dispatcher instances heartbeat here so slices can be shared fairly between the live ones
+CREATE TABLE outbox_lease_member (
+    owner VARCHAR(255) PRIMARY KEY,
+    lease_until TIMESTAMP WITHOUT TIME ZONE NOT NULL
+);
+--rollback DROP TABLE outbox_lease_member;
+
+--changeset giampaolo:04-outbox-sent-created-at-index dbms:postgresql
+-- Dispatch scans unsent rows by created_at and retention scans old sent rows by created_at; each gets
+-- a partial index so the hot unsent index stays small however many sent rows pile up
+CREATE INDEX idx_outbox_event_unsent_created_at ON outbox_event (created_at) WHERE sent = FALSE;
+CREATE INDEX idx_outbox_event_sent_created_at ON outbox_event (created_at) WHERE sent = TRUE;
+--rollback DROP INDEX idx_outbox_event_unsent_created_at; DROP INDEX idx_outbox_event_sent_created_at;
+
+--changeset giampaolo:04-outbox-sent-created-at-index-h2 dbms:h2
+CREATE INDEX idx_outbox_event_sent_created_at ON outbox_event (sent, created_at);
+--rollback DROP INDEX idx_outbox_event_sent_created_at;
+
+--changeset giampaolo:05-outbox-event-archive
+-- Sent events moved out of outbox_event by retention mode archive. Nothing ever purges them, so the table is not partitioned
+CREATE TABLE outbox_event_archive (
+    id UUID PRIMARY KEY,
+    aggregate_type TEXT NOT NULL,
+    aggregate_id TEXT NOT NULL,
+    type TEXT NOT NULL,
+    payload TEXT NOT NULL,
+    created_at TIMESTAMP WITHOUT TIME ZONE NOT NULL,
+    version INTEGER,
+    aggregate_hash INTEGER,
+    archived_at TIMESTAMP WITHOUT TIME ZONE NOT NULL
+);
+--rollback DROP TABLE outbox_event_archive;
+
+--changeset giampaolo:06-outbox-retry-dead-letter
+-- Failed publishes are retried with exponential backoff; events that run out of attempts are flagged
+-- failed and copied to outbox_event_dead_letter together with their last error
+ALTER TABLE outbox_event ADD COLUMN attempts INTEGER NOT NULL DEFAULT 0;
+ALTER TABLE outbox_event ADD COLUMN next_attempt_at TIMESTAMP WITHOUT TIME ZONE;
+ALTER TABLE outbox_event ADD COLUMN failed BOOLEAN NOT NULL DEFAULT FALSE;
+ALTER TABLE outbox_event ADD COLUMN last_error TEXT;
+--rollback ALTER TABLE outbox_event DROP COLUMN attempts; ALTER TABLE outbox_event DROP COLUMN next_attempt_at; ALTER TABLE outbox_event DROP COLUMN failed; ALTER TABLE outbox_event DROP COLUMN last_error;
+
+CREATE TABLE outbox_event_dead_letter (
+    id UUID PRIMARY KEY,
+    aggregate_type TEXT NOT NULL,
+    aggregate_id TEXT NOT NULL,
+    type TEXT NOT NULL,
+    payload TEXT NOT NULL,
+    created_at TIMESTAMP WITHOUT TIME ZONE NOT NULL,
+    attempts INTEGER NOT NULL,
+    last_error TEXT,
+    failed_at TIMESTAMP WITHOUT TIME ZONE NOT NULL
+);
+--rollback DROP TABLE outbox_event_dead_letter;
+
+--changeset giampaolo:06-outbox-retry-index dbms:postgresql
+-- Failed rows leave the hot unsent index; rows waiting out a backoff get their own small index, looked up
+-- per aggregate to hold back its later events
+DROP INDEX idx_outbox_event_unsent_created_at;
+CREATE INDEX idx_outbox_event_unsent_created_at ON outbox_event (created_at) WHERE sent = FALSE AND failed = FALSE;
+CREATE INDEX idx_outbox_event_backing_off ON outbox_event (aggregate_id, created_at) WHERE sent = FALSE AND next_attempt_at IS NOT NULL;
+--rollback DROP INDEX idx_outbox_event_backing_off; DROP INDEX idx_outbox_event_unsent_created_at; CREATE INDEX idx_outbox_event_unsent_created_at ON outbox_event (created_at) WHERE sent = FALSE;
+
+--changeset giampaolo:06-outbox-retry-index-h2 dbms:h2
+CREATE INDEX idx_outbox_event_aggregate_created_at ON outbox_event (aggregate_id, created_at);
+--rollback DROP INDEX idx_outbox_event_aggregate_created_at;
+
+--changeset giampaolo:07-processed-event-compact dbms:postgresql
+-- The payload becomes optional (dedup.payload = hash keeps a SHA-256 of it, none keeps nothing) and the table
+-- is range partitioned by day on processed_at, so retention drops whole days instead of deleting rows. Day
+-- partitions are created ahead by ProcessedEventRetentionJob; anything else lands in the default one. The
+-- partition key has to be part of the primary key, so no key keeps event_id alone unique: the insert checks
+-- for it with NOT EXISTS, after locking the id with a transaction-scoped advisory lock.
+ALTER TABLE processed_event RENAME TO processed_event_unpartitioned;
+CREATE TABLE processed_event (
+    event_id UUID NOT NULL,
+    event_type VARCHAR(100) NOT NULL,
+    payload TEXT,
+    payload_hash VARCHAR(64),
+    processed_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    PRIMARY KEY (event_id, processed_at)
+) PARTITION BY RANGE (processed_at);
+CREATE TABLE processed_event_default PARTITION OF processed_event DEFAULT;
+CREATE INDEX idx_processed_event_processed_at ON processed_event (processed_at);
+INSERT INTO processed_event (event_id, event_type, payload, processed_at)
+SELECT event_id, event_type, payload, processed_at FROM processed_event_unpartitioned;
+DROP TABLE processed_event_unpartitioned;
+--rollback DROP TABLE processed_event; CREATE TABLE processed_event (event_id UUID PRIMARY KEY, event_type VARCHAR(100) NOT NULL, payload TEXT NOT NULL, processed_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP);
+
+--changeset giampaolo:07-processed-event-compact-h2 dbms:h2
+-- No declarative partitioning here; retention deletes expired days in chunks along the processed_at index
+ALTER TABLE processed_event ALTER COLUMN payload DROP NOT NULL;
+ALTER TABLE processed_event ADD COLUMN payload_hash VARCHAR(64);
+CREATE INDEX idx_processed_event_processed_at ON processed_event (processed_at);
+--rollback DROP INDEX idx_processed_event_processed_at; ALTER TABLE processed_event DROP COLUMN payload_hash;
+
+--changeset giampaolo:08-payment-idempotency-key-unique
+-- initiatePayment inserts first and lets this index reject a repeated idempotency key, so concurrent
+-- duplicate submissions create one payment. Existing duplicates have to be resolved before it applies.
+CREATE UNIQUE INDEX uq_payment_idempotency_key ON payment (idempotency_key);
+--rollback DROP INDEX uq_payment_idempotency_key;
+
+--changeset giampaolo:09-payment-file
+-- Uploaded payment files; items_done is the ingestion checkpoint, advanced after every committed chunk
+CREATE TABLE payment_file (
+    id VARCHAR(36) PRIMARY KEY,
+    file_name VARCHAR(255) NOT NULL,
+    format VARCHAR(10) NOT NULL,
+    storage_path VARCHAR(1024) NOT NULL,
+    status VARCHAR(20) NOT NULL,
+    items_done BIGINT NOT NULL DEFAULT 0,
+    created BIGINT NOT NULL DEFAULT 0,
+    existing BIGINT NOT NULL DEFAULT 0,
+    rejected BIGINT NOT NULL DEFAULT 0,
+    error VARCHAR(1024),
+    created_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    updated_at TIMESTAMP
+);
+CREATE INDEX idx_payment_file_status ON payment_file (status);
+--rollback DROP TABLE payment_file;
+
+--changeset giampaolo:10-payment-saga-retries
+-- Retries the saga sweeper has spent on the payment's current status, reset by every transition. A constant
+-- default keeps this a catalog-only change on PostgreSQL, however many payments there are.
+ALTER TABLE payment ADD COLUMN saga_retries INTEGER NOT NULL DEFAULT 0;
+--rollback ALTER TABLE payment DROP COLUMN saga_retries;
+
+--changeset giampaolo:10-payment-status-updated-at-index dbms:postgresql runInTransaction:false
+-- Only payments still in flight are indexed, a sliver of the table however many have finished. The sweeper
+-- walks it in (updated_at, id) order per status and the in-flight gauges count it; both name the status as a
+-- literal, a bound parameter would keep the planner from matching the index predicate.
+CREATE INDEX CONCURRENTLY idx_payment_status_updated_at ON payment (status, updated_at, id)
+    WHERE status IN ('INITIATED', 'SENDER_DEBITED', 'RECEIVER_CREDITED', 'CREDIT_FAILED');
+-- The sweeper looks up the event it re-sends for a payment; the backing-off index only covers unsent rows
+CREATE INDEX CONCURRENTLY idx_outbox_event_aggregate_created_at ON outbox_event (aggregate_id, created_at);
+--rollback DROP INDEX idx_outbox_event_aggregate_created_at; DROP INDEX idx_payment_status_updated_at;
+
+--changeset giampaolo:10-payment-status-updated-at-index-h2 dbms:h2
+-- No partial indexes here; outbox_event is indexed by aggregate since 06-outbox-retry-index-h2
+CREATE INDEX idx_payment_status_updated_at ON payment (status, updated_at, id);
+--rollback DROP INDEX idx_payment_status_updated_at;
+
+--changeset giampaolo:13-payment-file-owner
+-- The instance ingesting the file. Another instance claims it only once its checkpoint has gone stale.
+ALTER TABLE payment_file ADD COLUMN owner VARCHAR(255);
+--rollback ALTER TABLE payment_file DROP COLUMN owner;
@@ -5,8 +5,11 @@ import com.bank.system.payment_service.service.PaymentAccountService;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.annotation.DirtiesContext;
 
+// Closed afterwards so its outbox dispatcher stops claiming rows other test classes write to the shared database
 @SpringBootTest
+@DirtiesContext
 class PaymentAccountServiceApplicationTests {
 
 	@Autowired
@@ -29,7 +32,7 @@ class PaymentAccountServiceApplicationTests {
 //		event.setIdempotencyKey("idempotencyKey1");
 //		event.setSenderAccountId("ACC-001-A");
 //		event.setReceiverAccountId("ACC-002-B");
-//		producer.sendPaymentInitiatedEvent(event);
+//		producer.send(codecRegistry.get(OutboxEventCodecRegistry.PAYMENT_INITIATED_EVENT), String.valueOf(event.getPaymentId()), event);
 //
 //	}
 
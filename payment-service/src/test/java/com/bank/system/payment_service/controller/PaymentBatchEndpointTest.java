@@ -0,0 +1,210 @@
+package com.bank.system.payment_service.controller;
+
+import com.bank.system.dtos.dto.PaymentRequestDTO;
+import com.bank.system.payment_service.config.BatchProperties;
+import com.bank.system.payment_service.service.PaymentAccountService;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.math.BigDecimal;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = "outbox.dispatcher.enabled=false")
+class PaymentBatchEndpointTest {
+
+    private static final Logger log = LoggerFactory.getLogger(PaymentBatchEndpointTest.class);
+    private static final String SENDER = "BATCH-SENDER";
+    private static final int PAYROLL = 10_000;
+    private static final int SINGLE_SUBMITS = 1_000;
+
+    @LocalServerPort
+    private int port;
+
+    @Autowired
+    private PaymentAccountService paymentAccountService;
+
+    @Autowired
+    private BatchProperties batchProperties;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @AfterEach
+    void tearDown() {
+        batchProperties.setMaxInsertAttempts(new BatchProperties().getMaxInsertAttempts());
+        jdbcTemplate.update("DELETE FROM outbox_event WHERE aggregate_id IN (SELECT id FROM payment WHERE sender_account_id = ?)", SENDER);
+        jdbcTemplate.update("DELETE FROM payment WHERE sender_account_id = ?", SENDER);
+    }
+
+    @Test
+    void answersEveryItemInOrderWithItsOutcome() throws Exception {
+        PaymentRequestDTO earlier = request(UUID.randomUUID().toString());
+        UUID earlierId = paymentAccountService.initiatePayment(earlier).getId();
+        String repeated = UUID.randomUUID().toString();
+        List<PaymentRequestDTO> items = List.of(
+                request(repeated),
+                earlier,
+                new PaymentRequestDTO(SENDER, "BATCH-RECEIVER", new BigDecimal("-1.00"), "EUR", UUID.randomUUID().toString()),
+                request(repeated),
+                new PaymentRequestDTO(SENDER, "BATCH-RECEIVER", BigDecimal.TEN, "euro", UUID.randomUUID().toString()));
+
+        HttpResponse<String> response = post(items);
+
+        assertEquals(200, response.statusCode());
+        List<JsonNode> lines = new ArrayList<>();
+        for (String line : response.body().split("\n")) {
+            lines.add(objectMapper.readTree(line));
+        }
+        assertEquals(5, lines.size(), response.body());
+        for (int i = 0; i < lines.size(); i++) {
+            assertEquals(i, lines.get(i).get("index").asInt());
+        }
+        assertEquals("CREATED", lines.get(0).get("outcome").asText());
+        assertEquals("EXISTING", lines.get(1).get("outcome").asText());
+        assertEquals(earlierId.toString(), lines.get(1).get("paymentId").asText());
+        assertEquals("REJECTED", lines.get(2).get("outcome").asText());
+        assertEquals("amount must be positive", lines.get(2).get("error").asText());
+        assertEquals("EXISTING", lines.get(3).get("outcome").asText(), "a key repeated in the batch is created once");
+        assertEquals(lines.get(0).get("paymentId").asText(), lines.get(3).get("paymentId").asText());
+        assertEquals("REJECTED", lines.get(4).get("outcome").asText());
+
+        assertEquals(2, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM payment WHERE sender_account_id = ?",
+                Integer.class, SENDER));
+        assertEquals(1, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM outbox_event WHERE aggregate_id = ?",
+                Integer.class, lines.get(0).get("paymentId").asText()));
+    }
+
+    @Test
+    void itemsSettledOneByOneAreStillReportedAsCreated() throws Exception {
+        // As if every batch insert had lost a key to a concurrent submission
+        batchProperties.setMaxInsertAttempts(0);
+        PaymentRequestDTO earlier = request(UUID.randomUUID().toString());
+        UUID earlierId = paymentAccountService.initiatePayment(earlier).getId();
+
+        HttpResponse<String> response = post(List.of(request(UUID.randomUUID().toString()), earlier));
+
+        assertEquals(200, response.statusCode());
+        List<String> lines = response.body().lines().toList();
+        assertEquals("CREATED", objectMapper.readTree(lines.get(0)).get("outcome").asText());
+        assertEquals("EXISTING", objectMapper.readTree(lines.get(1)).get("outcome").asText());
+        assertEquals(earlierId.toString(), objectMapper.readTree(lines.get(1)).get("paymentId").asText());
+        assertEquals(2, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM payment WHERE sender_account_id = ?",
+                Integer.class, SENDER));
+    }
+
+    @Test
+    void aBatchTheDatabaseRefusesIsAnErrorNotATruncatedAnswer() throws Exception {
+        // Valid as a request, but too long for the receiver_account_id column
+        PaymentRequestDTO unstorable = new PaymentRequestDTO(SENDER, "R".repeat(300), BigDecimal.TEN, "EUR",
+                UUID.randomUUID().toString());
+
+        HttpResponse<String> response = post(List.of(request(UUID.randomUUID().toString()), unstorable));
+
+        assertEquals(500, response.statusCode());
+        assertEquals(0, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM payment WHERE sender_account_id = ?",
+                Integer.class, SENDER), "the batch is inserted in one transaction");
+    }
+
+    @Test
+    void batchesBeyondMaxItemsAreRejectedWhole() throws Exception {
+        List<PaymentRequestDTO> items = new ArrayList<>();
+        for (int i = 0; i <= batchProperties.getMaxItems(); i++) {
+            items.add(request(UUID.randomUUID().toString()));
+        }
+
+        assertEquals(400, post(items).statusCode());
+        assertEquals(400, post(List.of()).statusCode());
+        assertEquals(0, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM payment WHERE sender_account_id = ?",
+                Integer.class, SENDER));
+    }
+
+    @Test
+    void payrollInOneBatchBeatsSubmittingItemByItem() throws Exception {
+        try (HttpClient http = HttpClient.newHttpClient()) {
+            // Warm both paths up before the clock starts
+            post(http, requests(SINGLE_SUBMITS));
+            for (PaymentRequestDTO request : requests(SINGLE_SUBMITS)) {
+                initiate(http, request);
+            }
+
+            List<PaymentRequestDTO> singles = requests(SINGLE_SUBMITS);
+            long started = System.nanoTime();
+            for (PaymentRequestDTO request : singles) {
+                assertEquals(202, initiate(http, request).statusCode());
+            }
+            long single = (System.nanoTime() - started) / SINGLE_SUBMITS;
+
+            List<PaymentRequestDTO> payroll = requests(PAYROLL);
+            started = System.nanoTime();
+            HttpResponse<String> response = post(http, payroll);
+            long batched = (System.nanoTime() - started) / PAYROLL;
+
+            log.info("Payments per second: {} submitted one by one, {} in one batch of {}",
+                    1_000_000_000L / single, 1_000_000_000L / batched, PAYROLL);
+            assertEquals(PAYROLL, response.body().lines().filter(line -> line.contains("\"outcome\":\"CREATED\"")).count());
+            int submitted = 3 * SINGLE_SUBMITS + PAYROLL;
+            assertEquals(submitted, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM payment WHERE sender_account_id = ?",
+                    Integer.class, SENDER));
+            assertEquals(submitted, jdbcTemplate.queryForObject(
+                    "SELECT COUNT(*) FROM outbox_event WHERE aggregate_id IN (SELECT id FROM payment WHERE sender_account_id = ?)",
+                    Integer.class, SENDER), "every payment comes with its PaymentInitiatedEvent");
+            assertTrue(batched * 10 < single, "a batch should cost a fraction of one submission per payment");
+        }
+    }
+
+    private HttpResponse<String> post(List<PaymentRequestDTO> items) throws Exception {
+        try (HttpClient http = HttpClient.newHttpClient()) {
+            return post(http, items);
+        }
+    }
+
+    private HttpResponse<String> post(HttpClient http, List<PaymentRequestDTO> items) throws Exception {
+        return http.send(request("/api/payments/batch", "application/x-ndjson", items), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private HttpResponse<String> initiate(HttpClient http, PaymentRequestDTO item) throws Exception {
+        return http.send(request("/api/payments/initiate", "application/json", item), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private HttpRequest request(String path, String accept, Object body) throws Exception {
+        return HttpRequest.newBuilder(URI.create("http://localhost:" + port + path))
+                .header("Content-Type", "application/json")
+                .header("Accept", accept)
+                .timeout(Duration.ofSeconds(60))
+                .POST(HttpRequest.BodyPublishers.ofByteArray(objectMapper.writeValueAsBytes(body)))
+                .build();
+    }
+
+    private static List<PaymentRequestDTO> requests(int count) {
+        List<PaymentRequestDTO> requests = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            requests.add(request(UUID.randomUUID().toString()));
+        }
+        return requests;
+    }
+
+    private static PaymentRequestDTO request(String idempotencyKey) {
+        return new PaymentRequestDTO(SENDER, "BATCH-RECEIVER", new BigDecimal("2500.00"), "EUR", idempotencyKey);
+    }
+}
@@ -0,0 +1,162 @@
+package com.bank.system.payment_service.controller;
+
+import com.bank.system.payment_service.PaymentServiceApplication;
+import com.bank.system.payment_service.config.ConcurrencyLimitedDataSource;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.servlet.context.ServletWebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import javax.sql.DataSource;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+
+/**
+ * Starts the service twice, once on platform threads and once on virtual threads, and hits
+ * {@code /api/payments/initiate} of each with the same number of concurrent callers.
+ */
+class PaymentControllerLoadTest {
+
+    private static final Logger log = LoggerFactory.getLogger(PaymentControllerLoadTest.class);
+    private static final int CALLERS = 1_000;
+    private static final int REQUESTS_PER_CALLER = 3;
+    private static final int ROUNDS = 2;
+
+    @Test
+    void thousandConcurrentCallersOnPlatformAndVirtualThreads() throws Exception {
+        try (ConfigurableApplicationContext platformContext = start(false);
+             ConfigurableApplicationContext virtualContext = start(true)) {
+            assertInstanceOf(ConcurrencyLimitedDataSource.class, virtualContext.getBean(DataSource.class));
+            // Warm both up before the clock starts; they share one JIT, so rounds alternate between them
+            round(platformContext, 200, 5);
+            round(virtualContext, 200, 5);
+            long[] platform = {0, Long.MAX_VALUE, 0};
+            long[] virtual = {0, Long.MAX_VALUE, 0};
+            for (int i = 0; i < ROUNDS; i++) {
+                best(platform, round(platformContext, CALLERS, REQUESTS_PER_CALLER));
+                best(virtual, round(virtualContext, CALLERS, REQUESTS_PER_CALLER));
+            }
+
+            log.info("{} concurrent callers, {} requests each, best of {} rounds: platform threads {} requests/s, p99 {} ms, "
+                            + "{} failed; virtual threads {} requests/s, p99 {} ms, {} failed",
+                    CALLERS, REQUESTS_PER_CALLER, ROUNDS, platform[0], platform[1], platform[2], virtual[0], virtual[1], virtual[2]);
+            assertEquals(0, platform[2], "every request is accepted on platform threads");
+            assertEquals(0, virtual[2], "every request is accepted on virtual threads, the semaphore queues the surplus");
+            ConcurrencyLimitedDataSource limited = (ConcurrencyLimitedDataSource) virtualContext.getBean(DataSource.class);
+            assertEquals(0, limited.getWaitingThreads());
+            assertEquals(10, limited.getAvailablePermits(), "every permit is handed back");
+        }
+    }
+
+    private static ConfigurableApplicationContext start(boolean virtualThreads) {
+        return new SpringApplicationBuilder(PaymentServiceApplication.class).run(
+                "--server.port=0",
+                "--server.tomcat.accept-count=" + CALLERS,
+                "--spring.threads.virtual.enabled=" + virtualThreads,
+                "--spring.kafka.listener.auto-startup=false",
+                "--spring.jmx.enabled=false",
+                "--outbox.dispatcher.enabled=false",
+                "--outbox.retention.enabled=false",
+                "--logging.level.com.bank.system.payment_service.service=WARN",
+                "--logging.level.com.bank.system.payment_service.repository=WARN");
+    }
+
+    private static void best(long[] best, long[] round) {
+        best[0] = Math.max(best[0], round[0]);
+        best[1] = Math.min(best[1], round[1]);
+        best[2] += round[2];
+    }
+
+    /**
+     * Fires the requests at one context, checks every accepted payment was stored and removes them again,
+     * so each round starts from the same table size.
+     *
+     * @return requests per second, the 99th percentile latency in milliseconds and the number of failed requests
+     */
+    private long[] round(ConfigurableApplicationContext context, int callers, int requestsPerCaller) throws Exception {
+        JdbcTemplate jdbcTemplate = context.getBean(JdbcTemplate.class);
+        URI uri = URI.create("http://localhost:" + ((ServletWebServerApplicationContext) context).getWebServer().getPort()
+                + "/api/payments/initiate");
+        try {
+            long[] result = fire(uri, callers, requestsPerCaller);
+            assertEquals(callers * requestsPerCaller - result[2], jdbcTemplate.queryForObject(
+                    "SELECT COUNT(*) FROM payment WHERE sender_account_id = 'LOAD-SENDER'", Long.class));
+            return result;
+        } finally {
+            jdbcTemplate.update("DELETE FROM outbox_event WHERE aggregate_id IN (SELECT id FROM payment WHERE sender_account_id = 'LOAD-SENDER')");
+            jdbcTemplate.update("DELETE FROM payment WHERE sender_account_id = 'LOAD-SENDER'");
+        }
+    }
+
+    private long[] fire(URI uri, int callers, int requestsPerCaller) throws InterruptedException {
+        long[] latencies = new long[callers * requestsPerCaller];
+        AtomicInteger failed = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(callers);
+        long started;
+        // Callers are platform threads so they don't compete with the server for the virtual thread carriers
+        try (ExecutorService clients = Executors.newFixedThreadPool(callers);
+             HttpClient http = HttpClient.newBuilder()
+                     .version(HttpClient.Version.HTTP_1_1)
+                     .connectTimeout(Duration.ofSeconds(30))
+                     .build()) {
+            for (int c = 0; c < callers; c++) {
+                int caller = c;
+                clients.submit(() -> {
+                    try {
+                        start.await();
+                        for (int r = 0; r < requestsPerCaller; r++) {
+                            long sent = System.nanoTime();
+                            if (initiate(http, uri, UUID.randomUUID().toString()) != 202) {
+                                failed.incrementAndGet();
+                            }
+                            latencies[caller * requestsPerCaller + r] = System.nanoTime() - sent;
+                        }
+                    } catch (Exception e) {
+                        failed.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                    return null;
+                });
+            }
+            started = System.nanoTime();
+            start.countDown();
+            done.await();
+        }
+        long elapsed = System.nanoTime() - started;
+        Arrays.sort(latencies);
+        return new long[]{
+                (long) (latencies.length / (elapsed / 1_000_000_000.0)),
+                latencies[(int) Math.ceil(latencies.length * 0.99) - 1] / 1_000_000,
+                failed.get()
+        };
+    }
+
+    private static int initiate(HttpClient http, URI uri, String idempotencyKey) throws Exception {
+        String body = """
+                {"senderAccountId":"LOAD-SENDER","receiverAccountId":"LOAD-RECEIVER","amount":1.00,"currency":"EUR","idempotencyKey":"%s"}
+                """.formatted(idempotencyKey);
+        HttpRequest request = HttpRequest.newBuilder(uri)
+                .header("Content-Type", "application/json")
+                .timeout(Duration.ofSeconds(60))
+                .POST(HttpRequest.BodyPublishers.ofString(body))
+                .build();
+        return http.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+    }
+}
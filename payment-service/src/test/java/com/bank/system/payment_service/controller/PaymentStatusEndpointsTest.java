@@ -0,0 +1,168 @@
+package com.bank.system.payment_service.controller;
+
+import com.bank.system.dtos.dto.PaymentRequestDTO;
+import com.bank.system.dtos.dto.ReceiverCreditEvent;
+import com.bank.system.dtos.dto.SenderDebitedEvent;
+import com.bank.system.payment_service.domain.Payment;
+import com.bank.system.payment_service.service.PaymentAccountService;
+import com.bank.system.payment_service.status.PaymentStatusNotifier;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.math.BigDecimal;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntPredicate;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = "outbox.dispatcher.enabled=false")
+class PaymentStatusEndpointsTest {
+
+    private static final Logger log = LoggerFactory.getLogger(PaymentStatusEndpointsTest.class);
+    private static final String SENDER = "STATUS-SENDER";
+    private static final int WAITERS = 2_000;
+
+    @LocalServerPort
+    private int port;
+
+    @Autowired
+    private PaymentAccountService paymentAccountService;
+
+    @Autowired
+    private PaymentStatusNotifier statusNotifier;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @AfterEach
+    void tearDown() {
+        jdbcTemplate.update("DELETE FROM outbox_event WHERE aggregate_id IN (SELECT id FROM payment WHERE sender_account_id = ?)", SENDER);
+        jdbcTemplate.update("DELETE FROM payment WHERE sender_account_id = ?", SENDER);
+    }
+
+    @Test
+    void getAnswersWithThePaymentOrNotFound() throws Exception {
+        Payment payment = initiate();
+        try (HttpClient http = HttpClient.newHttpClient()) {
+            HttpResponse<String> found = http.send(get("/api/payments/" + payment.getId(), "application/json"),
+                    HttpResponse.BodyHandlers.ofString());
+            HttpResponse<String> missing = http.send(get("/api/payments/" + UUID.randomUUID(), "application/json"),
+                    HttpResponse.BodyHandlers.ofString());
+
+            assertEquals(200, found.statusCode());
+            assertTrue(found.body().contains("\"status\":\"INITIATED\""));
+            assertEquals(404, missing.statusCode());
+        }
+    }
+
+    @Test
+    void longPollsWaitWithoutThreadsAndAreAnsweredByTheTransition() throws Exception {
+        Payment payment = initiate();
+        HttpRequest poll = get("/api/payments/" + payment.getId() + "/events?status=INITIATED", "application/json");
+        try (HttpClient http = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build()) {
+            List<CompletableFuture<HttpResponse<String>>> responses = new ArrayList<>(WAITERS);
+            for (int i = 0; i < WAITERS; i++) {
+                responses.add(http.sendAsync(poll, HttpResponse.BodyHandlers.ofString()));
+            }
+            awaitWaiters(waiters -> waiters >= WAITERS, "every long poll is parked at once");
+            long requestThreads = Thread.getAllStackTraces().keySet().stream()
+                    .filter(thread -> thread.getName().startsWith("http-nio-")).count();
+
+            long transitioned = System.nanoTime();
+            paymentAccountService.handleSenderDebited(senderDebited(payment));
+            CompletableFuture.allOf(responses.toArray(CompletableFuture[]::new)).get(60, TimeUnit.SECONDS);
+            long answered = System.nanoTime() - transitioned;
+
+            log.info("{} long polls parked on {} request threads, all answered {} ms after the transition",
+                    WAITERS, requestThreads, answered / 1_000_000);
+            assertTrue(requestThreads < WAITERS / 4, "waiting long polls should not hold a thread each");
+            for (CompletableFuture<HttpResponse<String>> response : responses) {
+                assertEquals(200, response.get().statusCode());
+                assertTrue(response.get().body().contains("\"status\":\"SENDER_DEBITED\""));
+            }
+        }
+        awaitWaiters(waiters -> waiters == 0, "answered waiters are unsubscribed");
+    }
+
+    @Test
+    void longPollAnswersAtOnceWhenTheStatusHasMovedOn() throws Exception {
+        Payment payment = initiate();
+        paymentAccountService.handleSenderDebited(senderDebited(payment));
+        try (HttpClient http = HttpClient.newHttpClient()) {
+            HttpResponse<String> response = http.send(get("/api/payments/" + payment.getId() + "/events?status=INITIATED",
+                    "application/json"), HttpResponse.BodyHandlers.ofString());
+
+            assertEquals(200, response.statusCode());
+            assertTrue(response.body().contains("\"status\":\"SENDER_DEBITED\""));
+        }
+    }
+
+    @Test
+    void eventStreamPushesEveryStatusUntilTheSagaFinishes() throws Exception {
+        Payment payment = initiate();
+        try (HttpClient http = HttpClient.newHttpClient()) {
+            CompletableFuture<HttpResponse<Stream<String>>> stream = http.sendAsync(
+                    get("/api/payments/" + payment.getId() + "/events", "text/event-stream"), HttpResponse.BodyHandlers.ofLines());
+            awaitWaiters(waiters -> waiters >= 1, "the stream is subscribed");
+
+            paymentAccountService.handleSenderDebited(senderDebited(payment));
+            ReceiverCreditEvent credited = new ReceiverCreditEvent(payment.getId(), "STATUS-RECEIVER", payment.getAmount(),
+                    payment.getCurrency(), Instant.now());
+            credited.setEventId(UUID.randomUUID());
+            paymentAccountService.handleReceiverCredited(credited);
+
+            List<String> statuses = stream.get(30, TimeUnit.SECONDS).body()
+                    .filter(line -> line.startsWith("id:"))
+                    .map(line -> line.substring(3))
+                    .toList();
+            assertEquals(List.of("INITIATED", "SENDER_DEBITED", "COMPLETED"), statuses, "the stream ends at COMPLETED");
+        }
+    }
+
+    // Waiters of earlier tests are unsubscribed once their requests complete, which may still be under way
+    private void awaitWaiters(IntPredicate condition, String message) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        while (!condition.test(statusNotifier.getWaiters()) && System.nanoTime() < deadline) {
+            Thread.sleep(20);
+        }
+        assertTrue(condition.test(statusNotifier.getWaiters()), message + ", " + statusNotifier.getWaiters() + " waiters");
+    }
+
+    private Payment initiate() {
+        return paymentAccountService.initiatePayment(new PaymentRequestDTO(SENDER, "STATUS-RECEIVER", new BigDecimal("10.00"),
+                "EUR", UUID.randomUUID().toString()));
+    }
+
+    private static SenderDebitedEvent senderDebited(Payment payment) {
+        SenderDebitedEvent event = new SenderDebitedEvent(payment.getId(), SENDER, payment.getAmount(), payment.getCurrency(),
+                Instant.now());
+        event.setEventId(UUID.randomUUID());
+        return event;
+    }
+
+    private HttpRequest get(String path, String accept) {
+        return HttpRequest.newBuilder(URI.create("http://localhost:" + port + path))
+                .header("Accept", accept)
+                .timeout(Duration.ofSeconds(60))
+                .GET()
+                .build();
+    }
+}
@@ -0,0 +1,275 @@
+package com.bank.system.payment_service.ingestion;
+
+import com.bank.system.dtos.dto.PaymentRequestDTO;
+import com.bank.system.payment_service.config.IngestionProperties;
+import com.bank.system.payment_service.domain.PaymentFile;
+import com.bank.system.payment_service.domain.PaymentFileFormat;
+import com.bank.system.payment_service.domain.PaymentFileStatus;
+import com.bank.system.payment_service.repository.PaymentFileRepository;
+import com.bank.system.payment_service.service.PaymentBatchService;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+        "outbox.dispatcher.enabled=false",
+        "ingestion.chunk-size=100",
+        "ingestion.queue-depth=2",
+        "ingestion.resume-on-startup=false"
+})
+class PaymentFileIngesterTest {
+
+    private static final String SENDER = "FILE-SENDER";
+    private static final String OTHER_SENDER = "FILE-SENDER-2";
+    private static final String FILE_NAME = "ingestion-test.csv";
+    private static final int ITEMS = 1_000;
+
+    @LocalServerPort
+    private int port;
+
+    @Autowired
+    private PaymentFileIngester ingester;
+
+    @Autowired
+    private PaymentFileRepository paymentFileRepository;
+
+    @Autowired
+    private PaymentBatchService paymentBatchService;
+
+    @Autowired
+    private IngestionProperties ingestionProperties;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @AfterEach
+    void tearDown() {
+        for (String sender : List.of(SENDER, OTHER_SENDER)) {
+            jdbcTemplate.update("DELETE FROM outbox_event WHERE aggregate_id IN (SELECT id FROM payment WHERE sender_account_id = ?)", sender);
+            jdbcTemplate.update("DELETE FROM payment WHERE sender_account_id = ?", sender);
+        }
+        jdbcTemplate.update("DELETE FROM payment_file WHERE file_name = ?", FILE_NAME);
+    }
+
+    @Test
+    void uploadedCsvIsIngestedInCheckpointedChunks() throws Exception {
+        StringBuilder csv = new StringBuilder("sender_account_id,receiver_account_id,amount,currency\n");
+        for (int i = 0; i < ITEMS; i++) {
+            // Every hundredth line has no amount
+            csv.append(SENDER).append(",FILE-RECEIVER-").append(i).append(',').append(i % 100 == 0 ? "" : "12.34").append(",EUR\n");
+        }
+
+        HttpResponse<String> response;
+        try (HttpClient http = HttpClient.newHttpClient()) {
+            response = http.send(HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/api/payments/files?name=" + FILE_NAME))
+                    .header("Content-Type", "text/csv")
+                    .timeout(Duration.ofSeconds(60))
+                    .POST(HttpRequest.BodyPublishers.ofString(csv.toString()))
+                    .build(), HttpResponse.BodyHandlers.ofString());
+        }
+
+        assertEquals(202, response.statusCode(), response.body());
+        JsonNode accepted = objectMapper.readTree(response.body());
+        assertFalse(accepted.has("storagePath"), "where the file is kept is not the client's business");
+        PaymentFile file = awaitFinished(UUID.fromString(accepted.get("id").asText()));
+        assertEquals(PaymentFileStatus.COMPLETED, file.getStatus(), file.getError());
+        assertEquals(ITEMS, file.getItemsDone());
+        assertEquals(ITEMS - ITEMS / 100, file.getCreated());
+        assertEquals(ITEMS / 100, file.getRejected());
+        assertEquals(ITEMS - ITEMS / 100, payments());
+        assertFalse(Files.exists(Path.of(file.getStoragePath())), "the upload is removed once ingested");
+    }
+
+    @Test
+    void interruptedFileResumesAfterItsCheckpointWithoutDuplicates() throws Exception {
+        Path stored = Files.createDirectories(Path.of(ingestionProperties.getDirectory())).resolve(UUID.randomUUID() + ".csv");
+        StringBuilder csv = new StringBuilder("sender_account_id,receiver_account_id,amount,currency\n");
+        for (int i = 0; i < ITEMS; i++) {
+            csv.append(SENDER).append(",FILE-RECEIVER-").append(i).append(",5.00,EUR\n");
+        }
+        Files.writeString(stored, csv);
+        PaymentFile file = new PaymentFile(UUID.randomUUID(), FILE_NAME, PaymentFileFormat.CSV, stored.toString());
+        file.setOwner(ingestionProperties.getOwnerId());
+        paymentFileRepository.save(file);
+
+        // The crash: 300 items checkpointed, and the next chunk of 100 committed but not yet checkpointed
+        List<PaymentRequestDTO> committed = firstItems(file, 400);
+        paymentBatchService.submit(committed.subList(0, 300));
+        paymentBatchService.submit(committed.subList(300, 400));
+        file.setStatus(PaymentFileStatus.PROCESSING);
+        file.setItemsDone(300);
+        file.setCreated(300);
+        assertTrue(paymentFileRepository.claim(file, Instant.now()));
+        assertTrue(paymentFileRepository.checkpoint(file));
+
+        ingestionProperties.setResumeOnStartup(true);
+        try {
+            ingester.resumeUnfinished();
+        } finally {
+            ingestionProperties.setResumeOnStartup(false);
+        }
+
+        PaymentFile resumed = awaitFinished(file.getId());
+        assertEquals(PaymentFileStatus.COMPLETED, resumed.getStatus(), resumed.getError());
+        assertEquals(ITEMS, resumed.getItemsDone());
+        assertEquals(ITEMS - 100, resumed.getCreated());
+        assertEquals(100, resumed.getExisting(), "the chunk committed before the crash is recognised by its keys");
+        assertEquals(ITEMS, payments());
+    }
+
+    @Test
+    void filesOfAnotherLiveInstanceAreLeftToIt() throws Exception {
+        Path directory = Files.createDirectories(Path.of(ingestionProperties.getDirectory()));
+        // Stored on the other instance's disk only
+        PaymentFile elsewhere = otherInstancesFile(directory.resolve(UUID.randomUUID() + ".csv"));
+
+        ingestionProperties.setResumeOnStartup(true);
+        try {
+            ingester.resumeUnfinished();
+        } finally {
+            ingestionProperties.setResumeOnStartup(false);
+        }
+
+        PaymentFile skipped = paymentFileRepository.findById(elsewhere.getId()).orElseThrow();
+        assertEquals(PaymentFileStatus.PROCESSING, skipped.getStatus(), "a missing upload does not fail the file");
+        assertEquals("other-instance", skipped.getOwner());
+
+        // Stored where both instances can read it
+        Path stored = directory.resolve(UUID.randomUUID() + ".csv");
+        Files.writeString(stored, "sender_account_id,receiver_account_id,amount,currency\n" + SENDER + ",FILE-RECEIVER,5.00,EUR\n");
+        PaymentFile shared = otherInstancesFile(stored);
+
+        ingester.ingest(paymentFileRepository.findById(shared.getId()).orElseThrow());
+
+        PaymentFile untouched = paymentFileRepository.findById(shared.getId()).orElseThrow();
+        assertEquals(PaymentFileStatus.PROCESSING, untouched.getStatus(), untouched.getError());
+        assertEquals("other-instance", untouched.getOwner());
+        assertEquals(0, payments());
+
+        // The other instance has stopped checkpointing
+        jdbcTemplate.update("UPDATE payment_file SET updated_at = ? WHERE id = ?",
+                Timestamp.from(Instant.now().minus(ingestionProperties.getStaleAfter()).minusSeconds(1)), shared.getId());
+        ingester.ingest(paymentFileRepository.findById(shared.getId()).orElseThrow());
+
+        PaymentFile resumed = paymentFileRepository.findById(shared.getId()).orElseThrow();
+        assertEquals(PaymentFileStatus.COMPLETED, resumed.getStatus(), resumed.getError());
+        assertEquals(ingestionProperties.getOwnerId(), resumed.getOwner());
+        assertEquals(1, payments());
+    }
+
+    @Test
+    void pain001FilesReusingInstructionIdsDoNotCollide() throws Exception {
+        String january = pain001("MSG-JAN", SENDER, "INSTR-1", "INSTR-2");
+        String february = pain001("MSG-FEB", SENDER, "INSTR-1", "INSTR-2");
+        String otherCustomer = pain001("MSG-JAN", OTHER_SENDER, "INSTR-1", "INSTR-2");
+
+        PaymentFile first = ingest(january);
+        PaymentFile second = ingest(february);
+        PaymentFile third = ingest(otherCustomer);
+        PaymentFile resent = ingest(january);
+
+        assertEquals(2, first.getCreated(), first.getError());
+        assertEquals(2, second.getCreated(), "another message of the same customer is new");
+        assertEquals(2, third.getCreated(), "another customer's message of the same name is new");
+        assertEquals(0, resent.getCreated());
+        assertEquals(2, resent.getExisting(), "the same file sent twice is recognised");
+        assertEquals(4, payments());
+    }
+
+    @Test
+    void malformedFileFailsWithTheReason() throws Exception {
+        PaymentFile file = ingester.accept(FILE_NAME, PaymentFileFormat.PAIN_001,
+                new ByteArrayInputStream("<Document><CstmrCdtTrfInitn><PmtInf>".getBytes()));
+
+        PaymentFile failed = awaitFinished(file.getId());
+        assertEquals(PaymentFileStatus.FAILED, failed.getStatus());
+        assertTrue(failed.getError().startsWith("Malformed pain.001"), failed.getError());
+        assertTrue(Files.exists(Path.of(failed.getStoragePath())), "a failed upload is kept for inspection");
+        Files.delete(Path.of(failed.getStoragePath()));
+    }
+
+    private PaymentFile ingest(String pain001) throws Exception {
+        PaymentFile file = ingester.accept(FILE_NAME, PaymentFileFormat.PAIN_001, new ByteArrayInputStream(pain001.getBytes()));
+        PaymentFile finished = awaitFinished(file.getId());
+        assertEquals(PaymentFileStatus.COMPLETED, finished.getStatus(), finished.getError());
+        return finished;
+    }
+
+    private static String pain001(String messageId, String debtorAccount, String... instructionIds) {
+        StringBuilder xml = new StringBuilder("""
+                <?xml version="1.0" encoding="UTF-8"?>
+                <Document xmlns="urn:iso:std:iso:20022:tech:xsd:pain.001.001.09"><CstmrCdtTrfInitn>
+                <GrpHdr><MsgId>%s</MsgId></GrpHdr>
+                <PmtInf><DbtrAcct><Id><Othr><Id>%s</Id></Othr></Id></DbtrAcct>
+                """.formatted(messageId, debtorAccount));
+        for (String instructionId : instructionIds) {
+            xml.append("""
+                    <CdtTrfTxInf><PmtId><InstrId>%s</InstrId></PmtId><Amt><InstdAmt Ccy="EUR">3.00</InstdAmt></Amt>
+                    <CdtrAcct><Id><Othr><Id>FILE-RECEIVER</Id></Othr></Id></CdtrAcct></CdtTrfTxInf>
+                    """.formatted(instructionId));
+        }
+        return xml.append("</PmtInf></CstmrCdtTrfInitn></Document>").toString();
+    }
+
+    private PaymentFile otherInstancesFile(Path stored) {
+        PaymentFile file = new PaymentFile(UUID.randomUUID(), FILE_NAME, PaymentFileFormat.CSV, stored.toString());
+        file.setOwner("other-instance");
+        paymentFileRepository.save(file);
+        assertTrue(paymentFileRepository.claim(file, Instant.now()));
+        return file;
+    }
+
+    private List<PaymentRequestDTO> firstItems(PaymentFile file, int count) throws IOException {
+        List<PaymentRequestDTO> items = new ArrayList<>(count);
+        try (PaymentFileReader reader = PaymentFileReader.open(file.getFormat(), Files.newInputStream(Path.of(file.getStoragePath())),
+                file.getId().toString())) {
+            while (items.size() < count) {
+                items.add(reader.next());
+            }
+        }
+        return items;
+    }
+
+    private PaymentFile awaitFinished(UUID fileId) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        PaymentFile file = paymentFileRepository.findById(fileId).orElseThrow();
+        while ((file.getStatus() == PaymentFileStatus.RECEIVED || file.getStatus() == PaymentFileStatus.PROCESSING)
+                && System.nanoTime() < deadline) {
+            Thread.sleep(50);
+            file = paymentFileRepository.findById(fileId).orElseThrow();
+        }
+        return file;
+    }
+
+    private int payments() {
+        return jdbcTemplate.queryForObject("SELECT COUNT(*) FROM payment WHERE sender_account_id = ?", Integer.class, SENDER);
+    }
+}
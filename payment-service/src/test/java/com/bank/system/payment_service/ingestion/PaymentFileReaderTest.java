@@ -0,0 +1,191 @@
+package com.bank.system.payment_service.ingestion;
+
+import com.bank.system.dtos.dto.PaymentRequestDTO;
+import com.bank.system.payment_service.domain.PaymentFileFormat;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PaymentFileReaderTest {
+
+    private static final Logger log = LoggerFactory.getLogger(PaymentFileReaderTest.class);
+    private static final int LARGE_FILE = 500_000;
+
+    @Test
+    void csvColumnsAreFoundByHeaderAndMissingKeysDerivedFromThePosition() throws IOException {
+        String csv = """
+                amount,currency,receiverAccountId,sender_account_id,idempotency_key,reference
+                125.50,EUR,ACC-2,ACC-1,key-1,"March, payroll"
+
+                "1,000.00",EUR,ACC-3,ACC-1,,
+                "12.00",USD,"ACC ""4""\",ACC-1,,
+                """;
+
+        List<PaymentRequestDTO> items = readAll(PaymentFileFormat.CSV, csv);
+
+        assertEquals(3, items.size());
+        assertEquals(new PaymentRequestDTO("ACC-1", "ACC-2", new BigDecimal("125.50"), "EUR", "key-1"), items.get(0));
+        assertNull(items.get(1).getAmount(), "an unreadable amount is left for validation to reject");
+        assertEquals("file-1:1", items.get(1).getIdempotencyKey());
+        assertEquals("ACC \"4\"", items.get(2).getReceiverAccountId());
+        assertEquals("file-1:2", items.get(2).getIdempotencyKey());
+    }
+
+    @Test
+    void csvWithoutTheRequiredColumnsIsRefused() {
+        assertThrows(IOException.class, () -> readAll(PaymentFileFormat.CSV, "sender,receiver\nA,B\n"));
+    }
+
+    @Test
+    void pain001YieldsOnePaymentPerCreditTransferFromTheDebtorOfItsPaymentInformation() throws IOException {
+        String xml = """
+                <?xml version="1.0" encoding="UTF-8"?>
+                <Document xmlns="urn:iso:std:iso:20022:tech:xsd:pain.001.001.09">
+                  <CstmrCdtTrfInitn>
+                    <GrpHdr><MsgId>MSG-1</MsgId><NbOfTxs>3</NbOfTxs>
+                      <InitgPty><Id><OrgId><Othr><Id>CORP-1</Id></Othr></OrgId></Id></InitgPty></GrpHdr>
+                    <PmtInf>
+                      <PmtInfId>PMT-1</PmtInfId>
+                      <DbtrAcct><Id><IBAN>DE89370400440532013000</IBAN></Id></DbtrAcct>
+                      <CdtTrfTxInf>
+                        <PmtId><InstrId>INSTR-1</InstrId><EndToEndId>E2E-1</EndToEndId></PmtId>
+                        <Amt><InstdAmt Ccy="EUR">2500.00</InstdAmt></Amt>
+                        <CdtrAcct><Id><IBAN>FR1420041010050500013M02606</IBAN></Id></CdtrAcct>
+                      </CdtTrfTxInf>
+                      <CdtTrfTxInf>
+                        <PmtId><EndToEndId>NOTPROVIDED</EndToEndId></PmtId>
+                        <Amt><InstdAmt Ccy="EUR">10.5</InstdAmt></Amt>
+                        <CdtrAcct><Id><Othr><Id>ACC-42</Id></Othr></Id></CdtrAcct>
+                      </CdtTrfTxInf>
+                    </PmtInf>
+                    <PmtInf>
+                      <DbtrAcct><Id><Othr><Id>ACC-7</Id></Othr></Id></DbtrAcct>
+                      <CdtTrfTxInf>
+                        <PmtId><EndToEndId>E2E-3</EndToEndId></PmtId>
+                        <Amt><InstdAmt Ccy="USD">1</InstdAmt></Amt>
+                        <CdtrAcct><Id><IBAN>GB29NWBK60161331926819</IBAN></Id></CdtrAcct>
+                      </CdtTrfTxInf>
+                    </PmtInf>
+                  </CstmrCdtTrfInitn>
+                </Document>
+                """;
+
+        List<PaymentRequestDTO> items = readAll(PaymentFileFormat.PAIN_001, xml);
+
+        assertEquals(List.of(
+                new PaymentRequestDTO("DE89370400440532013000", "FR1420041010050500013M02606", new BigDecimal("2500.00"), "EUR", "MSG-1:DE89370400440532013000:INSTR-1"),
+                new PaymentRequestDTO("DE89370400440532013000", "ACC-42", new BigDecimal("10.5"), "EUR", "file-1:1"),
+                new PaymentRequestDTO("ACC-7", "GB29NWBK60161331926819", BigDecimal.ONE, "USD", "MSG-1:ACC-7:E2E-3")), items);
+    }
+
+    @Test
+    void pain001WithADoctypeIsRefused() {
+        String xml = """
+                <?xml version="1.0"?>
+                <!DOCTYPE Document [<!ENTITY secret SYSTEM "file:///etc/passwd">]>
+                <Document><CstmrCdtTrfInitn><PmtInf><CdtTrfTxInf><PmtId><EndToEndId>&secret;</EndToEndId></PmtId>
+                </CdtTrfTxInf></PmtInf></CstmrCdtTrfInitn></Document>
+                """;
+
+        assertThrows(IOException.class, () -> readAll(PaymentFileFormat.PAIN_001, xml));
+    }
+
+    @Test
+    void heapStaysFlatHoweverLongThePain001File() throws IOException {
+        long bytes;
+        long early;
+        long late;
+        GeneratedPain001 content = new GeneratedPain001(LARGE_FILE);
+        try (PaymentFileReader reader = PaymentFileReader.open(PaymentFileFormat.PAIN_001, new SequenceInputStream(content),
+                "large")) {
+            early = 0;
+            int read = 0;
+            PaymentRequestDTO item;
+            while ((item = reader.next()) != null) {
+                read++;
+                if (read == LARGE_FILE / 10) {
+                    early = usedHeap();
+                }
+                assertEquals("CRED-" + (read - 1), item.getReceiverAccountId());
+            }
+            late = usedHeap();
+            bytes = content.bytes;
+            assertEquals(LARGE_FILE, read);
+        }
+
+        log.info("Read {} pain.001 payments ({} MB of XML): {} KB heap in use after {}, {} KB at the end",
+                LARGE_FILE, bytes >> 20, early >> 10, LARGE_FILE / 10, late >> 10);
+        assertTrue(late - early < 8L << 20, "reading on should not hold on to what was read");
+    }
+
+    private static long usedHeap() {
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static List<PaymentRequestDTO> readAll(PaymentFileFormat format, String content) throws IOException {
+        List<PaymentRequestDTO> items = new ArrayList<>();
+        try (PaymentFileReader reader = PaymentFileReader.open(format,
+                new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)), "file-1")) {
+            PaymentRequestDTO item;
+            while ((item = reader.next()) != null) {
+                items.add(item);
+            }
+        }
+        return items;
+    }
+
+    // The parts of a pain.001 document, produced as they are read so its size is not bounded by the test's heap
+    private static final class GeneratedPain001 implements Enumeration<InputStream> {
+        private final int transactions;
+        private int next = -1;
+        private long bytes;
+
+        private GeneratedPain001(int transactions) {
+            this.transactions = transactions;
+        }
+
+        @Override
+        public boolean hasMoreElements() {
+            return next <= transactions;
+        }
+
+        @Override
+        public InputStream nextElement() {
+            String part;
+            if (next < 0) {
+                part = "<?xml version=\"1.0\" encoding=\"UTF-8\"?><Document xmlns=\"urn:iso:std:iso:20022:tech:xsd:pain.001.001.09\">"
+                        + "<CstmrCdtTrfInitn><GrpHdr><MsgId>LARGE</MsgId><NbOfTxs>" + transactions + "</NbOfTxs></GrpHdr>"
+                        + "<PmtInf><PmtInfId>P</PmtInfId><DbtrAcct><Id><IBAN>DE89370400440532013000</IBAN></Id></DbtrAcct>";
+            } else if (next < transactions) {
+                part = "<CdtTrfTxInf><PmtId><EndToEndId>E2E-" + next + "</EndToEndId></PmtId>"
+                        + "<Amt><InstdAmt Ccy=\"EUR\">" + (100 + next % 900) + ".25</InstdAmt></Amt>"
+                        + "<Cdtr><Nm>Employee " + next + "</Nm></Cdtr>"
+                        + "<CdtrAcct><Id><Othr><Id>CRED-" + next + "</Id></Othr></Id></CdtrAcct>"
+                        + "<RmtInf><Ustrd>Salary March</Ustrd></RmtInf></CdtTrfTxInf>";
+            } else {
+                part = "</PmtInf></CstmrCdtTrfInitn></Document>";
+            }
+            next++;
+            byte[] data = part.getBytes(StandardCharsets.UTF_8);
+            bytes += data.length;
+            return new ByteArrayInputStream(data);
+        }
+    }
+}
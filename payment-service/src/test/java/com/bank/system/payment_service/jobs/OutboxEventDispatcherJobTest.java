@@ -0,0 +1,150 @@
+package com.bank.system.payment_service.jobs;
+
+import com.bank.system.dtos.dto.PaymentInitiatedEvent;
+import com.bank.system.payment_service.config.OutboxProperties;
+import com.bank.system.payment_service.config.OutboxProperties.DispatchMode;
+import com.bank.system.payment_service.domain.OutboxEvent;
+import com.bank.system.payment_service.kafka.PaymentProducer;
+import com.bank.system.payment_service.repository.OutboxEventRepository;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.bean.override.mockito.MockitoBean;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+import static com.bank.system.payment_service.service.PaymentAccountService.PAYMENT_INITIATED_EVENT;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
+
+@SpringBootTest(properties = "outbox.dispatcher.enabled=false")
+class OutboxEventDispatcherJobTest {
+
+    private static final Logger log = LoggerFactory.getLogger(OutboxEventDispatcherJobTest.class);
+    private static final int EVENT_COUNT = 2_000;
+
+    @Autowired
+    private OutboxEventDispatcherJob dispatcherJob;
+
+    @Autowired
+    private OutboxEventRepository outboxEventRepository;
+
+    @Autowired
+    private OutboxProperties outboxProperties;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @MockitoBean
+    private PaymentProducer paymentProducer;
+
+    private DispatchMode originalMode;
+    private int originalBatchSize;
+
+    @BeforeEach
+    void setUp() {
+        jdbcTemplate.update("DELETE FROM outbox_event");
+        when(paymentProducer.sendRaw(any(), any(), any())).thenReturn(CompletableFuture.completedFuture(null));
+        originalMode = outboxProperties.getDispatcher().getMode();
+        originalBatchSize = outboxProperties.getDispatcher().getBatchSize();
+    }
+
+    @AfterEach
+    void tearDown() {
+        outboxProperties.getDispatcher().setMode(originalMode);
+        outboxProperties.getDispatcher().setBatchSize(originalBatchSize);
+        jdbcTemplate.update("DELETE FROM outbox_event");
+    }
+
+    @Test
+    void drainingModeOutperformsFixedRatePolling() throws Exception {
+        insertEvents(EVENT_COUNT);
+        OutboxProperties.Dispatcher dispatcher = outboxProperties.getDispatcher();
+
+        // Before: the legacy behaviour, one batch of 10 per one second cycle
+        dispatcher.setMode(DispatchMode.FIXED);
+        dispatcher.setBatchSize(10);
+        long start = System.nanoTime();
+        int fixedSent = dispatcherJob.dispatchEvents();
+        Duration fixedElapsed = Duration.ofNanos(System.nanoTime() - start).plus(dispatcherJob.getCurrentInterval());
+        double fixedRate = fixedSent / seconds(fixedElapsed);
+
+        // After: drain in full batches, paying only min-interval between cycles
+        dispatcher.setMode(DispatchMode.DRAINING);
+        dispatcher.setBatchSize(100);
+        int drainedSent = 0;
+        Duration drainElapsed = Duration.ZERO;
+        while (drainedSent < EVENT_COUNT - fixedSent) {
+            start = System.nanoTime();
+            int sent = dispatcherJob.dispatchEvents();
+            drainElapsed = drainElapsed.plusNanos(System.nanoTime() - start).plus(dispatcherJob.getCurrentInterval());
+            if (sent == 0) {
+                break;
+            }
+            drainedSent += sent;
+        }
+        double drainRate = drainedSent / seconds(drainElapsed);
+
+        log.info("Outbox dispatch throughput: fixed {} events/sec, draining {} events/sec",
+                String.format("%.1f", fixedRate), String.format("%.1f", drainRate));
+
+        assertEquals(EVENT_COUNT, fixedSent + drainedSent);
+        assertEquals(EVENT_COUNT, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM outbox_event WHERE sent = TRUE", Integer.class));
+        assertTrue(drainRate > fixedRate * 10, "draining mode should be at least 10x faster than fixed-rate polling");
+    }
+
+    @Test
+    void backsOffExponentiallyWhileIdleAndResetsWhenWorkArrives() throws Exception {
+        OutboxProperties.Dispatcher dispatcher = outboxProperties.getDispatcher();
+        dispatcher.setMode(DispatchMode.DRAINING);
+
+        dispatcherJob.dispatchEvents();
+        Duration first = dispatcherJob.getCurrentInterval();
+        dispatcherJob.dispatchEvents();
+        assertEquals(first.multipliedBy(2), dispatcherJob.getCurrentInterval());
+
+        for (int i = 0; i < 32; i++) {
+            dispatcherJob.dispatchEvents();
+        }
+        assertEquals(dispatcher.getMaxInterval(), dispatcherJob.getCurrentInterval());
+
+        insertEvents(1);
+        assertEquals(1, dispatcherJob.dispatchEvents());
+        assertEquals(dispatcher.getMinInterval(), dispatcherJob.getCurrentInterval());
+    }
+
+    private void insertEvents(int count) throws Exception {
+        for (int i = 0; i < count; i++) {
+            PaymentInitiatedEvent event = new PaymentInitiatedEvent();
+            event.setEventId(UUID.randomUUID());
+            event.setPaymentId(UUID.randomUUID());
+            event.setSenderAccountId("ACC-001-A");
+            event.setReceiverAccountId("ACC-002-B");
+            event.setAmount(BigDecimal.TEN);
+            event.setIdempotencyKey(UUID.randomUUID().toString());
+            event.setCurrency("EUR");
+            event.setTimestamp(Instant.now());
+            outboxEventRepository.save(new OutboxEvent(null, "Payment", event.getPaymentId(), PAYMENT_INITIATED_EVENT,
+                    objectMapper.writeValueAsString(event), Instant.now(), false));
+        }
+    }
+
+    private static double seconds(Duration duration) {
+        return duration.toNanos() / 1_000_000_000.0;
+    }
+}
@@ -0,0 +1,274 @@
+package com.bank.system.payment_service.jobs;
+
+import com.bank.system.dtos.dto.CompensatePaymentEvent;
+import com.bank.system.dtos.dto.CreditFailedEvent;
+import com.bank.system.dtos.dto.Event;
+import com.bank.system.dtos.dto.PaymentRequestDTO;
+import com.bank.system.dtos.dto.ReceiverCreditEvent;
+import com.bank.system.dtos.dto.SenderDebitedEvent;
+import com.bank.system.payment_service.config.SagaProperties;
+import com.bank.system.payment_service.domain.Payment;
+import com.bank.system.payment_service.domain.PaymentStatus;
+import com.bank.system.payment_service.service.PaymentAccountService;
+import com.bank.system.payment_service.service.PaymentTransactionalService;
+import com.bank.system.payment_service.service.SagaSweepService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Timeouts far below the default ones, so the sweepers of other test contexts leave these payments alone
+@SpringBootTest(properties = {
+        "outbox.dispatcher.enabled=false",
+        "saga.sweeper.enabled=false",
+        "saga.sweeper.timeouts.INITIATED=2s",
+        "saga.sweeper.timeouts.SENDER_DEBITED=2s",
+        "saga.sweeper.timeouts.CREDIT_FAILED=2s"
+})
+class SagaSweeperJobTest {
+
+    private static final Logger log = LoggerFactory.getLogger(SagaSweeperJobTest.class);
+    private static final String SENDER = "SWEEPER-SENDER";
+    private static final String RECEIVER = "SWEEPER-RECEIVER";
+    private static final int STALLED_INITIATED = 700;
+    private static final int STALLED_DEBITED = 300;
+    private static final int FINISHED = 100_000;
+
+    @Autowired
+    private SagaSweeperJob sweeperJob;
+
+    @Autowired
+    private SagaSweepService sweepService;
+
+    @Autowired
+    private PaymentAccountService paymentAccountService;
+
+    @Autowired
+    private PaymentTransactionalService paymentTransactionalService;
+
+    @Autowired
+    private SagaProperties sagaProperties;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    private int originalChunkSize;
+
+    @BeforeEach
+    void setUp() {
+        originalChunkSize = sagaProperties.getSweeper().getChunkSize();
+        sagaProperties.getSweeper().setChunkSize(200);
+    }
+
+    @AfterEach
+    void tearDown() {
+        sagaProperties.getSweeper().setChunkSize(originalChunkSize);
+        jdbcTemplate.update("DELETE FROM outbox_event WHERE aggregate_id IN (SELECT id FROM payment WHERE sender_account_id = ?)", SENDER);
+        jdbcTemplate.update("DELETE FROM payment WHERE sender_account_id = ?", SENDER);
+    }
+
+    @Test
+    void stalledSagasGetTheirAwaitedEventAgainWithTheSameEventId() {
+        jdbcTemplate.update("""
+            INSERT INTO payment (id, sender_account_id, receiver_account_id, amount, currency, status, idempotency_key, created_at, updated_at)
+            SELECT RANDOM_UUID(), ?, ?, 10.00, 'EUR', 'COMPLETED', CONCAT('sweeper-finished-', X), ?, ?
+            FROM SYSTEM_RANGE(1, ?)
+        """, SENDER, RECEIVER, Timestamp.from(Instant.now().minus(Duration.ofDays(1))),
+                Timestamp.from(Instant.now().minus(Duration.ofDays(1))), FINISHED);
+        List<Payment> payments = paymentTransactionalService.createPaymentsAndOutboxEvents(
+                requests(STALLED_INITIATED + STALLED_DEBITED), 500);
+        for (Payment payment : payments.subList(0, STALLED_DEBITED)) {
+            paymentAccountService.handleSenderDebited(event(new SenderDebitedEvent(payment.getId(), SENDER,
+                    payment.getAmount(), payment.getCurrency(), Instant.now())));
+        }
+        backdate(Duration.ofMinutes(1));
+        String plan = jdbcTemplate.queryForObject("""
+            EXPLAIN SELECT id, updated_at, saga_retries FROM payment WHERE status = 'INITIATED' AND updated_at < ?
+              AND (updated_at > ? OR (updated_at = ? AND id > ?)) ORDER BY updated_at, id LIMIT ?
+        """, String.class, Timestamp.from(Instant.now()), Timestamp.from(Instant.EPOCH), Timestamp.from(Instant.EPOCH),
+                new UUID(0L, 0L).toString(), 200);
+        assertTrue(plan.toUpperCase().contains("IDX_PAYMENT_STATUS_UPDATED_AT"), plan);
+
+        long started = System.nanoTime();
+        int swept = sweeperJob.sweep();
+        long elapsed = System.nanoTime() - started;
+
+        log.info("Swept {} stalled sagas among {} finished payments in {} ms", swept, FINISHED, elapsed / 1_000_000);
+        assertTrue(swept >= STALLED_INITIATED + STALLED_DEBITED, "every stalled payment is retried, " + swept);
+        for (int i = 0; i < payments.size(); i++) {
+            Payment payment = payments.get(i);
+            List<String> payloads = payloads(payment, i < STALLED_DEBITED ? "ReceiverCreditRequestEvent" : "PaymentInitiatedEvent");
+            assertEquals(2, payloads.size(), "the awaited event is written to the outbox once more");
+            assertEquals(payloads.get(0), payloads.get(1), "the retry carries the original eventId");
+            assertEquals(1, sagaRetries(payment));
+        }
+        assertEquals(2 * STALLED_INITIATED + STALLED_DEBITED, outbox("PaymentInitiatedEvent"));
+
+        sweeperJob.sweep();
+        assertEquals(2 * STALLED_INITIATED + STALLED_DEBITED, outbox("PaymentInitiatedEvent"), "the timeout restarts with every retry");
+    }
+
+    @Test
+    void afterMaxRetriesSenderDebitedIsCompensatedAndInitiatedKeepsRetrying() {
+        Payment initiated = initiate();
+        Payment debited = initiate();
+        paymentAccountService.handleSenderDebited(event(new SenderDebitedEvent(debited.getId(), SENDER,
+                debited.getAmount(), debited.getCurrency(), Instant.now())));
+        Payment creditFailed = initiate();
+        paymentAccountService.handleSenderDebited(event(new SenderDebitedEvent(creditFailed.getId(), SENDER,
+                creditFailed.getAmount(), creditFailed.getCurrency(), Instant.now())));
+        paymentAccountService.handleCreditFailed(event(new CreditFailedEvent(creditFailed.getId(), RECEIVER, "closed", Instant.now())));
+        jdbcTemplate.update("UPDATE payment SET saga_retries = ? WHERE sender_account_id = ?",
+                sagaProperties.getSweeper().getMaxRetries(), SENDER);
+        backdate(Duration.ofMinutes(1));
+        double timeouts = timeouts(PaymentStatus.SENDER_DEBITED);
+
+        sweeperJob.sweep();
+
+        assertEquals(PaymentStatus.INITIATED, status(initiated), "the debit may have happened, only its reply got lost");
+        assertEquals(List.of("PaymentInitiatedEvent", "PaymentInitiatedEvent"), outboxTypes(initiated));
+        assertEquals(sagaProperties.getSweeper().getMaxRetries() + 1, sagaRetries(initiated));
+        assertEquals(PaymentStatus.CREDIT_FAILED, status(debited));
+        assertEquals(List.of("PaymentInitiatedEvent", "ReceiverCreditRequestEvent", "CompensatePaymentEvent"), outboxTypes(debited));
+        assertEquals(0, sagaRetries(debited), "compensation starts with a fresh set of retries");
+        assertEquals(timeouts + 1, timeouts(PaymentStatus.SENDER_DEBITED));
+        assertEquals(PaymentStatus.CREDIT_FAILED, status(creditFailed));
+        assertEquals(List.of("PaymentInitiatedEvent", "ReceiverCreditRequestEvent", "CompensatePaymentEvent",
+                "CompensatePaymentEvent"), outboxTypes(creditFailed), "a compensation is re-sent however often it was");
+    }
+
+    @Test
+    void aSagaEventArrivingMeanwhileWinsOverTheSweeper() {
+        Payment payment = initiate();
+        backdate(Duration.ofMinutes(1));
+        Instant stalledBefore = Instant.now().minusSeconds(2);
+
+        paymentAccountService.handleSenderDebited(event(new SenderDebitedEvent(payment.getId(), SENDER,
+                payment.getAmount(), payment.getCurrency(), Instant.now())));
+
+        assertEquals(0, sweepService.retry(PaymentStatus.INITIATED, List.of(payment.getId()), stalledBefore));
+        assertEquals(0, sweepService.compensate(List.of(payment.getId()), stalledBefore).size());
+        assertEquals(PaymentStatus.SENDER_DEBITED, status(payment));
+        assertEquals(List.of("PaymentInitiatedEvent", "ReceiverCreditRequestEvent"), outboxTypes(payment));
+    }
+
+    @Test
+    void aCompensationThatKeptTheCreditCompletesThePayment() {
+        Payment payment = initiate();
+        paymentAccountService.handleSenderDebited(event(new SenderDebitedEvent(payment.getId(), SENDER,
+                payment.getAmount(), payment.getCurrency(), Instant.now())));
+        jdbcTemplate.update("UPDATE payment SET saga_retries = ? WHERE id = ?",
+                sagaProperties.getSweeper().getMaxRetries(), payment.getId().toString());
+        backdate(Duration.ofMinutes(1));
+        sweeperJob.sweep();
+        assertEquals(PaymentStatus.CREDIT_FAILED, status(payment));
+
+        // The credit was applied but its reply got lost: once late, it no longer decides the payment
+        paymentAccountService.handleReceiverCredited(event(new ReceiverCreditEvent(payment.getId(), RECEIVER,
+                payment.getAmount(), payment.getCurrency(), Instant.now())));
+        assertEquals(PaymentStatus.CREDIT_FAILED, status(payment));
+
+        // The compensation could not reverse the credit, the receiver having spent it
+        CompensatePaymentEvent kept = new CompensatePaymentEvent(payment.getId(), SENDER, "credit kept", Instant.now());
+        kept.setCreditKept(true);
+        paymentAccountService.handleCompensatePayment(event(kept));
+
+        assertEquals(PaymentStatus.COMPLETED, status(payment));
+        assertEquals(List.of("PaymentInitiatedEvent", "ReceiverCreditRequestEvent", "CompensatePaymentEvent",
+                "PaymentCompletedEvent"), outboxTypes(payment));
+    }
+
+    @Test
+    void inFlightGaugeCountsPaymentsPerStatusOnEverySweep() {
+        sweeperJob.sweep();
+        double initiated = inFlight(PaymentStatus.INITIATED);
+        double debited = inFlight(PaymentStatus.SENDER_DEBITED);
+
+        initiate();
+        Payment payment = initiate();
+        paymentAccountService.handleSenderDebited(event(new SenderDebitedEvent(payment.getId(), SENDER,
+                payment.getAmount(), payment.getCurrency(), Instant.now())));
+        assertEquals(initiated, inFlight(PaymentStatus.INITIATED), "a scrape does not count");
+        sweeperJob.sweep();
+
+        assertEquals(initiated + 1, inFlight(PaymentStatus.INITIATED));
+        assertEquals(debited + 1, inFlight(PaymentStatus.SENDER_DEBITED));
+    }
+
+    private void backdate(Duration age) {
+        jdbcTemplate.update("UPDATE payment SET updated_at = ? WHERE sender_account_id = ? AND status <> 'COMPLETED'",
+                Timestamp.from(Instant.now().minus(age)), SENDER);
+    }
+
+    private PaymentStatus status(Payment payment) {
+        return PaymentStatus.valueOf(jdbcTemplate.queryForObject("SELECT status FROM payment WHERE id = ?", String.class,
+                payment.getId().toString()));
+    }
+
+    private int sagaRetries(Payment payment) {
+        return jdbcTemplate.queryForObject("SELECT saga_retries FROM payment WHERE id = ?", Integer.class, payment.getId().toString());
+    }
+
+    private List<String> payloads(Payment payment, String type) {
+        return jdbcTemplate.queryForList("SELECT payload FROM outbox_event WHERE aggregate_id = ? AND type = ? ORDER BY created_at",
+                String.class, payment.getId().toString(), type);
+    }
+
+    private List<String> outboxTypes(Payment payment) {
+        return jdbcTemplate.queryForList("SELECT type FROM outbox_event WHERE aggregate_id = ? ORDER BY created_at",
+                String.class, payment.getId().toString());
+    }
+
+    private int outbox(String type) {
+        return jdbcTemplate.queryForObject("""
+            SELECT COUNT(*) FROM outbox_event WHERE type = ?
+              AND aggregate_id IN (SELECT id FROM payment WHERE sender_account_id = ?)
+        """, Integer.class, type, SENDER);
+    }
+
+    private double inFlight(PaymentStatus status) {
+        return meterRegistry.get("payment.sagas.in.flight").tag("status", status.name()).gauge().value();
+    }
+
+    private double timeouts(PaymentStatus status) {
+        Counter counter = meterRegistry.find("payment.saga.sweeper.timeouts").tag("status", status.name()).counter();
+        return counter == null ? 0 : counter.count();
+    }
+
+    private Payment initiate() {
+        return paymentAccountService.initiatePayment(requests(1).get(0));
+    }
+
+    private static List<PaymentRequestDTO> requests(int count) {
+        List<PaymentRequestDTO> requests = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            requests.add(new PaymentRequestDTO(SENDER, RECEIVER, new BigDecimal("10.00"), "EUR", UUID.randomUUID().toString()));
+        }
+        return requests;
+    }
+
+    private static <E extends Event> E event(E event) {
+        event.setEventId(UUID.randomUUID());
+        return event;
+    }
+}
@@ -0,0 +1,110 @@
+package com.bank.system.payment_service.kafka;
+
+import com.bank.system.payment_service.config.ConsumerProperties;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class KeyOrderedExecutorTest {
+
+    private static final Logger log = LoggerFactory.getLogger(KeyOrderedExecutorTest.class);
+    private static final int KEYS = 50;
+    private static final int RECORDS = 400;
+
+    private final List<KeyOrderedExecutor> executors = new ArrayList<>();
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        for (KeyOrderedExecutor executor : executors) {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void recordsOfOneKeyRunInSubmissionOrder() {
+        KeyOrderedExecutor executor = executor(true, false);
+        Map<Integer, List<Integer>> seen = new ConcurrentHashMap<>();
+        List<CompletableFuture<Void>> done = new ArrayList<>();
+        for (int i = 0; i < RECORDS; i++) {
+            int key = i % KEYS;
+            int sequence = i;
+            done.add(executor.submit(key, () -> {
+                sleep(ThreadLocalRandom.current().nextInt(2));
+                seen.computeIfAbsent(key, k -> new CopyOnWriteArrayList<>()).add(sequence);
+            }));
+        }
+        CompletableFuture.allOf(done.toArray(CompletableFuture[]::new)).join();
+
+        for (List<Integer> sequences : seen.values()) {
+            assertEquals(sequences.stream().sorted().toList(), sequences);
+        }
+        assertEquals(KEYS, seen.size());
+        assertEquals(0, executor.getKeysInFlight(), "finished keys are dropped");
+    }
+
+    @Test
+    void failedRecordDoesNotHoldBackItsKey() {
+        KeyOrderedExecutor executor = executor(true, false);
+        CompletableFuture<Void> failed = executor.submit("payment", () -> {
+            throw new IllegalStateException("boom");
+        });
+        List<String> ran = new CopyOnWriteArrayList<>();
+        executor.submit("payment", () -> ran.add("next")).join();
+
+        assertTrue(failed.isCompletedExceptionally());
+        assertEquals(List.of("next"), ran);
+    }
+
+    @Test
+    void blockingHandlersOverlapAcrossKeys() {
+        long serial = measure(executor(false, false));
+        long pooled = measure(executor(true, false));
+        long virtual = measure(executor(true, true));
+
+        log.info("{} records of {} keys, 2 ms each: {} records/s serial, {} records/s on 8 workers, {} records/s on virtual threads",
+                RECORDS, KEYS, serial, pooled, virtual);
+        assertTrue(pooled > serial * 3, "eight workers should beat one thread by a wide margin");
+        assertTrue(virtual > serial * 3, "so should virtual threads");
+    }
+
+    // Every record blocks for 2 ms, standing in for the handlers' JDBC round trips
+    private long measure(KeyOrderedExecutor executor) {
+        List<CompletableFuture<Void>> done = new ArrayList<>(RECORDS);
+        long started = System.nanoTime();
+        for (int i = 0; i < RECORDS; i++) {
+            done.add(executor.submit(i % KEYS, () -> sleep(2)));
+        }
+        CompletableFuture.allOf(done.toArray(CompletableFuture[]::new)).join();
+        return (long) (RECORDS / ((System.nanoTime() - started) / 1_000_000_000.0));
+    }
+
+    private KeyOrderedExecutor executor(boolean parallel, boolean virtualThreads) {
+        ConsumerProperties properties = new ConsumerProperties();
+        properties.getParallel().setEnabled(parallel);
+        properties.getParallel().setWorkers(8);
+        properties.getParallel().setVirtualThreads(virtualThreads);
+        KeyOrderedExecutor executor = new KeyOrderedExecutor(properties);
+        executors.add(executor);
+        return executor;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.bank.system.payment_service.saga;
+
+import com.bank.system.dtos.dto.CompensatePaymentEvent;
+import com.bank.system.dtos.dto.CreditFailedEvent;
+import com.bank.system.dtos.dto.DebitFailedEvent;
+import com.bank.system.dtos.dto.Event;
+import com.bank.system.dtos.dto.PaymentRequestDTO;
+import com.bank.system.dtos.dto.ReceiverCreditEvent;
+import com.bank.system.dtos.dto.SenderDebitedEvent;
+import com.bank.system.payment_service.domain.Payment;
+import com.bank.system.payment_service.domain.PaymentStatus;
+import com.bank.system.payment_service.repository.PaymentRepository;
+import com.bank.system.payment_service.service.PaymentAccountService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(properties = "outbox.dispatcher.enabled=false")
+class PaymentStateMachineTest {
+
+    private static final String SENDER = "SAGA-SENDER";
+    private static final String RECEIVER = "SAGA-RECEIVER";
+    private static final int RACES = 50;
+
+    @Autowired
+    private PaymentAccountService paymentAccountService;
+
+    @Autowired
+    private PaymentStateMachine stateMachine;
+
+    @Autowired
+    private PaymentRepository paymentRepository;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @AfterEach
+    void tearDown() {
+        jdbcTemplate.update("DELETE FROM outbox_event WHERE aggregate_id IN (SELECT id FROM payment WHERE sender_account_id = ?)", SENDER);
+        jdbcTemplate.update("DELETE FROM payment WHERE sender_account_id = ?", SENDER);
+    }
+
+    @Test
+    void noTransitionLeavesATerminalStatus() {
+        for (PaymentTransition transition : PaymentTransition.values()) {
+            assertTrue(transition.getFrom().stream().noneMatch(PaymentStatus::isTerminal), transition.name());
+        }
+    }
+
+    @Test
+    void eventsArrivingAheadOfTheirPredecessorAreRejectedAndCounted() {
+        Payment payment = initiate();
+        double rejected = rejected(PaymentTransition.RECEIVER_CREDITED, PaymentStatus.INITIATED);
+
+        paymentAccountService.handleReceiverCredited(event(new ReceiverCreditEvent(payment.getId(), RECEIVER,
+                payment.getAmount(), payment.getCurrency(), Instant.now())));
+
+        assertEquals(PaymentStatus.INITIATED, status(payment));
+        assertEquals(rejected + 1, rejected(PaymentTransition.RECEIVER_CREDITED, PaymentStatus.INITIATED));
+        assertEquals(List.of("PaymentInitiatedEvent"), outboxTypes(payment), "a rejected event publishes nothing");
+
+        paymentAccountService.handleSenderDebited(event(new SenderDebitedEvent(payment.getId(), SENDER,
+                payment.getAmount(), payment.getCurrency(), Instant.now())));
+        paymentAccountService.handleReceiverCredited(event(new ReceiverCreditEvent(payment.getId(), RECEIVER,
+                payment.getAmount(), payment.getCurrency(), Instant.now())));
+        assertEquals(PaymentStatus.COMPLETED, status(payment));
+
+        // A late failure cannot move the finished payment backwards
+        paymentAccountService.handleDebitFailed(event(new DebitFailedEvent(payment.getId(), SENDER, "late", Instant.now())));
+        assertEquals(PaymentStatus.COMPLETED, status(payment));
+        assertEquals(List.of("PaymentInitiatedEvent", "ReceiverCreditRequestEvent", "PaymentCompletedEvent"), outboxTypes(payment));
+    }
+
+    @Test
+    void compensatedPaymentEndsFailedWithoutACompletion() {
+        Payment payment = initiate();
+        paymentAccountService.handleSenderDebited(event(new SenderDebitedEvent(payment.getId(), SENDER,
+                payment.getAmount(), payment.getCurrency(), Instant.now())));
+        paymentAccountService.handleCreditFailed(event(new CreditFailedEvent(payment.getId(), RECEIVER, "closed", Instant.now())));
+        assertEquals(PaymentStatus.CREDIT_FAILED, status(payment));
+
+        CompensatePaymentEvent compensated = new CompensatePaymentEvent();
+        compensated.setPaymentId(payment.getId());
+        paymentAccountService.handleCompensatePayment(event(compensated));
+
+        assertEquals(PaymentStatus.FAILED, status(payment));
+        assertFalse(outboxTypes(payment).contains("PaymentCompletedEvent"));
+    }
+
+    @Test
+    void ofTwoRacingOutcomesExactlyOneWins() throws Exception {
+        try (ExecutorService racers = Executors.newFixedThreadPool(2)) {
+            for (int i = 0; i < RACES; i++) {
+                Payment payment = initiate();
+                assertTrue(stateMachine.apply(payment.getId(), PaymentTransition.SENDER_DEBITED).isPresent());
+                CountDownLatch start = new CountDownLatch(1);
+                CompletableFuture<Optional<Payment>> credited = race(racers, start, payment, PaymentTransition.RECEIVER_CREDITED);
+                CompletableFuture<Optional<Payment>> failed = race(racers, start, payment, PaymentTransition.CREDIT_FAILED);
+                start.countDown();
+
+                assertTrue(credited.get().isPresent() ^ failed.get().isPresent(), "one transition out of SENDER_DEBITED");
+                PaymentStatus winner = credited.get().isPresent() ? PaymentStatus.COMPLETED : PaymentStatus.CREDIT_FAILED;
+                assertEquals(winner, status(payment));
+            }
+        }
+    }
+
+    private CompletableFuture<Optional<Payment>> race(ExecutorService racers, CountDownLatch start, Payment payment,
+                                                      PaymentTransition transition) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                start.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return stateMachine.apply(payment.getId(), transition);
+        }, racers);
+    }
+
+    private double rejected(PaymentTransition transition, PaymentStatus status) {
+        Counter counter = meterRegistry.find("payment.transitions.rejected")
+                .tag("transition", transition.name())
+                .tag("status", status.name())
+                .counter();
+        return counter == null ? 0 : counter.count();
+    }
+
+    private PaymentStatus status(Payment payment) {
+        return paymentRepository.findById(payment.getId()).orElseThrow().getStatus();
+    }
+
+    private List<String> outboxTypes(Payment payment) {
+        return jdbcTemplate.queryForList("SELECT type FROM outbox_event WHERE aggregate_id = ? ORDER BY created_at",
+                String.class, payment.getId().toString());
+    }
+
+    private Payment initiate() {
+        return paymentAccountService.initiatePayment(new PaymentRequestDTO(SENDER, RECEIVER, new BigDecimal("10.00"), "EUR",
+                UUID.randomUUID().toString()));
+    }
+
+    private static <E extends Event> E event(E event) {
+        event.setEventId(UUID.randomUUID());
+        return event;
+    }
+}
@@ -0,0 +1,177 @@
+package com.bank.system.payment_service.service;
+
+import com.bank.system.dtos.dto.PaymentRequestDTO;
+import com.bank.system.payment_service.config.IdempotencyProperties;
+import com.bank.system.payment_service.domain.Payment;
+import com.bank.system.payment_service.domain.PaymentStatus;
+import com.bank.system.payment_service.idempotency.IdempotencyKeyCache;
+import com.bank.system.payment_service.repository.PaymentRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(properties = "outbox.dispatcher.enabled=false")
+class PaymentIdempotencyTest {
+
+    private static final Logger log = LoggerFactory.getLogger(PaymentIdempotencyTest.class);
+    private static final String SENDER = "IDEMPOTENCY-SENDER";
+    private static final int CONCURRENT_SUBMITS = 16;
+    private static final int RETRIED_KEYS = 1_000;
+
+    @Autowired
+    private PaymentAccountService paymentAccountService;
+
+    @Autowired
+    private PaymentRepository paymentRepository;
+
+    @Autowired
+    private IdempotencyProperties idempotencyProperties;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @AfterEach
+    void tearDown() {
+        idempotencyProperties.getCache().setEnabled(true);
+        jdbcTemplate.update("DELETE FROM outbox_event WHERE aggregate_id IN (SELECT id FROM payment WHERE sender_account_id = ?)", SENDER);
+        jdbcTemplate.update("DELETE FROM payment WHERE sender_account_id = ?", SENDER);
+    }
+
+    @Test
+    void concurrentDuplicateSubmitsCreateOnePayment() throws Exception {
+        PaymentRequestDTO request = request(UUID.randomUUID().toString());
+        CountDownLatch start = new CountDownLatch(1);
+        List<CompletableFuture<Payment>> results = new ArrayList<>();
+        try (ExecutorService submitters = Executors.newFixedThreadPool(CONCURRENT_SUBMITS)) {
+            for (int i = 0; i < CONCURRENT_SUBMITS; i++) {
+                results.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return paymentAccountService.initiatePayment(request);
+                }, submitters));
+            }
+            start.countDown();
+        }
+
+        Set<UUID> paymentIds = results.stream().map(result -> result.join().getId()).collect(Collectors.toSet());
+        assertEquals(1, paymentIds.size(), "every submission is answered with the same payment");
+        assertEquals(1, payments(request.getIdempotencyKey()));
+        assertEquals(1, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM outbox_event WHERE aggregate_id = ?",
+                Integer.class, paymentIds.iterator().next().toString()));
+    }
+
+    @Test
+    void keyUnknownToTheCacheIsSettledByTheUniqueIndex() {
+        idempotencyProperties.getCache().setEnabled(false);
+        PaymentRequestDTO request = request(UUID.randomUUID().toString());
+
+        Payment first = paymentAccountService.initiatePayment(request);
+        Payment retried = paymentAccountService.initiatePayment(request);
+
+        assertEquals(first.getId(), retried.getId());
+        assertEquals(1, payments(request.getIdempotencyKey()));
+        Payment duplicate = new Payment();
+        duplicate.setSenderAccountId(SENDER);
+        duplicate.setReceiverAccountId("IDEMPOTENCY-RECEIVER");
+        duplicate.setAmount(BigDecimal.ONE);
+        duplicate.setCurrency("EUR");
+        duplicate.setStatus(first.getStatus());
+        duplicate.setIdempotencyKey(request.getIdempotencyKey());
+        assertThrows(DuplicateKeyException.class, () -> paymentRepository.save(duplicate));
+    }
+
+    @Test
+    void aRetryServedByTheCacheCarriesTheCurrentStatus() {
+        PaymentRequestDTO request = request(UUID.randomUUID().toString());
+        Payment first = paymentAccountService.initiatePayment(request);
+        jdbcTemplate.update("UPDATE payment SET status = ? WHERE id = ?", PaymentStatus.COMPLETED.name(), first.getId());
+
+        Payment retried = paymentAccountService.initiatePayment(request);
+
+        assertEquals(first.getId(), retried.getId());
+        assertEquals(PaymentStatus.COMPLETED, retried.getStatus());
+    }
+
+    @Test
+    void retriedSubmissionsOfRecentKeysSkipTheFailedInsert() {
+        List<PaymentRequestDTO> requests = new ArrayList<>(RETRIED_KEYS);
+        for (int i = 0; i < RETRIED_KEYS; i++) {
+            PaymentRequestDTO request = request(UUID.randomUUID().toString());
+            paymentAccountService.initiatePayment(request);
+            requests.add(request);
+        }
+        // Warm both paths up before the clock starts
+        idempotencyProperties.getCache().setEnabled(false);
+        requests.forEach(paymentAccountService::initiatePayment);
+        idempotencyProperties.getCache().setEnabled(true);
+        requests.forEach(paymentAccountService::initiatePayment);
+
+        idempotencyProperties.getCache().setEnabled(false);
+        long started = System.nanoTime();
+        requests.forEach(paymentAccountService::initiatePayment);
+        long table = System.nanoTime() - started;
+        idempotencyProperties.getCache().setEnabled(true);
+        started = System.nanoTime();
+        requests.forEach(paymentAccountService::initiatePayment);
+        long memory = System.nanoTime() - started;
+
+        log.info("{} retried submissions: {} us each resolved by the unique index, {} us each by the id from the idempotency cache",
+                RETRIED_KEYS, table / 1_000 / RETRIED_KEYS, memory / 1_000 / RETRIED_KEYS);
+        assertTrue(memory * 10 < table, "a retry of a recent key reads its row by id instead of failing an insert");
+        assertEquals(RETRIED_KEYS, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM payment WHERE sender_account_id = ?",
+                Integer.class, SENDER));
+    }
+
+    @Test
+    void keysExpireAndTheLeastRecentlyUsedAreDropped() throws InterruptedException {
+        IdempotencyProperties properties = new IdempotencyProperties();
+        properties.getCache().setMaxKeys(2);
+        properties.getCache().setTtl(Duration.ofMillis(200));
+        IdempotencyKeyCache cache = new IdempotencyKeyCache(properties);
+
+        cache.put("a", UUID.randomUUID());
+        cache.put("b", UUID.randomUUID());
+        assertNotNull(cache.get("a"));
+        cache.put("c", UUID.randomUUID());
+        assertNull(cache.get("b"), "b was used least recently");
+        assertNotNull(cache.get("a"));
+
+        Thread.sleep(300);
+        assertNull(cache.get("a"));
+        assertNull(cache.get("c"));
+    }
+
+    private int payments(String idempotencyKey) {
+        return jdbcTemplate.queryForObject("SELECT COUNT(*) FROM payment WHERE idempotency_key = ?", Integer.class, idempotencyKey);
+    }
+
+    private static PaymentRequestDTO request(String idempotencyKey) {
+        return new PaymentRequestDTO(SENDER, "IDEMPOTENCY-RECEIVER", new BigDecimal("10.00"), "EUR", idempotencyKey);
+    }
+}